@@ -0,0 +1,246 @@
+package com.summersoft.heliocam.detection;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.summersoft.heliocam.utils.FileUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.tensorflow.lite.Interpreter;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * On-device latency and recall per {@link DetectionInputProfile}, using the same
+ * interpreter settings, preprocessor and decoder as PersonDetection.
+ *
+ * Latency runs on a synthetic frame. Recall needs labelled captures pushed to the app's
+ * external files dir, e.g. {@code /sdcard/Android/data/com.summersoft.heliocam/files/recall/}:
+ * JPEG frames plus a {@code labels.csv} with lines {@code file,distanceMeters,persons}.
+ * The recall test is skipped when that set is missing. Results go to logcat under
+ * {@value #TAG}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DetectionInputProfileBenchmark {
+    private static final String TAG = "ProfileBenchmark";
+    private static final String MODEL_FILE = "yolov8n.tflite";
+    private static final float CONFIDENCE_THRESHOLD = 0.5f;
+    private static final float NMS_IOU_THRESHOLD = 0.45f;
+    private static final float FAR_DISTANCE_METERS = 8f;
+    private static final int WARMUP_RUNS = 5;
+    private static final int TIMED_RUNS = 30;
+
+    private Context context;
+    private Interpreter interpreter;
+    private boolean channelsFirst;
+
+    @Before
+    public void setUp() throws IOException {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        Interpreter.Options options = new Interpreter.Options();
+        options.setUseXNNPACK(true);
+        options.setNumThreads(Math.min(2, Runtime.getRuntime().availableProcessors()));
+        options.setAllowFp16PrecisionForFp32(true);
+        interpreter = new Interpreter(FileUtils.loadModelFile(context, MODEL_FILE), options);
+        channelsFirst = I420TensorPreprocessor.isChannelsFirst(interpreter.getInputTensor(0).shape());
+    }
+
+    @After
+    public void tearDown() {
+        if (interpreter != null) {
+            interpreter.close();
+        }
+    }
+
+    @Test
+    public void inferenceLatencyPerProfile() {
+        I420Frame frame = I420Frame.synthetic(1280, 720);
+        for (DetectionInputProfile profile : DetectionInputProfile.values()) {
+            Runner runner = new Runner(profile);
+            for (int i = 0; i < WARMUP_RUNS; i++) {
+                runner.detect(frame);
+            }
+            long[] runs = new long[TIMED_RUNS];
+            for (int i = 0; i < TIMED_RUNS; i++) {
+                long start = System.nanoTime();
+                runner.detect(frame);
+                runs[i] = System.nanoTime() - start;
+            }
+            Arrays.sort(runs);
+            Log.i(TAG, profile + " (" + profile.getInputSize() + "px): median "
+                    + runs[TIMED_RUNS / 2] / 1_000_000 + " ms, p90 "
+                    + runs[TIMED_RUNS * 9 / 10] / 1_000_000 + " ms");
+            assertTrue(runs[TIMED_RUNS / 2] > 0);
+        }
+    }
+
+    @Test
+    public void recallPerProfile() throws IOException {
+        File dir = context.getExternalFilesDir("recall");
+        File labels = dir != null ? new File(dir, "labels.csv") : null;
+        assumeTrue("No labelled captures in " + dir, labels != null && labels.isFile());
+        List<Sample> samples = Sample.load(dir, labels);
+        assumeTrue("labels.csv lists no frames with people", !samples.isEmpty());
+
+        for (DetectionInputProfile profile : DetectionInputProfile.values()) {
+            Runner runner = new Runner(profile);
+            int hits = 0;
+            int far = 0;
+            int farHits = 0;
+            for (Sample sample : samples) {
+                boolean hit = runner.detect(sample.frame) > 0;
+                if (hit) {
+                    hits++;
+                }
+                if (sample.distanceMeters >= FAR_DISTANCE_METERS) {
+                    far++;
+                    if (hit) {
+                        farHits++;
+                    }
+                }
+            }
+            Log.i(TAG, profile + " (" + profile.getInputSize() + "px): recall " + hits + "/" + samples.size()
+                    + ", at " + FAR_DISTANCE_METERS + " m or more " + farHits + "/" + far);
+        }
+    }
+
+    /** One profile's interpreter shape, preprocessor, output buffer and decoder. */
+    private final class Runner {
+        private final I420TensorPreprocessor preprocessor;
+        private final ByteBuffer output;
+        private final FloatBuffer outputView;
+        private final YoloPersonDecoder decoder = new YoloPersonDecoder(100, 20);
+        private final int[] outputShape;
+        private final int size;
+
+        Runner(DetectionInputProfile profile) {
+            size = profile.getInputSize();
+            interpreter.resizeInput(0, channelsFirst ? new int[]{1, 3, size, size} : new int[]{1, size, size, 3});
+            interpreter.allocateTensors();
+            outputShape = interpreter.getOutputTensor(0).shape();
+            preprocessor = new I420TensorPreprocessor(size, size, channelsFirst, 0f, 1f);
+            output = ByteBuffer.allocateDirect(outputShape[0] * outputShape[1] * outputShape[2] * 4)
+                    .order(ByteOrder.nativeOrder());
+            outputView = output.asFloatBuffer();
+        }
+
+        /** @return number of people found after NMS */
+        int detect(I420Frame frame) {
+            ByteBuffer input = preprocessor.process(frame.y, frame.width, frame.u, frame.width / 2,
+                    frame.v, frame.width / 2, frame.width, frame.height);
+            input.rewind();
+            output.rewind();
+            interpreter.run(input, output);
+            boolean outputChannelsFirst = outputShape[1] < outputShape[2];
+            int channels = outputChannelsFirst ? outputShape[1] : outputShape[2];
+            int anchors = outputChannelsFirst ? outputShape[2] : outputShape[1];
+            return decoder.decode(outputView, channels, anchors, outputChannelsFirst,
+                    size, size, CONFIDENCE_THRESHOLD, NMS_IOU_THRESHOLD);
+        }
+    }
+
+    /** Tightly packed I420 planes, as the camera delivers them. */
+    private static final class I420Frame {
+        final int width;
+        final int height;
+        final ByteBuffer y;
+        final ByteBuffer u;
+        final ByteBuffer v;
+
+        private I420Frame(int width, int height) {
+            this.width = width;
+            this.height = height;
+            y = ByteBuffer.allocateDirect(width * height);
+            u = ByteBuffer.allocateDirect(width * height / 4);
+            v = ByteBuffer.allocateDirect(width * height / 4);
+        }
+
+        static I420Frame synthetic(int width, int height) {
+            I420Frame frame = new I420Frame(width, height);
+            for (int i = 0; i < width * height; i++) {
+                frame.y.put(i, (byte) (16 + (i * 31) % 220));
+            }
+            for (int i = 0; i < width * height / 4; i++) {
+                frame.u.put(i, (byte) (128 + (i % 64) - 32));
+                frame.v.put(i, (byte) (128 - (i % 48) + 24));
+            }
+            return frame;
+        }
+
+        /** BT.601 limited-range conversion; chroma from the top-left pixel of each 2x2 block. */
+        static I420Frame fromBitmap(Bitmap bitmap) {
+            int width = bitmap.getWidth() & ~1;
+            int height = bitmap.getHeight() & ~1;
+            int[] argb = new int[width * height];
+            bitmap.getPixels(argb, 0, width, 0, 0, width, height);
+            I420Frame frame = new I420Frame(width, height);
+            for (int row = 0; row < height; row++) {
+                for (int col = 0; col < width; col++) {
+                    int pixel = argb[row * width + col];
+                    int r = (pixel >> 16) & 0xFF;
+                    int g = (pixel >> 8) & 0xFF;
+                    int b = pixel & 0xFF;
+                    frame.y.put(row * width + col, (byte) (((66 * r + 129 * g + 25 * b + 128) >> 8) + 16));
+                    if ((row & 1) == 0 && (col & 1) == 0) {
+                        int chroma = (row / 2) * (width / 2) + col / 2;
+                        frame.u.put(chroma, (byte) (((-38 * r - 74 * g + 112 * b + 128) >> 8) + 128));
+                        frame.v.put(chroma, (byte) (((112 * r - 94 * g - 18 * b + 128) >> 8) + 128));
+                    }
+                }
+            }
+            return frame;
+        }
+    }
+
+    /** A labelled capture with at least one person in it. */
+    private static final class Sample {
+        final I420Frame frame;
+        final float distanceMeters;
+
+        private Sample(I420Frame frame, float distanceMeters) {
+            this.frame = frame;
+            this.distanceMeters = distanceMeters;
+        }
+
+        static List<Sample> load(File dir, File labels) throws IOException {
+            List<Sample> samples = new ArrayList<>();
+            try (BufferedReader reader = new BufferedReader(new FileReader(labels))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.trim().split(",");
+                    if (fields.length < 3 || fields[0].startsWith("#") || Integer.parseInt(fields[2].trim()) == 0) {
+                        continue;
+                    }
+                    Bitmap bitmap = BitmapFactory.decodeFile(new File(dir, fields[0].trim()).getAbsolutePath());
+                    if (bitmap == null) {
+                        Log.w(TAG, "Cannot decode " + fields[0]);
+                        continue;
+                    }
+                    samples.add(new Sample(I420Frame.fromBitmap(bitmap), Float.parseFloat(fields[1].trim())));
+                    bitmap.recycle();
+                }
+            }
+            return samples;
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package com.summersoft.heliocam.webrtc_utils;
+
+import android.Manifest;
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.summersoft.heliocam.detection.AudioFeatureExtractor;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.webrtc.audio.JavaAudioDeviceModule;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Process CPU time and capture-thread wakeups of the old and the shared microphone set-up,
+ * while a call is sending audio.
+ *
+ * A stand-in for WebRTC's capture thread reads 10 ms buffers at 48 kHz, as WebRtcAudioRecord
+ * does. The old set-up adds SoundDetection's own AudioRecord at 44.1 kHz with its feature
+ * extraction; the shared set-up hands the call's buffers to SharedAudioCapture, which feeds
+ * the same feature extraction. Results go to logcat under {@value #TAG}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SharedAudioCaptureBenchmark {
+    private static final String TAG = "AudioCaptureBenchmark";
+    private static final long RUN_MS = 20000;
+    private static final int WEBRTC_RATE = 48000;
+    private static final int WEBRTC_BUFFER_FRAMES = WEBRTC_RATE / 100;
+    private static final int LEGACY_RATE = 44100;
+
+    private Context context;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        assumeTrue("Granting the microphone permission needs API 28", Build.VERSION.SDK_INT >= Build.VERSION_CODES.P);
+        InstrumentationRegistry.getInstrumentation().getUiAutomation()
+                .grantRuntimePermission(context.getPackageName(), Manifest.permission.RECORD_AUDIO);
+    }
+
+    @Test
+    public void sharedCaptureAgainstSeparateAudioRecord() throws InterruptedException {
+        Result separate = run(false);
+        Result shared = run(true);
+
+        Log.i(TAG, "Separate AudioRecord: " + separate);
+        Log.i(TAG, "Shared capture:       " + shared);
+        if (separate.failed) {
+            Log.i(TAG, "The second AudioRecord did not deliver audio on this device; the old set-up had no sound detection here");
+        } else {
+            Log.i(TAG, String.format(Locale.US, "CPU %.1f%% less, %d fewer wakeups/s",
+                    100f * (separate.cpuMs - shared.cpuMs) / Math.max(1, separate.cpuMs),
+                    (separate.wakeups - shared.wakeups) * 1000 / RUN_MS));
+        }
+        assertTrue(shared.detectionSamples > 0);
+    }
+
+    private static final class Result {
+        long cpuMs;
+        long wakeups;
+        long detectionSamples;
+        boolean failed;
+
+        @Override
+        public String toString() {
+            return "cpu=" + cpuMs + " ms over " + RUN_MS + " ms, wakeups/s=" + wakeups * 1000 / RUN_MS
+                    + ", detection samples=" + detectionSamples;
+        }
+    }
+
+    @SuppressLint("MissingPermission")
+    private Result run(boolean useSharedCapture) throws InterruptedException {
+        Result result = new Result();
+        AtomicLong wakeups = new AtomicLong();
+        AtomicLong detectionSamples = new AtomicLong();
+
+        SharedAudioCapture capture = new SharedAudioCapture(context);
+        AudioFeatureExtractor sharedExtractor = new AudioFeatureExtractor(SharedAudioCapture.SAMPLE_RATE, 1024);
+        if (useSharedCapture) {
+            capture.yieldToWebRtc();
+            capture.onWebRtcAudioRecordStart();
+            capture.addListener((samples, length, sampleRate) -> {
+                sharedExtractor.process(samples, 0, length);
+                detectionSamples.addAndGet(length);
+            });
+        }
+
+        AudioRecord call = open(WEBRTC_RATE, WEBRTC_BUFFER_FRAMES);
+        assumeTrue("Microphone unavailable", call != null);
+        AudioRecord legacy = useSharedCapture ? null : open(LEGACY_RATE, 4096);
+        result.failed = !useSharedCapture && legacy == null;
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        long cpuStart = Process.getElapsedCpuTime();
+
+        Thread callThread = new Thread(() -> {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+            byte[] buffer = new byte[WEBRTC_BUFFER_FRAMES * 2];
+            while (running.get()) {
+                int read = call.read(buffer, 0, buffer.length);
+                if (read > 0) {
+                    wakeups.incrementAndGet();
+                    if (useSharedCapture) {
+                        capture.onWebRtcAudioRecordSamplesReady(new JavaAudioDeviceModule.AudioSamples(
+                                AudioFormat.ENCODING_PCM_16BIT, 1, WEBRTC_RATE, buffer));
+                    }
+                }
+            }
+        }, "Benchmark-Call");
+
+        Thread legacyThread = legacy == null ? null : new Thread(() -> {
+            AudioFeatureExtractor extractor = new AudioFeatureExtractor(LEGACY_RATE, 1024);
+            short[] buffer = new short[4096];
+            while (running.get()) {
+                int read = legacy.read(buffer, 0, buffer.length);
+                if (read > 0) {
+                    wakeups.incrementAndGet();
+                    extractor.process(buffer, 0, read);
+                    detectionSamples.addAndGet(read);
+                }
+            }
+        }, "Benchmark-Legacy");
+
+        callThread.start();
+        if (legacyThread != null) {
+            legacyThread.start();
+        }
+        SystemClock.sleep(RUN_MS);
+        running.set(false);
+        callThread.join();
+        if (legacyThread != null) {
+            legacyThread.join();
+        }
+
+        result.cpuMs = Process.getElapsedCpuTime() - cpuStart;
+        result.wakeups = wakeups.get();
+        result.detectionSamples = detectionSamples.get();
+        if (!useSharedCapture && result.detectionSamples == 0) {
+            result.failed = true;
+        }
+
+        release(call);
+        release(legacy);
+        capture.release();
+        return result;
+    }
+
+    @SuppressLint("MissingPermission")
+    private static AudioRecord open(int sampleRate, int readFrames) {
+        int minBuffer = AudioRecord.getMinBufferSize(sampleRate,
+                AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT);
+        try {
+            AudioRecord record = new AudioRecord(MediaRecorder.AudioSource.MIC, sampleRate,
+                    AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT,
+                    Math.max(minBuffer, readFrames * 2 * 2));
+            if (record.getState() != AudioRecord.STATE_INITIALIZED) {
+                record.release();
+                return null;
+            }
+            record.startRecording();
+            return record;
+        } catch (Exception e) {
+            Log.w(TAG, "Cannot open AudioRecord at " + sampleRate + " Hz: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static void release(AudioRecord record) {
+        if (record == null) {
+            return;
+        }
+        try {
+            record.stop();
+        } catch (IllegalStateException ignored) {
+        }
+        record.release();
+    }
+}
@@ -0,0 +1,230 @@
+package com.summersoft.heliocam.detection;
+
+import java.util.Arrays;
+
+/**
+ * Streaming feature extraction over 16-bit mono PCM.
+ *
+ * Samples of any read size are pushed into a preallocated ring buffer. Every time a
+ * fixed-size hop is complete, RMS, peak, their dBFS values and spectral flux are
+ * computed and delivered to the listeners. The spectrum is taken over a window of two
+ * hops (50% overlap) with a Hann window. Nothing is allocated after construction.
+ *
+ * Not thread-safe: {@link #process} must be called from a single audio thread.
+ * Listeners may be added and removed from any thread.
+ */
+public class AudioFeatureExtractor {
+
+    /**
+     * Receives one feature frame per hop, on the thread that calls {@link #process}.
+     */
+    public interface Listener {
+        void onFeatureFrame(AudioFeatureFrame frame);
+    }
+
+    /**
+     * Decides per hop, from its level, whether the spectrum is worth computing.
+     * Called on the thread that calls {@link #process}.
+     */
+    public interface SpectrumGate {
+        boolean wantsSpectrum(float rmsDbfs);
+    }
+
+    private static final float FULL_SCALE = 32768f;
+    private static final Listener[] NO_LISTENERS = new Listener[0];
+
+    private final int sampleRate;
+    private final int hopSize;
+    private final int windowSize;
+
+    // Ring holds the last windowSize samples; windowSize is a power of two so wrap is a mask
+    private final short[] ring;
+    private final int ringMask;
+    private int writePos = 0;
+    private int hopFill = 0;
+    private long totalSamples = 0;
+    private long hopCount = 0;
+
+    private final Fft fft;
+    private final float[] fftRe;
+    private final float[] fftIm;
+    private final float[] magnitudes;
+    private final float[] previousMagnitudes;
+    private boolean hasPrevious = false;
+
+    private final AudioFeatureFrame frame = new AudioFeatureFrame();
+    private volatile Listener[] listeners = NO_LISTENERS;
+    private volatile SpectrumGate spectrumGate;
+
+    /**
+     * @param sampleRate sample rate of the PCM stream in Hz
+     * @param hopSize    samples per feature frame, must be a power of two
+     */
+    public AudioFeatureExtractor(int sampleRate, int hopSize) {
+        if (sampleRate <= 0) {
+            throw new IllegalArgumentException("Invalid sample rate: " + sampleRate);
+        }
+        if (hopSize < 2 || Integer.bitCount(hopSize) != 1) {
+            throw new IllegalArgumentException("Hop size must be a power of two: " + hopSize);
+        }
+        this.sampleRate = sampleRate;
+        this.hopSize = hopSize;
+        this.windowSize = hopSize * 2;
+
+        ring = new short[windowSize];
+        ringMask = windowSize - 1;
+
+        fft = new Fft(windowSize);
+        fftRe = new float[windowSize];
+        fftIm = new float[windowSize];
+        magnitudes = new float[windowSize / 2 + 1];
+        previousMagnitudes = new float[windowSize / 2 + 1];
+
+        frame.sampleRate = sampleRate;
+        frame.hopSize = hopSize;
+        frame.magnitudes = magnitudes;
+        frame.binCount = magnitudes.length;
+    }
+
+    public synchronized void addListener(Listener listener) {
+        Listener[] current = listeners;
+        for (Listener l : current) {
+            if (l == listener) {
+                return;
+            }
+        }
+        Listener[] updated = new Listener[current.length + 1];
+        System.arraycopy(current, 0, updated, 0, current.length);
+        updated[current.length] = listener;
+        listeners = updated;
+    }
+
+    public synchronized void removeListener(Listener listener) {
+        Listener[] current = listeners;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == listener) {
+                Listener[] updated = new Listener[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, i);
+                System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                listeners = updated;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Push samples from the audio source. Feature frames are emitted for every hop completed.
+     *
+     * @param samples buffer holding the samples
+     * @param offset  first sample to read
+     * @param length  number of samples to read
+     */
+    public void process(short[] samples, int offset, int length) {
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            ring[writePos] = samples[i];
+            writePos = (writePos + 1) & ringMask;
+            totalSamples++;
+            if (++hopFill == hopSize) {
+                hopFill = 0;
+                analyseHop();
+            }
+        }
+    }
+
+    private void analyseHop() {
+        // Level features over the newest hop; long accumulator so loud input cannot overflow
+        long sumSquares = 0;
+        int peak = 0;
+        int hopStart = (writePos - hopSize) & ringMask;
+        for (int i = 0; i < hopSize; i++) {
+            int s = ring[(hopStart + i) & ringMask];
+            sumSquares += (long) s * s;
+            int abs = s < 0 ? -s : s;
+            if (abs > peak) {
+                peak = abs;
+            }
+        }
+        float rms = (float) Math.sqrt((double) sumSquares / hopSize) / FULL_SCALE;
+        float peakLevel = Math.min(1f, peak / FULL_SCALE);
+        float rmsDbfs = AudioFeatureFrame.toDbfs(rms);
+
+        SpectrumGate gate = spectrumGate;
+        boolean spectrum = gate == null || gate.wantsSpectrum(rmsDbfs);
+        float flux = 0f;
+        if (spectrum) {
+            // Spectrum over the whole window, oldest sample first
+            for (int i = 0; i < windowSize; i++) {
+                fftRe[i] = ring[(writePos + i) & ringMask] / FULL_SCALE;
+            }
+            fft.magnitudeSpectrum(fftRe, fftIm, magnitudes);
+
+            int bins = magnitudes.length;
+            if (hasPrevious) {
+                for (int i = 0; i < bins; i++) {
+                    float diff = magnitudes[i] - previousMagnitudes[i];
+                    if (diff > 0f) {
+                        flux += diff;
+                    }
+                }
+                flux /= bins;
+            }
+            System.arraycopy(magnitudes, 0, previousMagnitudes, 0, bins);
+            hasPrevious = true;
+        } else {
+            // Flux restarts from the next computed spectrum
+            hasPrevious = false;
+        }
+
+        frame.hopIndex = hopCount++;
+        frame.endSample = totalSamples;
+        frame.rms = rms;
+        frame.peak = peakLevel;
+        frame.rmsDbfs = rmsDbfs;
+        frame.peakDbfs = AudioFeatureFrame.toDbfs(peakLevel);
+        frame.spectralFlux = flux;
+        frame.hasSpectrum = spectrum;
+
+        Listener[] current = listeners;
+        for (Listener l : current) {
+            l.onFeatureFrame(frame);
+        }
+    }
+
+    /**
+     * Skip the FFT on hops the gate rejects; level features are still computed for every hop.
+     * Null computes the spectrum for every hop.
+     */
+    public void setSpectrumGate(SpectrumGate gate) {
+        this.spectrumGate = gate;
+    }
+
+    /**
+     * Clear the ring and spectral history, e.g. when capture restarts.
+     */
+    public void reset() {
+        Arrays.fill(ring, (short) 0);
+        writePos = 0;
+        hopFill = 0;
+        totalSamples = 0;
+        hopCount = 0;
+        hasPrevious = false;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getHopSize() {
+        return hopSize;
+    }
+
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    /** Duration of one hop in milliseconds. */
+    public float getHopDurationMs() {
+        return hopSize * 1000f / sampleRate;
+    }
+}
@@ -0,0 +1,103 @@
+package com.summersoft.heliocam.detection;
+
+/**
+ * Features of one analysis hop, produced by {@link AudioFeatureExtractor}.
+ *
+ * The extractor reuses a single instance for every hop, so values are only valid
+ * during the listener callback. Copy what you need to keep.
+ */
+public class AudioFeatureFrame {
+
+    /** Level reported for digital silence, instead of negative infinity. */
+    public static final float SILENCE_DBFS = -120f;
+
+    long hopIndex;
+    long endSample;
+    int sampleRate;
+    int hopSize;
+    float rms;
+    float peak;
+    float rmsDbfs;
+    float peakDbfs;
+    float spectralFlux;
+    boolean hasSpectrum;
+    float[] magnitudes;
+    int binCount;
+
+    AudioFeatureFrame() {
+    }
+
+    /** Sequence number of the hop since the extractor was reset. */
+    public long getHopIndex() {
+        return hopIndex;
+    }
+
+    /** Total samples consumed up to the end of this hop, a sample-accurate timestamp. */
+    public long getEndSample() {
+        return endSample;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getHopSize() {
+        return hopSize;
+    }
+
+    /** RMS of the hop, 0..1 relative to full scale. */
+    public float getRms() {
+        return rms;
+    }
+
+    /** Largest absolute sample of the hop, 0..1 relative to full scale. */
+    public float getPeak() {
+        return peak;
+    }
+
+    public float getRmsDbfs() {
+        return rmsDbfs;
+    }
+
+    public float getPeakDbfs() {
+        return peakDbfs;
+    }
+
+    /**
+     * Half-wave rectified change of the magnitude spectrum since the previous hop,
+     * averaged over bins. Jumps on onsets such as knocks, glass or shouts.
+     */
+    public float getSpectralFlux() {
+        return spectralFlux;
+    }
+
+    /**
+     * False if the extractor's spectrum gate skipped the FFT for this hop; the magnitudes
+     * then still hold an older spectrum and the flux is zero.
+     */
+    public boolean hasSpectrum() {
+        return hasSpectrum;
+    }
+
+    /**
+     * Magnitude spectrum of the analysis window, {@link #getBinCount()} valid entries.
+     * The array is owned by the extractor; do not modify it.
+     */
+    public float[] getMagnitudes() {
+        return magnitudes;
+    }
+
+    public int getBinCount() {
+        return binCount;
+    }
+
+    /** Centre frequency of a spectrum bin in Hz. */
+    public float getBinFrequency(int bin) {
+        return (float) bin * sampleRate / ((binCount - 1) * 2);
+    }
+
+    /** Convert a 0..1 linear level to dBFS. */
+    public static float toDbfs(float level) {
+        return level > 0f ? Math.max(SILENCE_DBFS, (float) (20.0 * Math.log10(level))) : SILENCE_DBFS;
+    }
+}
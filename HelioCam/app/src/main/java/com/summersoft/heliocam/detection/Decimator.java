@@ -0,0 +1,109 @@
+package com.summersoft.heliocam.detection;
+
+/**
+ * Integer-factor downsampler for 16-bit PCM with a windowed-sinc anti-aliasing filter.
+ *
+ * Only every factor-th output of the filter is computed, so the cost is one short dot
+ * product per output sample. Filter state carries across calls, so a stream can be fed
+ * in buffers of any size. Nothing is allocated after construction.
+ *
+ * Not thread-safe.
+ */
+public class Decimator {
+
+    // Taps per unit of decimation factor; 12 gives about 30 dB at 1.1x and 70 dB at 1.5x the output Nyquist
+    private static final int TAPS_PER_FACTOR = 12;
+    // Passband edge as a fraction of the output Nyquist frequency
+    private static final float CUTOFF = 0.85f;
+
+    private final int factor;
+    private final float[] taps;
+    // History doubled so the newest taps.length samples are always contiguous
+    private final float[] history;
+    private int historyPos = 0;
+    private int phase = 0;
+
+    /**
+     * @param factor input samples per output sample, at least 1
+     */
+    public Decimator(int factor) {
+        if (factor < 1) {
+            throw new IllegalArgumentException("Invalid decimation factor: " + factor);
+        }
+        this.factor = factor;
+        int length = factor == 1 ? 1 : TAPS_PER_FACTOR * factor + 1;
+        taps = new float[length];
+        history = new float[length * 2];
+
+        if (factor == 1) {
+            taps[0] = 1f;
+            return;
+        }
+        float fc = CUTOFF * 0.5f / factor; // cycles per input sample
+        int mid = length / 2;
+        float sum = 0f;
+        for (int i = 0; i < length; i++) {
+            int n = i - mid;
+            double sinc = n == 0 ? 2 * fc : Math.sin(2 * Math.PI * fc * n) / (Math.PI * n);
+            double window = 0.42 - 0.5 * Math.cos(2 * Math.PI * i / (length - 1))
+                    + 0.08 * Math.cos(4 * Math.PI * i / (length - 1));
+            taps[i] = (float) (sinc * window);
+            sum += taps[i];
+        }
+        // Unity gain at DC
+        for (int i = 0; i < length; i++) {
+            taps[i] /= sum;
+        }
+    }
+
+    /**
+     * Filter and downsample a block.
+     *
+     * @param in     input samples
+     * @param offset first input sample
+     * @param length number of input samples
+     * @param out    receives the output, needs room for {@link #getMaxOutput(int)} samples
+     * @return number of samples written to {@code out}
+     */
+    public int process(short[] in, int offset, int length, short[] out) {
+        int tapCount = taps.length;
+        int written = 0;
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            float s = in[i];
+            history[historyPos] = s;
+            history[historyPos + tapCount] = s;
+            historyPos = historyPos + 1 == tapCount ? 0 : historyPos + 1;
+
+            if (++phase < factor) {
+                continue;
+            }
+            phase = 0;
+            // Oldest sample at historyPos, newest at historyPos + tapCount - 1
+            float acc = 0f;
+            for (int k = 0; k < tapCount; k++) {
+                acc += taps[k] * history[historyPos + k];
+            }
+            int v = Math.round(acc);
+            out[written++] = (short) (v > Short.MAX_VALUE ? Short.MAX_VALUE : Math.max(Short.MIN_VALUE, v));
+        }
+        return written;
+    }
+
+    /** Largest number of outputs a block of {@code length} inputs can produce. */
+    public int getMaxOutput(int length) {
+        return length / factor + 1;
+    }
+
+    public int getFactor() {
+        return factor;
+    }
+
+    public void reset() {
+        for (int i = 0; i < history.length; i++) {
+            history[i] = 0f;
+        }
+        historyPos = 0;
+        phase = 0;
+    }
+}
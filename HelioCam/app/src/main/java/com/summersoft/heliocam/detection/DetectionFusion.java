@@ -0,0 +1,253 @@
+package com.summersoft.heliocam.detection;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Correlates person and sound detections so one intruder produces one event.
+ *
+ * Each offered event is held for the fusion window. If an event of the other modality
+ * occurred within the window, the two are emitted together as one person event with a
+ * joint confidence; otherwise the event is emitted alone when its hold expires, or dropped
+ * if single-modality suppression is on and its confidence is too low. Repeated events of
+ * the same modality inside the window are merged into the one already held.
+ *
+ * The engine has no clock or threads of its own: callers pass the time with every call and
+ * call {@link #advanceTo} by {@link #getNextDeadlineMs()}, so its output depends only on
+ * its inputs. Methods are synchronized and the sink is called while the lock is held.
+ */
+public class DetectionFusion {
+
+    public static final String TYPE_PERSON = "person";
+    public static final String TYPE_SOUND = "sound";
+
+    /** Detection data key holding the detector's confidence in [0, 1]. */
+    public static final String KEY_SCORE = "score";
+    /** Detection data key holding how long after the event it was reported, in ms. */
+    public static final String KEY_DETECTION_LATENCY = "detectionLatencyMs";
+    /** Set on fused events to the modality that was folded into the person event. */
+    public static final String KEY_FUSED_WITH = "fusedWith";
+
+    /**
+     * Receives events that leave the engine, fused or not.
+     */
+    public interface Sink {
+        void onDetectionEvent(String detectionType, Map<String, Object> detectionData);
+    }
+
+    private static final class Pending {
+        String type;
+        float score;
+        boolean scored;
+        long eventTimeMs;
+        long deadlineMs;
+        Map<String, Object> data;
+        int merged;
+    }
+
+    private final Sink sink;
+    private final List<Pending> pending = new ArrayList<>();
+    private long windowMs = 2000;
+    private float suppressBelow = 0f;
+
+    // Stats
+    private int fusedCount = 0;
+    private int singleCount = 0;
+    private int suppressedCount = 0;
+    private int mergedCount = 0;
+
+    public DetectionFusion(Sink sink) {
+        this.sink = sink;
+    }
+
+    /**
+     * Offer a detection.
+     *
+     * @param detectionType {@link #TYPE_PERSON}, {@link #TYPE_SOUND}, or another type that is passed straight through
+     * @param detectionData detector data; {@link #KEY_SCORE} and {@link #KEY_DETECTION_LATENCY} are used if present
+     * @param nowMs         current time on a monotonic clock
+     */
+    public synchronized void offer(String detectionType, Map<String, Object> detectionData, long nowMs) {
+        advanceTo(nowMs);
+
+        if (!TYPE_PERSON.equals(detectionType) && !TYPE_SOUND.equals(detectionType)) {
+            sink.onDetectionEvent(detectionType, detectionData);
+            return;
+        }
+
+        Pending event = new Pending();
+        event.type = detectionType;
+        float score = readScore(detectionData);
+        event.scored = score >= 0f;
+        event.score = event.scored ? score : 1f;
+        event.eventTimeMs = nowMs - readLong(detectionData, KEY_DETECTION_LATENCY, 0);
+        event.deadlineMs = nowMs + windowMs;
+        event.data = detectionData != null ? new HashMap<>(detectionData) : new HashMap<>();
+
+        // Oldest held event of the other modality close enough in time
+        for (int i = 0; i < pending.size(); i++) {
+            Pending other = pending.get(i);
+            if (!other.type.equals(event.type) && Math.abs(other.eventTimeMs - event.eventTimeMs) <= windowMs) {
+                pending.remove(i);
+                emitFused(other, event);
+                return;
+            }
+        }
+
+        // Same modality again (a second report of the same sound, another person entering)
+        for (Pending same : pending) {
+            if (same.type.equals(event.type) && Math.abs(same.eventTimeMs - event.eventTimeMs) <= windowMs) {
+                merge(same, event);
+                return;
+            }
+        }
+
+        pending.add(event);
+    }
+
+    /**
+     * Emit or drop every held event whose window has closed.
+     */
+    public synchronized void advanceTo(long nowMs) {
+        for (int i = 0; i < pending.size(); ) {
+            Pending event = pending.get(i);
+            if (event.deadlineMs <= nowMs) {
+                pending.remove(i);
+                emitSingle(event);
+            } else {
+                i++;
+            }
+        }
+    }
+
+    /**
+     * Emit or drop all held events now, e.g. before shutting down.
+     */
+    public synchronized void flush() {
+        while (!pending.isEmpty()) {
+            emitSingle(pending.remove(0));
+        }
+    }
+
+    /**
+     * Time at which the next held event expires, or -1 if nothing is held.
+     */
+    public synchronized long getNextDeadlineMs() {
+        long next = -1;
+        for (Pending event : pending) {
+            if (next < 0 || event.deadlineMs < next) {
+                next = event.deadlineMs;
+            }
+        }
+        return next;
+    }
+
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * @param windowMs how far apart person and sound may be to count as one event; also how
+     *                 long a single event is held back waiting for its partner
+     */
+    public synchronized void setWindowMs(long windowMs) {
+        this.windowMs = Math.max(0, windowMs);
+    }
+
+    public synchronized long getWindowMs() {
+        return windowMs;
+    }
+
+    /**
+     * Drop person-only or sound-only events whose confidence is below this; 0 disables.
+     * Fused events are never dropped.
+     */
+    public synchronized void setSingleModalitySuppressionThreshold(float threshold) {
+        this.suppressBelow = Math.max(0f, Math.min(1f, threshold));
+    }
+
+    public synchronized float getSingleModalitySuppressionThreshold() {
+        return suppressBelow;
+    }
+
+    /**
+     * Combined confidence of a person and a sound event that occurred {@code gapMs} apart.
+     * Noisy-OR of the two scores, with the weaker one discounted by up to half as the gap
+     * approaches the window.
+     */
+    public static float jointConfidence(float personScore, float soundScore, long gapMs, long windowMs) {
+        float proximity = windowMs > 0 ? 1f - 0.5f * Math.min(1f, (float) Math.abs(gapMs) / windowMs) : 1f;
+        float strong = Math.max(personScore, soundScore);
+        float weak = Math.min(personScore, soundScore) * proximity;
+        return 1f - (1f - strong) * (1f - weak);
+    }
+
+    public synchronized String getStats() {
+        return "fused=" + fusedCount + " single=" + singleCount + " suppressed=" + suppressedCount
+                + " merged=" + mergedCount + " pending=" + pending.size();
+    }
+
+    private void emitFused(Pending a, Pending b) {
+        Pending person = TYPE_PERSON.equals(a.type) ? a : b;
+        Pending sound = person == a ? b : a;
+        long gap = sound.eventTimeMs - person.eventTimeMs;
+
+        Map<String, Object> data = person.data;
+        data.put(KEY_FUSED_WITH, TYPE_SOUND);
+        data.put("jointConfidence", jointConfidence(person.score, sound.score, gap, windowMs));
+        data.put("personScore", person.score);
+        data.put("soundScore", sound.score);
+        data.put("fusionGapMs", gap);
+        data.put(TYPE_SOUND, sound.data);
+        if (person.merged + sound.merged > 0) {
+            data.put("mergedEvents", person.merged + sound.merged);
+        }
+        fusedCount++;
+        sink.onDetectionEvent(TYPE_PERSON, data);
+    }
+
+    private void emitSingle(Pending event) {
+        if (suppressBelow > 0f && event.score < suppressBelow) {
+            suppressedCount++;
+            return;
+        }
+        if (event.merged > 0) {
+            event.data.put("mergedEvents", event.merged);
+        }
+        singleCount++;
+        sink.onDetectionEvent(event.type, event.data);
+    }
+
+    private void merge(Pending into, Pending from) {
+        for (Map.Entry<String, Object> entry : from.data.entrySet()) {
+            if (!into.data.containsKey(entry.getKey())) {
+                into.data.put(entry.getKey(), entry.getValue());
+            }
+        }
+        // A scored report is more informative than an unscored duplicate of the same event
+        if (from.scored && (!into.scored || from.score > into.score)) {
+            into.score = from.score;
+            into.scored = true;
+            into.data.put(KEY_SCORE, from.score);
+        }
+        into.eventTimeMs = Math.min(into.eventTimeMs, from.eventTimeMs);
+        into.merged++;
+        mergedCount++;
+    }
+
+    private static float readScore(Map<String, Object> data) {
+        Object value = data != null ? data.get(KEY_SCORE) : null;
+        if (value instanceof Number) {
+            return Math.max(0f, Math.min(1f, ((Number) value).floatValue()));
+        }
+        // Unscored; such events are trusted as fully confident
+        return -1f;
+    }
+
+    private static long readLong(Map<String, Object> data, String key, long fallback) {
+        Object value = data != null ? data.get(key) : null;
+        return value instanceof Number ? Math.max(0, ((Number) value).longValue()) : fallback;
+    }
+}
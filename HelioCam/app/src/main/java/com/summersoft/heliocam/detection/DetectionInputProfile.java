@@ -0,0 +1,28 @@
+package com.summersoft.heliocam.detection;
+
+/**
+ * Input resolution used for person detection.
+ *
+ * All profiles feed full-colour, aspect-preserving letterboxed frames to the model.
+ * Smaller inputs cut inference cost roughly with the pixel count, at the price of
+ * recall on small (distant) people. PersonDetection logs latency and hit rate per
+ * profile so the cheapest one that still works for a given placement can be picked.
+ */
+public enum DetectionInputProfile {
+    /** 320x320 - cheapest, suited to close-range placements. */
+    LOW_POWER(320),
+    /** 480x480 - middle ground for rooms and hallways. */
+    BALANCED(480),
+    /** 640x640 - the native yolov8n export size, best range. */
+    FULL(640);
+
+    private final int inputSize;
+
+    DetectionInputProfile(int inputSize) {
+        this.inputSize = inputSize;
+    }
+
+    public int getInputSize() {
+        return inputSize;
+    }
+}
@@ -0,0 +1,371 @@
+package com.summersoft.heliocam.detection;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.widget.Toast;
+
+import com.summersoft.heliocam.utils.FileUtils;
+
+import org.tensorflow.lite.Interpreter;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Process-wide scheduler for person detection.
+ *
+ * Every detector (camera stream) registers as a {@link Source}. The scheduler owns a
+ * small pool of worker threads, each with its own TFLite interpreter, so the model is
+ * loaded once per worker instead of once per detector. Sources with a pending frame are
+ * served round-robin, a source is never processed by two workers at once, and all
+ * inferences share one global inferences-per-second budget.
+ */
+public final class DetectionScheduler {
+    private static final String TAG = "DetectionScheduler";
+    private static final String MODEL_FILE = "yolov8n.tflite";
+    private static final float DEFAULT_MAX_INFERENCES_PER_SECOND = 8f;
+
+    /**
+     * A stream of frames that wants detection.
+     */
+    public interface Source {
+        String getSourceName();
+
+        /** True if the source has a frame waiting to be processed. */
+        boolean hasPendingWork();
+
+        /**
+         * Process the newest pending frame. Called on a scheduler worker; the interpreter
+         * belongs to that worker for the duration of the call.
+         */
+        void processPendingWork(Interpreter interpreter);
+    }
+
+    private static DetectionScheduler instance;
+
+    public static synchronized DetectionScheduler getInstance() {
+        if (instance == null) {
+            instance = new DetectionScheduler();
+        }
+        return instance;
+    }
+
+    private final Object lock = new Object();
+    private final Map<Source, SourceState> sources = new LinkedHashMap<>();
+    private final ArrayDeque<SourceState> readyQueue = new ArrayDeque<>();
+    private final List<Thread> workers = new ArrayList<>();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private Context appContext;
+    private volatile boolean modelLoaded = false;
+    private volatile int[] nativeInputShape;
+    private int generation = 0;
+
+    // Global token bucket shared by every source
+    private final Object budgetLock = new Object();
+    private float maxInferencesPerSecond = DEFAULT_MAX_INFERENCES_PER_SECOND;
+    private float tokens = DEFAULT_MAX_INFERENCES_PER_SECOND;
+    private long lastRefillNanos = System.nanoTime();
+    private long totalInferences = 0;
+
+    private DetectionScheduler() {
+    }
+
+    /**
+     * Register a source. Worker threads and interpreters are created with the first source.
+     */
+    public void register(Context context, Source source) {
+        synchronized (lock) {
+            if (sources.containsKey(source)) {
+                return;
+            }
+            sources.put(source, new SourceState(source));
+            if (appContext == null) {
+                appContext = context.getApplicationContext();
+            }
+            if (workers.isEmpty()) {
+                startWorkers();
+            }
+            Log.d(TAG, "Registered source " + source.getSourceName() + " (" + sources.size() + " total)");
+        }
+    }
+
+    /**
+     * Unregister a source. When the last source leaves, workers stop and interpreters are closed.
+     */
+    public void unregister(Source source) {
+        synchronized (lock) {
+            SourceState state = sources.remove(source);
+            if (state == null) {
+                return;
+            }
+            readyQueue.remove(state);
+            Log.d(TAG, "Unregistered source " + source.getSourceName() + " - " + state);
+            if (sources.isEmpty()) {
+                stopWorkers();
+            }
+        }
+    }
+
+    /**
+     * Tell the scheduler a source has a new frame.
+     */
+    public void signal(Source source) {
+        synchronized (lock) {
+            SourceState state = sources.get(source);
+            if (state == null || state.queued) {
+                return;
+            }
+            if (state.running) {
+                // Re-queued by the worker once it finishes the current frame
+                state.signalledWhileRunning = true;
+                return;
+            }
+            state.queued = true;
+            state.queuedAtNanos = System.nanoTime();
+            readyQueue.addLast(state);
+            lock.notify();
+        }
+    }
+
+    /**
+     * Block until the global budget allows another inference. Call right before running the model,
+     * so frames rejected by cheap pre-filters do not use up the budget.
+     */
+    public void acquireInferencePermit(Source source) throws InterruptedException {
+        long waitStart = System.nanoTime();
+        synchronized (budgetLock) {
+            while (true) {
+                refillTokens();
+                if (tokens >= 1f) {
+                    tokens -= 1f;
+                    totalInferences++;
+                    break;
+                }
+                long waitMs = (long) Math.ceil((1f - tokens) * 1000f / maxInferencesPerSecond);
+                budgetLock.wait(Math.max(1, waitMs));
+            }
+        }
+
+        synchronized (lock) {
+            SourceState state = sources.get(source);
+            if (state != null) {
+                state.inferences++;
+                state.budgetWaitNanos += System.nanoTime() - waitStart;
+            }
+        }
+    }
+
+    private void refillTokens() {
+        long now = System.nanoTime();
+        float capacity = Math.max(1f, maxInferencesPerSecond);
+        tokens = Math.min(capacity, tokens + (now - lastRefillNanos) / 1e9f * maxInferencesPerSecond);
+        lastRefillNanos = now;
+    }
+
+    /**
+     * Set the global inference budget shared by all sources.
+     *
+     * @param inferencesPerSecond maximum model runs per second across the whole process
+     */
+    public void setMaxInferencesPerSecond(float inferencesPerSecond) {
+        synchronized (budgetLock) {
+            refillTokens();
+            maxInferencesPerSecond = Math.max(0.1f, inferencesPerSecond);
+            tokens = Math.min(tokens, Math.max(1f, maxInferencesPerSecond));
+            budgetLock.notifyAll();
+        }
+        Log.d(TAG, "Inference budget set to " + inferencesPerSecond + "/s");
+    }
+
+    public float getMaxInferencesPerSecond() {
+        synchronized (budgetLock) {
+            return maxInferencesPerSecond;
+        }
+    }
+
+    public boolean isModelLoaded() {
+        return modelLoaded;
+    }
+
+    /**
+     * Input shape of the model as exported, before any profile resize. Null until the model is loaded.
+     */
+    public int[] getNativeInputShape() {
+        return nativeInputShape;
+    }
+
+    /**
+     * Log per-source fairness metrics.
+     */
+    public void logStats() {
+        synchronized (lock) {
+            Log.i(TAG, "=== DetectionScheduler ===");
+            Log.i(TAG, "Workers: " + workers.size() + ", model loaded: " + modelLoaded +
+                    ", budget: " + getMaxInferencesPerSecond() + "/s, total inferences: " + getTotalInferences());
+            long total = Math.max(1, getTotalInferences());
+            for (SourceState state : sources.values()) {
+                Log.i(TAG, "  " + state.source.getSourceName() + ": " + state +
+                        ", share=" + String.format(Locale.US, "%.2f", (float) state.inferences / total));
+            }
+        }
+    }
+
+    private long getTotalInferences() {
+        synchronized (budgetLock) {
+            return totalInferences;
+        }
+    }
+
+    private void startWorkers() {
+        int poolSize = Math.max(1, Math.min(2, Runtime.getRuntime().availableProcessors() / 2));
+        int workerGeneration = ++generation;
+        for (int i = 0; i < poolSize; i++) {
+            Thread t = new Thread(() -> workerLoop(workerGeneration), "DetectionScheduler-Worker-" + i);
+            t.setPriority(Thread.NORM_PRIORITY + 1);
+            workers.add(t);
+            t.start();
+        }
+        Log.d(TAG, "Started " + poolSize + " detection worker(s)");
+    }
+
+    private void stopWorkers() {
+        generation++;
+        for (Thread t : workers) {
+            t.interrupt();
+        }
+        workers.clear();
+        modelLoaded = false;
+        lock.notifyAll();
+        Log.d(TAG, "Stopped detection workers");
+    }
+
+    private void workerLoop(int workerGeneration) {
+        Interpreter interpreter = null;
+        try {
+            interpreter = createInterpreter();
+            if (interpreter == null) {
+                return;
+            }
+            synchronized (lock) {
+                if (generation != workerGeneration) {
+                    return;
+                }
+                modelLoaded = true;
+            }
+
+            while (true) {
+                SourceState state;
+                synchronized (lock) {
+                    while (generation == workerGeneration && readyQueue.isEmpty()) {
+                        lock.wait();
+                    }
+                    if (generation != workerGeneration) {
+                        return;
+                    }
+                    state = readyQueue.pollFirst();
+                    state.queued = false;
+                    state.running = true;
+                    state.signalledWhileRunning = false;
+                    state.queueWaitNanos += System.nanoTime() - state.queuedAtNanos;
+                    state.served++;
+                }
+
+                try {
+                    state.source.processPendingWork(interpreter);
+                } catch (Exception e) {
+                    Log.e(TAG, "Source " + state.source.getSourceName() + " failed: " + e.getMessage(), e);
+                }
+
+                synchronized (lock) {
+                    state.running = false;
+                    // Back of the queue, so other sources get their turn first
+                    if (sources.get(state.source) == state
+                            && (state.signalledWhileRunning || state.source.hasPendingWork())) {
+                        state.queued = true;
+                        state.queuedAtNanos = System.nanoTime();
+                        readyQueue.addLast(state);
+                        lock.notify();
+                    }
+                }
+
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (interpreter != null) {
+                interpreter.close();
+            }
+        }
+    }
+
+    private Interpreter createInterpreter() {
+        Context context;
+        synchronized (lock) {
+            context = appContext;
+        }
+        try {
+            MappedByteBuffer model = FileUtils.loadModelFile(context, MODEL_FILE);
+
+            // Ultra-optimized interpreter settings for maximum performance
+            Interpreter.Options options = new Interpreter.Options();
+            options.setUseXNNPACK(true);
+            options.setNumThreads(Math.min(2, Runtime.getRuntime().availableProcessors())); // Reduced threads for lower latency
+            options.setAllowFp16PrecisionForFp32(true); // Allow reduced precision for speed
+            options.setAllowBufferHandleOutput(true);   // Enable buffer handle output
+            options.setUseNNAPI(false); // Disable NNAPI for consistent performance
+            options.setCancellable(false); // Disable cancellation for better performance
+
+            Interpreter interpreter = new Interpreter(model, options);
+            if (nativeInputShape == null) {
+                nativeInputShape = interpreter.getInputTensor(0).shape();
+            }
+            Log.d(TAG, Thread.currentThread().getName() + " loaded model, input " + Arrays.toString(nativeInputShape));
+            return interpreter;
+        } catch (IOException e) {
+            Log.e(TAG, "Error loading model", e);
+            mainHandler.post(() -> Toast.makeText(context, "Failed to load detection model: " + e.getMessage(), Toast.LENGTH_LONG).show());
+            return null;
+        }
+    }
+
+    /**
+     * Scheduling state and fairness metrics for one source
+     */
+    private static class SourceState {
+        final Source source;
+        boolean queued;
+        boolean running;
+        boolean signalledWhileRunning;
+        long queuedAtNanos;
+
+        long served;
+        long inferences;
+        long queueWaitNanos;
+        long budgetWaitNanos;
+
+        SourceState(Source source) {
+            this.source = source;
+        }
+
+        @Override
+        public String toString() {
+            long avgQueueMs = served > 0 ? queueWaitNanos / served / 1_000_000 : 0;
+            long avgBudgetMs = inferences > 0 ? budgetWaitNanos / inferences / 1_000_000 : 0;
+            return "served=" + served + ", inferences=" + inferences +
+                    ", avgQueueWait=" + avgQueueMs + "ms, avgBudgetWait=" + avgBudgetMs + "ms";
+        }
+    }
+}
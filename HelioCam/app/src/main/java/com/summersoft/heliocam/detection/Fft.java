@@ -0,0 +1,111 @@
+package com.summersoft.heliocam.detection;
+
+/**
+ * In-place radix-2 FFT for a fixed power-of-two size.
+ *
+ * Twiddle factors, the bit-reversal permutation and the Hann window are computed
+ * once in the constructor, so transforms do not allocate.
+ */
+public class Fft {
+
+    private final int size;
+    private final float[] cos;
+    private final float[] sin;
+    private final int[] bitReverse;
+    private final float[] hann;
+
+    /**
+     * @param size transform size, must be a power of two
+     */
+    public Fft(int size) {
+        if (size < 2 || Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("FFT size must be a power of two: " + size);
+        }
+        this.size = size;
+
+        cos = new float[size / 2];
+        sin = new float[size / 2];
+        for (int i = 0; i < size / 2; i++) {
+            double angle = -2.0 * Math.PI * i / size;
+            cos[i] = (float) Math.cos(angle);
+            sin[i] = (float) Math.sin(angle);
+        }
+
+        int bits = Integer.numberOfTrailingZeros(size);
+        bitReverse = new int[size];
+        for (int i = 0; i < size; i++) {
+            bitReverse[i] = Integer.reverse(i) >>> (32 - bits);
+        }
+
+        hann = new float[size];
+        for (int i = 0; i < size; i++) {
+            hann[i] = (float) (0.5 - 0.5 * Math.cos(2.0 * Math.PI * i / size));
+        }
+    }
+
+    /**
+     * Complex forward transform, in place.
+     *
+     * @param re real parts, length {@link #getSize()}
+     * @param im imaginary parts, length {@link #getSize()}
+     */
+    public void transform(float[] re, float[] im) {
+        for (int i = 0; i < size; i++) {
+            int j = bitReverse[i];
+            if (j > i) {
+                float t = re[i];
+                re[i] = re[j];
+                re[j] = t;
+                t = im[i];
+                im[i] = im[j];
+                im[j] = t;
+            }
+        }
+
+        for (int half = 1; half < size; half <<= 1) {
+            int step = size / (half << 1);
+            for (int start = 0; start < size; start += half << 1) {
+                for (int k = 0; k < half; k++) {
+                    float wr = cos[k * step];
+                    float wi = sin[k * step];
+                    int a = start + k;
+                    int b = a + half;
+                    float tr = re[b] * wr - im[b] * wi;
+                    float ti = re[b] * wi + im[b] * wr;
+                    re[b] = re[a] - tr;
+                    im[b] = im[a] - ti;
+                    re[a] += tr;
+                    im[a] += ti;
+                }
+            }
+        }
+    }
+
+    /**
+     * Windowed magnitude spectrum of a real signal.
+     *
+     * @param samples   input, length {@link #getSize()}; overwritten with scratch data
+     * @param scratch   scratch array, length {@link #getSize()}
+     * @param magnitude receives size / 2 + 1 magnitudes, scaled so a full-scale sine peaks near 1
+     */
+    public void magnitudeSpectrum(float[] samples, float[] scratch, float[] magnitude) {
+        for (int i = 0; i < size; i++) {
+            samples[i] *= hann[i];
+            scratch[i] = 0f;
+        }
+        transform(samples, scratch);
+
+        // Hann window has a coherent gain of 0.5, so a full-scale sine has magnitude size / 4
+        float norm = 4f / size;
+        int bins = size / 2 + 1;
+        for (int i = 0; i < bins; i++) {
+            float r = samples[i];
+            float m = scratch[i];
+            magnitude[i] = (float) Math.sqrt(r * r + m * m) * norm;
+        }
+    }
+
+    public int getSize() {
+        return size;
+    }
+}
@@ -0,0 +1,118 @@
+package com.summersoft.heliocam.detection;
+
+import org.webrtc.VideoFrame;
+
+/**
+ * Single-slot, latest-frame-wins handoff between the capture thread and the detection worker.
+ *
+ * The mailbox holds its own reference to the queued frame: it retains on offer and
+ * releases when a newer frame overwrites it or when it is cleared. A frame returned
+ * by {@link #take()} belongs to the caller, who must release it when done.
+ */
+public class FrameMailbox {
+
+    private VideoFrame pending;
+    private boolean closed = false;
+
+    private long offeredCount = 0;
+    private long overwrittenCount = 0;
+    private long consumedCount = 0;
+    private long rejectedCount = 0;
+
+    /**
+     * Queue a frame, replacing any frame the worker has not picked up yet.
+     *
+     * @return false if the mailbox is closed and the frame was not taken
+     */
+    public boolean offer(VideoFrame frame) {
+        VideoFrame replaced;
+        synchronized (this) {
+            if (closed) {
+                rejectedCount++;
+                return false;
+            }
+            frame.retain();
+            replaced = pending;
+            pending = frame;
+            offeredCount++;
+            if (replaced != null) {
+                overwrittenCount++;
+            }
+        }
+        // Release outside the lock, it can call back into WebRTC
+        if (replaced != null) {
+            replaced.release();
+        }
+        return true;
+    }
+
+    /**
+     * Take the newest queued frame, or null if there is none.
+     * The caller owns the returned reference and must release it.
+     */
+    public synchronized VideoFrame take() {
+        VideoFrame frame = pending;
+        pending = null;
+        if (frame != null) {
+            consumedCount++;
+        }
+        return frame;
+    }
+
+    public synchronized boolean hasPending() {
+        return pending != null;
+    }
+
+    /**
+     * Release any queued frame without processing it.
+     */
+    public void clear() {
+        VideoFrame dropped;
+        synchronized (this) {
+            dropped = pending;
+            pending = null;
+            if (dropped != null) {
+                overwrittenCount++;
+            }
+        }
+        if (dropped != null) {
+            dropped.release();
+        }
+    }
+
+    /**
+     * Clear the mailbox and refuse further frames.
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        clear();
+    }
+
+    /**
+     * Accept frames again after {@link #close()}.
+     */
+    public synchronized void reopen() {
+        closed = false;
+    }
+
+    public synchronized long getOfferedCount() {
+        return offeredCount;
+    }
+
+    /** Frames released unprocessed because a newer frame arrived or the mailbox was cleared. */
+    public synchronized long getOverwrittenCount() {
+        return overwrittenCount;
+    }
+
+    /** Frames handed to the worker. */
+    public synchronized long getConsumedCount() {
+        return consumedCount;
+    }
+
+    /** Frames refused because the mailbox was closed. */
+    public synchronized long getRejectedCount() {
+        return rejectedCount;
+    }
+}
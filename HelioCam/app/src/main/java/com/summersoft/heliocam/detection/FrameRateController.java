@@ -0,0 +1,224 @@
+package com.summersoft.heliocam.detection;
+
+/**
+ * Decides which captured frames are handed to the detector.
+ *
+ * Frames are admitted on a time schedule rather than every Nth frame, so the
+ * detection rate does not depend on the capture frame rate. The rate is chosen as:
+ * <ul>
+ *     <li>the boost rate for a while after a positive detection,</li>
+ *     <li>then decaying from the target rate towards the minimum rate while the scene stays quiet,</li>
+ *     <li>capped by what the measured end-to-end latency (capture to result) can sustain,</li>
+ *     <li>scaled by the thermal scale and never above the capture frame rate.</li>
+ * </ul>
+ *
+ * Pure Java; all times are passed in by the caller so it can be driven by a simulated clock.
+ * Methods are synchronized because admission runs on the capture thread and feedback on the worker.
+ */
+public class FrameRateController {
+
+    // Weight of the newest sample in the latency and capture-interval averages
+    private static final float EWMA_ALPHA = 0.2f;
+
+    private float targetRate;
+    private float boostRate = 10f;
+    private float minRate = 1f;
+    private long boostHoldMs = 5000;
+    private long quietHalfLifeMs = 10000;
+    // Fraction of the latency-bound rate we allow, so the worker is not kept saturated
+    private float latencyUtilisation = 0.8f;
+    private float thermalScale = 1f;
+
+    private long lastDetectionMs = Long.MIN_VALUE;
+    private long quietSinceMs = Long.MIN_VALUE;
+    private long nextAdmitMs = Long.MIN_VALUE;
+
+    private long lastFrameMs = Long.MIN_VALUE;
+    private float avgFrameIntervalMs = 0f;
+    private float avgLatencyMs = 0f;
+
+    private float currentRate;
+    private long admittedCount = 0;
+    private long rejectedCount = 0;
+
+    /**
+     * @param targetRate detections per second while there is no recent detection
+     */
+    public FrameRateController(float targetRate) {
+        this.targetRate = Math.max(0.1f, targetRate);
+        this.currentRate = this.targetRate;
+    }
+
+    /**
+     * Called for every captured frame.
+     *
+     * @param nowMs frame arrival time in milliseconds
+     * @return true if the frame should be sent to the detector
+     */
+    public synchronized boolean shouldAdmit(long nowMs) {
+        if (lastFrameMs != Long.MIN_VALUE) {
+            long interval = nowMs - lastFrameMs;
+            if (interval > 0) {
+                avgFrameIntervalMs = avgFrameIntervalMs == 0f
+                        ? interval
+                        : avgFrameIntervalMs + EWMA_ALPHA * (interval - avgFrameIntervalMs);
+            }
+        }
+        lastFrameMs = nowMs;
+        if (quietSinceMs == Long.MIN_VALUE) {
+            quietSinceMs = nowMs;
+        }
+
+        currentRate = computeRate(nowMs);
+        float intervalMs = 1000f / currentRate;
+        // Admit up to half a capture interval early, so 30 fps at 10/s takes every 3rd frame and not every 4th
+        float tolerance = avgFrameIntervalMs / 2f;
+
+        if (nextAdmitMs == Long.MIN_VALUE || nowMs + tolerance >= nextAdmitMs) {
+            // Keep the schedule when on time, restart it when we fell behind
+            if (nextAdmitMs == Long.MIN_VALUE || nowMs - nextAdmitMs > intervalMs) {
+                nextAdmitMs = nowMs;
+            }
+            nextAdmitMs += (long) intervalMs;
+            admittedCount++;
+            return true;
+        }
+
+        rejectedCount++;
+        return false;
+    }
+
+    /**
+     * Report a frame that went through the detector.
+     *
+     * @param nowMs             time the result became available
+     * @param endToEndLatencyMs time from capture to result, including queueing and preprocessing
+     */
+    public synchronized void onFrameCompleted(long nowMs, long endToEndLatencyMs) {
+        if (endToEndLatencyMs <= 0) {
+            return;
+        }
+        avgLatencyMs = avgLatencyMs == 0f
+                ? endToEndLatencyMs
+                : avgLatencyMs + EWMA_ALPHA * (endToEndLatencyMs - avgLatencyMs);
+    }
+
+    /**
+     * Report a positive detection: switch to the boost rate straight away.
+     */
+    public synchronized void onDetection(long nowMs) {
+        lastDetectionMs = nowMs;
+        quietSinceMs = nowMs + boostHoldMs;
+        // Do not wait out a long quiet-period interval before the next frame
+        nextAdmitMs = Long.MIN_VALUE;
+    }
+
+    private float computeRate(long nowMs) {
+        float rate;
+        if (lastDetectionMs != Long.MIN_VALUE && nowMs - lastDetectionMs < boostHoldMs) {
+            rate = boostRate;
+        } else {
+            long quietMs = Math.max(0, nowMs - quietSinceMs);
+            float decay = (float) Math.pow(0.5, (double) quietMs / quietHalfLifeMs);
+            rate = minRate + (Math.max(targetRate, minRate) - minRate) * decay;
+        }
+
+        if (avgLatencyMs > 0f) {
+            rate = Math.min(rate, latencyUtilisation * 1000f / avgLatencyMs);
+        }
+        rate *= thermalScale;
+        if (avgFrameIntervalMs > 0f) {
+            rate = Math.min(rate, 1000f / avgFrameIntervalMs);
+        }
+        return Math.max(0.1f, rate);
+    }
+
+    /**
+     * Forget measurements and detection history, e.g. after detection is restarted.
+     */
+    public synchronized void reset() {
+        lastDetectionMs = Long.MIN_VALUE;
+        quietSinceMs = Long.MIN_VALUE;
+        nextAdmitMs = Long.MIN_VALUE;
+        lastFrameMs = Long.MIN_VALUE;
+        avgFrameIntervalMs = 0f;
+        avgLatencyMs = 0f;
+        currentRate = targetRate;
+        admittedCount = 0;
+        rejectedCount = 0;
+    }
+
+    /**
+     * @param targetRate detections per second when nothing has been detected recently
+     */
+    public synchronized void setTargetRate(float targetRate) {
+        this.targetRate = Math.max(0.1f, targetRate);
+    }
+
+    /**
+     * @param boostRate detections per second right after a detection
+     */
+    public synchronized void setBoostRate(float boostRate) {
+        this.boostRate = Math.max(0.1f, boostRate);
+    }
+
+    /**
+     * @param minRate floor the rate decays to during long quiet periods
+     */
+    public synchronized void setMinRate(float minRate) {
+        this.minRate = Math.max(0.1f, minRate);
+    }
+
+    /**
+     * @param boostHoldMs how long the boost rate is kept after a detection
+     */
+    public synchronized void setBoostHold(long boostHoldMs) {
+        this.boostHoldMs = Math.max(0, boostHoldMs);
+    }
+
+    /**
+     * @param quietHalfLifeMs time for the rate to fall half way from the target to the minimum
+     */
+    public synchronized void setQuietHalfLife(long quietHalfLifeMs) {
+        this.quietHalfLifeMs = Math.max(1, quietHalfLifeMs);
+    }
+
+    /**
+     * @param latencyUtilisation fraction (0-1] of the latency-bound rate that may be used
+     */
+    public synchronized void setLatencyUtilisation(float latencyUtilisation) {
+        this.latencyUtilisation = Math.max(0.05f, Math.min(1f, latencyUtilisation));
+    }
+
+    /**
+     * @param thermalScale multiplier (0-1] applied to the rate while the device is hot
+     */
+    public synchronized void setThermalScale(float thermalScale) {
+        this.thermalScale = Math.max(0.05f, Math.min(1f, thermalScale));
+    }
+
+    public synchronized float getTargetRate() {
+        return targetRate;
+    }
+
+    /** Rate used for the last admission decision, in frames per second. */
+    public synchronized float getCurrentRate() {
+        return currentRate;
+    }
+
+    public synchronized float getCaptureFps() {
+        return avgFrameIntervalMs > 0f ? 1000f / avgFrameIntervalMs : 0f;
+    }
+
+    public synchronized float getAverageLatencyMs() {
+        return avgLatencyMs;
+    }
+
+    public synchronized long getAdmittedCount() {
+        return admittedCount;
+    }
+
+    public synchronized long getRejectedCount() {
+        return rejectedCount;
+    }
+}
@@ -0,0 +1,297 @@
+package com.summersoft.heliocam.detection;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Converts I420 planes straight into a float32 model input tensor.
+ *
+ * Resize (nearest neighbour), letterbox, YUV to RGB and normalisation are done in a
+ * single pass over the output tensor. The tensor is a direct buffer owned by this
+ * class and is reused for every frame, so steady-state processing does not allocate.
+ * Sampling tables are only rebuilt when the source frame size or crop changes.
+ * An optional crop rectangle lets a region of interest fill the tensor instead of the whole frame.
+ *
+ * Pure Java on purpose - it only needs the raw plane buffers, not WebRTC or Android types.
+ */
+public class I420TensorPreprocessor {
+
+    /** Grey used by Ultralytics for letterbox padding (114 / 255). */
+    public static final int LETTERBOX_FILL = 114;
+
+    private static final int CHANNELS = 3;
+
+    private final int tensorWidth;
+    private final int tensorHeight;
+    private final boolean channelsFirst;
+    private final int planeSize;
+
+    private final ByteBuffer inputBuffer;
+    private final FloatBuffer floatView;
+
+    // Normalised value for every 8-bit channel value: (v / 255 - mean) / std
+    private final float[] normLut = new float[256];
+
+    // Source sample index for every tensor column/row inside the letterboxed content
+    private final int[] srcXForColumn;
+    private final int[] srcYForRow;
+
+    // Current crop and letterbox geometry
+    private int sourceWidth = -1;
+    private int sourceHeight = -1;
+    private int cropX = 0;
+    private int cropY = 0;
+    private int cropWidth = -1;
+    private int cropHeight = -1;
+    private float scale = 1f;
+    private int padX = 0;
+    private int padY = 0;
+    private int contentWidth = 0;
+    private int contentHeight = 0;
+
+    /**
+     * @param tensorWidth   model input width
+     * @param tensorHeight  model input height
+     * @param channelsFirst true for [1, 3, H, W] input tensors, false for [1, H, W, 3]
+     * @param mean          value subtracted after scaling to 0..1
+     * @param std           value divided after the mean is subtracted
+     */
+    public I420TensorPreprocessor(int tensorWidth, int tensorHeight, boolean channelsFirst, float mean, float std) {
+        if (tensorWidth <= 0 || tensorHeight <= 0) {
+            throw new IllegalArgumentException("Invalid tensor size: " + tensorWidth + "x" + tensorHeight);
+        }
+        this.tensorWidth = tensorWidth;
+        this.tensorHeight = tensorHeight;
+        this.channelsFirst = channelsFirst;
+        this.planeSize = tensorWidth * tensorHeight;
+
+        this.inputBuffer = ByteBuffer.allocateDirect(planeSize * CHANNELS * 4);
+        this.inputBuffer.order(ByteOrder.nativeOrder());
+        this.floatView = inputBuffer.asFloatBuffer();
+
+        this.srcXForColumn = new int[tensorWidth];
+        this.srcYForRow = new int[tensorHeight];
+
+        float scaleToUnit = 1.0f / 255.0f;
+        for (int i = 0; i < 256; i++) {
+            normLut[i] = (i * scaleToUnit - mean) / std;
+        }
+    }
+
+    /**
+     * Work out the tensor layout from a TFLite input shape.
+     * YOLOv8 TFLite exports are normally NHWC, but some conversions keep NCHW.
+     */
+    public static boolean isChannelsFirst(int[] inputShape) {
+        return inputShape != null && inputShape.length == 4 && inputShape[1] == CHANNELS && inputShape[3] != CHANNELS;
+    }
+
+    /**
+     * Fill the input tensor from one I420 frame.
+     *
+     * The plane buffers are only read with absolute gets, so their positions are left untouched.
+     *
+     * @return the reused input tensor, rewound and ready for the interpreter
+     */
+    public ByteBuffer process(ByteBuffer dataY, int strideY,
+                              ByteBuffer dataU, int strideU,
+                              ByteBuffer dataV, int strideV,
+                              int width, int height) {
+        return process(dataY, strideY, dataU, strideU, dataV, strideV, width, height, 0, 0, width, height);
+    }
+
+    /**
+     * Fill the input tensor from a rectangle of one I420 frame.
+     *
+     * The crop is clamped to the frame and aligned to even coordinates so it starts on a chroma sample.
+     *
+     * @return the reused input tensor, rewound and ready for the interpreter
+     */
+    public ByteBuffer process(ByteBuffer dataY, int strideY,
+                              ByteBuffer dataU, int strideU,
+                              ByteBuffer dataV, int strideV,
+                              int width, int height,
+                              int cropLeft, int cropTop, int cropW, int cropH) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Invalid frame size: " + width + "x" + height);
+        }
+
+        int x0 = Math.max(0, Math.min(width - 1, cropLeft)) & ~1;
+        int y0 = Math.max(0, Math.min(height - 1, cropTop)) & ~1;
+        int w = Math.max(1, Math.min(width - x0, cropW));
+        int h = Math.max(1, Math.min(height - y0, cropH));
+
+        if (width != sourceWidth || height != sourceHeight
+                || x0 != cropX || y0 != cropY || w != cropWidth || h != cropHeight) {
+            configureGeometry(width, height, x0, y0, w, h);
+        }
+
+        final float[] lut = normLut;
+        final int[] xMap = srcXForColumn;
+        final FloatBuffer out = floatView;
+        final int rowEnd = padY + contentHeight;
+        final int colEnd = padX + contentWidth;
+
+        for (int ty = padY; ty < rowEnd; ty++) {
+            int srcY = srcYForRow[ty];
+            int yRow = srcY * strideY;
+            int uRow = (srcY >> 1) * strideU;
+            int vRow = (srcY >> 1) * strideV;
+            int rowBase = ty * tensorWidth;
+
+            for (int tx = padX; tx < colEnd; tx++) {
+                int srcX = xMap[tx];
+                int uvX = srcX >> 1;
+
+                // Same fixed-point BT.601 conversion as ImageUtils.YUVtoRGBFast
+                int y = (dataY.get(yRow + srcX) & 0xFF) - 16;
+                if (y < 0) y = 0;
+                int u = (dataU.get(uRow + uvX) & 0xFF) - 128;
+                int v = (dataV.get(vRow + uvX) & 0xFF) - 128;
+
+                int y1192 = 1192 * y;
+                int r = (y1192 + 1634 * v) >> 10;
+                int g = (y1192 - 833 * v - 400 * u) >> 10;
+                int b = (y1192 + 2066 * u) >> 10;
+
+                r = r < 0 ? 0 : (r > 255 ? 255 : r);
+                g = g < 0 ? 0 : (g > 255 ? 255 : g);
+                b = b < 0 ? 0 : (b > 255 ? 255 : b);
+
+                int pixel = rowBase + tx;
+                if (channelsFirst) {
+                    out.put(pixel, lut[r]);
+                    out.put(planeSize + pixel, lut[g]);
+                    out.put(2 * planeSize + pixel, lut[b]);
+                } else {
+                    int base = pixel * CHANNELS;
+                    out.put(base, lut[r]);
+                    out.put(base + 1, lut[g]);
+                    out.put(base + 2, lut[b]);
+                }
+            }
+        }
+
+        inputBuffer.rewind();
+        return inputBuffer;
+    }
+
+    /**
+     * Recompute letterbox geometry and sampling tables for a new source size or crop.
+     * Padding only changes here, so it is written once instead of every frame.
+     */
+    private void configureGeometry(int width, int height, int x0, int y0, int w, int h) {
+        sourceWidth = width;
+        sourceHeight = height;
+        cropX = x0;
+        cropY = y0;
+        cropWidth = w;
+        cropHeight = h;
+
+        scale = Math.min((float) tensorWidth / w, (float) tensorHeight / h);
+        contentWidth = Math.max(1, Math.min(tensorWidth, Math.round(w * scale)));
+        contentHeight = Math.max(1, Math.min(tensorHeight, Math.round(h * scale)));
+        padX = (tensorWidth - contentWidth) / 2;
+        padY = (tensorHeight - contentHeight) / 2;
+
+        for (int tx = 0; tx < contentWidth; tx++) {
+            int srcX = (int) ((tx + 0.5f) / scale);
+            srcXForColumn[padX + tx] = x0 + Math.min(srcX, w - 1);
+        }
+        for (int ty = 0; ty < contentHeight; ty++) {
+            int srcY = (int) ((ty + 0.5f) / scale);
+            srcYForRow[padY + ty] = y0 + Math.min(srcY, h - 1);
+        }
+
+        fillPadding();
+    }
+
+    private void fillPadding() {
+        float fill = normLut[LETTERBOX_FILL];
+        int colEnd = padX + contentWidth;
+        int rowEnd = padY + contentHeight;
+
+        for (int ty = 0; ty < tensorHeight; ty++) {
+            boolean paddedRow = ty < padY || ty >= rowEnd;
+            for (int tx = 0; tx < tensorWidth; tx++) {
+                if (!paddedRow && tx >= padX && tx < colEnd) {
+                    continue;
+                }
+                int pixel = ty * tensorWidth + tx;
+                if (channelsFirst) {
+                    floatView.put(pixel, fill);
+                    floatView.put(planeSize + pixel, fill);
+                    floatView.put(2 * planeSize + pixel, fill);
+                } else {
+                    int base = pixel * CHANNELS;
+                    floatView.put(base, fill);
+                    floatView.put(base + 1, fill);
+                    floatView.put(base + 2, fill);
+                }
+            }
+        }
+    }
+
+    /**
+     * Map an x coordinate in tensor pixels back to source frame pixels.
+     */
+    public float toSourceX(float tensorX) {
+        return cropX + (tensorX - padX) / scale;
+    }
+
+    /**
+     * Map a y coordinate in tensor pixels back to source frame pixels.
+     */
+    public float toSourceY(float tensorY) {
+        return cropY + (tensorY - padY) / scale;
+    }
+
+    public ByteBuffer getInputBuffer() {
+        return inputBuffer;
+    }
+
+    public int getTensorWidth() {
+        return tensorWidth;
+    }
+
+    public int getTensorHeight() {
+        return tensorHeight;
+    }
+
+    public int getSourceWidth() {
+        return sourceWidth;
+    }
+
+    public int getSourceHeight() {
+        return sourceHeight;
+    }
+
+    public int getCropX() {
+        return cropX;
+    }
+
+    public int getCropY() {
+        return cropY;
+    }
+
+    public int getCropWidth() {
+        return cropWidth;
+    }
+
+    public int getCropHeight() {
+        return cropHeight;
+    }
+
+    public float getScale() {
+        return scale;
+    }
+
+    public int getPadX() {
+        return padX;
+    }
+
+    public int getPadY() {
+        return padY;
+    }
+}
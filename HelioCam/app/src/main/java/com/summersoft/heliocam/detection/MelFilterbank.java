@@ -0,0 +1,110 @@
+package com.summersoft.heliocam.detection;
+
+/**
+ * Triangular mel filterbank over a magnitude spectrum.
+ *
+ * Filters are stored sparsely (first bin and weights per band) and built once,
+ * so applying the bank to a spectrum does not allocate.
+ */
+public class MelFilterbank {
+
+    private final int bandCount;
+    private final int binCount;
+    private final int[] firstBin;
+    private final float[][] weights;
+    private final float[] centreHz;
+
+    /**
+     * @param sampleRate sample rate in Hz
+     * @param fftSize    FFT size the spectrum was computed with
+     * @param bandCount  number of mel bands
+     * @param minHz      lower edge of the first band
+     * @param maxHz      upper edge of the last band, clamped to Nyquist
+     */
+    public MelFilterbank(int sampleRate, int fftSize, int bandCount, float minHz, float maxHz) {
+        if (bandCount <= 0 || fftSize <= 0 || sampleRate <= 0) {
+            throw new IllegalArgumentException("Invalid filterbank parameters");
+        }
+        this.bandCount = bandCount;
+        this.binCount = fftSize / 2 + 1;
+        maxHz = Math.min(maxHz, sampleRate / 2f);
+
+        float minMel = hzToMel(minHz);
+        float maxMel = hzToMel(maxHz);
+        float binHz = (float) sampleRate / fftSize;
+
+        // bandCount + 2 edge frequencies, evenly spaced on the mel scale
+        float[] edgeHz = new float[bandCount + 2];
+        for (int i = 0; i < edgeHz.length; i++) {
+            edgeHz[i] = melToHz(minMel + (maxMel - minMel) * i / (bandCount + 1));
+        }
+
+        firstBin = new int[bandCount];
+        weights = new float[bandCount][];
+        centreHz = new float[bandCount];
+        for (int b = 0; b < bandCount; b++) {
+            float lo = edgeHz[b];
+            float mid = edgeHz[b + 1];
+            float hi = edgeHz[b + 2];
+            centreHz[b] = mid;
+
+            int start = Math.max(0, (int) Math.ceil(lo / binHz));
+            int end = Math.min(binCount - 1, (int) Math.floor(hi / binHz));
+            if (end < start) {
+                // Band narrower than a bin at low frequencies: use the nearest bin
+                start = end = Math.min(binCount - 1, Math.round(mid / binHz));
+            }
+            float[] w = new float[end - start + 1];
+            for (int k = start; k <= end; k++) {
+                float f = k * binHz;
+                float weight = f <= mid ? (f - lo) / (mid - lo) : (hi - f) / (hi - mid);
+                w[k - start] = Math.max(0f, weight);
+            }
+            if (end == start) {
+                w[0] = 1f;
+            }
+            firstBin[b] = start;
+            weights[b] = w;
+        }
+    }
+
+    /**
+     * Band energies of a magnitude spectrum (sum of weighted squared magnitudes).
+     *
+     * @param magnitudes magnitude spectrum, at least size / 2 + 1 entries
+     * @param out        receives {@link #getBandCount()} energies
+     */
+    public void apply(float[] magnitudes, float[] out) {
+        for (int b = 0; b < bandCount; b++) {
+            float[] w = weights[b];
+            int start = firstBin[b];
+            float sum = 0f;
+            for (int i = 0; i < w.length; i++) {
+                float m = magnitudes[start + i];
+                sum += w[i] * m * m;
+            }
+            out[b] = sum;
+        }
+    }
+
+    public int getBandCount() {
+        return bandCount;
+    }
+
+    public int getBinCount() {
+        return binCount;
+    }
+
+    /** Centre frequency of a band in Hz. */
+    public float getCentreFrequency(int band) {
+        return centreHz[band];
+    }
+
+    public static float hzToMel(float hz) {
+        return (float) (2595.0 * Math.log10(1.0 + hz / 700.0));
+    }
+
+    public static float melToHz(float mel) {
+        return (float) (700.0 * (Math.pow(10.0, mel / 2595.0) - 1.0));
+    }
+}
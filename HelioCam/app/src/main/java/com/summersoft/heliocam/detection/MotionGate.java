@@ -0,0 +1,289 @@
+package com.summersoft.heliocam.detection;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Cheap motion pre-filter that decides whether a frame is worth running the detector on.
+ *
+ * The Y plane is reduced to a small grid of block-averaged luma cells and compared
+ * against a running-average background. Inference is allowed when the fraction of
+ * changed cells passes the area threshold, while a recent detection is being held,
+ * or when the keep-alive interval has passed without any inference.
+ *
+ * Pure Java and allocation-free after construction.
+ */
+public class MotionGate {
+
+    // Background is kept in 8.4 fixed point so slow adaptation does not stall on rounding
+    private static final int BG_SHIFT = 4;
+    // Only every 2nd pixel in each direction is read when averaging a cell
+    private static final int SAMPLE_STEP = 2;
+
+    private final int gridWidth;
+    private final int gridHeight;
+    private final int[] background;
+    private final boolean[] changedCells;
+    private boolean hasBackground = false;
+    private int frameWidth = 0;
+    private int frameHeight = 0;
+
+    // Tunables are volatile: setters may be called from the UI thread while a worker evaluates frames
+    private volatile int pixelThreshold = 18;
+    private volatile float areaThreshold = 0.01f;
+    private volatile int adaptShift = 4;
+    private volatile long keepAliveIntervalMs = 10000;
+    private volatile long detectionHoldMs = 3000;
+
+    private long lastInferenceTime = Long.MIN_VALUE;
+    private long lastDetectionTime = Long.MIN_VALUE;
+    private float lastChangedFraction = 0f;
+
+    private long evaluatedCount = 0;
+    private long skippedCount = 0;
+    private long keepAliveCount = 0;
+
+    /**
+     * @param gridWidth  number of luma cells across the frame
+     * @param gridHeight number of luma cells down the frame
+     */
+    public MotionGate(int gridWidth, int gridHeight) {
+        if (gridWidth <= 0 || gridHeight <= 0) {
+            throw new IllegalArgumentException("Invalid grid size: " + gridWidth + "x" + gridHeight);
+        }
+        this.gridWidth = gridWidth;
+        this.gridHeight = gridHeight;
+        this.background = new int[gridWidth * gridHeight];
+        this.changedCells = new boolean[gridWidth * gridHeight];
+    }
+
+    /**
+     * Evaluate one frame and update the background.
+     *
+     * @param dataY   Y plane, read with absolute gets
+     * @param strideY Y plane row stride
+     * @param width   frame width
+     * @param height  frame height
+     * @param nowMs   frame time in milliseconds
+     * @return true if the detector should run on this frame
+     */
+    public boolean shouldRunInference(ByteBuffer dataY, int strideY, int width, int height, long nowMs) {
+        evaluatedCount++;
+
+        int changed = updateMotion(dataY, strideY, width, height);
+        lastChangedFraction = (float) changed / (gridWidth * gridHeight);
+
+        boolean motion = lastChangedFraction >= areaThreshold;
+        boolean holding = lastDetectionTime != Long.MIN_VALUE && nowMs - lastDetectionTime < detectionHoldMs;
+        boolean keepAlive = lastInferenceTime == Long.MIN_VALUE || nowMs - lastInferenceTime >= keepAliveIntervalMs;
+
+        if (motion || holding || keepAlive) {
+            if (!motion && !holding) {
+                keepAliveCount++;
+            }
+            lastInferenceTime = nowMs;
+            return true;
+        }
+
+        skippedCount++;
+        return false;
+    }
+
+    /**
+     * Compare the frame with the background, mark changed cells and adapt the background.
+     *
+     * @return number of changed cells
+     */
+    private int updateMotion(ByteBuffer dataY, int strideY, int width, int height) {
+        if (width != frameWidth || height != frameHeight) {
+            // Grid cells cover different pixels now, the old background is meaningless
+            frameWidth = width;
+            frameHeight = height;
+            hasBackground = false;
+        }
+
+        int changed = 0;
+        int threshold = pixelThreshold << BG_SHIFT;
+
+        for (int gy = 0; gy < gridHeight; gy++) {
+            int y0 = gy * height / gridHeight;
+            int y1 = Math.max(y0 + 1, (gy + 1) * height / gridHeight);
+
+            for (int gx = 0; gx < gridWidth; gx++) {
+                int x0 = gx * width / gridWidth;
+                int x1 = Math.max(x0 + 1, (gx + 1) * width / gridWidth);
+
+                int sum = 0;
+                int samples = 0;
+                for (int y = y0; y < y1; y += SAMPLE_STEP) {
+                    int row = y * strideY;
+                    for (int x = x0; x < x1; x += SAMPLE_STEP) {
+                        sum += dataY.get(row + x) & 0xFF;
+                        samples++;
+                    }
+                }
+                int luma = (sum << BG_SHIFT) / samples;
+
+                int cell = gy * gridWidth + gx;
+                if (!hasBackground) {
+                    background[cell] = luma;
+                    changedCells[cell] = false;
+                    continue;
+                }
+
+                int diff = luma - background[cell];
+                boolean isChanged = diff > threshold || -diff > threshold;
+                changedCells[cell] = isChanged;
+                if (isChanged) {
+                    changed++;
+                }
+                background[cell] += diff >> adaptShift;
+            }
+        }
+
+        if (!hasBackground) {
+            hasBackground = true;
+        }
+        return changed;
+    }
+
+    /**
+     * Bounding rectangle of the changed cells in the last evaluated frame, in frame pixels.
+     *
+     * @param outRect receives {left, top, width, height}
+     * @param padding fraction of the rectangle size added on every side, for context around the motion
+     * @return false if nothing changed
+     */
+    public boolean getMotionBounds(int[] outRect, float padding) {
+        int minX = gridWidth, minY = gridHeight, maxX = -1, maxY = -1;
+        for (int gy = 0; gy < gridHeight; gy++) {
+            int row = gy * gridWidth;
+            for (int gx = 0; gx < gridWidth; gx++) {
+                if (changedCells[row + gx]) {
+                    if (gx < minX) minX = gx;
+                    if (gx > maxX) maxX = gx;
+                    if (gy < minY) minY = gy;
+                    if (gy > maxY) maxY = gy;
+                }
+            }
+        }
+        if (maxX < 0 || frameWidth <= 0) {
+            return false;
+        }
+
+        int left = minX * frameWidth / gridWidth;
+        int top = minY * frameHeight / gridHeight;
+        int right = (maxX + 1) * frameWidth / gridWidth;
+        int bottom = (maxY + 1) * frameHeight / gridHeight;
+
+        int padX = (int) ((right - left) * padding);
+        int padY = (int) ((bottom - top) * padding);
+        left = Math.max(0, left - padX);
+        top = Math.max(0, top - padY);
+        right = Math.min(frameWidth, right + padX);
+        bottom = Math.min(frameHeight, bottom + padY);
+
+        outRect[0] = left;
+        outRect[1] = top;
+        outRect[2] = right - left;
+        outRect[3] = bottom - top;
+        return true;
+    }
+
+    /**
+     * Keep the gate open for the hold period after a detection, so people standing
+     * still are not lost once they stop producing motion.
+     */
+    public void notifyDetection(long nowMs) {
+        lastDetectionTime = nowMs;
+    }
+
+    /**
+     * Forget the background and counters, e.g. after the camera is switched.
+     */
+    public void reset() {
+        hasBackground = false;
+        lastInferenceTime = Long.MIN_VALUE;
+        lastDetectionTime = Long.MIN_VALUE;
+        lastChangedFraction = 0f;
+        evaluatedCount = 0;
+        skippedCount = 0;
+        keepAliveCount = 0;
+    }
+
+    /**
+     * @param pixelThreshold luma difference (0-255) for a cell to count as changed
+     */
+    public void setPixelThreshold(int pixelThreshold) {
+        this.pixelThreshold = Math.max(1, Math.min(255, pixelThreshold));
+    }
+
+    /**
+     * @param areaThreshold fraction of changed cells (0-1) needed to run inference
+     */
+    public void setAreaThreshold(float areaThreshold) {
+        this.areaThreshold = Math.max(0f, Math.min(1f, areaThreshold));
+    }
+
+    /**
+     * @param adaptShift background adapts by 1 / 2^shift of the difference per frame
+     */
+    public void setAdaptShift(int adaptShift) {
+        this.adaptShift = Math.max(0, Math.min(10, adaptShift));
+    }
+
+    /**
+     * @param keepAliveIntervalMs longest time without an inference, even with no motion
+     */
+    public void setKeepAliveInterval(long keepAliveIntervalMs) {
+        this.keepAliveIntervalMs = Math.max(0, keepAliveIntervalMs);
+    }
+
+    /**
+     * @param detectionHoldMs how long inference keeps running after a detection
+     */
+    public void setDetectionHold(long detectionHoldMs) {
+        this.detectionHoldMs = Math.max(0, detectionHoldMs);
+    }
+
+    public float getAreaThreshold() {
+        return areaThreshold;
+    }
+
+    public int getGridWidth() {
+        return gridWidth;
+    }
+
+    public int getGridHeight() {
+        return gridHeight;
+    }
+
+    /**
+     * Whether a grid cell changed in the last evaluated frame.
+     */
+    public boolean isCellChanged(int gx, int gy) {
+        return changedCells[gy * gridWidth + gx];
+    }
+
+    public float getLastChangedFraction() {
+        return lastChangedFraction;
+    }
+
+    public long getEvaluatedCount() {
+        return evaluatedCount;
+    }
+
+    public long getSkippedCount() {
+        return skippedCount;
+    }
+
+    public long getKeepAliveCount() {
+        return keepAliveCount;
+    }
+
+    /**
+     * Fraction of evaluated frames for which inference was skipped.
+     */
+    public float getSkippedFraction() {
+        return evaluatedCount > 0 ? (float) skippedCount / evaluatedCount : 0f;
+    }
+}
@@ -0,0 +1,176 @@
+package com.summersoft.heliocam.detection;
+
+/**
+ * Rolling noise-floor estimate with a hysteresis trigger.
+ *
+ * The floor is a low percentile of hop levels over the last N hops, kept in a 1 dB
+ * histogram that is updated incrementally as hops enter and leave the window. An event
+ * starts when the level rises {@code onMarginDb} above the floor and the trigger re-arms
+ * only after the level falls back below {@code offMarginDb}. While an event is active the
+ * floor is frozen, so a long sound does not raise its own threshold, up to one window
+ * length after which a persistent level change is accepted as the new floor.
+ *
+ * Pure Java and allocation-free after construction.
+ */
+public class NoiseFloorTracker {
+
+    private static final int MIN_DB = (int) AudioFeatureFrame.SILENCE_DBFS;
+    private static final int BIN_COUNT = -MIN_DB + 1;
+
+    private final int windowHops;
+    private final int[] histogram = new int[BIN_COUNT];
+    private final byte[] ringBins;
+    private int ringPos = 0;
+    private int filled = 0;
+
+    private float percentile;
+    private float onMarginDb = 12f;
+    private float offMarginDb = 6f;
+    // Hops of history needed before the estimate is trusted
+    private int warmupHops;
+
+    private float floorDbfs = MIN_DB;
+    private float lastLevelDbfs = MIN_DB;
+    private boolean active = false;
+    private int activeHops = 0;
+
+    /**
+     * @param windowHops number of hops the floor is estimated over
+     * @param percentile fraction (0-1) of hops that lie below the floor, e.g. 0.2
+     */
+    public NoiseFloorTracker(int windowHops, float percentile) {
+        if (windowHops <= 0) {
+            throw new IllegalArgumentException("windowHops must be positive");
+        }
+        this.windowHops = windowHops;
+        this.ringBins = new byte[windowHops];
+        this.percentile = Math.max(0f, Math.min(1f, percentile));
+        this.warmupHops = Math.max(1, windowHops / 10);
+    }
+
+    /**
+     * Feed one hop level.
+     *
+     * @param levelDbfs RMS level of the hop
+     * @return true on the hop where the level first crosses the on-margin above the floor
+     */
+    public boolean update(float levelDbfs) {
+        lastLevelDbfs = levelDbfs;
+
+        boolean frozen = active && activeHops < windowHops;
+        if (!frozen) {
+            addLevel(levelDbfs);
+            floorDbfs = computePercentile();
+        }
+
+        if (!isWarmedUp()) {
+            return false;
+        }
+
+        if (active) {
+            activeHops++;
+            if (levelDbfs < floorDbfs + offMarginDb) {
+                active = false;
+                activeHops = 0;
+            }
+            return false;
+        }
+
+        if (levelDbfs >= floorDbfs + onMarginDb) {
+            active = true;
+            activeHops = 0;
+            return true;
+        }
+        return false;
+    }
+
+    private void addLevel(float levelDbfs) {
+        int bin = Math.max(0, Math.min(BIN_COUNT - 1, Math.round(levelDbfs) - MIN_DB));
+        if (filled == windowHops) {
+            histogram[ringBins[ringPos] & 0xFF]--;
+        } else {
+            filled++;
+        }
+        ringBins[ringPos] = (byte) bin;
+        histogram[bin]++;
+        ringPos = ringPos + 1 == windowHops ? 0 : ringPos + 1;
+    }
+
+    private float computePercentile() {
+        int target = Math.max(1, Math.round(filled * percentile));
+        int seen = 0;
+        for (int bin = 0; bin < BIN_COUNT; bin++) {
+            seen += histogram[bin];
+            if (seen >= target) {
+                return bin + MIN_DB;
+            }
+        }
+        return 0f;
+    }
+
+    /**
+     * Forget the history, e.g. when the microphone is restarted.
+     */
+    public void reset() {
+        for (int i = 0; i < BIN_COUNT; i++) {
+            histogram[i] = 0;
+        }
+        ringPos = 0;
+        filled = 0;
+        floorDbfs = MIN_DB;
+        lastLevelDbfs = MIN_DB;
+        active = false;
+        activeHops = 0;
+    }
+
+    public boolean isWarmedUp() {
+        return filled >= warmupHops;
+    }
+
+    /** True between an on-margin crossing and the level falling back below the off-margin. */
+    public boolean isActive() {
+        return active;
+    }
+
+    public float getFloorDbfs() {
+        return floorDbfs;
+    }
+
+    /** Level of the last hop above the floor, in dB. */
+    public float getSnrDb() {
+        return lastLevelDbfs - floorDbfs;
+    }
+
+    /** Level an event has to reach right now. */
+    public float getTriggerLevelDbfs() {
+        return floorDbfs + onMarginDb;
+    }
+
+    /**
+     * @param onMarginDb  dB above the floor that starts an event
+     * @param offMarginDb dB above the floor the level must fall below before the next event
+     */
+    public void setMargins(float onMarginDb, float offMarginDb) {
+        this.onMarginDb = Math.max(0f, onMarginDb);
+        this.offMarginDb = Math.max(0f, Math.min(this.onMarginDb, offMarginDb));
+    }
+
+    public float getOnMarginDb() {
+        return onMarginDb;
+    }
+
+    public float getOffMarginDb() {
+        return offMarginDb;
+    }
+
+    public void setPercentile(float percentile) {
+        this.percentile = Math.max(0f, Math.min(1f, percentile));
+    }
+
+    /**
+     * @param warmupHops hops of history needed before events can fire
+     */
+    public void setWarmupHops(int warmupHops) {
+        this.warmupHops = Math.max(1, Math.min(windowHops, warmupHops));
+    }
+}
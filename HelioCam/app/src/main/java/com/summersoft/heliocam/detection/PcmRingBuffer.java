@@ -0,0 +1,90 @@
+package com.summersoft.heliocam.detection;
+
+/**
+ * Fixed-size ring of 16-bit PCM samples addressed by absolute sample index.
+ *
+ * The writer appends samples; readers copy any range that is still held, identified
+ * by its position in the stream since the last reset. Storage is allocated once.
+ * Methods are synchronized so a reader on another thread never sees a half-written range.
+ */
+public class PcmRingBuffer {
+
+    private final short[] samples;
+    private int writePos = 0;
+    private long totalWritten = 0;
+
+    /**
+     * @param capacity number of samples held
+     */
+    public PcmRingBuffer(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        samples = new short[capacity];
+    }
+
+    /**
+     * Append samples, overwriting the oldest ones once the ring is full.
+     */
+    public synchronized void write(short[] source, int offset, int length) {
+        int capacity = samples.length;
+        if (length >= capacity) {
+            // Only the newest capacity samples survive
+            offset += length - capacity;
+            totalWritten += length - capacity;
+            length = capacity;
+        }
+        int first = Math.min(length, capacity - writePos);
+        System.arraycopy(source, offset, samples, writePos, first);
+        if (first < length) {
+            System.arraycopy(source, offset + first, samples, 0, length - first);
+        }
+        writePos = (writePos + length) % capacity;
+        totalWritten += length;
+    }
+
+    /**
+     * Copy a range of the stream.
+     *
+     * @param fromSample absolute index of the first sample
+     * @param dest       destination array
+     * @param destOffset first index written in the destination
+     * @param length     number of samples
+     * @return false if part of the range is no longer, or not yet, in the ring
+     */
+    public synchronized boolean copy(long fromSample, short[] dest, int destOffset, int length) {
+        if (fromSample < getOldestSample() || fromSample + length > totalWritten) {
+            return false;
+        }
+        int capacity = samples.length;
+        int start = (int) ((writePos - (totalWritten - fromSample)) % capacity);
+        if (start < 0) {
+            start += capacity;
+        }
+        int first = Math.min(length, capacity - start);
+        System.arraycopy(samples, start, dest, destOffset, first);
+        if (first < length) {
+            System.arraycopy(samples, 0, dest, destOffset + first, length - first);
+        }
+        return true;
+    }
+
+    /** Absolute index one past the newest sample. */
+    public synchronized long getTotalWritten() {
+        return totalWritten;
+    }
+
+    /** Absolute index of the oldest sample still held. */
+    public synchronized long getOldestSample() {
+        return Math.max(0, totalWritten - samples.length);
+    }
+
+    public int getCapacity() {
+        return samples.length;
+    }
+
+    public synchronized void reset() {
+        writePos = 0;
+        totalWritten = 0;
+    }
+}
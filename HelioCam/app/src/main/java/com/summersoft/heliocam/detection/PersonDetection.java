@@ -7,8 +7,11 @@ import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.RectF;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.PowerManager;
+import android.os.SystemClock;
 import android.util.Log;
 import android.widget.Toast;
 
@@ -20,9 +23,9 @@ import com.google.firebase.database.FirebaseDatabase;
 import com.summersoft.heliocam.ui.CameraActivity;
 import com.summersoft.heliocam.ui.NotificationSettings;
 import com.summersoft.heliocam.utils.DetectionDirectoryManager;
-import com.summersoft.heliocam.utils.FileUtils;
 import com.summersoft.heliocam.utils.ImageUtils;
 import com.summersoft.heliocam.webrtc_utils.RTCJoiner;
+import com.summersoft.heliocam.webrtc_utils.ReplayBuffer;
 
 import org.tensorflow.lite.Interpreter;
 import org.webrtc.VideoFrame;
@@ -34,26 +37,44 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
-import java.nio.MappedByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class PersonDetection implements VideoSink {
+public class PersonDetection implements VideoSink, DetectionScheduler.Source {
     private static final String TAG = "PersonDetection";
     private static final String MODEL_FILE = "yolov8n.tflite";
     private static final String LABEL_FILE = "labels.txt";    private static final float CONFIDENCE_THRESHOLD = 0.5f; // Balanced threshold for reliable detection
     private static final int INPUT_WIDTH = 640;
     private static final int INPUT_HEIGHT = 640;
+    private static final float NMS_IOU_THRESHOLD = 0.45f;
+    private static final int MAX_NMS_CANDIDATES = 100;
+    private static final int MAX_PERSON_DETECTIONS = 20;
+    // Per-frame detail logs build strings on every inference; keep them off outside debugging
+    private static final boolean LOG_FRAME_DETAILS = false;
+    // Motion grid resolution; 64x48 keeps the pre-filter well under a millisecond
+    private static final int MOTION_GRID_WIDTH = 64;
+    private static final int MOTION_GRID_HEIGHT = 48;
+    // ROI crop: padding around the motion box, and the largest crop still worth cropping to
+    private static final float ROI_PADDING = 0.25f;
+    private static final float ROI_MAX_AREA_FRACTION = 0.5f;
+
+    private static final float DEFAULT_TARGET_DETECTION_RATE = 5f; // detections per second when quiet
+    private static final long TRACK_GRACE_MS = 2000; // how long a track survives unseen beyond the detection latency
+    private static final long MAX_PLAUSIBLE_LATENCY_MS = 10000; // beyond this the capture timestamp is not on our clock
+
+    private static final AtomicInteger SOURCE_COUNTER = new AtomicInteger(0);
 
     private static final int REQUEST_DIRECTORY_PICKER = 1001;
     private Uri savedDirectoryUri = null;
@@ -61,19 +82,41 @@ public class PersonDetection implements VideoSink {
     private final Handler uiHandler = new Handler(Looper.getMainLooper());
     private final Context context;
     private final Handler handler;
-    private final Executor executor;
-    private final RTCJoiner webRTCClient;    private Interpreter tflite;
-    private List<String> labels;
+    // Process-wide scheduler that owns the worker threads and interpreters
+    private final DetectionScheduler scheduler = DetectionScheduler.getInstance();
+    private final String sourceName;
+    private final RTCJoiner webRTCClient;
     
     // Cache model input/output dimensions for performance
     private int modelInputWidth = INPUT_WIDTH;
     private int modelInputHeight = INPUT_HEIGHT;
     private int[] cachedInputShape;
-    private int[] cachedOutputShape;    // Use AtomicBoolean for thread-safe state management
+    private int[] cachedOutputShape;
+    // Set when the profile changes; the interpreter is resized on the worker before the next frame
+    private volatile boolean profileChanged = true;
+    // Fused I420 -> input tensor stage, owns the reused direct input buffer
+    private I420TensorPreprocessor preprocessor;
+    private volatile DetectionInputProfile inputProfile = DetectionInputProfile.FULL;
+    private final Map<DetectionInputProfile, ProfileStats> profileStats = new EnumMap<>(DetectionInputProfile.class);
+    // Flat-tensor decoder with NMS; mapped person boxes in frame pixels as [left, top, right, bottom] quads
+    private final YoloPersonDecoder decoder = new YoloPersonDecoder(MAX_NMS_CANDIDATES, MAX_PERSON_DETECTIONS);
+    private final float[] personBoxes = new float[MAX_PERSON_DETECTIONS * 4];
+    private int personBoxCount = 0;
+    // Interpreter I/O owned by the detector and sized at model load / profile change
+    private ByteBuffer outputBuffer;
+    private FloatBuffer outputView;
+    private final Object[] inferenceInputs = new Object[1];
+    private final Map<Integer, Object> inferenceOutputs = new HashMap<>();    // Use AtomicBoolean for thread-safe state management
     private final AtomicBoolean isRunning = new AtomicBoolean(false);
     private final AtomicBoolean isInLatencyPeriod = new AtomicBoolean(false);
-    private final AtomicBoolean isModelLoaded = new AtomicBoolean(false);
-    private final AtomicBoolean isProcessingFrame = new AtomicBoolean(false);
+    // Latest-frame-wins handoff to the scheduler worker
+    private final FrameMailbox frameMailbox = new FrameMailbox();
+    // Frame-differencing pre-filter, only evaluated on the scheduler worker
+    private final MotionGate motionGate = new MotionGate(MOTION_GRID_WIDTH, MOTION_GRID_HEIGHT);
+    private volatile boolean motionGatingEnabled = true;
+    private volatile boolean roiCroppingEnabled = true;
+    private final int[] roiRect = new int[4];
+    private long roiInferenceCount = 0;
     private final AtomicInteger frameCounter = new AtomicInteger(0);
     private DetectionDirectoryManager directoryManager;    // Enhanced performance tracking and optimization
     private long lastFrameProcessTime = 0;
@@ -83,12 +126,15 @@ public class PersonDetection implements VideoSink {
     // Frame tracking for debugging
     private final AtomicInteger totalFramesReceived = new AtomicInteger(0);
     private final AtomicInteger framesProcessedCount = new AtomicInteger(0);
+    private final AtomicLong framesDropped = new AtomicLong(0);
     private long lastDebugLogTime = 0;
     private static final long DEBUG_LOG_INTERVAL = 5000; // Log every 5 seconds
-      // Optimized frame skipping with adaptive behavior
-    private int dynamicSkipFactor = 2; // Start with lower value for more responsive detection
-    private long lastSkipFactorUpdate = 0;
-    private static final long SKIP_FACTOR_UPDATE_INTERVAL = 2000; // Update every 2 seconds
+    // Stable person count and "entered" events across inferences, only used on the worker
+    private final PersonTracker tracker = new PersonTracker(MAX_PERSON_DETECTIONS);
+    private volatile boolean trackerResetPending = false;
+    // Time-based frame admission: boosts after detections, decays when quiet, respects latency
+    private final FrameRateController frameRateController = new FrameRateController(DEFAULT_TARGET_DETECTION_RATE);
+    private Object thermalStatusListener;
 
     private boolean hasPromptedForDirectory = false;
 
@@ -116,58 +162,49 @@ public class PersonDetection implements VideoSink {
     private boolean autoRecordingEnabled = true; // Toggle for automatic recording on detection
     private final AtomicBoolean isRecordingVideo = new AtomicBoolean(false);
     private final Handler recordingHandler = new Handler(Looper.getMainLooper());
-    private Runnable stopRecordingRunnable;    private void run() {
-        try {
-            // Check if model files exist before loading
-            try {
-                context.getAssets().open(MODEL_FILE).close();
-                context.getAssets().open(LABEL_FILE).close();
-            } catch (IOException e) {
-                Log.e(TAG, "Model files not found: " + e.getMessage());
-                handler.post(() -> Toast.makeText(context, "Person detection model files missing", Toast.LENGTH_LONG).show());
-                return;
-            }
+    private Runnable stopRecordingRunnable;
+    private volatile boolean savingClipFromReplayBuffer = false;
+    private final ReplayBuffer.SaveCallback clipSaveCallback = new ReplayBuffer.SaveCallback() {
+        @Override
+        public void onSaved(String target, long durationMs) {
+            savingClipFromReplayBuffer = false;
+            isRecordingVideo.set(false);
+            uiHandler.post(() -> Toast.makeText(context, "Person detection video saved", Toast.LENGTH_SHORT).show());
+        }
 
-            // Load model and labels using FileUtils
-            MappedByteBuffer model = FileUtils.loadModelFile(context, MODEL_FILE);
-            labels = FileUtils.readLabels(context, LABEL_FILE);            // Ultra-optimized interpreter settings for maximum performance
-            Interpreter.Options options = new Interpreter.Options();
-            options.setUseXNNPACK(true);
-            options.setNumThreads(Math.min(2, Runtime.getRuntime().availableProcessors())); // Reduced threads for lower latency
-            
-            // Aggressive performance optimizations
-            options.setAllowFp16PrecisionForFp32(true); // Allow reduced precision for speed
-            options.setAllowBufferHandleOutput(true);   // Enable buffer handle output
-            options.setUseNNAPI(false); // Disable NNAPI for consistent performance
-            
-            // Additional optimizations for detection workload
-            options.setCancellable(false); // Disable cancellation for better performance
-              // Experimental: Enable CPU backend optimizations
-            // Note: Using CPU backend by default (no GPU delegate added)
-            // This ensures consistent performance across different devices
+        @Override
+        public void onPartSaved(String target, long durationMs) {
+            Log.d(TAG, "Detection clip continued after a video source change, first part " + target);
+        }
 
-            tflite = new Interpreter(model, options);
-            
-            // Cache model input/output shapes for ultra-fast access
-            cachedInputShape = tflite.getInputTensor(0).shape();
-            cachedOutputShape = tflite.getOutputTensor(0).shape();
-            
-            // Update cached dimensions for optimal performance
-            if (cachedInputShape.length >= 3) {
-                modelInputWidth = cachedInputShape[2];
-                modelInputHeight = cachedInputShape[1];
-            }
-            
-            Log.d(TAG, "Model loaded with ultra-optimized settings:");
-            Log.d(TAG, "  Input shape: " + Arrays.toString(cachedInputShape) + 
-                  " -> " + modelInputWidth + "x" + modelInputHeight);
-            Log.d(TAG, "  Output shape: " + Arrays.toString(cachedOutputShape));
-            Log.d(TAG, "  Threads: " + Math.min(3, Runtime.getRuntime().availableProcessors()));
-            
-            isModelLoaded.set(true);
+        @Override
+        public void onTruncated(String target, long durationMs) {
+            savingClipFromReplayBuffer = false;
+            isRecordingVideo.set(false);
+            Log.w(TAG, "Detection clip " + target + " cut short at " + durationMs + "ms by a video source change");
+            uiHandler.post(() -> Toast.makeText(context, "Person detection video saved, cut short by a camera switch",
+                    Toast.LENGTH_SHORT).show());
+        }
+
+        @Override
+        public void onError(String message, Exception e) {
+            savingClipFromReplayBuffer = false;
+            isRecordingVideo.set(false);
+            Log.e(TAG, "Detection clip failed: " + message, e);
+            uiHandler.post(() -> Toast.makeText(context, "Failed to save detection video", Toast.LENGTH_SHORT).show());
+        }
+    };
+
+    private boolean hasModelFiles() {
+        // Check if model files exist before registering with the scheduler
+        try {
+            context.getAssets().open(MODEL_FILE).close();
+            context.getAssets().open(LABEL_FILE).close();
+            return true;
         } catch (IOException e) {
-            Log.e(TAG, "Error loading model", e);
-            handler.post(() -> Toast.makeText(context, "Failed to load detection model: " + e.getMessage(), Toast.LENGTH_LONG).show());
+            Log.e(TAG, "Model files not found: " + e.getMessage());
+            handler.post(() -> Toast.makeText(context, "Person detection model files missing", Toast.LENGTH_LONG).show());
+            return false;
         }
     }public interface DetectionListener {
         void onDetectionStatusChanged(boolean isDetecting);
@@ -206,13 +243,7 @@ public class PersonDetection implements VideoSink {
         this.context = context;
         this.webRTCClient = webRTCClient;
         this.handler = new Handler(Looper.getMainLooper());
-        
-        // Create high-priority executor for detection processing
-        this.executor = Executors.newSingleThreadExecutor(r -> {
-            Thread t = new Thread(r, "PersonDetection-Worker");
-            t.setPriority(Thread.MAX_PRIORITY); // Highest priority for smooth detection
-            return t;
-        });
+        this.sourceName = "PersonDetection-" + SOURCE_COUNTER.incrementAndGet();
         
         this.boxPaint = new Paint();
         this.boxPaint.setColor(Color.RED);
@@ -223,14 +254,18 @@ public class PersonDetection implements VideoSink {
         // Debug model files
         debugModelFiles();
         
-        loadModel();
+        // The scheduler loads the model on its workers and serves this source with the others
+        if (hasModelFiles()) {
+            scheduler.register(context, this);
+        }
+        registerThermalListener();
     }
 
     public void setDetectionListener(DetectionListener listener) {
         this.detectionListener = listener;
     }    public void start() {
         if (isRunning.compareAndSet(false, true)) {
-            Log.i(TAG, "Person detection started - Model loaded: " + isModelLoaded.get());
+            Log.i(TAG, "Person detection started - Model loaded: " + scheduler.isModelLoaded());
             // Force reset the latency period when starting
             if (isInLatencyPeriod.compareAndSet(true, false)) {
                 Log.i(TAG, "Forced reset of latency period on start");
@@ -240,6 +275,10 @@ public class PersonDetection implements VideoSink {
             // Reset frame counters for fresh debug session
             totalFramesReceived.set(0);
             framesProcessedCount.set(0);
+            framesDropped.set(0);
+            frameMailbox.reopen();
+            frameRateController.reset();
+            trackerResetPending = true;
             lastDebugLogTime = System.currentTimeMillis();
             
             // Ensure we're not stuck in latency period
@@ -250,6 +289,8 @@ public class PersonDetection implements VideoSink {
     }public void stop() {
         if (isRunning.compareAndSet(true, false)) {
             Log.d(TAG, "Person detection stopped");
+            // Release any frame still waiting for the worker
+            frameMailbox.close();
             isInLatencyPeriod.set(false);
             latencyHandler.removeCallbacks(resumeDetectionRunnable);
             
@@ -274,11 +315,9 @@ public class PersonDetection implements VideoSink {
         ImageUtils.clearBitmapPool();
         ImageUtils.clearDetectionBitmapPool();
         
-        if (tflite != null) {
-            tflite.close();
-            tflite = null;
-            isModelLoaded.set(false);
-        }
+        // Interpreters belong to the scheduler; it closes them when the last source leaves
+        scheduler.unregister(this);
+        unregisterThermalListener();
     }
 
     /**
@@ -323,7 +362,8 @@ public class PersonDetection implements VideoSink {
         }
     }/**
      * Set the video recording duration in milliseconds.
-     * This defines how long to record video when a person is detected.
+     * This defines how long to keep recording after a person is detected; clips from the
+     * replay buffer also include a short lead-in from before the detection.
      * Duration is constrained between 3-30 seconds for optimal performance.
      *
      * @param milliseconds The recording duration in milliseconds (3000-30000ms)
@@ -395,7 +435,17 @@ public class PersonDetection implements VideoSink {
                     return;
                 }
                 
-                // Start recording using existing CameraActivity method
+                // Cut the clip from the replay buffer, which already holds the lead-in
+                if (cameraActivity.saveDetectionClip("Person_Detected", videoRecordingDuration, clipSaveCallback)) {
+                    savingClipFromReplayBuffer = true;
+                    Log.d(TAG, "Detection clip export started");
+                    uiHandler.post(() -> Toast.makeText(context,
+                            "Person detected - Saving clip with the next " + (videoRecordingDuration / 1000) + " seconds",
+                            Toast.LENGTH_SHORT).show());
+                    return;
+                }
+
+                // No replay buffer; fall back to a separate recording session
                 if (cameraActivity.startRecordingFromDetection("Person_Detected")) {
                     Log.d(TAG, "Video recording started successfully");
                     
@@ -455,6 +505,13 @@ public class PersonDetection implements VideoSink {
                     stopRecordingRunnable = null;
                 }
                 
+                if (savingClipFromReplayBuffer) {
+                    // The export finishes on its own with what has been buffered
+                    savingClipFromReplayBuffer = false;
+                    Log.d(TAG, "Detection clip export left to finish in the background");
+                    return;
+                }
+
                 // Cast context to CameraActivity to access recording methods
                 CameraActivity cameraActivity = (CameraActivity) context;
                 
@@ -475,8 +532,79 @@ public class PersonDetection implements VideoSink {
         }
     }
 
-    private void loadModel() {
-        executor.execute(this::run);
+    /**
+     * Select the detection input profile (model input resolution).
+     * The interpreter is resized on the next frame, on the worker, so it never races an inference.
+     *
+     * @param profile the profile to use
+     */
+    public void setDetectionInputProfile(DetectionInputProfile profile) {
+        if (profile == null || profile == inputProfile) {
+            return;
+        }
+        inputProfile = profile;
+        profileChanged = true;
+        Log.d(TAG, "Detection input profile set to " + profile + " (" + profile.getInputSize() + "px)");
+    }
+
+    public DetectionInputProfile getDetectionInputProfile() {
+        return inputProfile;
+    }
+
+    /**
+     * Make sure the worker's interpreter matches this source's input shape.
+     * Pool interpreters are shared, so another source may have resized it since our last frame.
+     */
+    private boolean prepareInterpreter(Interpreter interpreter) {
+        if (profileChanged || preprocessor == null) {
+            profileChanged = false;
+            applyInputProfile(interpreter);
+        } else if (!Arrays.equals(interpreter.getInputTensor(0).shape(), cachedInputShape)) {
+            interpreter.resizeInput(0, cachedInputShape);
+            interpreter.allocateTensors();
+        }
+        return preprocessor != null && outputBuffer != null;
+    }
+
+    /**
+     * Resize the interpreter input to the current profile and rebuild the preprocessor.
+     * Falls back to the model's native input size if the resize is rejected.
+     * Must run on the detection worker thread.
+     */
+    private void applyInputProfile(Interpreter tflite) {
+        int[] nativeInputShape = scheduler.getNativeInputShape();
+        boolean channelsFirst = I420TensorPreprocessor.isChannelsFirst(nativeInputShape);
+        int size = inputProfile.getInputSize();
+        int[] requestedShape = channelsFirst
+                ? new int[]{1, 3, size, size}
+                : new int[]{1, size, size, 3};
+
+        try {
+            tflite.resizeInput(0, requestedShape);
+            tflite.allocateTensors();
+        } catch (Exception e) {
+            Log.w(TAG, "Model rejected " + size + "px input, using native shape " +
+                    Arrays.toString(nativeInputShape) + ": " + e.getMessage());
+            tflite.resizeInput(0, nativeInputShape);
+            tflite.allocateTensors();
+        }
+
+        cachedInputShape = tflite.getInputTensor(0).shape();
+        cachedOutputShape = tflite.getOutputTensor(0).shape();
+
+        // Update cached dimensions for optimal performance
+        if (channelsFirst) {
+            modelInputWidth = cachedInputShape[3];
+            modelInputHeight = cachedInputShape[2];
+        } else if (cachedInputShape.length >= 3) {
+            modelInputWidth = cachedInputShape[2];
+            modelInputHeight = cachedInputShape[1];
+        }
+
+        preprocessor = new I420TensorPreprocessor(modelInputWidth, modelInputHeight, channelsFirst, 0f, 1f);
+        allocateOutputBuffer();
+        Log.d(TAG, "Input profile " + inputProfile + " -> input " + Arrays.toString(cachedInputShape) +
+                ", output " + Arrays.toString(cachedOutputShape));
     }    @Override
     public void onFrame(VideoFrame frame) {
         // Track all frames received
@@ -486,7 +614,8 @@ public class PersonDetection implements VideoSink {
         if (currentTime - lastDebugLogTime > DEBUG_LOG_INTERVAL) {
             int processed = framesProcessedCount.get();
             Log.i(TAG, "Frame Stats - Received: " + totalFrames + ", Processed: " + processed + 
-                      ", Model loaded: " + isModelLoaded.get() + ", Running: " + isRunning.get() + 
+                      ", Dropped: " + framesDropped.get() + ", Overwritten: " + frameMailbox.getOverwrittenCount() +
+                      ", Model loaded: " + scheduler.isModelLoaded() + ", Running: " + isRunning.get() + 
                       ", In latency: " + isInLatencyPeriod.get());
             
             // Additional debugging for latency period
@@ -508,93 +637,292 @@ public class PersonDetection implements VideoSink {
             return;
         }
         
-        if (!isModelLoaded.get()) {
+        if (!scheduler.isModelLoaded()) {
             Log.v(TAG, "Frame dropped - model not loaded");
+            framesDropped.incrementAndGet();
             return;
         }
         
         if (isInLatencyPeriod.get()) {
             Log.v(TAG, "Frame dropped - in latency period");
+            framesDropped.incrementAndGet();
             return;
         }
 
-        // Highly optimized frame skipping - avoid expensive operations
-        int currentFrame = frameCounter.getAndIncrement();
-        if ((currentFrame & (getDynamicSkipFactor() - 1)) != 0) { // Use bitwise AND for power-of-2 skip factors
+        // Admit frames on the controller's schedule instead of a fixed every-Nth-frame skip
+        frameCounter.incrementAndGet();
+        if (!frameRateController.shouldAdmit(SystemClock.elapsedRealtime())) {
+            framesDropped.incrementAndGet();
             return;
         }
 
-        // Lock-free processing check - exit immediately if busy
-        if (!isProcessingFrame.compareAndSet(false, true)) {
-            Log.v(TAG, "Frame dropped - processing busy");
+        if (LOG_FRAME_DETAILS) {
+            Log.d(TAG, "Queueing frame " + totalFrames);
+        }
+
+        // Hand the newest frame to the worker; the mailbox retains it and releases whatever it replaces
+        if (!frameMailbox.offer(frame)) {
             return;
         }
+        scheduler.signal(this);
+    }
 
-        Log.d(TAG, "Processing frame " + totalFrames);
+    @Override
+    public String getSourceName() {
+        return sourceName;
+    }
 
-        // Don't retain frame - work with it immediately to reduce memory pressure
-        
-        // Process frame on dedicated high-priority executor
-        executor.execute(() -> {
-            Bitmap bitmap = null;
-            
-            try {
-                framesProcessedCount.incrementAndGet();
-                
-                // Single ultra-fast conversion with early exit on failure
-                bitmap = ImageUtils.videoFrameToBitmapUltraFast(frame);
-                if (bitmap == null) {
-                    Log.w(TAG, "Failed to convert frame to bitmap");
-                    return;
-                }
-                
-                Log.d(TAG, "Frame converted to bitmap: " + bitmap.getWidth() + "x" + bitmap.getHeight());
-                  
-                // Use optimized person detection
-                detectPersonOptimized(bitmap, System.currentTimeMillis());
-                
-            } catch (Exception e) {
-                Log.w(TAG, "Frame processing error: " + e.getMessage());
-            } finally {
-                // Immediate cleanup
-                if (bitmap != null) {
-                    ImageUtils.safeRecycleBitmap(bitmap);
-                }
-                isProcessingFrame.set(false);
+    @Override
+    public boolean hasPendingWork() {
+        return frameMailbox.hasPending();
+    }
+
+    /**
+     * Scheduler callback: process the newest queued frame with the worker's interpreter
+     */
+    @Override
+    public void processPendingWork(Interpreter interpreter) {
+        VideoFrame frame = frameMailbox.take();
+        if (frame == null) {
+            return;
+        }
+        try {
+            processFrame(frame, interpreter);
+        } finally {
+            frame.release();
+        }
+    }
+
+    private void processFrame(VideoFrame frame, Interpreter interpreter) {
+        if (!isRunning.get() || isInLatencyPeriod.get() || !prepareInterpreter(interpreter)) {
+            framesDropped.incrementAndGet();
+            return;
+        }
+
+        VideoFrame.I420Buffer i420Buffer = null;
+        try {
+            framesProcessedCount.incrementAndGet();
+
+            i420Buffer = frame.getBuffer().toI420();
+            if (i420Buffer == null) {
+                Log.w(TAG, "Failed to convert frame to I420");
+                return;
             }
-        });
+
+            int frameWidth = i420Buffer.getWidth();
+            int frameHeight = i420Buffer.getHeight();
+
+            // Skip the model entirely when nothing in the scene has changed
+            if (motionGatingEnabled && !motionGate.shouldRunInference(
+                    i420Buffer.getDataY(), i420Buffer.getStrideY(), frameWidth, frameHeight,
+                    System.currentTimeMillis())) {
+                return;
+            }
+
+            // Crop to the moving region when it is small, so distant people get more input pixels
+            int cropX = 0, cropY = 0, cropW = frameWidth, cropH = frameHeight;
+            if (motionGatingEnabled && roiCroppingEnabled && computeRoi(frameWidth, frameHeight)) {
+                cropX = roiRect[0];
+                cropY = roiRect[1];
+                cropW = roiRect[2];
+                cropH = roiRect[3];
+                roiInferenceCount++;
+            }
+
+            // Write the planes straight into the reused input tensor - no Bitmap round trip
+            ByteBuffer inputBuffer = preprocessor.process(
+                    i420Buffer.getDataY(), i420Buffer.getStrideY(),
+                    i420Buffer.getDataU(), i420Buffer.getStrideU(),
+                    i420Buffer.getDataV(), i420Buffer.getStrideV(),
+                    frameWidth, frameHeight, cropX, cropY, cropW, cropH);
+
+            // toI420() hands us our own reference, release it as soon as the tensor is filled
+            i420Buffer.release();
+            i420Buffer = null;
+
+            // Use optimized person detection
+            detectPersonOptimized(interpreter, inputBuffer, frameWidth, frameHeight, frame.getTimestampNs());
+
+        } catch (Exception e) {
+            Log.w(TAG, "Frame processing error: " + e.getMessage());
+        } finally {
+            if (i420Buffer != null) {
+                i420Buffer.release();
+            }
+        }
     }
-      /**
-     * Get dynamic skip factor optimized for bitwise operations (power of 2)
-     * Uses simplified performance-based adjustment
+
+    /**
+     * Fill roiRect with a padded crop around the motion mask.
+     * The crop is grown to at least half the model input size so it is never upscaled past 2x.
+     *
+     * @return false if the whole frame should be used instead
      */
-    private int getDynamicSkipFactor() {
-        long currentTime = System.currentTimeMillis();
-        
-        // Update skip factor every 2 seconds based on performance
-        if (currentTime - lastSkipFactorUpdate > SKIP_FACTOR_UPDATE_INTERVAL) {
-            lastSkipFactorUpdate = currentTime;
-            
-            if (averageInferenceTime > 100) {
-                // Slow inference - increase skip factor (must be power of 2)
-                dynamicSkipFactor = Math.min(16, Integer.highestOneBit(dynamicSkipFactor) << 1);
-            } else if (averageInferenceTime < 30) {
-                // Fast inference - decrease skip factor (must be power of 2)
-                dynamicSkipFactor = Math.max(2, Integer.highestOneBit(dynamicSkipFactor) >> 1);
+    private boolean computeRoi(int frameWidth, int frameHeight) {
+        if (!motionGate.getMotionBounds(roiRect, ROI_PADDING)) {
+            return false;
+        }
+
+        int minSide = Math.max(modelInputWidth, modelInputHeight) / 2;
+        int w = Math.min(frameWidth, Math.max(roiRect[2], minSide));
+        int h = Math.min(frameHeight, Math.max(roiRect[3], minSide));
+        if ((float) w * h > ROI_MAX_AREA_FRACTION * frameWidth * frameHeight) {
+            return false;
+        }
+
+        // Grow around the centre of the motion box, then shift back inside the frame
+        int cx = roiRect[0] + roiRect[2] / 2;
+        int cy = roiRect[1] + roiRect[3] / 2;
+        roiRect[0] = Math.max(0, Math.min(frameWidth - w, cx - w / 2));
+        roiRect[1] = Math.max(0, Math.min(frameHeight - h, cy - h / 2));
+        roiRect[2] = w;
+        roiRect[3] = h;
+        return true;
+    }
+
+    /**
+     * Enable or disable cropping inference to the moving region.
+     * Only has an effect while motion gating is enabled.
+     *
+     * @param enabled true to crop to the motion mask when it covers a small part of the frame
+     */
+    public void setRoiCroppingEnabled(boolean enabled) {
+        this.roiCroppingEnabled = enabled;
+        Log.d(TAG, "ROI cropping " + (enabled ? "enabled" : "disabled"));
+    }
+
+    public boolean isRoiCroppingEnabled() {
+        return roiCroppingEnabled;
+    }
+
+    /**
+     * Enable or disable the motion pre-filter. When disabled every queued frame is inferred.
+     *
+     * @param enabled true to only run inference on motion (plus keep-alive)
+     */
+    public void setMotionGatingEnabled(boolean enabled) {
+        this.motionGatingEnabled = enabled;
+        Log.d(TAG, "Motion gating " + (enabled ? "enabled" : "disabled"));
+    }
+
+    public boolean isMotionGatingEnabled() {
+        return motionGatingEnabled;
+    }
+
+    /**
+     * Set the changed-area fraction needed before inference runs.
+     *
+     * @param fraction fraction of the frame (0-1), e.g. 0.01 for 1%
+     */
+    public void setMotionAreaThreshold(float fraction) {
+        motionGate.setAreaThreshold(fraction);
+    }
+
+    /**
+     * Set the longest time between inferences while the scene is static.
+     *
+     * @param milliseconds keep-alive interval in milliseconds
+     */
+    public void setMotionKeepAliveInterval(long milliseconds) {
+        motionGate.setKeepAliveInterval(milliseconds);
+    }
+
+    /**
+     * Fraction of frames for which the motion gate skipped inference.
+     */
+    public float getMotionSkippedFraction() {
+        return motionGate.getSkippedFraction();
+    }
+
+    /**
+     * Frames skipped by the rate limiter or gated out before inference.
+     */
+    public long getFramesDropped() {
+        return framesDropped.get();
+    }
+
+    /**
+     * Frames replaced in the mailbox by a newer frame before the worker reached them.
+     */
+    public long getFramesOverwritten() {
+        return frameMailbox.getOverwrittenCount();
+    }
+
+    /**
+     * Frames that reached the preprocessing and inference stage.
+     */
+    public long getFramesProcessed() {
+        return framesProcessedCount.get();
+    }
+
+    /**
+     * Set how many detections per second to run when nothing has been detected recently.
+     * The rate is boosted after a detection and decays during long quiet periods.
+     *
+     * @param detectionsPerSecond target detection rate
+     */
+    public void setTargetDetectionRate(float detectionsPerSecond) {
+        frameRateController.setTargetRate(detectionsPerSecond);
+        Log.d(TAG, "Target detection rate set to " + detectionsPerSecond + "/s");
+    }
+
+    public float getTargetDetectionRate() {
+        return frameRateController.getTargetRate();
+    }
+
+    /**
+     * Detection rate currently chosen by the frame-rate controller, in frames per second.
+     */
+    public float getCurrentDetectionRate() {
+        return frameRateController.getCurrentRate();
+    }
+
+    /**
+     * Slow detection down while the device is hot (Android 10+).
+     */
+    private void registerThermalListener() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
+            return;
+        }
+        PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        if (powerManager == null) {
+            return;
+        }
+        PowerManager.OnThermalStatusChangedListener listener = status -> {
+            float scale;
+            if (status >= PowerManager.THERMAL_STATUS_CRITICAL) {
+                scale = 0.25f;
+            } else if (status >= PowerManager.THERMAL_STATUS_SEVERE) {
+                scale = 0.5f;
+            } else if (status >= PowerManager.THERMAL_STATUS_MODERATE) {
+                scale = 0.75f;
+            } else {
+                scale = 1f;
             }
-            // Keep current skip factor if performance is acceptable (30-100ms)
+            frameRateController.setThermalScale(scale);
+            Log.d(TAG, "Thermal status " + status + " - detection rate scale " + scale);
+        };
+        powerManager.addThermalStatusListener(listener);
+        thermalStatusListener = listener;
+    }
+
+    private void unregisterThermalListener() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q || thermalStatusListener == null) {
+            return;
         }
-        
-        // Ensure skip factor is always a power of 2 for efficient bitwise operations
-        return Integer.highestOneBit(dynamicSkipFactor);
+        PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        if (powerManager != null) {
+            powerManager.removeThermalStatusListener((PowerManager.OnThermalStatusChangedListener) thermalStatusListener);
+        }
+        thermalStatusListener = null;
     }
-    
+
     /**
      * Optimized person detection method with enhanced performance tracking
      */
-    private void detectPersonOptimized(Bitmap bitmap, long frameStartTime) {
-        if (!isRunning.get() || isInLatencyPeriod.get() || bitmap == null || bitmap.isRecycled()) {
-            ImageUtils.safeRecycleBitmap(bitmap);
+    private void detectPersonOptimized(Interpreter tflite, ByteBuffer inputBuffer, int frameWidth, int frameHeight,
+                                       long captureTimestampNs) {
+        if (!isRunning.get() || isInLatencyPeriod.get() || inputBuffer == null) {
             return;
         }
 
@@ -602,68 +930,86 @@ public class PersonDetection implements VideoSink {
             // Verify model availability
             if (tflite == null) {
                 Log.e(TAG, "TensorFlow Lite interpreter is null");
-                ImageUtils.safeRecycleBitmap(bitmap);
                 return;
             }
 
             // Use cached model dimensions for maximum efficiency
             int inputWidth = modelInputWidth;
-            int inputHeight = modelInputHeight;            // Optimized input preparation - use CHW format for YOLOv8
-            ByteBuffer inputBuffer = ImageUtils.bitmapToByteBufferCHW(bitmap, inputWidth, inputHeight, 0f, 1f);
-            if (inputBuffer == null) {
-                ImageUtils.safeRecycleBitmap(bitmap);
+            int inputHeight = modelInputHeight;
+
+            // Reuse the detector-owned buffers; nothing is allocated per inference
+            if (outputBuffer == null) {
                 return;
             }
-
-            // Pre-allocated output tensor using cached shape
-            float[][][] output = createOutputTensor();
-            if (output == null) {
-                ImageUtils.safeRecycleBitmap(bitmap);
+            // Wait for the process-wide inference budget shared with other cameras
+            try {
+                scheduler.acquireInferencePermit(this);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
                 return;
-            }            // Run inference with performance tracking
+            }
+
+            inputBuffer.rewind();
+            outputBuffer.rewind();
+            inferenceInputs[0] = inputBuffer;
+
+            // Run inference with performance tracking
             long inferenceStartTime = System.currentTimeMillis();
-            Log.d(TAG, "Running inference on " + inputWidth + "x" + inputHeight + " input");
+            if (LOG_FRAME_DETAILS) {
+                Log.d(TAG, "Running inference on " + inputWidth + "x" + inputHeight + " input");
+            }
             try {
-                tflite.run(inputBuffer, output);
-                Log.d(TAG, "Inference successful");
+                tflite.runForMultipleInputsOutputs(inferenceInputs, inferenceOutputs);
             } catch (Exception e) {
                 Log.e(TAG, "Inference error: " + e.getMessage(), e);
-                ImageUtils.safeRecycleBitmap(bitmap);
                 return;
             }
             
             long inferenceDuration = System.currentTimeMillis() - inferenceStartTime;
-            Log.d(TAG, "Inference completed in " + inferenceDuration + "ms");
+            if (LOG_FRAME_DETAILS) {
+                Log.d(TAG, "Inference completed in " + inferenceDuration + "ms");
+            }
             updatePerformanceMetrics(inferenceDuration);
 
             // Process results efficiently
-            Log.d(TAG, "Processing detection results...");
-            processDetectionResultsOptimized(output, bitmap, inputWidth, inputHeight);
+            if (LOG_FRAME_DETAILS) {
+                Log.d(TAG, "Processing detection results...");
+            }
+            boolean detected = processDetectionResultsOptimized(frameWidth, frameHeight);
+            recordProfileStats(inferenceDuration, detected);
+
+            // WebRTC capture timestamps use the monotonic clock, so this covers queueing and preprocessing too
+            long endToEndMs = (System.nanoTime() - captureTimestampNs) / 1_000_000;
+            if (endToEndMs <= 0 || endToEndMs > MAX_PLAUSIBLE_LATENCY_MS) {
+                endToEndMs = inferenceDuration;
+            }
+            frameRateController.onFrameCompleted(SystemClock.elapsedRealtime(), endToEndMs);
 
         } catch (Exception e) {
             Log.e(TAG, "Detection error: " + e.getMessage(), e);
-            if (bitmap != null && !bitmap.isRecycled()) {
-                ImageUtils.safeRecycleBitmap(bitmap);
-            }
         }
     }
     
     /**
-     * Create pre-allocated output tensor for best performance
+     * Allocate the flat native-order output buffer once for the cached output shape
      */
-    private float[][][] createOutputTensor() {
+    private void allocateOutputBuffer() {
+        outputBuffer = null;
+        outputView = null;
+        inferenceOutputs.clear();
         try {
             if (cachedOutputShape != null && cachedOutputShape.length == 3) {
-                if (cachedOutputShape[1] == 84) {
-                    return new float[cachedOutputShape[0]][cachedOutputShape[1]][cachedOutputShape[2]]; // [1, 84, 8400]
-                } else {
-                    return new float[cachedOutputShape[0]][cachedOutputShape[2]][cachedOutputShape[1]]; // [1, 8400, 84] -> transpose
-                }
+                int floats = cachedOutputShape[0] * cachedOutputShape[1] * cachedOutputShape[2];
+                outputBuffer = ByteBuffer.allocateDirect(floats * 4);
+                outputBuffer.order(ByteOrder.nativeOrder());
+                outputView = outputBuffer.asFloatBuffer();
+                inferenceOutputs.put(0, outputBuffer);
+            } else {
+                Log.e(TAG, "Unexpected output shape: " + Arrays.toString(cachedOutputShape));
             }
         } catch (Exception e) {
             Log.e(TAG, "Error creating output tensor: " + e.getMessage());
         }
-        return null;
     }
       /**
      * Lightweight performance metrics update
@@ -683,210 +1029,124 @@ public class PersonDetection implements VideoSink {
         if (inferenceDuration > 200 && processedFrameCount % 10 == 0) {
             Log.d(TAG, "Slow inference: " + inferenceDuration + "ms (avg: " + averageInferenceTime + "ms)");
         }
-    }private void detectPerson(Bitmap bitmap) {
-        if (!isRunning.get() || isInLatencyPeriod.get() || bitmap == null || bitmap.isRecycled()) {
-            if (bitmap != null && !bitmap.isRecycled()) {
-                // Return bitmap to pool instead of recycling
-                ImageUtils.safeRecycleBitmap(bitmap);
-            }
-            return;
-        }
-
+    } /**
+     * Decode the flat output tensor with NMS and map person boxes back to frame pixels
+     *
+     * @return true if a person was detected in this frame
+     */
+    private boolean processDetectionResultsOptimized(int frameWidth, int frameHeight) {
         try {
-            // Verify model is still loaded
-            if (tflite == null) {
-                Log.e(TAG, "TensorFlow Lite interpreter is null");
-                ImageUtils.safeRecycleBitmap(bitmap);
-                return;
-            }
+            // [1, 84, N] keeps each channel contiguous, [1, N, 84] keeps each anchor contiguous
+            boolean channelsFirst = cachedOutputShape[1] < cachedOutputShape[2];
+            int numChannels = channelsFirst ? cachedOutputShape[1] : cachedOutputShape[2];
+            int numAnchors = channelsFirst ? cachedOutputShape[2] : cachedOutputShape[1];
 
-            // Use cached model input shape if available for better performance
-            int inputWidth = modelInputWidth;
-            int inputHeight = modelInputHeight;            // Prepare input tensor with proper error handling
-            ByteBuffer inputBuffer;
-            try {
-                // Use CHW format conversion for YOLOv8 compatibility
-                inputBuffer = ImageUtils.bitmapToByteBufferCHW(bitmap, inputWidth, inputHeight, 0f, 1f);
-                if (inputBuffer == null) {
-                    Log.e(TAG, "Failed to convert bitmap to ByteBuffer");
-                    ImageUtils.safeRecycleBitmap(bitmap);
-                    return;
-                }
-            } catch (Exception e) {
-                Log.e(TAG, "Error converting bitmap to ByteBuffer: " + e.getMessage());
-                ImageUtils.safeRecycleBitmap(bitmap);
-                return;
-            }
+            int decoded = decoder.decode(outputView, numChannels, numAnchors, channelsFirst,
+                    modelInputWidth, modelInputHeight, CONFIDENCE_THRESHOLD, NMS_IOU_THRESHOLD);
+            float maxPersonConfidence = decoder.getMaxScore();
 
-            // Use cached output shape information if available
-            // For YOLOv8, output shape is typically [1, 84, 8400] or [1, 8400, 84]
-            float[][][] output;
-            try {
-                if (cachedOutputShape.length == 3) {
-                    if (cachedOutputShape[1] == 84) {
-                        output = new float[cachedOutputShape[0]][cachedOutputShape[1]][cachedOutputShape[2]]; // [1, 84, 8400]
-                    } else {
-                        output = new float[cachedOutputShape[0]][cachedOutputShape[2]][cachedOutputShape[1]]; // [1, 8400, 84] -> transpose
+            // Undo the letterbox and clip to the frame; boxes may spill into the padding
+            int detectionCount = 0;
+            for (int i = 0; i < decoded; i++) {
+                float left = Math.max(0f, preprocessor.toSourceX(decoder.getLeft(i)));
+                float top = Math.max(0f, preprocessor.toSourceY(decoder.getTop(i)));
+                float right = Math.min(frameWidth, preprocessor.toSourceX(decoder.getRight(i)));
+                float bottom = Math.min(frameHeight, preprocessor.toSourceY(decoder.getBottom(i)));
+
+                if (right > left && bottom > top) {
+                    int base = detectionCount * 4;
+                    personBoxes[base] = left;
+                    personBoxes[base + 1] = top;
+                    personBoxes[base + 2] = right;
+                    personBoxes[base + 3] = bottom;
+                    detectionCount++;
+                    if (LOG_FRAME_DETAILS) {
+                        Log.d(TAG, "Person detected with confidence: " + decoder.getScore(i) +
+                                " at [" + left + "," + top + "," + right + "," + bottom + "]");
                     }
-                } else {
-                    Log.e(TAG, "Unexpected cached output shape: " + Arrays.toString(cachedOutputShape));
-                    ImageUtils.safeRecycleBitmap(bitmap);
-                    return;
+                } else if (LOG_FRAME_DETAILS) {
+                    Log.w(TAG, "Invalid bounding box detected");
                 }
-            } catch (Exception e) {
-                Log.e(TAG, "Error preparing output tensor: " + e.getMessage());
-                ImageUtils.safeRecycleBitmap(bitmap);
-                return;
             }
+            personBoxCount = detectionCount;
 
-            // Run inference with timing for performance monitoring
-            long inferenceStartTime = System.currentTimeMillis();
-            try {
-                tflite.run(inputBuffer, output);
-            } catch (Exception e) {
-                Log.e(TAG, "Error during model inference: " + e.getMessage());
-                ImageUtils.safeRecycleBitmap(bitmap);
-                return;
+            if (LOG_FRAME_DETAILS) {
+                Log.d(TAG, "Detection results - Anchors: " + numAnchors + ", Count after NMS: " + detectionCount +
+                          ", Max person confidence: " + maxPersonConfidence + ", Threshold: " + CONFIDENCE_THRESHOLD);
             }
-            long inferenceDuration = System.currentTimeMillis() - inferenceStartTime;
-            if (inferenceDuration > 100) {
-                Log.d(TAG, "Slow inference: " + inferenceDuration + "ms");
-            }            // Process results
-            processDetectionResultsOptimized(output, bitmap, inputWidth, inputHeight);
 
-        } catch (Exception e) {
-            Log.e(TAG, "Detection error: " + e.getMessage(), e);
-            if (bitmap != null && !bitmap.isRecycled()) {
-                ImageUtils.safeRecycleBitmap(bitmap);
+            // Additional debugging - check if we're getting any meaningful values
+            if (LOG_FRAME_DETAILS) {
+                if (maxPersonConfidence < 0.01f) {
+                    Log.w(TAG, "Very low confidence values detected - possible model input/preprocessing issue");
+                } else if (detectionCount == 0) {
+                    Log.i(TAG, "Model is working (max confidence: " + maxPersonConfidence + ") but below threshold (" + CONFIDENCE_THRESHOLD + ")");
+                }
             }
-        }
-    }    /**
-     * Highly optimized detection result processing
-     */
-    private void processDetectionResultsOptimized(float[][][] output, Bitmap bitmap, int inputWidth, int inputHeight) {
-        try {
-            boolean personDetected = false;
-            int detectionCount = 0;
 
-            // Log output shape for debugging
-            Log.d(TAG, "Output shape: [" + output.length + ", " + output[0].length + ", " + output[0][0].length + "]");
-            
-            // Determine the correct output format based on shape
-            int numDetections;
-            boolean isTransposed = false;
-            
-            if (output[0].length == 84 && output[0][0].length > 1000) {
-                // Format: [1, 84, 8400] - coordinates are in rows
-                numDetections = output[0][0].length; // 8400 detections
-                isTransposed = false;
-                Log.d(TAG, "Using format [1, 84, 8400] with " + numDetections + " detections");
-            } else if (output[0].length > 1000 && output[0][0].length == 84) {
-                // Format: [1, 8400, 84] - coordinates are in columns
-                numDetections = output[0].length; // 8400 detections
-                isTransposed = true;
-                Log.d(TAG, "Using format [1, 8400, 84] with " + numDetections + " detections");
+            // Tracks must outlive the pause that follows a reported detection
+            long now = SystemClock.elapsedRealtime();
+            if (trackerResetPending) {
+                trackerResetPending = false;
+                tracker.reset();
+            }
+            tracker.setMaxAge(detectionLatency + TRACK_GRACE_MS);
+            int entered;
+            if (preprocessor.getCropWidth() < frameWidth || preprocessor.getCropHeight() < frameHeight) {
+                // An ROI inference says nothing about people outside the crop, so only age tracks inside it
+                int cropX = preprocessor.getCropX();
+                int cropY = preprocessor.getCropY();
+                entered = tracker.update(personBoxes, detectionCount, now, cropX, cropY,
+                        cropX + preprocessor.getCropWidth(), cropY + preprocessor.getCropHeight());
             } else {
-                Log.e(TAG, "Unexpected output format: [" + output.length + ", " + output[0].length + ", " + output[0][0].length + "]");
-                ImageUtils.safeRecycleBitmap(bitmap);
-                return;
+                entered = tracker.update(personBoxes, detectionCount, now);
             }
-            
-            // Pre-calculate scaling factors
-            float xScale = (float) bitmap.getWidth() / inputWidth;
-            float yScale = (float) bitmap.getHeight() / inputHeight;
-            
-            // Optimized detection loop with minimal object creation
-            int maxLoggedDetections = Math.min(20, numDetections); // Log first 20 for debugging
-            float maxPersonConfidence = 0f;
-            
-            for (int i = 0; i < numDetections && detectionCount < 10; i++) { // Limit to first 10 detections for performance
-                float x, y, w, h, personConfidence;
-                
-                if (isTransposed) {
-                    // Format: [1, 8400, 84] - each detection is a row
-                    x = output[0][i][0]; // center x
-                    y = output[0][i][1]; // center y
-                    w = output[0][i][2]; // width
-                    h = output[0][i][3]; // height
-                    personConfidence = output[0][i][4]; // Person class confidence (index 0 in COCO + 4 coordinates)
-                } else {
-                    // Format: [1, 84, 8400] - coordinates are in separate rows
-                    x = output[0][0][i]; // center x
-                    y = output[0][1][i]; // center y
-                    w = output[0][2][i]; // width
-                    h = output[0][3][i]; // height
-                    personConfidence = output[0][4][i]; // Person class confidence
-                }
-                
-                // Track max confidence for debugging
-                if (personConfidence > maxPersonConfidence) {
-                    maxPersonConfidence = personConfidence;
-                }
-                
-                // Log first few detections for debugging
-                if (i < maxLoggedDetections) {
-                    Log.v(TAG, "Detection " + i + ": conf=" + personConfidence + ", bbox=[" + x + "," + y + "," + w + "," + h + "]");
-                }
-                
-                if (personConfidence > CONFIDENCE_THRESHOLD) {
-                    personDetected = true;
-                    detectionCount++;
-                    
-                    Log.d(TAG, "Person detected with confidence: " + personConfidence + " at [" + x + "," + y + "," + w + "," + h + "]");
-
-                    // Minimal bounding box calculation (no object creation for performance)
-                    // Convert from normalized coordinates to pixel coordinates
-                    float left = (x - w/2) * xScale;
-                    float top = (y - h/2) * yScale;
-                    float right = (x + w/2) * xScale;
-                    float bottom = (y + h/2) * yScale;
-
-                    // Basic sanity check for valid bounding box
-                    if (left >= 0 && top >= 0 && right <= bitmap.getWidth() && bottom <= bitmap.getHeight()) {
-                        Log.d(TAG, "Valid person detection: confidence=" + personConfidence + 
-                             ", bbox=[" + left + "," + top + "," + right + "," + bottom + "]");
-                    } else {
-                        Log.w(TAG, "Invalid bounding box detected");
-                        detectionCount--; // Don't count invalid detections
-                    }
-                }
-            }            Log.d(TAG, "Detection results - Person detected: " + personDetected + ", Count: " + detectionCount + 
-                      ", Max person confidence: " + maxPersonConfidence + ", Threshold: " + CONFIDENCE_THRESHOLD);
 
-            // Additional debugging - check if we're getting any meaningful values
-            if (maxPersonConfidence < 0.01f) {
-                Log.w(TAG, "Very low confidence values detected - possible model input/preprocessing issue");
-                // Log first few raw values for debugging
-                for (int i = 0; i < Math.min(5, numDetections); i++) {
-                    if (isTransposed) {
-                        Log.d(TAG, "Raw detection " + i + ": [" + output[0][i][0] + ", " + output[0][i][1] + 
-                              ", " + output[0][i][2] + ", " + output[0][i][3] + ", " + output[0][i][4] + "]");
-                    } else {
-                        Log.d(TAG, "Raw detection " + i + ": [" + output[0][0][i] + ", " + output[0][1][i] + 
-                              ", " + output[0][2][i] + ", " + output[0][3][i] + ", " + output[0][4][i] + "]");
-                    }
+            if (detectionCount > 0) {
+                motionGate.notifyDetection(System.currentTimeMillis());
+                // Only unconfirmed or new people need the boosted rate; known tracks run at the normal rate
+                if (entered > 0 || tracker.getTentativeCount() > 0) {
+                    frameRateController.onDetection(now);
                 }
-            } else if (maxPersonConfidence > 0.01f && !personDetected) {
-                Log.i(TAG, "Model is working (max confidence: " + maxPersonConfidence + ") but below threshold (" + CONFIDENCE_THRESHOLD + ")");
             }
 
-            if (personDetected && detectionCount > 0) {
-                Log.i(TAG, "Handling person detection with count: " + detectionCount);
-                handlePersonDetectionOptimized(detectionCount, bitmap);
-            } else {
+            if (entered > 0) {
+                // Report people entering, not every frame they are seen in, so the count does not flicker
+                int personCount = tracker.getConfirmedCount();
+                Log.i(TAG, "Handling person detection: " + entered + " entered, " + personCount + " tracked");
+                handlePersonDetectionOptimized(personCount, entered, maxPersonConfidence);
+                return true;
+            } else if (detectionCount > 0) {
+                return true;
+            } else if (LOG_FRAME_DETAILS) {
                 Log.d(TAG, "No valid person detections found (max conf: " + maxPersonConfidence + ")");
-                // Return bitmap to pool immediately
-                ImageUtils.safeRecycleBitmap(bitmap);
             }
 
         } catch (Exception e) {
             Log.e(TAG, "Error processing detection results: " + e.getMessage());
-            ImageUtils.safeRecycleBitmap(bitmap);
+        }
+        return false;
+    }
+
+    /**
+     * Accumulate latency and hit rate for the active input profile
+     */
+    private void recordProfileStats(long inferenceDuration, boolean detected) {
+        ProfileStats stats = profileStats.get(inputProfile);
+        if (stats == null) {
+            stats = new ProfileStats();
+            profileStats.put(inputProfile, stats);
+        }
+        stats.frames++;
+        stats.totalInferenceMs += inferenceDuration;
+        stats.maxInferenceMs = Math.max(stats.maxInferenceMs, inferenceDuration);
+        if (detected) {
+            stats.framesWithPerson++;
         }
     }    /**
      * Optimized person detection handler with minimal overhead
      */
-    private void handlePersonDetectionOptimized(int personCount, Bitmap bitmap) {
+    private void handlePersonDetectionOptimized(int personCount, int enteredCount, float score) {
         lastDetectionTime = System.currentTimeMillis();
         lastDetectedPersonCount = personCount;
         
@@ -897,7 +1157,10 @@ public class PersonDetection implements VideoSink {
             try {
                 Map<String, Object> detectionData = new HashMap<>();
                 detectionData.put("personCount", personCount);
+                detectionData.put("newPersons", enteredCount);
                 detectionData.put("confidence", "high");
+                // Highest box score in the frame, used to weigh the event against sound
+                detectionData.put(DetectionFusion.KEY_SCORE, score);
                 detectionData.put("timestamp", lastDetectionTime);
                 webRTCClient.reportDetectionEvent("person", detectionData);
                 Log.d(TAG, "Person detection reported to WebRTC host");
@@ -959,9 +1222,7 @@ public class PersonDetection implements VideoSink {
         } else {
             Log.d(TAG, "Already in latency period, skipping duplicate detection");
         }
-
-        // Return bitmap to pool
-        ImageUtils.safeRecycleBitmap(bitmap);    }private void handlePersonDetection(List<Detection> detections, Bitmap bitmap) {
+    }private void handlePersonDetection(List<Detection> detections, Bitmap bitmap) {
         lastDetectionTime = System.currentTimeMillis();
 
         // Count the number of persons detected and update the tracker
@@ -1078,6 +1339,24 @@ public class PersonDetection implements VideoSink {
         }
     }
 
+    /**
+     * Per-profile measurements, used to compare latency and hit rate between input sizes
+     */
+    private static class ProfileStats {
+        long frames;
+        long framesWithPerson;
+        long totalInferenceMs;
+        long maxInferenceMs;
+
+        @Override
+        public String toString() {
+            long avg = frames > 0 ? totalInferenceMs / frames : 0;
+            float hitRate = frames > 0 ? (float) framesWithPerson / frames : 0f;
+            return "frames=" + frames + ", avgInference=" + avg + "ms, maxInference=" + maxInferenceMs +
+                    "ms, hitRate=" + String.format(Locale.US, "%.3f", hitRate);
+        }
+    }
+
     private static class Detection {
         String className;
         float confidence;
@@ -1110,26 +1389,41 @@ public class PersonDetection implements VideoSink {
      */
     public void verifyDetectionSystem() {
         Log.i(TAG, "=== PersonDetection System Status ===");
-        Log.i(TAG, "Model loaded: " + isModelLoaded.get());
+        Log.i(TAG, "Model loaded: " + scheduler.isModelLoaded());
         Log.i(TAG, "Detection running: " + isRunning.get());
         Log.i(TAG, "In latency period: " + isInLatencyPeriod.get());
         Log.i(TAG, "Auto recording enabled: " + autoRecordingEnabled);
         Log.i(TAG, "Video recording duration: " + videoRecordingDuration + "ms");
         Log.i(TAG, "Detection latency: " + detectionLatency + "ms");
         Log.i(TAG, "Confidence threshold: " + CONFIDENCE_THRESHOLD);
-        Log.i(TAG, "Dynamic skip factor: " + dynamicSkipFactor);
+        Log.i(TAG, "Detection rate: " + String.format(Locale.US, "%.1f", frameRateController.getCurrentRate()) +
+                "/s (target " + frameRateController.getTargetRate() + "/s), capture " +
+                String.format(Locale.US, "%.1f", frameRateController.getCaptureFps()) + " fps, end-to-end latency " +
+                String.format(Locale.US, "%.0f", frameRateController.getAverageLatencyMs()) + "ms");
         Log.i(TAG, "Currently recording: " + isRecordingVideo.get());
         Log.i(TAG, "Last detection time: " + (System.currentTimeMillis() - lastDetectionTime) + "ms ago");
         Log.i(TAG, "Frames received: " + totalFramesReceived.get());
         Log.i(TAG, "Frames processed: " + framesProcessedCount.get());
+        Log.i(TAG, "Frames dropped: " + framesDropped.get() + ", overwritten in mailbox: " + frameMailbox.getOverwrittenCount());
+        Log.i(TAG, "Motion gating: " + motionGatingEnabled + ", evaluated: " + motionGate.getEvaluatedCount() +
+                ", skipped: " + motionGate.getSkippedCount() + " (" +
+                String.format(Locale.US, "%.1f", motionGate.getSkippedFraction() * 100) + "%)" +
+                ", keep-alive runs: " + motionGate.getKeepAliveCount());
+        Log.i(TAG, "Tracked persons: " + tracker.getConfirmedCount() + " (" + tracker.getTrackCount() + " tracks)");
+        Log.i(TAG, "ROI cropping: " + roiCroppingEnabled + ", cropped inferences: " + roiInferenceCount);
+        Log.i(TAG, "Input profile: " + inputProfile + " (" + modelInputWidth + "x" + modelInputHeight + ")");
+        for (Map.Entry<DetectionInputProfile, ProfileStats> entry : profileStats.entrySet()) {
+            Log.i(TAG, "  " + entry.getKey() + ": " + entry.getValue());
+        }
         
-        if (tflite != null) {
+        if (scheduler.isModelLoaded()) {
             Log.i(TAG, "TensorFlow Lite interpreter: OK");
             Log.i(TAG, "Model input shape: " + Arrays.toString(cachedInputShape));
             Log.i(TAG, "Model output shape: " + Arrays.toString(cachedOutputShape));
         } else {
             Log.e(TAG, "TensorFlow Lite interpreter: NULL");
         }
+        scheduler.logStats();
         
         Log.i(TAG, "===================================");
     }
@@ -0,0 +1,431 @@
+package com.summersoft.heliocam.detection;
+
+/**
+ * Lightweight multi-object tracker for person boxes.
+ *
+ * Each update predicts every track forward with a constant-velocity model, matches
+ * detections to tracks greedily by IoU and falls back to centroid distance for
+ * fast-moving or briefly occluded people. A track becomes confirmed after a few hits
+ * and survives a few missed updates, so a single missed detection does not change the
+ * person count. A track confirming for the first time is reported as a person entering.
+ *
+ * Pure Java; track storage is allocated once and times are passed in by the caller.
+ * Not thread-safe - use it from the detection worker only.
+ */
+public class PersonTracker {
+
+    private final int maxTracks;
+
+    // Track storage, slots [0, trackCount) are live
+    private final int[] id;
+    private final float[] left;
+    private final float[] top;
+    private final float[] right;
+    private final float[] bottom;
+    // Centre velocity in pixels per millisecond
+    private final float[] velX;
+    private final float[] velY;
+    private final int[] hits;
+    private final int[] misses;
+    private final long[] lastSeenMs;
+    private final boolean[] confirmed;
+    private int trackCount = 0;
+    private int nextId = 1;
+
+    // Matching scratch
+    private final int[] detectionTrack;
+    private final boolean[] trackMatched;
+
+    // Ids of tracks that confirmed in the last update
+    private final int[] enteredIds;
+    private int enteredCount = 0;
+
+    private float iouThreshold = 0.3f;
+    // Centroid fallback: distance as a fraction of the larger box diagonal
+    private float maxCentroidDistance = 0.6f;
+    private int minHits = 2;
+    private int maxMisses = 3;
+    private long maxAgeMs = 5000;
+    // Prediction is not extrapolated further than this, so stale velocities do not fling boxes away
+    private long maxPredictMs = 1000;
+    private float boxSmoothing = 0.6f;
+
+    private long lastUpdateMs = Long.MIN_VALUE;
+
+    /**
+     * @param maxTracks maximum number of simultaneously tracked people
+     */
+    public PersonTracker(int maxTracks) {
+        if (maxTracks <= 0) {
+            throw new IllegalArgumentException("maxTracks must be positive");
+        }
+        this.maxTracks = maxTracks;
+        id = new int[maxTracks];
+        left = new float[maxTracks];
+        top = new float[maxTracks];
+        right = new float[maxTracks];
+        bottom = new float[maxTracks];
+        velX = new float[maxTracks];
+        velY = new float[maxTracks];
+        hits = new int[maxTracks];
+        misses = new int[maxTracks];
+        lastSeenMs = new long[maxTracks];
+        confirmed = new boolean[maxTracks];
+        trackMatched = new boolean[maxTracks];
+        detectionTrack = new int[maxTracks];
+        enteredIds = new int[maxTracks];
+    }
+
+    /**
+     * Feed the detections of one inference that covered the whole frame.
+     *
+     * @param boxes boxes packed as {left, top, right, bottom} per detection
+     * @param count number of boxes in the array
+     * @param nowMs time of the frame the boxes came from
+     * @return number of people that entered (tracks confirmed in this update)
+     */
+    public int update(float[] boxes, int count, long nowMs) {
+        return update(boxes, count, nowMs, -Float.MAX_VALUE, -Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE);
+    }
+
+    /**
+     * Feed the detections of one inference that only looked at part of the frame, e.g. a
+     * crop around motion. Unmatched tracks are only aged if at least half of their predicted
+     * box lies in that region; people outside it were not looked for, so they are not missed.
+     *
+     * @param boxes        boxes packed as {left, top, right, bottom} per detection
+     * @param count        number of boxes in the array
+     * @param nowMs        time of the frame the boxes came from
+     * @param regionLeft   left edge of the inferred region, in box coordinates
+     * @param regionTop    top edge of the inferred region
+     * @param regionRight  right edge of the inferred region
+     * @param regionBottom bottom edge of the inferred region
+     * @return number of people that entered (tracks confirmed in this update)
+     */
+    public int update(float[] boxes, int count, long nowMs,
+                      float regionLeft, float regionTop, float regionRight, float regionBottom) {
+        enteredCount = 0;
+        count = Math.min(count, maxTracks);
+
+        predictTo(nowMs);
+
+        for (int t = 0; t < trackCount; t++) {
+            trackMatched[t] = false;
+        }
+        for (int d = 0; d < count; d++) {
+            detectionTrack[d] = -1;
+        }
+
+        matchByIou(boxes, count);
+        matchByCentroid(boxes, count);
+
+        for (int d = 0; d < count; d++) {
+            int t = detectionTrack[d];
+            if (t >= 0) {
+                correctTrack(t, boxes, d * 4, nowMs);
+            }
+        }
+
+        // Age out unmatched tracks the inference could have seen, compacting the live slots
+        int write = 0;
+        for (int t = 0; t < trackCount; t++) {
+            if (!trackMatched[t] && inRegion(t, regionLeft, regionTop, regionRight, regionBottom)) {
+                misses[t]++;
+                boolean expired = misses[t] > maxMisses || nowMs - lastSeenMs[t] > maxAgeMs;
+                // Tentative tracks are dropped on their first miss
+                if (expired || !confirmed[t]) {
+                    continue;
+                }
+            }
+            if (write != t) {
+                moveTrack(t, write);
+            }
+            write++;
+        }
+        trackCount = write;
+
+        // Unmatched detections start new tentative tracks
+        for (int d = 0; d < count && trackCount < maxTracks; d++) {
+            if (detectionTrack[d] < 0) {
+                startTrack(boxes, d * 4, nowMs);
+            }
+        }
+
+        lastUpdateMs = nowMs;
+        return enteredCount;
+    }
+
+    /**
+     * Move all tracks forward to the given time without a detection, e.g. to draw
+     * interpolated boxes between inferences.
+     */
+    public void predictTo(long nowMs) {
+        if (lastUpdateMs == Long.MIN_VALUE) {
+            lastUpdateMs = nowMs;
+            return;
+        }
+        long dt = Math.min(maxPredictMs, Math.max(0, nowMs - lastUpdateMs));
+        if (dt == 0) {
+            return;
+        }
+        for (int t = 0; t < trackCount; t++) {
+            float dx = velX[t] * dt;
+            float dy = velY[t] * dt;
+            left[t] += dx;
+            right[t] += dx;
+            top[t] += dy;
+            bottom[t] += dy;
+        }
+        lastUpdateMs = nowMs;
+    }
+
+    private void matchByIou(float[] boxes, int count) {
+        // Repeatedly take the best remaining pair; counts are tiny so O(n^2) per pass is fine
+        while (true) {
+            float best = iouThreshold;
+            int bestTrack = -1;
+            int bestDet = -1;
+            for (int d = 0; d < count; d++) {
+                if (detectionTrack[d] >= 0) {
+                    continue;
+                }
+                int b = d * 4;
+                for (int t = 0; t < trackCount; t++) {
+                    if (trackMatched[t]) {
+                        continue;
+                    }
+                    float iou = iou(t, boxes[b], boxes[b + 1], boxes[b + 2], boxes[b + 3]);
+                    if (iou > best) {
+                        best = iou;
+                        bestTrack = t;
+                        bestDet = d;
+                    }
+                }
+            }
+            if (bestTrack < 0) {
+                return;
+            }
+            detectionTrack[bestDet] = bestTrack;
+            trackMatched[bestTrack] = true;
+        }
+    }
+
+    private void matchByCentroid(float[] boxes, int count) {
+        while (true) {
+            float best = Float.MAX_VALUE;
+            int bestTrack = -1;
+            int bestDet = -1;
+            for (int d = 0; d < count; d++) {
+                if (detectionTrack[d] >= 0) {
+                    continue;
+                }
+                int b = d * 4;
+                float cx = (boxes[b] + boxes[b + 2]) * 0.5f;
+                float cy = (boxes[b + 1] + boxes[b + 3]) * 0.5f;
+                float detDiag = diagonal(boxes[b + 2] - boxes[b], boxes[b + 3] - boxes[b + 1]);
+                for (int t = 0; t < trackCount; t++) {
+                    if (trackMatched[t]) {
+                        continue;
+                    }
+                    float dx = cx - (left[t] + right[t]) * 0.5f;
+                    float dy = cy - (top[t] + bottom[t]) * 0.5f;
+                    float dist = (float) Math.sqrt(dx * dx + dy * dy);
+                    float limit = maxCentroidDistance
+                            * Math.max(detDiag, diagonal(right[t] - left[t], bottom[t] - top[t]));
+                    if (dist <= limit && dist < best) {
+                        best = dist;
+                        bestTrack = t;
+                        bestDet = d;
+                    }
+                }
+            }
+            if (bestTrack < 0) {
+                return;
+            }
+            detectionTrack[bestDet] = bestTrack;
+            trackMatched[bestTrack] = true;
+        }
+    }
+
+    private void correctTrack(int t, float[] boxes, int b, long nowMs) {
+        float oldCx = (left[t] + right[t]) * 0.5f;
+        float oldCy = (top[t] + bottom[t]) * 0.5f;
+
+        float a = boxSmoothing;
+        left[t] += a * (boxes[b] - left[t]);
+        top[t] += a * (boxes[b + 1] - top[t]);
+        right[t] += a * (boxes[b + 2] - right[t]);
+        bottom[t] += a * (boxes[b + 3] - bottom[t]);
+
+        long dt = nowMs - lastSeenMs[t];
+        if (dt > 0) {
+            // The prediction already moved the box, so the residual corrects the velocity
+            float residualX = (left[t] + right[t]) * 0.5f - oldCx;
+            float residualY = (top[t] + bottom[t]) * 0.5f - oldCy;
+            velX[t] += 0.5f * residualX / dt;
+            velY[t] += 0.5f * residualY / dt;
+        }
+
+        hits[t]++;
+        misses[t] = 0;
+        lastSeenMs[t] = nowMs;
+        if (!confirmed[t] && hits[t] >= minHits) {
+            confirmed[t] = true;
+            enteredIds[enteredCount++] = id[t];
+        }
+    }
+
+    private void startTrack(float[] boxes, int b, long nowMs) {
+        int t = trackCount++;
+        id[t] = nextId++;
+        left[t] = boxes[b];
+        top[t] = boxes[b + 1];
+        right[t] = boxes[b + 2];
+        bottom[t] = boxes[b + 3];
+        velX[t] = 0f;
+        velY[t] = 0f;
+        hits[t] = 1;
+        misses[t] = 0;
+        lastSeenMs[t] = nowMs;
+        confirmed[t] = false;
+        if (minHits <= 1) {
+            confirmed[t] = true;
+            enteredIds[enteredCount++] = id[t];
+        }
+    }
+
+    private void moveTrack(int from, int to) {
+        id[to] = id[from];
+        left[to] = left[from];
+        top[to] = top[from];
+        right[to] = right[from];
+        bottom[to] = bottom[from];
+        velX[to] = velX[from];
+        velY[to] = velY[from];
+        hits[to] = hits[from];
+        misses[to] = misses[from];
+        lastSeenMs[to] = lastSeenMs[from];
+        confirmed[to] = confirmed[from];
+        trackMatched[to] = trackMatched[from];
+    }
+
+    private float iou(int t, float l, float tp, float r, float b) {
+        float iw = Math.min(right[t], r) - Math.max(left[t], l);
+        float ih = Math.min(bottom[t], b) - Math.max(top[t], tp);
+        if (iw <= 0f || ih <= 0f) {
+            return 0f;
+        }
+        float inter = iw * ih;
+        float union = (right[t] - left[t]) * (bottom[t] - top[t]) + (r - l) * (b - tp) - inter;
+        return union > 0f ? inter / union : 0f;
+    }
+
+    private boolean inRegion(int t, float regionLeft, float regionTop, float regionRight, float regionBottom) {
+        float iw = Math.min(right[t], regionRight) - Math.max(left[t], regionLeft);
+        float ih = Math.min(bottom[t], regionBottom) - Math.max(top[t], regionTop);
+        if (iw <= 0f || ih <= 0f) {
+            return false;
+        }
+        float area = (right[t] - left[t]) * (bottom[t] - top[t]);
+        return iw * ih >= 0.5f * area;
+    }
+
+    private static float diagonal(float w, float h) {
+        return (float) Math.sqrt(w * w + h * h);
+    }
+
+    /**
+     * Drop all tracks, e.g. when detection restarts after a pause.
+     */
+    public void reset() {
+        trackCount = 0;
+        enteredCount = 0;
+        lastUpdateMs = Long.MIN_VALUE;
+    }
+
+    /**
+     * Number of confirmed people currently tracked - the stable person count.
+     */
+    public int getConfirmedCount() {
+        int n = 0;
+        for (int t = 0; t < trackCount; t++) {
+            if (confirmed[t]) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Number of tracks seen once but not confirmed yet.
+     */
+    public int getTentativeCount() {
+        return trackCount - getConfirmedCount();
+    }
+
+    public int getTrackCount() {
+        return trackCount;
+    }
+
+    public int getTrackId(int i) {
+        return id[i];
+    }
+
+    public boolean isConfirmed(int i) {
+        return confirmed[i];
+    }
+
+    public float getLeft(int i) {
+        return left[i];
+    }
+
+    public float getTop(int i) {
+        return top[i];
+    }
+
+    public float getRight(int i) {
+        return right[i];
+    }
+
+    public float getBottom(int i) {
+        return bottom[i];
+    }
+
+    /** Number of people that entered in the last update. */
+    public int getEnteredCount() {
+        return enteredCount;
+    }
+
+    /** Track id of the i-th person that entered in the last update. */
+    public int getEnteredId(int i) {
+        return enteredIds[i];
+    }
+
+    /**
+     * @param minHits detections needed before a track counts as a person
+     */
+    public void setMinHits(int minHits) {
+        this.minHits = Math.max(1, minHits);
+    }
+
+    /**
+     * @param maxMisses consecutive updates without a match before a confirmed track is dropped
+     */
+    public void setMaxMisses(int maxMisses) {
+        this.maxMisses = Math.max(0, maxMisses);
+    }
+
+    /**
+     * @param maxAgeMs time without a match before a confirmed track is dropped
+     */
+    public void setMaxAge(long maxAgeMs) {
+        this.maxAgeMs = Math.max(0, maxAgeMs);
+    }
+
+    /**
+     * @param iouThreshold minimum IoU between a prediction and a detection to match them
+     */
+    public void setIouThreshold(float iouThreshold) {
+        this.iouThreshold = Math.max(0f, Math.min(1f, iouThreshold));
+    }
+}
@@ -0,0 +1,214 @@
+package com.summersoft.heliocam.detection;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.documentfile.provider.DocumentFile;
+
+import com.summersoft.heliocam.utils.AudioClipEncoder;
+import com.summersoft.heliocam.utils.DetectionDirectoryManager;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the last few seconds of microphone audio and saves a clip around each sound event.
+ *
+ * Every captured buffer goes through {@link #onSamples}, which only copies it into a fixed
+ * ring. A clip request waits until the post-event audio has arrived, is then copied out of
+ * the ring and encoded to AAC on a background thread, so the audio thread never blocks on
+ * the encoder or on storage. Clips go to the sound detection directory, or to app storage
+ * when no directory has been picked.
+ *
+ * {@link #onSamples}, {@link #requestClip} and {@link #flush} must not be called concurrently.
+ */
+public class SoundClipRecorder {
+    private static final String TAG = "SoundClipRecorder";
+    private static final String CLIP_PREFIX = "Sound_Clip";
+    private static final String FALLBACK_SUBDIR = "Sound_Detections";
+    private static final int RING_SECONDS = 10;
+    private static final int MAX_PENDING = 4;
+
+    private final Context context;
+    private final DetectionDirectoryManager directoryManager;
+    private final int sampleRate;
+    private final PcmRingBuffer ring;
+    private final int preSamples;
+    private final int postSamples;
+
+    // Clips waiting for their post-event audio; guarded by the caller, see class comment
+    private final long[] pendingTrigger = new long[MAX_PENDING];
+    private final String[] pendingName = new String[MAX_PENDING];
+    private int pendingCount = 0;
+
+    private final ThreadPoolExecutor encoder;
+
+    /**
+     * @param preMs  audio kept before the trigger
+     * @param postMs audio kept after the trigger
+     */
+    public SoundClipRecorder(Context context, DetectionDirectoryManager directoryManager,
+                             int sampleRate, int preMs, int postMs) {
+        this.context = context.getApplicationContext();
+        this.directoryManager = directoryManager;
+        this.sampleRate = sampleRate;
+        this.preSamples = (int) ((long) sampleRate * preMs / 1000);
+        this.postSamples = (int) ((long) sampleRate * postMs / 1000);
+        int capacity = Math.max(sampleRate * RING_SECONDS, preSamples + postSamples + sampleRate);
+        this.ring = new PcmRingBuffer(capacity);
+
+        encoder = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread t = new Thread(r, "SoundClip-Encoder");
+            t.setDaemon(true);
+            return t;
+        });
+        encoder.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Append captured audio and hand off any clip whose post-event audio is now complete.
+     */
+    public void onSamples(short[] samples, int offset, int length) {
+        ring.write(samples, offset, length);
+        submitReady();
+    }
+
+    private void submitReady() {
+        long written = ring.getTotalWritten();
+        for (int i = 0; i < pendingCount; ) {
+            if (written >= pendingTrigger[i] + postSamples) {
+                submit(pendingTrigger[i], pendingTrigger[i] + postSamples, pendingName[i]);
+                removePending(i);
+            } else {
+                i++;
+            }
+        }
+    }
+
+    /**
+     * Schedule a clip around a trigger point.
+     *
+     * @param triggerSample absolute sample index of the event, in the stream fed to {@link #onSamples}
+     * @return file name the clip will be saved under, or null if too many clips are pending
+     */
+    public String requestClip(long triggerSample) {
+        if (pendingCount == MAX_PENDING) {
+            Log.w(TAG, "Too many pending clips, dropping request");
+            return null;
+        }
+        String name = directoryManager.generateTimestampedFilename(CLIP_PREFIX, ".m4a");
+        pendingTrigger[pendingCount] = triggerSample;
+        pendingName[pendingCount] = name;
+        pendingCount++;
+        // The trigger may be far enough back that the post-event audio is already here
+        submitReady();
+        return name;
+    }
+
+    /**
+     * Save pending clips with whatever audio has arrived, e.g. when capture stops.
+     */
+    public void flush() {
+        long written = ring.getTotalWritten();
+        while (pendingCount > 0) {
+            submit(pendingTrigger[0], Math.min(written, pendingTrigger[0] + postSamples), pendingName[0]);
+            removePending(0);
+        }
+    }
+
+    /**
+     * Drop buffered audio and pending clips, e.g. before capture restarts at sample 0.
+     */
+    public void reset() {
+        ring.reset();
+        pendingCount = 0;
+    }
+
+    public int getPreMs() {
+        return (int) (preSamples * 1000L / sampleRate);
+    }
+
+    public int getPostMs() {
+        return (int) (postSamples * 1000L / sampleRate);
+    }
+
+    private void removePending(int index) {
+        pendingCount--;
+        pendingTrigger[index] = pendingTrigger[pendingCount];
+        pendingName[index] = pendingName[pendingCount];
+        pendingName[pendingCount] = null;
+    }
+
+    private void submit(long triggerSample, long endSample, String name) {
+        long start = Math.max(ring.getOldestSample(), triggerSample - preSamples);
+        int length = (int) (endSample - start);
+        if (length <= 0) {
+            Log.w(TAG, "No audio left for clip " + name);
+            return;
+        }
+        short[] pcm = new short[length];
+        if (!ring.copy(start, pcm, 0, length)) {
+            Log.w(TAG, "Clip range no longer buffered: " + name);
+            return;
+        }
+        encoder.execute(() -> encodeAndSave(pcm, name));
+    }
+
+    private void encodeAndSave(short[] pcm, String name) {
+        File temp = new File(context.getCacheDir(), name);
+        String fileName = name;
+        String mimeType = "audio/mp4";
+        try {
+            if (!AudioClipEncoder.encodeM4a(pcm, sampleRate, temp)) {
+                // No usable AAC encoder; keep the event audible as WAV
+                fileName = name.substring(0, name.lastIndexOf('.')) + ".wav";
+                mimeType = "audio/wav";
+                temp.delete();
+                temp = new File(context.getCacheDir(), fileName);
+                AudioClipEncoder.writeWav(pcm, sampleRate, temp);
+            }
+
+            DocumentFile soundDir = directoryManager.getSoundDetectionDirectory();
+            if (soundDir != null) {
+                DocumentFile clipFile = soundDir.createFile(mimeType, fileName);
+                if (clipFile != null) {
+                    try (InputStream in = new FileInputStream(temp);
+                         OutputStream out = context.getContentResolver().openOutputStream(clipFile.getUri())) {
+                        if (out != null) {
+                            copy(in, out);
+                            Log.d(TAG, "Sound clip saved: " + clipFile.getUri());
+                            return;
+                        }
+                    }
+                }
+            }
+
+            File dir = directoryManager.getAppStorageDirectory(FALLBACK_SUBDIR);
+            File target = new File(dir, fileName);
+            try (InputStream in = new FileInputStream(temp);
+                 OutputStream out = new FileOutputStream(target)) {
+                copy(in, out);
+            }
+            Log.d(TAG, "Sound clip saved to app storage: " + target.getAbsolutePath());
+        } catch (Exception e) {
+            Log.e(TAG, "Error saving sound clip " + fileName, e);
+        } finally {
+            temp.delete();
+        }
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+    }
+}
@@ -4,9 +4,8 @@ import android.Manifest;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
-import android.media.AudioRecord;
-import android.media.MediaRecorder;
 import android.net.Uri;
+import android.os.Debug;
 import android.os.Handler;
 import android.util.Log;
 import android.widget.Toast;
@@ -30,30 +29,245 @@ import java.io.OutputStream;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 import com.summersoft.heliocam.webrtc_utils.RTCJoiner;
+import com.summersoft.heliocam.webrtc_utils.SharedAudioCapture;
 
 public class SoundDetection {
-    private static final int SAMPLE_RATE = 44100; // Sampling rate in Hz
+
+    /**
+     * Trade-off between detection quality and battery use, set per camera.
+     */
+    public enum PowerMode {
+        /** Full capture rate, every hop analysed; ~21 ms hops. */
+        NORMAL(SharedAudioCapture.SAMPLE_RATE, 1024),
+        /**
+         * 16 kHz analysis in ~64 ms hops. While nobody is streaming from the camera, the FFT and
+         * classifier only run on hops that pass an RMS energy gate.
+         */
+        LOW_POWER(16000, 1024);
+
+        private final int sampleRate;
+        private final int hopSize;
+
+        PowerMode(int sampleRate, int hopSize) {
+            this.sampleRate = sampleRate;
+            this.hopSize = hopSize;
+        }
+
+        public int getSampleRate() {
+            return sampleRate;
+        }
+
+        public int getHopSize() {
+            return hopSize;
+        }
+    }
+
+    // RMS / mean absolute value of a sine, converts the legacy mean-amplitude threshold to RMS
+    private static final float SINE_RMS_PER_MEAN_ABS = 1.1107f;
+    private static final float CLASSIFICATION_WINDOW_MS = 1000f;
+    private static final float NOISE_FLOOR_WINDOW_MS = 10000f;
+    private static final float NOISE_FLOOR_PERCENTILE = 0.2f;
+    // Below this nothing is an event, however quiet the room is
+    private static final float MIN_EVENT_DBFS = -60f;
+    private static final int CLIP_PRE_EVENT_MS = 3000;
+    private static final int CLIP_POST_EVENT_MS = 3000;
+    // SNR at which an unclassified sound reaches its highest confidence
+    private static final float UNCLASSIFIED_FULL_SNR_DB = 40f;
+    private static final float UNCLASSIFIED_MAX_SCORE = 0.5f;
+    // Low-power gate opens the spectrum this far below the trigger level, so the trigger hop has one
+    private static final float SPECTRUM_ARM_MARGIN_DB = 6f;
     private final Context context;
     private final Handler handler;
     private int soundThreshold = 3000; // Default threshold, can be adjusted
-    private boolean isRunning = false;
+    private volatile float soundThresholdDbfs = amplitudeToDbfs(3000);
+    private volatile boolean isRunning = false;
     private long detectionLatency = 3000; // Default latency in milliseconds (3 seconds)
 
     private DetectionDirectoryManager directoryManager;
     // Firebase references
-    private AudioRecord audioRecord;
-    private Thread detectionThread;
+    // Mic capture, shared with the WebRTC audio track when the joiner provides one
+    private SharedAudioCapture audioCapture;
+    private boolean ownsAudioCapture = false;
+    private final SharedAudioCapture.Listener pcmListener = this::onPcm;
     private long lastDetectionTime = 0;
     private RTCJoiner webRTCClient;
 
+    // Analysis pipeline for the current power mode. Rebuilt only while stopped; the audio
+    // thread sees it through the capture's listener registration.
+    private PowerMode powerMode = PowerMode.NORMAL;
+    private Decimator decimator;
+    private short[] decimated = new short[0];
+    // Streaming features, fed from the capture thread
+    private AudioFeatureExtractor featureExtractor;
+    private final AudioFeatureExtractor.Listener thresholdListener = this::onFeatureFrame;
+    private final AudioFeatureExtractor.SpectrumGate spectrumGate = this::wantsSpectrum;
+    private final List<AudioFeatureExtractor.Listener> featureListeners = new CopyOnWriteArrayList<>();
+    // Classifies the second of audio after the gate opens; only touched on the audio thread
+    private SoundEventClassifier classifier;
+    private volatile boolean classificationEnabled = true;
+    private volatile boolean reportUnclassifiedSounds = false;
+    // Rolling noise floor; the tracker is audio-thread only, the volatile copies are for other threads
+    private NoiseFloorTracker noiseFloor;
+    private volatile float noiseFloorOnMarginDb = 12f;
+    private volatile float noiseFloorOffMarginDb = 6f;
+    private float appliedOnMarginDb = 12f;
+    private float appliedOffMarginDb = 6f;
+    private volatile boolean adaptiveThresholdEnabled = true;
+    private volatile float noiseFloorDbfs = AudioFeatureFrame.SILENCE_DBFS;
+    private volatile float snrDb = 0f;
+    // Saves a clip around each reported event; fed the same samples as the feature extractor
+    private SoundClipRecorder clipRecorder;
+    private volatile boolean clipRecordingEnabled = true;
+
+    // Cost and latency per power mode; written on the audio thread only
+    private static final class ModeStats {
+        volatile long cpuNs;
+        volatile long audioNs;
+        volatile long hops;
+        volatile long spectrumHops;
+        volatile long detections;
+        volatile long latencySumMs;
+    }
+
+    private final ModeStats[] modeStats = new ModeStats[PowerMode.values().length];
+
     public SoundDetection(Context context, RTCJoiner webRTCClient) {
         this.context = context;
         this.handler = new Handler();
         this.webRTCClient = webRTCClient;
         this.directoryManager = new DetectionDirectoryManager(context);
+        for (int i = 0; i < modeStats.length; i++) {
+            modeStats[i] = new ModeStats();
+        }
+        buildPipeline();
+    }
+
+    /**
+     * Create the analysis stages for the current power mode.
+     */
+    private void buildPipeline() {
+        int rate = powerMode.getSampleRate();
+        int factor = SharedAudioCapture.SAMPLE_RATE / rate;
+        decimator = factor > 1 ? new Decimator(factor) : null;
+
+        featureExtractor = new AudioFeatureExtractor(rate, powerMode.getHopSize());
+        featureExtractor.addListener(thresholdListener);
+        for (AudioFeatureExtractor.Listener listener : featureListeners) {
+            featureExtractor.addListener(listener);
+        }
+        featureExtractor.setSpectrumGate(powerMode == PowerMode.NORMAL ? null : spectrumGate);
+
+        float hopMs = featureExtractor.getHopDurationMs();
+        classifier = new SoundEventClassifier(rate, featureExtractor.getWindowSize(), CLASSIFICATION_WINDOW_MS, hopMs);
+        noiseFloor = new NoiseFloorTracker(Math.round(NOISE_FLOOR_WINDOW_MS / hopMs), NOISE_FLOOR_PERCENTILE);
+        appliedOnMarginDb = noiseFloorOnMarginDb;
+        appliedOffMarginDb = noiseFloorOffMarginDb;
+        noiseFloor.setMargins(appliedOnMarginDb, appliedOffMarginDb);
+        if (clipRecorder != null) {
+            clipRecorder.flush();
+        }
+        clipRecorder = new SoundClipRecorder(context, directoryManager, rate,
+                CLIP_PRE_EVENT_MS, CLIP_POST_EVENT_MS);
+    }
+
+    /**
+     * Switch between full-rate and low-power analysis. Restarts detection if it is running.
+     */
+    public void setPowerMode(PowerMode mode) {
+        if (mode == null || mode == powerMode) {
+            return;
+        }
+        boolean wasRunning = isRunning;
+        if (wasRunning) {
+            stopDetection();
+        }
+        logModeStats();
+        powerMode = mode;
+        buildPipeline();
+        Log.d("SoundDetection", "Sound detection power mode: " + mode + " (" + mode.getSampleRate()
+                + " Hz, " + Math.round(featureExtractor.getHopDurationMs()) + " ms hops)");
+        if (wasRunning) {
+            startDetection();
+        }
+    }
+
+    public PowerMode getPowerMode() {
+        return powerMode;
+    }
+
+    /**
+     * Processing CPU time per second of audio in a mode, e.g. 0.02 for 2% of one core.
+     */
+    public float getCpuLoad(PowerMode mode) {
+        ModeStats stats = modeStats[mode.ordinal()];
+        long audioNs = stats.audioNs;
+        return audioNs > 0 ? (float) stats.cpuNs / audioNs : 0f;
+    }
+
+    /**
+     * Average audio time from the start of the triggering hop to the report, in a mode.
+     */
+    public long getAverageDetectionLatencyMs(PowerMode mode) {
+        ModeStats stats = modeStats[mode.ordinal()];
+        long detections = stats.detections;
+        return detections > 0 ? stats.latencySumMs / detections : 0;
+    }
+
+    /**
+     * Fraction of hops in a mode whose spectrum was computed.
+     */
+    public float getSpectrumDutyCycle(PowerMode mode) {
+        ModeStats stats = modeStats[mode.ordinal()];
+        long hops = stats.hops;
+        return hops > 0 ? (float) stats.spectrumHops / hops : 0f;
+    }
+
+    /**
+     * Log CPU load, spectrum duty cycle and detection latency for every mode used so far.
+     */
+    public void logModeStats() {
+        for (PowerMode mode : PowerMode.values()) {
+            if (modeStats[mode.ordinal()].hops == 0) {
+                continue;
+            }
+            Log.d("SoundDetection", String.format(Locale.US,
+                    "%s: cpu=%.2f%% spectrum=%.0f%% of hops, detections=%d avgLatency=%dms",
+                    mode, getCpuLoad(mode) * 100f, getSpectrumDutyCycle(mode) * 100f,
+                    modeStats[mode.ordinal()].detections, getAverageDetectionLatencyMs(mode)));
+        }
+    }
+
+    /**
+     * Save a short clip (3 s either side of the trigger) with every reported sound event.
+     */
+    public void setClipRecordingEnabled(boolean enabled) {
+        this.clipRecordingEnabled = enabled;
+        Log.d("SoundDetection", "Sound clip recording " + (enabled ? "enabled" : "disabled"));
+    }
+
+    public boolean isClipRecordingEnabled() {
+        return clipRecordingEnabled;
+    }
+
+    /**
+     * Receive RMS / peak / dBFS / spectral flux for every hop of captured audio.
+     * Called on the audio thread; the frame is only valid during the call.
+     */
+    public void addFeatureListener(AudioFeatureExtractor.Listener listener) {
+        if (!featureListeners.contains(listener)) {
+            featureListeners.add(listener);
+        }
+        featureExtractor.addListener(listener);
+    }
+
+    public void removeFeatureListener(AudioFeatureExtractor.Listener listener) {
+        featureListeners.remove(listener);
+        featureExtractor.removeListener(listener);
     }
 
     /**
@@ -63,6 +277,69 @@ public class SoundDetection {
      */
     public void setSoundThreshold(int threshold) {
         this.soundThreshold = threshold;
+        this.soundThresholdDbfs = amplitudeToDbfs(threshold);
+    }
+
+    /**
+     * Set the sound detection threshold as an RMS level in dBFS (0 = full scale).
+     * Unlike the raw amplitude threshold this does not depend on the read buffer size.
+     *
+     * @param dbfs RMS level, e.g. -30
+     */
+    public void setSoundThresholdDbfs(float dbfs) {
+        this.soundThresholdDbfs = dbfs;
+        this.soundThreshold = Math.round((float) Math.pow(10, dbfs / 20f) * 32768f / SINE_RMS_PER_MEAN_ABS);
+    }
+
+    public float getSoundThresholdDbfs() {
+        return soundThresholdDbfs;
+    }
+
+    /**
+     * Use a threshold relative to the rolling noise floor instead of the fixed threshold.
+     * The fixed threshold is still used for the first second while the floor warms up.
+     */
+    public void setAdaptiveThresholdEnabled(boolean enabled) {
+        this.adaptiveThresholdEnabled = enabled;
+        Log.d("SoundDetection", "Adaptive sound threshold " + (enabled ? "enabled" : "disabled"));
+    }
+
+    public boolean isAdaptiveThresholdEnabled() {
+        return adaptiveThresholdEnabled;
+    }
+
+    /**
+     * Set how far above the noise floor a sound must rise to fire, and how far it must
+     * fall back before the next event can fire.
+     *
+     * @param onMarginDb  trigger margin in dB, e.g. 12
+     * @param offMarginDb re-arm margin in dB, e.g. 6
+     */
+    public void setNoiseFloorMargins(float onMarginDb, float offMarginDb) {
+        // The tracker belongs to the audio thread; it picks the new margins up on the next hop
+        noiseFloorOffMarginDb = offMarginDb;
+        noiseFloorOnMarginDb = onMarginDb;
+    }
+
+    /**
+     * Current noise-floor estimate in dBFS.
+     */
+    public float getNoiseFloorDbfs() {
+        return noiseFloorDbfs;
+    }
+
+    /**
+     * Level of the latest hop above the noise floor, in dB.
+     */
+    public float getSnrDb() {
+        return snrDb;
+    }
+
+    /**
+     * Map the legacy mean absolute amplitude threshold (sample units) to an RMS dBFS level.
+     */
+    private static float amplitudeToDbfs(int amplitude) {
+        return AudioFeatureFrame.toDbfs(amplitude * SINE_RMS_PER_MEAN_ABS / 32768f);
     }
 
     /**
@@ -88,34 +365,69 @@ public class SoundDetection {
         }
 
         isRunning = true;
-        int bufferSize = AudioRecord.getMinBufferSize(SAMPLE_RATE,
-                android.media.AudioFormat.CHANNEL_IN_MONO,
-                android.media.AudioFormat.ENCODING_PCM_16BIT);
-
-        audioRecord = new AudioRecord(MediaRecorder.AudioSource.MIC, SAMPLE_RATE,
-                android.media.AudioFormat.CHANNEL_IN_MONO,
-                android.media.AudioFormat.ENCODING_PCM_16BIT, bufferSize);
-
-        audioRecord.startRecording();
-
-        detectionThread = new Thread(() -> {
-            short[] buffer = new short[bufferSize];
-            while (isRunning) {
-                int read = audioRecord.read(buffer, 0, bufferSize);
-                if (read > 0) {
-                    int amplitude = calculateAmplitude(buffer, read);
-                    if (amplitude > soundThreshold) {
-                        long currentTime = System.currentTimeMillis();
-                        if (currentTime - lastDetectionTime > detectionLatency) {
-                            lastDetectionTime = currentTime;
-                            triggerSoundDetected();
-                            onSoundDetected(amplitude);
-                        }
-                    }
-                }
+        featureExtractor.reset();
+        classifier.reset();
+        noiseFloor.reset();
+        clipRecorder.reset();
+        if (decimator != null) {
+            decimator.reset();
+        }
+
+        // Without a joiner there is no WebRTC capture to share; the capture then records on its own
+        audioCapture = webRTCClient != null ? webRTCClient.getAudioCapture() : null;
+        ownsAudioCapture = audioCapture == null;
+        if (ownsAudioCapture) {
+            audioCapture = new SharedAudioCapture(context);
+        }
+        audioCapture.addListener(pcmListener);
+        Log.d("SoundDetection", "Sound detection started on "
+                + (ownsAudioCapture ? "a dedicated" : "the shared WebRTC") + " microphone capture");
+    }
+
+    /**
+     * Captured audio, on the capture thread
+     */
+    private void onPcm(short[] samples, int length, int sampleRate) {
+        if (sampleRate != SharedAudioCapture.SAMPLE_RATE) {
+            // Features and thresholds are tuned for one rate; the capture logs the mismatch
+            return;
+        }
+        long cpuStart = Debug.threadCpuTimeNanos();
+        short[] pcm = samples;
+        int count = length;
+        if (decimator != null) {
+            int needed = decimator.getMaxOutput(length);
+            if (decimated.length < needed) {
+                decimated = new short[needed];
             }
-        });
-        detectionThread.start();
+            count = decimator.process(samples, 0, length, decimated);
+            pcm = decimated;
+        }
+        // Ring first, so a clip requested during this hop already holds it
+        clipRecorder.onSamples(pcm, 0, count);
+        featureExtractor.process(pcm, 0, count);
+
+        ModeStats stats = modeStats[powerMode.ordinal()];
+        stats.cpuNs += Debug.threadCpuTimeNanos() - cpuStart;
+        stats.audioNs += length * 1_000_000_000L / sampleRate;
+    }
+
+    /**
+     * Low-power energy gate: skip the FFT on quiet hops while nobody is streaming, on the audio thread
+     */
+    private boolean wantsSpectrum(float rmsDbfs) {
+        SharedAudioCapture capture = audioCapture;
+        if (capture != null && capture.isSharingWebRtcCapture()) {
+            // Someone is streaming, so the camera is not idle; analyse every hop
+            return true;
+        }
+        if (classifier.isCollecting()) {
+            return true;
+        }
+        float trigger = adaptiveThresholdEnabled && noiseFloor.isWarmedUp()
+                ? Math.max(noiseFloor.getTriggerLevelDbfs(), MIN_EVENT_DBFS)
+                : soundThresholdDbfs;
+        return rmsDbfs >= trigger - SPECTRUM_ARM_MARGIN_DB;
     }
 
     /**
@@ -125,46 +437,190 @@ public class SoundDetection {
         if (!isRunning) return;
 
         isRunning = false;
-        if (audioRecord != null) {
-            audioRecord.stop();
-            audioRecord.release();
-            audioRecord = null;
+        if (audioCapture != null) {
+            // No more callbacks once this returns
+            audioCapture.removeListener(pcmListener);
+            if (ownsAudioCapture) {
+                audioCapture.release();
+            }
+            audioCapture = null;
+        }
+        // Save clips still waiting for post-event audio with what was captured
+        clipRecorder.flush();
+    }
+
+    /**
+     * Threshold check for every hop, on the audio thread
+     */
+    private void onFeatureFrame(AudioFeatureFrame frame) {
+        ModeStats stats = modeStats[powerMode.ordinal()];
+        stats.hops++;
+        if (frame.hasSpectrum()) {
+            stats.spectrumHops++;
+        }
+
+        float onMarginDb = noiseFloorOnMarginDb;
+        float offMarginDb = noiseFloorOffMarginDb;
+        if (onMarginDb != appliedOnMarginDb || offMarginDb != appliedOffMarginDb) {
+            noiseFloor.setMargins(onMarginDb, offMarginDb);
+            appliedOnMarginDb = onMarginDb;
+            appliedOffMarginDb = offMarginDb;
+        }
+
+        float level = frame.getRmsDbfs();
+        boolean crossedFloor = noiseFloor.update(level);
+        noiseFloorDbfs = noiseFloor.getFloorDbfs();
+        snrDb = noiseFloor.getSnrDb();
+
+        // Adaptive: fire on the hop that rises the margin above the floor (re-armed by hysteresis).
+        // Fixed threshold until the floor has enough history, or when adaptive mode is off.
+        boolean aboveThreshold;
+        if (adaptiveThresholdEnabled && noiseFloor.isWarmedUp()) {
+            aboveThreshold = crossedFloor && level >= MIN_EVENT_DBFS;
+        } else {
+            aboveThreshold = level >= soundThresholdDbfs;
+        }
+        long currentTime = System.currentTimeMillis();
+        boolean latencyElapsed = currentTime - lastDetectionTime > detectionLatency;
+
+        if (classificationEnabled) {
+            // The gate only starts an event; the report waits for the classification window
+            if (classifier.processHop(frame, aboveThreshold && latencyElapsed)) {
+                onSoundEventClassified(frame);
+            }
+            return;
         }
 
-        if (detectionThread != null) {
-            detectionThread.interrupt();
-            detectionThread = null;
+        if (aboveThreshold && latencyElapsed) {
+            lastDetectionTime = currentTime;
+            // Copy the values out, the frame is reused for the next hop
+            double amplitude = frame.getRms() * 32768f / SINE_RMS_PER_MEAN_ABS;
+            String clip = requestClip(frame.getEndSample());
+            long latencyMs = recordDetectionLatency(frame.getEndSample(), frame.getEndSample());
+            triggerSoundDetected(amplitude, level, frame.getPeakDbfs(), frame.getSpectralFlux(),
+                    SoundEventClassifier.Label.OTHER, 0f, clip, latencyMs);
         }
     }
 
-    private int calculateAmplitude(short[] buffer, int length) {
-        int sum = 0;
-        for (int i = 0; i < length; i++) {
-            sum += Math.abs(buffer[i]);
+    /**
+     * Report a classified event, or drop it if it did not match any known class
+     */
+    private void onSoundEventClassified(AudioFeatureFrame frame) {
+        SoundEventClassifier.Label label = classifier.getLabel();
+        Log.d("SoundDetection", "Sound event: " + classifier.describeLastEvent());
+
+        if (label == SoundEventClassifier.Label.OTHER && !reportUnclassifiedSounds) {
+            Log.d("SoundDetection", "Unclassified sound suppressed");
+            return;
         }
-        return sum / length;
-    }    // In SoundDetection.java, modify triggerSoundDetected() method:
-    private void triggerSoundDetected() {
+
+        lastDetectionTime = System.currentTimeMillis();
+        double amplitude = classifier.getEventMaxRms() * 32768f / SINE_RMS_PER_MEAN_ABS;
+        String clip = requestClip(classifier.getEventTriggerSample());
+        long latencyMs = recordDetectionLatency(classifier.getEventTriggerSample(), frame.getEndSample());
+        triggerSoundDetected(amplitude, classifier.getEventMaxRmsDbfs(), classifier.getEventMaxPeakDbfs(),
+                classifier.getEventMaxFlux(), label, classifier.getScore(), clip, latencyMs);
+    }
+
+    /**
+     * Audio time from the start of the trigger hop to the hop that reports it, added to the
+     * current mode's stats. Capture buffering before the samples reach us is not included.
+     */
+    private long recordDetectionLatency(long triggerEndSample, long reportEndSample) {
+        long samples = reportEndSample - triggerEndSample + featureExtractor.getHopSize();
+        long latencyMs = samples * 1000L / featureExtractor.getSampleRate();
+        ModeStats stats = modeStats[powerMode.ordinal()];
+        stats.detections++;
+        stats.latencySumMs += latencyMs;
+        return latencyMs;
+    }
+
+    /**
+     * Schedule a clip centred on the trigger, on the audio thread.
+     *
+     * @return clip file name, or null if clips are off or the recorder is saturated
+     */
+    private String requestClip(long triggerSample) {
+        if (!clipRecordingEnabled) {
+            return null;
+        }
+        return clipRecorder.requestClip(triggerSample);
+    }
+
+    /**
+     * Enable or disable the classification stage. When disabled every sound above the
+     * threshold is reported straight away, as before.
+     */
+    public void setSoundClassificationEnabled(boolean enabled) {
+        this.classificationEnabled = enabled;
+        Log.d("SoundDetection", "Sound classification " + (enabled ? "enabled" : "disabled"));
+    }
+
+    public boolean isSoundClassificationEnabled() {
+        return classificationEnabled;
+    }
+
+    /**
+     * Whether loud sounds that match no known class (doors, TV, traffic) are still reported.
+     */
+    public void setReportUnclassifiedSounds(boolean report) {
+        this.reportUnclassifiedSounds = report;
+    }
+
+    public boolean isReportingUnclassifiedSounds() {
+        return reportUnclassifiedSounds;
+    }
+
+    // In SoundDetection.java, modify triggerSoundDetected() method:
+    private void triggerSoundDetected(double amplitude, float rmsDbfs, float peakDbfs, float spectralFlux,
+                                      SoundEventClassifier.Label label, float labelScore, String clipName,
+                                      long latencyMs) {
+        // Floor is frozen while an event is active, so this is the floor the event rose above
+        final float floorDbfs = noiseFloorDbfs;
+        final boolean adaptive = adaptiveThresholdEnabled;
+        final float onMarginDb = appliedOnMarginDb;
+        final PowerMode mode = powerMode;
+        final SoundClipRecorder clips = clipRecorder;
         handler.post(() -> {
             // Always show toast regardless of notification settings
-            Toast.makeText(context, "Sound Detected!", Toast.LENGTH_SHORT).show();
+            if (label == SoundEventClassifier.Label.OTHER) {
+                Toast.makeText(context, "Sound Detected!", Toast.LENGTH_SHORT).show();
+            } else {
+                Toast.makeText(context, label.getDisplayName() + " detected!", Toast.LENGTH_SHORT).show();
+            }
 
             // Always report detection to host first (for live monitoring)
             if (webRTCClient != null) {
                 try {
-                    // Get amplitude for reporting (use actual calculated value)
-                    double amplitude = soundThreshold * 1.5; // Estimate based on threshold exceeded
-                    
                     Log.d("SoundDetection", "Reporting sound detection to host with amplitude: " + amplitude);
 
                     // Create enhanced detection data with all details needed for notification card
                     Map<String, Object> detectionData = new HashMap<>();
                     detectionData.put("amplitude", amplitude);
                     detectionData.put("threshold", soundThreshold);
+                    detectionData.put("levelDbfs", rmsDbfs);
+                    detectionData.put("peakDbfs", peakDbfs);
+                    detectionData.put("thresholdDbfs", adaptive ? floorDbfs + onMarginDb : soundThresholdDbfs);
+                    detectionData.put("noiseFloorDbfs", floorDbfs);
+                    detectionData.put("snrDb", rmsDbfs - floorDbfs);
+                    detectionData.put("thresholdMode", adaptive ? "adaptive" : "fixed");
+                    detectionData.put("spectralFlux", spectralFlux);
+                    detectionData.put("soundClass", label.getId());
+                    detectionData.put("soundClassScore", labelScore);
+                    detectionData.put(DetectionFusion.KEY_SCORE, detectionScore(label, labelScore, rmsDbfs - floorDbfs));
                     detectionData.put("confidence", "high");
                     detectionData.put("detectionMethod", "audioRecord");
-                    detectionData.put("sampleRate", SAMPLE_RATE);
+                    detectionData.put("sampleRate", mode.getSampleRate());
+                    detectionData.put("powerMode", mode.name());
+                    detectionData.put(DetectionFusion.KEY_DETECTION_LATENCY, latencyMs);
+                    detectionData.put("cpuLoad", getCpuLoad(mode));
                     detectionData.put("detectionTime", System.currentTimeMillis());
+                    if (clipName != null) {
+                        // Saved locally once the post-event audio has been captured
+                        detectionData.put("audioClip", clipName);
+                        detectionData.put("audioClipPreEventMs", clips.getPreMs());
+                        detectionData.put("audioClipDurationMs", clips.getPreMs() + clips.getPostMs());
+                    }
                     
                     // Report sound detection with enhanced data
                     webRTCClient.reportDetectionEvent("sound", detectionData);
@@ -188,6 +644,17 @@ public class SoundDetection {
         });
     }
 
+    /**
+     * Confidence that the event is real, for fusion with person detection: the class score
+     * for a recognised sound, otherwise a capped value growing with loudness above the floor.
+     */
+    private static float detectionScore(SoundEventClassifier.Label label, float labelScore, float snrDb) {
+        if (label != SoundEventClassifier.Label.OTHER) {
+            return labelScore;
+        }
+        return UNCLASSIFIED_MAX_SCORE * Math.max(0f, Math.min(1f, snrDb / UNCLASSIFIED_FULL_SNR_DB));
+    }
+
     private void captureAndUploadScreenshot(String sessionId) {
         // CameraActivity cameraActivity = (CameraActivity) context;
 
@@ -309,16 +776,4 @@ public class SoundDetection {
             directoryManager.setBaseDirectory(uri);
         }
     }
-
-    // When sound is detected
-    private void onSoundDetected(double amplitude) {
-        Log.d("SoundDetection", "Sound detection callback triggered with amplitude: " + amplitude);
-        
-        // Report using the method in RTCJoiner
-        if (webRTCClient != null) {
-            webRTCClient.reportSoundDetection(amplitude);
-        } else {
-            Log.w("SoundDetection", "Cannot report sound detection - webRTCClient is null");
-        }
-    }
 }
@@ -0,0 +1,405 @@
+package com.summersoft.heliocam.detection;
+
+import java.util.Locale;
+
+/**
+ * Rule-based classifier for short sound events, run after the amplitude gate.
+ *
+ * When the gate opens, the classifier collects a fixed window of hops (one second by
+ * default). Each hop is reduced to a few spectral descriptors from a mel filterbank:
+ * - band energy ratios;
+ * - centroid;
+ * - flatness;
+ * - the dominant tone and how peaky it is.
+ * At the end of the window those descriptors are combined with the level envelope
+ * (onset jump, bursts, active fraction) into one score per class. Events that do not
+ * score high enough for any class come out as {@link Label#OTHER}. Slammed doors, TV
+ * and traffic typically land there.
+ *
+ * Pure Java; per-hop storage is allocated once. Not thread-safe, feed it from the audio thread.
+ */
+public class SoundEventClassifier {
+
+    public enum Label {
+        GLASS_BREAK("glass_break", "Glass break"),
+        DOG_BARK("dog_bark", "Dog bark"),
+        ALARM("alarm", "Alarm"),
+        VOICE("voice", "Voice"),
+        OTHER("other", "Sound");
+
+        private final String id;
+        private final String displayName;
+
+        Label(String id, String displayName) {
+            this.id = id;
+            this.displayName = displayName;
+        }
+
+        /** Stable identifier used in reported detection events. */
+        public String getId() {
+            return id;
+        }
+
+        public String getDisplayName() {
+            return displayName;
+        }
+    }
+
+    private static final int MEL_BANDS = 40;
+    private static final float MEL_MIN_HZ = 60f;
+    private static final float EPSILON = 1e-10f;
+    // Hops quieter than this below the event maximum are ignored for spectral averages
+    private static final float ACTIVE_RANGE_DB = 15f;
+    // Burst hysteresis relative to the event maximum
+    private static final float BURST_ON_DB = 6f;
+    private static final float BURST_OFF_DB = 14f;
+    // Relative pitch change between hops still counted as one tone, at the reference hop length
+    private static final float TONAL_TOLERANCE = 0.06f;
+    private static final float REFERENCE_HOP_MS = 23.2f;
+
+    private final MelFilterbank filterbank;
+    private final float[] melEnergy;
+    private final int windowHops;
+    private final float binHz;
+    private final int tonalFirstBin;
+    private final int tonalLastBin;
+    // Longer hops see a sweeping tone move further between them
+    private final float tonalTolerance;
+
+    // Per-hop descriptors of the event being collected
+    private final float[] levelDb;
+    private final float[] centroidHz;
+    private final float[] flatness;
+    private final float[] speechRatio;
+    private final float[] highRatio;
+    private final float[] peakiness;
+    private final float[] dominantHz;
+    private int hopCount = 0;
+    private boolean collecting = false;
+    private float previousLevelDb = AudioFeatureFrame.SILENCE_DBFS;
+    private float onsetJumpDb = 0f;
+
+    private float minScore = 0.5f;
+
+    // Result of the last completed event
+    private final float[] scores = new float[Label.values().length];
+    private Label label = Label.OTHER;
+    private float score = 0f;
+    private float eventMaxRmsDbfs;
+    private float eventMaxPeakDbfs;
+    private float eventMaxFlux;
+    private float eventMaxRms;
+    private long eventTriggerSample;
+
+    // Window-level descriptors of the last event, kept for logging
+    private float meanCentroid;
+    private float meanFlatness;
+    private float meanSpeech;
+    private float meanHigh;
+    private float meanPeakiness;
+    private float activeFraction;
+    private float tonalStability;
+    private int bursts;
+
+    /**
+     * @param sampleRate sample rate of the analysed audio
+     * @param fftSize    window size of the spectra fed in
+     * @param windowMs   length of audio collected per event
+     * @param hopMs      duration of one hop
+     */
+    public SoundEventClassifier(int sampleRate, int fftSize, float windowMs, float hopMs) {
+        filterbank = new MelFilterbank(sampleRate, fftSize, MEL_BANDS, MEL_MIN_HZ, sampleRate / 2f);
+        melEnergy = new float[MEL_BANDS];
+        windowHops = Math.max(4, Math.round(windowMs / hopMs));
+        binHz = (float) sampleRate / fftSize;
+        tonalFirstBin = Math.max(1, Math.round(400f / binHz));
+        tonalLastBin = Math.min(fftSize / 2, Math.round(6000f / binHz));
+        tonalTolerance = TONAL_TOLERANCE * Math.max(1f, hopMs / REFERENCE_HOP_MS);
+
+        levelDb = new float[windowHops];
+        centroidHz = new float[windowHops];
+        flatness = new float[windowHops];
+        speechRatio = new float[windowHops];
+        highRatio = new float[windowHops];
+        peakiness = new float[windowHops];
+        dominantHz = new float[windowHops];
+    }
+
+    /**
+     * Feed every hop, whether or not an event is active.
+     *
+     * @param frame     features of the hop
+     * @param triggered true if the amplitude gate fired on this hop and a new event may start
+     * @return true when an event window has just completed and a result is available
+     */
+    public boolean processHop(AudioFeatureFrame frame, boolean triggered) {
+        float level = frame.getRmsDbfs();
+        if (!collecting) {
+            if (!triggered) {
+                previousLevelDb = level;
+                return false;
+            }
+            startEvent(level);
+            eventTriggerSample = frame.getEndSample();
+        }
+
+        describeHop(frame, hopCount);
+        eventMaxRmsDbfs = Math.max(eventMaxRmsDbfs, level);
+        eventMaxPeakDbfs = Math.max(eventMaxPeakDbfs, frame.getPeakDbfs());
+        eventMaxFlux = Math.max(eventMaxFlux, frame.getSpectralFlux());
+        eventMaxRms = Math.max(eventMaxRms, frame.getRms());
+        if (hopCount > 0) {
+            onsetJumpDb = Math.max(onsetJumpDb, level - levelDb[hopCount - 1]);
+        }
+        levelDb[hopCount++] = level;
+
+        if (hopCount < windowHops) {
+            return false;
+        }
+        collecting = false;
+        previousLevelDb = level;
+        classify();
+        return true;
+    }
+
+    private void startEvent(float level) {
+        collecting = true;
+        hopCount = 0;
+        // Jump from the last quiet hop into the trigger hop
+        onsetJumpDb = Math.max(0f, level - previousLevelDb);
+        eventMaxRmsDbfs = AudioFeatureFrame.SILENCE_DBFS;
+        eventMaxPeakDbfs = AudioFeatureFrame.SILENCE_DBFS;
+        eventMaxFlux = 0f;
+        eventMaxRms = 0f;
+    }
+
+    private void describeHop(AudioFeatureFrame frame, int i) {
+        filterbank.apply(frame.getMagnitudes(), melEnergy);
+
+        float total = 0f, weighted = 0f, logSum = 0f;
+        float speech = 0f, high = 0f;
+        for (int b = 0; b < MEL_BANDS; b++) {
+            float e = melEnergy[b];
+            float hz = filterbank.getCentreFrequency(b);
+            total += e;
+            weighted += e * hz;
+            logSum += (float) Math.log(e + EPSILON);
+            if (hz >= 300f && hz <= 3400f) {
+                speech += e;
+            }
+            if (hz >= 4000f) {
+                high += e;
+            }
+        }
+        float norm = total + EPSILON;
+        centroidHz[i] = weighted / norm;
+        // Geometric over arithmetic mean: near 1 for noise, near 0 for tones
+        flatness[i] = (float) Math.exp(logSum / MEL_BANDS) / (norm / MEL_BANDS);
+        speechRatio[i] = speech / norm;
+        highRatio[i] = high / norm;
+
+        float[] m = frame.getMagnitudes();
+        int peakBin = tonalFirstBin;
+        float peakPower = 0f, powerSum = 0f;
+        for (int k = tonalFirstBin; k <= tonalLastBin; k++) {
+            float p = m[k] * m[k];
+            powerSum += p;
+            if (p > peakPower) {
+                peakPower = p;
+                peakBin = k;
+            }
+        }
+        float meanPower = powerSum / (tonalLastBin - tonalFirstBin + 1) + EPSILON;
+        peakiness[i] = peakPower / meanPower;
+        dominantHz[i] = peakBin * binHz;
+    }
+
+    private void classify() {
+        float maxLevel = AudioFeatureFrame.SILENCE_DBFS;
+        for (int i = 0; i < hopCount; i++) {
+            maxLevel = Math.max(maxLevel, levelDb[i]);
+        }
+
+        int active = 0, stablePairs = 0, pairs = 0;
+        float centroid = 0f, flat = 0f, speech = 0f, high = 0f, peaky = 0f, dominant = 0f;
+        int previousActive = -1;
+        boolean burstOn = false;
+        int burstCount = 0;
+        for (int i = 0; i < hopCount; i++) {
+            float level = levelDb[i];
+            if (!burstOn && level >= maxLevel - BURST_ON_DB) {
+                burstOn = true;
+                burstCount++;
+            } else if (burstOn && level < maxLevel - BURST_OFF_DB) {
+                burstOn = false;
+            }
+
+            if (level < maxLevel - ACTIVE_RANGE_DB) {
+                continue;
+            }
+            active++;
+            centroid += centroidHz[i];
+            flat += flatness[i];
+            speech += speechRatio[i];
+            high += highRatio[i];
+            peaky += peakiness[i];
+            dominant += dominantHz[i];
+            if (previousActive == i - 1 && previousActive >= 0) {
+                pairs++;
+                float ref = Math.max(dominantHz[i], binHz);
+                if (Math.abs(dominantHz[i] - dominantHz[i - 1]) / ref < tonalTolerance && peakiness[i] > 10f) {
+                    stablePairs++;
+                }
+            }
+            previousActive = i;
+        }
+
+        float n = Math.max(1, active);
+        meanCentroid = centroid / n;
+        meanFlatness = flat / n;
+        meanSpeech = speech / n;
+        meanHigh = high / n;
+        meanPeakiness = peaky / n;
+        float meanDominant = dominant / n;
+        activeFraction = (float) active / hopCount;
+        tonalStability = pairs > 0 ? (float) stablePairs / pairs : 0f;
+        bursts = burstCount;
+
+        // Spectral cues are combined softly; the temporal shape of each class is a hard gate
+        scores[Label.GLASS_BREAK.ordinal()] = combine(
+                ramp(meanHigh, 0.15f, 0.4f),
+                ramp(meanCentroid, 2500f, 4500f),
+                ramp(onsetJumpDb, 10f, 25f))
+                * (1f - ramp(activeFraction, 0.6f, 0.9f));
+
+        scores[Label.ALARM.ordinal()] = combine(
+                ramp(meanPeakiness, 6f, 25f),
+                ramp(tonalStability, 0.4f, 0.8f),
+                trapezoid(meanDominant, 800f, 1200f, 4500f, 6000f),
+                1f - ramp(meanFlatness, 0.15f, 0.35f))
+                * ramp(activeFraction, 0.4f, 0.8f);
+
+        scores[Label.DOG_BARK.ordinal()] = combine(
+                ramp(onsetJumpDb, 8f, 20f),
+                trapezoid(meanCentroid, 400f, 600f, 2000f, 3000f),
+                ramp(meanSpeech, 0.4f, 0.65f),
+                ramp(meanFlatness, 0.03f, 0.15f))
+                * trapezoid(bursts, 0.5f, 1f, 3f, 5f)
+                * (1f - ramp(activeFraction, 0.6f, 0.9f));
+
+        scores[Label.VOICE.ordinal()] = combine(
+                ramp(meanSpeech, 0.5f, 0.75f),
+                trapezoid(meanCentroid, 250f, 400f, 1800f, 2800f),
+                1f - ramp(meanPeakiness, 40f, 80f),
+                1f - ramp(meanFlatness, 0.2f, 0.4f))
+                * ramp(activeFraction, 0.3f, 0.5f)
+                * trapezoid(bursts, 1.5f, 3f, 8f, 12f);
+
+        label = Label.OTHER;
+        score = 0f;
+        for (Label candidate : Label.values()) {
+            if (candidate != Label.OTHER && scores[candidate.ordinal()] > score) {
+                score = scores[candidate.ordinal()];
+                label = candidate;
+            }
+        }
+        if (score < minScore) {
+            label = Label.OTHER;
+            score = 1f - score;
+        }
+        scores[Label.OTHER.ordinal()] = label == Label.OTHER ? score : 1f - score;
+    }
+
+    /**
+     * Soft AND of several 0..1 factors: geometric mean with a floor, so one weak cue
+     * lowers the score without zeroing it.
+     */
+    private static float combine(float... factors) {
+        double logSum = 0;
+        for (float f : factors) {
+            logSum += Math.log(0.01f + 0.99f * f);
+        }
+        return (float) Math.exp(logSum / factors.length);
+    }
+
+    private static float ramp(float x, float lo, float hi) {
+        if (x <= lo) return 0f;
+        if (x >= hi) return 1f;
+        return (x - lo) / (hi - lo);
+    }
+
+    private static float trapezoid(float x, float lo, float loFull, float hiFull, float hi) {
+        if (x <= lo || x >= hi) return 0f;
+        if (x < loFull) return (x - lo) / (loFull - lo);
+        if (x > hiFull) return (hi - x) / (hi - hiFull);
+        return 1f;
+    }
+
+    /**
+     * Abandon an event in progress, e.g. when capture stops.
+     */
+    public void reset() {
+        collecting = false;
+        hopCount = 0;
+        previousLevelDb = AudioFeatureFrame.SILENCE_DBFS;
+    }
+
+    /**
+     * @param minScore score a class needs to be reported instead of {@link Label#OTHER}
+     */
+    public void setMinScore(float minScore) {
+        this.minScore = Math.max(0f, Math.min(1f, minScore));
+    }
+
+    public boolean isCollecting() {
+        return collecting;
+    }
+
+    public int getWindowHops() {
+        return windowHops;
+    }
+
+    public Label getLabel() {
+        return label;
+    }
+
+    public float getScore() {
+        return score;
+    }
+
+    public float getScore(Label which) {
+        return scores[which.ordinal()];
+    }
+
+    public float getEventMaxRms() {
+        return eventMaxRms;
+    }
+
+    public float getEventMaxRmsDbfs() {
+        return eventMaxRmsDbfs;
+    }
+
+    public float getEventMaxPeakDbfs() {
+        return eventMaxPeakDbfs;
+    }
+
+    public float getEventMaxFlux() {
+        return eventMaxFlux;
+    }
+
+    /** Absolute sample index at the end of the hop that started the last event. */
+    public long getEventTriggerSample() {
+        return eventTriggerSample;
+    }
+
+    /** Window descriptors and class scores of the last event, for logging and tuning. */
+    public String describeLastEvent() {
+        return String.format(Locale.US,
+                "%s (%.2f) centroid=%.0fHz flatness=%.2f speech=%.2f high=%.2f peakiness=%.1f " +
+                        "tonal=%.2f active=%.2f bursts=%d onset=%.1fdB | glass=%.2f alarm=%.2f bark=%.2f voice=%.2f",
+                label.getId(), score, meanCentroid, meanFlatness, meanSpeech, meanHigh, meanPeakiness,
+                tonalStability, activeFraction, bursts, onsetJumpDb,
+                scores[Label.GLASS_BREAK.ordinal()], scores[Label.ALARM.ordinal()],
+                scores[Label.DOG_BARK.ordinal()], scores[Label.VOICE.ordinal()]);
+    }
+}
@@ -0,0 +1,279 @@
+package com.summersoft.heliocam.detection;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Decodes person boxes from a flat YOLOv8 output tensor.
+ *
+ * Works on a flat view of either [1, 4 + classes, anchors] or [1, anchors, 4 + classes].
+ * Only the person class (class 0) is scanned. The best candidates are kept with a
+ * bounded min-heap, sorted, and reduced with greedy IoU non-max suppression.
+ * All working storage is primitive arrays allocated once in the constructor,
+ * so decoding allocates nothing per frame.
+ *
+ * Results are exposed through index accessors and stay valid until the next decode call.
+ */
+public class YoloPersonDecoder {
+
+    private static final int BOX_CHANNELS = 4;
+    private static final int PERSON_CLASS = 0;
+
+    private final int maxCandidates;
+    private final int maxDetections;
+
+    // Top-K min-heap over candidate scores
+    private final int[] heapAnchor;
+    private final float[] heapScore;
+    private int heapSize;
+
+    // Candidates in descending score order, as corner boxes
+    private final float[] candLeft;
+    private final float[] candTop;
+    private final float[] candRight;
+    private final float[] candBottom;
+    private final float[] candScore;
+    private final boolean[] suppressed;
+
+    // Final detections
+    private final float[] left;
+    private final float[] top;
+    private final float[] right;
+    private final float[] bottom;
+    private final float[] score;
+    private int count;
+    private float maxScore;
+
+    /**
+     * @param maxCandidates number of highest-scoring anchors kept before NMS
+     * @param maxDetections upper bound on boxes reported after NMS
+     */
+    public YoloPersonDecoder(int maxCandidates, int maxDetections) {
+        if (maxCandidates <= 0 || maxDetections <= 0) {
+            throw new IllegalArgumentException("Candidate and detection limits must be positive");
+        }
+        this.maxCandidates = maxCandidates;
+        this.maxDetections = Math.min(maxDetections, maxCandidates);
+
+        heapAnchor = new int[maxCandidates];
+        heapScore = new float[maxCandidates];
+
+        candLeft = new float[maxCandidates];
+        candTop = new float[maxCandidates];
+        candRight = new float[maxCandidates];
+        candBottom = new float[maxCandidates];
+        candScore = new float[maxCandidates];
+        suppressed = new boolean[maxCandidates];
+
+        left = new float[this.maxDetections];
+        top = new float[this.maxDetections];
+        right = new float[this.maxDetections];
+        bottom = new float[this.maxDetections];
+        score = new float[this.maxDetections];
+    }
+
+    /**
+     * Decode person detections.
+     *
+     * Box coordinates are returned in model input pixels. Boxes that the model emits
+     * normalised to 0..1 are scaled by the input size.
+     *
+     * @param output         flat output tensor, read with absolute gets from index 0
+     * @param numChannels    4 box values plus one score per class (84 for COCO)
+     * @param numAnchors     number of anchors (8400 at 640x640)
+     * @param channelsFirst  true for [1, channels, anchors], false for [1, anchors, channels]
+     * @param inputWidth     model input width, used for normalised boxes
+     * @param inputHeight    model input height, used for normalised boxes
+     * @param scoreThreshold minimum person score
+     * @param iouThreshold   boxes overlapping a better box by more than this are dropped
+     * @return number of person detections
+     */
+    public int decode(FloatBuffer output, int numChannels, int numAnchors, boolean channelsFirst,
+                      int inputWidth, int inputHeight, float scoreThreshold, float iouThreshold) {
+        count = 0;
+        heapSize = 0;
+        maxScore = 0f;
+
+        if (numChannels <= BOX_CHANNELS + PERSON_CLASS) {
+            return 0;
+        }
+
+        // 1. Person score scan - contiguous when channels come first
+        int scoreOffset = BOX_CHANNELS + PERSON_CLASS;
+        if (channelsFirst) {
+            int base = scoreOffset * numAnchors;
+            for (int i = 0; i < numAnchors; i++) {
+                offerCandidate(i, output.get(base + i), scoreThreshold);
+            }
+        } else {
+            for (int i = 0, idx = scoreOffset; i < numAnchors; i++, idx += numChannels) {
+                offerCandidate(i, output.get(idx), scoreThreshold);
+            }
+        }
+
+        // 2. Pop the heap to get candidates in descending score order
+        int candidates = heapSize;
+        for (int k = candidates - 1; k >= 0; k--) {
+            int anchor = heapAnchor[0];
+            float s = heapScore[0];
+            heapSize--;
+            if (heapSize > 0) {
+                heapAnchor[0] = heapAnchor[heapSize];
+                heapScore[0] = heapScore[heapSize];
+                siftDown(0);
+            }
+
+            float cx, cy, w, h;
+            if (channelsFirst) {
+                cx = output.get(anchor);
+                cy = output.get(numAnchors + anchor);
+                w = output.get(2 * numAnchors + anchor);
+                h = output.get(3 * numAnchors + anchor);
+            } else {
+                int row = anchor * numChannels;
+                cx = output.get(row);
+                cy = output.get(row + 1);
+                w = output.get(row + 2);
+                h = output.get(row + 3);
+            }
+
+            if (cx <= 1f && cy <= 1f && w <= 1f && h <= 1f) {
+                cx *= inputWidth;
+                cy *= inputHeight;
+                w *= inputWidth;
+                h *= inputHeight;
+            }
+
+            candLeft[k] = cx - w / 2;
+            candTop[k] = cy - h / 2;
+            candRight[k] = cx + w / 2;
+            candBottom[k] = cy + h / 2;
+            candScore[k] = s;
+            suppressed[k] = false;
+        }
+
+        // 3. Greedy NMS over the sorted candidates
+        for (int i = 0; i < candidates && count < maxDetections; i++) {
+            if (suppressed[i]) {
+                continue;
+            }
+
+            left[count] = candLeft[i];
+            top[count] = candTop[i];
+            right[count] = candRight[i];
+            bottom[count] = candBottom[i];
+            score[count] = candScore[i];
+            count++;
+
+            for (int j = i + 1; j < candidates; j++) {
+                if (!suppressed[j] && iou(i, j) > iouThreshold) {
+                    suppressed[j] = true;
+                }
+            }
+        }
+
+        return count;
+    }
+
+    private void offerCandidate(int anchor, float s, float threshold) {
+        if (s > maxScore) {
+            maxScore = s;
+        }
+        if (s <= threshold) {
+            return;
+        }
+
+        if (heapSize < maxCandidates) {
+            int i = heapSize++;
+            heapAnchor[i] = anchor;
+            heapScore[i] = s;
+            // Sift up
+            while (i > 0) {
+                int parent = (i - 1) >> 1;
+                if (heapScore[parent] <= heapScore[i]) {
+                    break;
+                }
+                swap(i, parent);
+                i = parent;
+            }
+        } else if (s > heapScore[0]) {
+            heapAnchor[0] = anchor;
+            heapScore[0] = s;
+            siftDown(0);
+        }
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            int l = 2 * i + 1;
+            if (l >= heapSize) {
+                return;
+            }
+            int smallest = l;
+            int r = l + 1;
+            if (r < heapSize && heapScore[r] < heapScore[l]) {
+                smallest = r;
+            }
+            if (heapScore[i] <= heapScore[smallest]) {
+                return;
+            }
+            swap(i, smallest);
+            i = smallest;
+        }
+    }
+
+    private void swap(int a, int b) {
+        int anchor = heapAnchor[a];
+        heapAnchor[a] = heapAnchor[b];
+        heapAnchor[b] = anchor;
+        float s = heapScore[a];
+        heapScore[a] = heapScore[b];
+        heapScore[b] = s;
+    }
+
+    private float iou(int a, int b) {
+        float ix = Math.min(candRight[a], candRight[b]) - Math.max(candLeft[a], candLeft[b]);
+        float iy = Math.min(candBottom[a], candBottom[b]) - Math.max(candTop[a], candTop[b]);
+        if (ix <= 0f || iy <= 0f) {
+            return 0f;
+        }
+        float intersection = ix * iy;
+        float areaA = (candRight[a] - candLeft[a]) * (candBottom[a] - candTop[a]);
+        float areaB = (candRight[b] - candLeft[b]) * (candBottom[b] - candTop[b]);
+        float union = areaA + areaB - intersection;
+        return union > 0f ? intersection / union : 0f;
+    }
+
+    /**
+     * Number of detections from the last decode call.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Highest person score seen in the last decode call, including anchors below threshold.
+     */
+    public float getMaxScore() {
+        return maxScore;
+    }
+
+    public float getLeft(int i) {
+        return left[i];
+    }
+
+    public float getTop(int i) {
+        return top[i];
+    }
+
+    public float getRight(int i) {
+        return right[i];
+    }
+
+    public float getBottom(int i) {
+        return bottom[i];
+    }
+
+    public float getScore(int i) {
+        return score[i];
+    }
+}
@@ -0,0 +1,463 @@
+package com.summersoft.heliocam.notifs;
+
+import android.util.Log;
+
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.FirebaseDatabase;
+import com.google.firebase.database.Query;
+import com.summersoft.heliocam.webrtc_utils.SessionDirectory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Newest-first, paged feed over a user's notification sources: their universal notifications
+ * and the notifications and detection events of each session they host.
+ *
+ * Every source is read a page at a time with {@code orderByKey().limitToLast(n)} (keys are
+ * timestamps), and the pages are combined with a k-way merge, so a page costs one small query
+ * per source no matter how much history there is. The feed remembers the newest key of each
+ * source; {@link #refresh} fetches only what was added since. The same event is stored under
+ * the same key in several sources, so entries are de-duplicated by key, keeping the richest copy.
+ *
+ * Firebase calls back on the main thread, so the feed must only be used from it.
+ */
+public class NotificationFeed {
+    private static final String TAG = "NotificationFeed";
+
+    public static final int DEFAULT_PAGE_SIZE = 50;
+
+    /**
+     * Where an entry came from, in order of preference when the same key is in several sources.
+     */
+    public enum SourceType {
+        SESSION_NOTIFICATION,
+        UNIVERSAL,
+        DETECTION_EVENT
+    }
+
+    /**
+     * One notification as read from Firebase
+     */
+    public static final class Entry {
+        public final String key;
+        public final SourceType type;
+        public final String sessionKey;
+        public final String sessionName;
+        public final DataSnapshot snapshot;
+
+        Entry(String key, SourceType type, String sessionKey, String sessionName, DataSnapshot snapshot) {
+            this.key = key;
+            this.type = type;
+            this.sessionKey = sessionKey;
+            this.sessionName = sessionName;
+            this.snapshot = snapshot;
+        }
+    }
+
+    public interface PageListener {
+        /**
+         * @param entries new entries, newest first
+         * @param hasMore whether older entries remain for {@link #loadNextPage}
+         */
+        void onPage(List<Entry> entries, boolean hasMore);
+    }
+
+    private static final class Source {
+        final DatabaseReference ref;
+        final SourceType type;
+        final String sessionKey;
+        String sessionName;
+        // Fetched but not yet emitted, newest first
+        final ArrayDeque<Entry> buffer = new ArrayDeque<>();
+        String oldestKey;
+        String newestKey;
+        boolean exhausted;
+
+        Source(DatabaseReference ref, SourceType type, String sessionKey, String sessionName) {
+            this.ref = ref;
+            this.type = type;
+            this.sessionKey = sessionKey;
+            this.sessionName = sessionName;
+        }
+    }
+
+    private final String formattedEmail;
+    private final int pageSize;
+    private final Map<String, Source> sources = new HashMap<>();
+    private final Set<String> emittedKeys = new HashSet<>();
+    private boolean started = false;
+    private boolean busy = false;
+
+    /**
+     * @param formattedEmail user email with '.' replaced by '_'
+     */
+    public NotificationFeed(String formattedEmail, int pageSize) {
+        this.formattedEmail = formattedEmail;
+        this.pageSize = Math.max(1, pageSize);
+    }
+
+    public String getFormattedEmail() {
+        return formattedEmail;
+    }
+
+    public boolean isStarted() {
+        return started;
+    }
+
+    public boolean isBusy() {
+        return busy;
+    }
+
+    /**
+     * Whether older entries remain, fetched or not
+     */
+    public boolean hasMore() {
+        for (Source source : sources.values()) {
+            if (!source.exhausted || !source.buffer.isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Keys of the user's hosted sessions, as known to the feed
+     */
+    public List<String> getSessionKeys() {
+        List<String> keys = new ArrayList<>();
+        for (Source source : sources.values()) {
+            if (source.type == SourceType.SESSION_NOTIFICATION) {
+                keys.add(source.sessionKey);
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Load the newest page, discarding anything loaded before
+     */
+    public void loadFirstPage(PageListener listener) {
+        if (busy) {
+            Log.d(TAG, "Feed busy, ignoring first page request");
+            return;
+        }
+        busy = true;
+        sources.clear();
+        emittedKeys.clear();
+        started = true;
+
+        DatabaseReference userRef = FirebaseDatabase.getInstance().getReference("users").child(formattedEmail);
+        addSource(new Source(userRef.child("universal_notifications"), SourceType.UNIVERSAL, null, null));
+        syncSessions(() -> fillPage(new ArrayList<>(), listener));
+    }
+
+    /**
+     * Load the next older page
+     */
+    public void loadNextPage(PageListener listener) {
+        if (busy || !started) {
+            return;
+        }
+        busy = true;
+        fillPage(new ArrayList<>(), listener);
+    }
+
+    /**
+     * Fetch only entries added since the newest one seen, plus those of sessions created since
+     */
+    public void refresh(PageListener listener) {
+        if (busy) {
+            return;
+        }
+        if (!started) {
+            loadFirstPage(listener);
+            return;
+        }
+        busy = true;
+
+        syncSessions(() -> {
+            List<Entry> added = new ArrayList<>();
+            List<Source> targets = new ArrayList<>(sources.values());
+            int[] pending = {targets.size()};
+            if (targets.isEmpty()) {
+                finish(added, listener);
+                return;
+            }
+            Runnable done = () -> {
+                if (--pending[0] == 0) {
+                    finish(mergeAll(added), listener);
+                }
+            };
+            for (Source source : targets) {
+                if (source.newestKey == null) {
+                    // Never had entries (or was just added): its newest page is all new
+                    source.buffer.clear();
+                    source.oldestKey = null;
+                    source.exhausted = false;
+                    fetchOlder(source, () -> {
+                        added.addAll(source.buffer);
+                        source.buffer.clear();
+                        done.run();
+                    });
+                } else {
+                    fetchNewer(source, added, done);
+                }
+            }
+        });
+    }
+
+    private void finish(List<Entry> entries, PageListener listener) {
+        List<Entry> fresh = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+            if (emittedKeys.add(entry.key)) {
+                fresh.add(entry);
+            }
+        }
+        busy = false;
+        Log.d(TAG, "Delta sync: " + fresh.size() + " new entries");
+        listener.onPage(fresh, hasMore());
+    }
+
+    /**
+     * Bring the session sources in line with the session directory: one small keyed read
+     */
+    private void syncSessions(Runnable then) {
+        SessionDirectory.reference(formattedEmail).get().addOnCompleteListener(task -> {
+            if (!task.isSuccessful()) {
+                Log.w(TAG, "Could not read session directory", task.getException());
+                then.run();
+                return;
+            }
+
+            Set<String> current = new HashSet<>();
+            DatabaseReference sessionsRef = FirebaseDatabase.getInstance().getReference("users")
+                    .child(formattedEmail).child("sessions");
+            for (DataSnapshot session : task.getResult().getChildren()) {
+                String sessionKey = session.getKey();
+                if (sessionKey == null) {
+                    continue;
+                }
+                String name = session.child("session_name").getValue(String.class);
+                if (name == null) {
+                    name = "Unknown Session";
+                }
+                current.add(sessionKey);
+                Source notifications = sources.get(sourceId(SourceType.SESSION_NOTIFICATION, sessionKey));
+                if (notifications == null) {
+                    addSource(new Source(sessionsRef.child(sessionKey).child("notifications"),
+                            SourceType.SESSION_NOTIFICATION, sessionKey, name));
+                    addSource(new Source(sessionsRef.child(sessionKey).child("detection_events"),
+                            SourceType.DETECTION_EVENT, sessionKey, name));
+                } else {
+                    notifications.sessionName = name;
+                    sources.get(sourceId(SourceType.DETECTION_EVENT, sessionKey)).sessionName = name;
+                }
+            }
+
+            // Ended sessions take their notifications with them
+            for (Iterator<Source> it = sources.values().iterator(); it.hasNext(); ) {
+                Source source = it.next();
+                if (source.sessionKey != null && !current.contains(source.sessionKey)) {
+                    it.remove();
+                }
+            }
+            then.run();
+        });
+    }
+
+    private void addSource(Source source) {
+        sources.put(sourceId(source.type, source.sessionKey), source);
+    }
+
+    private static String sourceId(SourceType type, String sessionKey) {
+        return type.name() + "/" + (sessionKey != null ? sessionKey : "");
+    }
+
+    /**
+     * Merge until the page is full, fetching the next page of any source that runs dry first
+     */
+    private void fillPage(List<Entry> page, PageListener listener) {
+        List<Source> dry = new ArrayList<>();
+        for (Source source : sources.values()) {
+            if (source.buffer.isEmpty() && !source.exhausted) {
+                dry.add(source);
+            }
+        }
+
+        if (!dry.isEmpty()) {
+            int[] pending = {dry.size()};
+            for (Source source : dry) {
+                fetchOlder(source, () -> {
+                    if (--pending[0] == 0) {
+                        fillPage(page, listener);
+                    }
+                });
+            }
+            return;
+        }
+
+        boolean ranDry = merge(page);
+        if (ranDry && page.size() < pageSize) {
+            fillPage(page, listener);
+            return;
+        }
+        busy = false;
+        listener.onPage(page, hasMore());
+    }
+
+    /**
+     * K-way merge of the source buffers into the page, newest first. Stops when the page is full
+     * or when a source that may hold more runs dry, since its unfetched entries could come next.
+     *
+     * @return true if it stopped because a source ran dry
+     */
+    private boolean merge(List<Entry> page) {
+        PriorityQueue<Source> heads = new PriorityQueue<>(Math.max(1, sources.size()),
+                (a, b) -> compareEntries(a.buffer.peekFirst(), b.buffer.peekFirst()));
+        for (Source source : sources.values()) {
+            if (!source.buffer.isEmpty()) {
+                heads.add(source);
+            }
+        }
+
+        while (page.size() < pageSize && !heads.isEmpty()) {
+            Source source = heads.poll();
+            Entry entry = source.buffer.pollFirst();
+            // Equal keys come out in source preference order; later copies are dropped
+            if (emittedKeys.add(entry.key)) {
+                page.add(entry);
+            }
+            if (!source.buffer.isEmpty()) {
+                heads.add(source);
+            } else if (!source.exhausted) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Merge complete lists (e.g. deltas) newest first
+     */
+    private static List<Entry> mergeAll(List<Entry> entries) {
+        List<Entry> sorted = new ArrayList<>(entries);
+        Collections.sort(sorted, NotificationFeed::compareEntries);
+        return sorted;
+    }
+
+    /**
+     * Newest key first; for equal keys the preferred source first
+     */
+    static int compareEntries(Entry a, Entry b) {
+        int byKey = compareKeys(b.key, a.key);
+        return byKey != 0 ? byKey : a.type.compareTo(b.type);
+    }
+
+    /**
+     * Key order as Firebase sorts them: numeric keys by value, others as strings
+     */
+    static int compareKeys(String a, String b) {
+        boolean numericA = isNumeric(a);
+        boolean numericB = isNumeric(b);
+        if (numericA && numericB && a.length() != b.length()) {
+            return Integer.compare(a.length(), b.length());
+        }
+        if (numericA != numericB) {
+            return numericA ? -1 : 1;
+        }
+        return a.compareTo(b);
+    }
+
+    private static boolean isNumeric(String key) {
+        if (key.isEmpty() || key.length() > 18) {
+            return false;
+        }
+        for (int i = 0; i < key.length(); i++) {
+            if (!Character.isDigit(key.charAt(i))) {
+                return false;
+            }
+        }
+        return key.length() == 1 || key.charAt(0) != '0';
+    }
+
+    /**
+     * Read the page of the source older than anything read from it so far
+     */
+    private void fetchOlder(Source source, Runnable done) {
+        Query query = source.ref.orderByKey();
+        if (source.oldestKey != null) {
+            query = query.endBefore(source.oldestKey);
+        }
+        query.limitToLast(pageSize).get().addOnCompleteListener(task -> {
+            if (!task.isSuccessful()) {
+                Log.w(TAG, "Failed to read " + source.ref.getKey() + " of " + source.sessionKey, task.getException());
+                // Give up on this source for this feed rather than retrying forever
+                source.exhausted = true;
+                done.run();
+                return;
+            }
+
+            List<Entry> page = toEntries(source, task.getResult());
+            // Ascending from Firebase; the buffer is newest first
+            for (int i = page.size() - 1; i >= 0; i--) {
+                source.buffer.addLast(page.get(i));
+            }
+            if (!page.isEmpty()) {
+                source.oldestKey = page.get(0).key;
+                if (source.newestKey == null) {
+                    source.newestKey = page.get(page.size() - 1).key;
+                }
+            }
+            if (page.size() < pageSize) {
+                source.exhausted = true;
+            }
+            done.run();
+        });
+    }
+
+    /**
+     * Read the entries added to the source after the newest one seen, oldest first a page at
+     * a time until a short page shows nothing newer is left, so a burst larger than a page
+     * leaves no gap
+     */
+    private void fetchNewer(Source source, List<Entry> into, Runnable done) {
+        source.ref.orderByKey().startAfter(source.newestKey).limitToFirst(pageSize).get()
+                .addOnCompleteListener(task -> {
+                    if (!task.isSuccessful()) {
+                        Log.w(TAG, "Failed to refresh " + source.ref.getKey(), task.getException());
+                        done.run();
+                        return;
+                    }
+                    List<Entry> delta = toEntries(source, task.getResult());
+                    if (!delta.isEmpty()) {
+                        source.newestKey = delta.get(delta.size() - 1).key;
+                        into.addAll(delta);
+                    }
+                    if (delta.size() < pageSize) {
+                        done.run();
+                    } else {
+                        fetchNewer(source, into, done);
+                    }
+                });
+    }
+
+    private static List<Entry> toEntries(Source source, DataSnapshot snapshot) {
+        List<Entry> entries = new ArrayList<>((int) snapshot.getChildrenCount());
+        for (DataSnapshot child : snapshot.getChildren()) {
+            if (child.getKey() != null) {
+                entries.add(new Entry(child.getKey(), source.type, source.sessionKey, source.sessionName, child));
+            }
+        }
+        return entries;
+    }
+}
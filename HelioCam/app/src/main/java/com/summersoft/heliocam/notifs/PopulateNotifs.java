@@ -18,19 +18,19 @@ import androidx.fragment.app.Fragment;
 import com.google.firebase.auth.FirebaseAuth;
 import com.google.firebase.auth.FirebaseUser;
 import com.google.firebase.database.DataSnapshot;
-import com.google.firebase.database.DatabaseError;
 import com.google.firebase.database.DatabaseReference;
 import com.google.firebase.database.FirebaseDatabase;
-import com.google.firebase.database.ValueEventListener;
 import com.summersoft.heliocam.R;
 import com.summersoft.heliocam.ui.NotificationFragment;
 import com.summersoft.heliocam.ui.NotificationSettings;
+import com.summersoft.heliocam.webrtc_utils.SessionDirectory;
 
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -43,21 +43,38 @@ public class PopulateNotifs {
     private static final String SHOWN_NOTIFICATIONS_KEY = "shown_notifications";
     private static final String DELETED_NOTIFICATIONS_KEY = "deleted_notifs";
     
-    // Limit the number of notifications to prevent performance issues
-    private static final int MAX_NOTIFICATIONS = 50;    private List<String> sessionKeys = new ArrayList<>();
-    private final Map<String, NotificationData> notificationMap = new HashMap<>();
+    // Notifications per page of the feed
+    private static final int MAX_NOTIFICATIONS = NotificationFeed.DEFAULT_PAGE_SIZE;
+    private List<String> sessionKeys = new ArrayList<>();
+    // Loaded notifications, newest first
+    private final Map<String, NotificationData> notificationMap = new LinkedHashMap<>();
+    private NotificationFeed feed;
     private static PopulateNotifs activeInstance;
     
     // Add a flag to prevent multiple simultaneous fetches
     private volatile boolean isCurrentlyFetching = false;
     
     // Add a flag to track if we need to refresh
-    private volatile boolean needsRefresh = false;    public void startPopulatingNotifs(Context context, ViewGroup notificationContainer) {
+    private volatile boolean needsRefresh = false;
+
+    /**
+     * Show the notification feed. The first call loads the newest page; later calls for the
+     * same user only fetch what was added since and redraw.
+     */
+    public void startPopulatingNotifs(Context context, ViewGroup notificationContainer) {
         // Null check at the beginning
         if (context == null || notificationContainer == null) {
             Log.e(TAG, "Cannot populate notifications with null context or container");
             return;
         }
+
+        FirebaseUser currentUser = FirebaseAuth.getInstance().getCurrentUser();
+        if (currentUser == null || currentUser.getEmail() == null) {
+            Log.w(TAG, "No user logged in");
+            showEmptyState(context, notificationContainer);
+            return;
+        }
+        String formattedEmail = currentUser.getEmail().replace(".", "_");
         
         // Prevent multiple simultaneous fetches with synchronized block
         synchronized (this) {
@@ -74,34 +91,139 @@ public class PopulateNotifs {
         // Set the active instance to this one
         activeInstance = this;
 
-        // Clear previous views
-        notificationContainer.removeAllViews();
-
-        // Clear previous notification data
-        notificationMap.clear();
-
         // Show loading indicator
         showLoadingState(context, notificationContainer, true);
 
-        fetchSessionKeys(new Callback() {
-            @Override
-            public void onSessionKeysFetched() {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        Set<String> deletedNotifs = prefs.getStringSet(DELETED_NOTIFICATIONS_KEY, new HashSet<>());
+
+        if (feed == null || !feed.getFormattedEmail().equals(formattedEmail)) {
+            // First load for this user: newest page of every source, merged
+            feed = new NotificationFeed(formattedEmail, MAX_NOTIFICATIONS);
+            notificationMap.clear();
+            feed.loadFirstPage((entries, hasMore) -> {
                 try {
-                    if (sessionKeys.isEmpty()) {
-                        // If no sessions found, show empty state
-                        showEmptyState(context, notificationContainer);
-                    } else {
-                        fetchNotificationsForSessions(context, notificationContainer);
+                    for (NotificationFeed.Entry entry : entries) {
+                        processEntry(context, entry, deletedNotifs);
                     }
+                    sessionKeys = feed.getSessionKeys();
+                    Log.d(TAG, "Loaded " + entries.size() + " notifications, more: " + hasMore);
+                    displayNotifications(context, notificationContainer);
                 } finally {
                     synchronized (PopulateNotifs.this) {
                         isCurrentlyFetching = false;
                     }
                 }
+            });
+        } else {
+            // Delta sync: only entries newer than the newest seen, shown above the loaded ones
+            feed.refresh((entries, hasMore) -> {
+                try {
+                    Map<String, NotificationData> loaded = new LinkedHashMap<>(notificationMap);
+                    notificationMap.clear();
+                    for (NotificationFeed.Entry entry : entries) {
+                        processEntry(context, entry, deletedNotifs);
+                    }
+                    for (Map.Entry<String, NotificationData> old : loaded.entrySet()) {
+                        if (!notificationMap.containsKey(old.getKey()) && !deletedNotifs.contains(old.getKey())) {
+                            notificationMap.put(old.getKey(), old.getValue());
+                        }
+                    }
+                    sessionKeys = feed.getSessionKeys();
+                    displayNotifications(context, notificationContainer);
+                } finally {
+                    synchronized (PopulateNotifs.this) {
+                        isCurrentlyFetching = false;
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Append the next older page of notifications below the ones shown, e.g. when the list is
+     * scrolled to the end.
+     */
+    public void loadMoreNotifs(Context context, ViewGroup notificationContainer) {
+        if (context == null || notificationContainer == null || feed == null || !feed.hasMore()) {
+            return;
+        }
+        synchronized (this) {
+            if (isCurrentlyFetching) {
+                return;
+            }
+            isCurrentlyFetching = true;
+        }
+
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        Set<String> deletedNotifs = prefs.getStringSet(DELETED_NOTIFICATIONS_KEY, new HashSet<>());
+
+        feed.loadNextPage((entries, hasMore) -> {
+            try {
+                List<NotificationData> added = new ArrayList<>();
+                for (NotificationFeed.Entry entry : entries) {
+                    if (notificationMap.containsKey(entry.key)) {
+                        continue;
+                    }
+                    processEntry(context, entry, deletedNotifs);
+                    NotificationData notification = notificationMap.get(entry.key);
+                    if (notification != null) {
+                        added.add(notification);
+                    }
+                }
+                Log.d(TAG, "Loaded " + added.size() + " older notifications, more: " + hasMore);
+                LayoutInflater inflater = LayoutInflater.from(context);
+                for (NotificationData notification : added) {
+                    addNotificationCard(context, inflater, notificationContainer, notification);
+                }
+            } finally {
+                synchronized (PopulateNotifs.this) {
+                    isCurrentlyFetching = false;
+                }
             }
         });
     }
 
+    public boolean hasMoreNotifs() {
+        return feed != null && feed.hasMore();
+    }
+
+    /**
+     * Turn a feed entry into a notification, unless the user deleted it
+     */
+    private void processEntry(Context context, NotificationFeed.Entry entry, Set<String> deletedNotifs) {
+        if (deletedNotifs.contains(entry.key)) {
+            return;
+        }
+        switch (entry.type) {
+            case UNIVERSAL:
+                processUniversalNotification(entry.key, entry.snapshot);
+                break;
+            case SESSION_NOTIFICATION:
+                processSessionNotification(entry.key, entry.snapshot, entry.sessionName);
+                break;
+            case DETECTION_EVENT:
+                processDetectionEvent(context, entry.key, entry.snapshot, entry.sessionName);
+                break;
+        }
+    }
+
+    private void processUniversalNotification(String notificationId, DataSnapshot notificationSnapshot) {
+        String reason = notificationSnapshot.child("reason").getValue(String.class);
+        String time = notificationSnapshot.child("time").getValue(String.class);
+        String date = notificationSnapshot.child("date").getValue(String.class);
+
+        if (reason != null && time != null && date != null) {
+            NotificationData notification = new NotificationData(
+                    notificationId,
+                    reason,  // No session name needed
+                    date,
+                    time
+            );
+            notificationMap.put(notificationId, notification);
+        }
+    }
+
     // Add this static method to get the active instance or create a new one
     public static PopulateNotifs getInstance() {
         if (activeInstance == null) {
@@ -159,11 +281,9 @@ public class PopulateNotifs {
         }
 
         String formattedEmail = email.replace(".", "_");
-        DatabaseReference userRef = FirebaseDatabase.getInstance()
-                .getReference("users")
-                .child(formattedEmail);
 
-        userRef.get().addOnCompleteListener(task -> {
+        // Only the session directory: the sessions themselves hold every notification
+        SessionDirectory.reference(formattedEmail).get().addOnCompleteListener(task -> {
             sessionKeys.clear(); // Clear previous session keys
 
             if (!task.isSuccessful()) {
@@ -172,212 +292,16 @@ public class PopulateNotifs {
                 return;
             }
 
-            DataSnapshot userSnapshot = task.getResult();
-            if (!userSnapshot.exists()) {
-                Log.w(TAG, "No data found for user.");
-                callback.onSessionKeysFetched();
-                return;
-            }
-
-            // First, prioritize sessions directly from sessions node (where hosts store their sessions)
-            DataSnapshot sessionsNode = userSnapshot.child("sessions");
-            if (sessionsNode.exists()) {
-                for (DataSnapshot sessionSnap : sessionsNode.getChildren()) {
-                    String sessionKey = sessionSnap.getKey();
-                    if (sessionKey != null) {
-                        sessionKeys.add(sessionKey);
-                    }
-                }
-            }
-
-            String currentDeviceInfo = android.os.Build.MANUFACTURER + " " + android.os.Build.DEVICE;
-
-            // Then fetch sessions from device-specific login info nodes (where joiners store session references)
-            for (DataSnapshot loginInfo : userSnapshot.getChildren()) {
-                String key = loginInfo.getKey();
-                if (key != null && key.startsWith("logininfo_")) {
-                    String deviceName = loginInfo.child("deviceName").getValue(String.class);
-                    if (currentDeviceInfo.equals(deviceName)) {
-                        DataSnapshot sessions = loginInfo.child("sessions_added");
-                        if (sessions.exists()) {
-                            for (DataSnapshot session : sessions.getChildren()) {
-                                String sessionKey = session.getKey();
-                                if (sessionKey != null && !sessionKeys.contains(sessionKey)) {
-                                    sessionKeys.add(sessionKey);
-                                }
-                            }
-                        }
-                    }
+            for (DataSnapshot sessionSnap : task.getResult().getChildren()) {
+                String sessionKey = sessionSnap.getKey();
+                if (sessionKey != null) {
+                    sessionKeys.add(sessionKey);
                 }
             }
 
             Log.d(TAG, "Fetched " + sessionKeys.size() + " session keys");
             callback.onSessionKeysFetched();
         });
-    }
-
-    private void fetchNotificationsForSessions(Context context, ViewGroup notificationContainer) {
-        FirebaseUser currentUser = FirebaseAuth.getInstance().getCurrentUser();
-        if (currentUser == null || currentUser.getEmail() == null) {
-            showEmptyState(context, notificationContainer);
-            return;
-        }
-
-        String email = currentUser.getEmail();
-        String formattedEmail = email.replace(".", "_");
-        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
-        Set<String> deletedNotifs = prefs.getStringSet(DELETED_NOTIFICATIONS_KEY, new HashSet<>());
-
-        Log.d(TAG, "Checking for notifications for user: " + formattedEmail);
-
-        // Set pending requests counter: sessions + 1 for universal notifications
-        final int[] pendingRequests = {sessionKeys.size() + 1};
-
-        // ALWAYS check universal notifications first
-        DatabaseReference universalNotificationsRef = FirebaseDatabase.getInstance()
-                .getReference("users")
-                .child(formattedEmail)
-                .child("universal_notifications");
-
-        universalNotificationsRef.addListenerForSingleValueEvent(new ValueEventListener() {
-            @Override
-            public void onDataChange(DataSnapshot universalSnapshot) {
-                Log.d(TAG, "Universal notifications data received");
-                if (universalSnapshot.exists()) {
-                    int count = 0;
-                    for (DataSnapshot notificationSnapshot : universalSnapshot.getChildren()) {
-                        String notificationId = notificationSnapshot.getKey();
-                        if (notificationId != null && !deletedNotifs.contains(notificationId)) {
-                            String reason = notificationSnapshot.child("reason").getValue(String.class);
-                            String time = notificationSnapshot.child("time").getValue(String.class);
-                            String date = notificationSnapshot.child("date").getValue(String.class);
-
-                            if (reason != null && time != null && date != null) {
-                                NotificationData notification = new NotificationData(
-                                        notificationId,
-                                        reason,  // No session name needed
-                                        date,
-                                        time
-                                );
-                                notificationMap.put(notificationId, notification);
-                                count++;
-                            }
-                        }
-                    }
-                    Log.d(TAG, "Found " + count + " universal notifications");
-                } else {
-                    Log.d(TAG, "No universal notifications found");
-                }
-
-                pendingRequests[0]--;
-                if (pendingRequests[0] == 0) {
-                    displayNotifications(context, notificationContainer);
-                }
-            }
-
-            @Override
-            public void onCancelled(DatabaseError error) {
-                Log.e(TAG, "Error fetching universal notifications: " + error.getMessage());
-                pendingRequests[0]--;
-                if (pendingRequests[0] == 0) {
-                    displayNotifications(context, notificationContainer);
-                }
-            }
-        });
-
-        // THEN check session-specific notifications
-        if (!sessionKeys.isEmpty()) {
-            for (String sessionKey : sessionKeys) {
-                Log.d(TAG, "Checking session: " + sessionKey);
-                
-                // Get session reference
-                DatabaseReference sessionRef = FirebaseDatabase.getInstance()
-                        .getReference("users")
-                        .child(formattedEmail)
-                        .child("sessions")
-                        .child(sessionKey);
-
-                sessionRef.addListenerForSingleValueEvent(new ValueEventListener() {                    @Override
-                    public void onDataChange(DataSnapshot sessionSnapshot) {
-                        if (!sessionSnapshot.exists()) {
-                            Log.d(TAG, "Session not found in sessions node, checking logininfo for session: " + sessionKey);
-                            // Try to find session name in login info nodes as fallback
-                            findSessionNameInLoginInfo(formattedEmail, sessionKey, (fallbackSessionName) -> {
-                                String finalSessionName = fallbackSessionName != null ? fallbackSessionName : "Unknown Session";
-                                if (fallbackSessionName == null) {
-                                    Log.w(TAG, "Session name not found in any location for session: " + sessionKey + ", using fallback: " + finalSessionName);
-                                } else {
-                                    Log.d(TAG, "Fallback session name found: " + finalSessionName + " for session: " + sessionKey);
-                                }
-                                processSessionNotificationsWithName(sessionSnapshot, sessionKey, finalSessionName, formattedEmail, deletedNotifs, pendingRequests, context, notificationContainer);
-                            });
-                            return;
-                        }
-
-                        String sessionName = sessionSnapshot.child("session_name").getValue(String.class);
-                        if (sessionName == null) {
-                            Log.d(TAG, "Session name is null in sessions node, checking logininfo for session: " + sessionKey);
-                            // Try to find session name in login info nodes as fallback
-                            findSessionNameInLoginInfo(formattedEmail, sessionKey, (fallbackSessionName) -> {
-                                String finalSessionName = fallbackSessionName != null ? fallbackSessionName : "Unknown Session";
-                                if (fallbackSessionName == null) {
-                                    Log.w(TAG, "Session name not found in any location for session: " + sessionKey + ", using fallback: " + finalSessionName);
-                                } else {
-                                    Log.d(TAG, "Fallback session name found: " + finalSessionName + " for session: " + sessionKey);
-                                }
-                                processSessionNotificationsWithName(sessionSnapshot, sessionKey, finalSessionName, formattedEmail, deletedNotifs, pendingRequests, context, notificationContainer);
-                            });
-                            return;
-                        }
-
-                        Log.d(TAG, "Using session name found in primary location: " + sessionName + " for session: " + sessionKey);                        // ONLY check the notifications path that web app uses
-                        DataSnapshot notifications = sessionSnapshot.child("notifications");
-                        if (notifications.exists()) {
-                            Log.d(TAG, "Found notifications for session: " + sessionName + ", count: " + notifications.getChildrenCount());
-                            
-                            for (DataSnapshot notificationSnapshot : notifications.getChildren()) {
-                                String notificationId = notificationSnapshot.getKey();
-                                if (notificationId != null && !deletedNotifs.contains(notificationId)) {
-                                    // Process these as enhanced notifications
-                                    processSessionNotification(notificationId, notificationSnapshot, sessionName);
-                                }
-                            }
-                        } else {
-                            Log.d(TAG, "No notifications found for session: " + sessionName);
-                        }
-
-                        // Also check detection_events path
-                        DataSnapshot detectionEvents = sessionSnapshot.child("detection_events");
-                        if (detectionEvents.exists()) {
-                            Log.d(TAG, "Found detection events for session: " + sessionName + ", count: " + detectionEvents.getChildrenCount());
-                            
-                            for (DataSnapshot eventSnapshot : detectionEvents.getChildren()) {
-                                String eventId = eventSnapshot.getKey();
-                                if (eventId != null && !deletedNotifs.contains(eventId)) {
-                                    processDetectionEvent(context, eventId, eventSnapshot, sessionName);
-                                }
-                            }
-                        }
-
-                        pendingRequests[0]--;
-                        if (pendingRequests[0] == 0) {
-                            displayNotifications(context, notificationContainer);
-                        }
-                    }
-
-                    @Override
-                    public void onCancelled(DatabaseError databaseError) {
-                        Log.e(TAG, "Error fetching session details: " + databaseError.getMessage());
-                        pendingRequests[0]--;
-                        if (pendingRequests[0] == 0) {
-                            displayNotifications(context, notificationContainer);
-                        }
-                    }
-                });
-            }
-        } else {
-            Log.d(TAG, "No sessions found, but still checking universal notifications");
-        }
     }    // Enhanced displayNotifications method with performance optimizations
     private void displayNotifications(Context context, ViewGroup notificationContainer) {
         showLoadingState(context, notificationContainer, false);
@@ -388,93 +312,88 @@ public class PopulateNotifs {
             return;
         }
 
-        // Sort notifications by id (newest first since they're timestamp-based) and limit to MAX_NOTIFICATIONS
-        List<NotificationData> sortedNotifications = new ArrayList<>(notificationMap.values());
-        sortedNotifications.sort((n1, n2) -> n2.id.compareTo(n1.id));
-        
-        // Limit notifications to prevent performance issues
-        if (sortedNotifications.size() > MAX_NOTIFICATIONS) {
-            Log.d(TAG, "Limiting notifications from " + sortedNotifications.size() + " to " + MAX_NOTIFICATIONS);
-            sortedNotifications = sortedNotifications.subList(0, MAX_NOTIFICATIONS);
+        // Already newest first, one entry per loaded page item
+        LayoutInflater inflater = LayoutInflater.from(context);
+        for (NotificationData notification : notificationMap.values()) {
+            addNotificationCard(context, inflater, notificationContainer, notification);
         }
+    }
 
-        LayoutInflater inflater = LayoutInflater.from(context);
+    private void addNotificationCard(Context context, LayoutInflater inflater, ViewGroup notificationContainer,
+                                     NotificationData notification) {
+        try {
+            // Inflate the layout
+            View notificationCard = inflater.inflate(R.layout.notifications_card, notificationContainer, false);
 
-        for (NotificationData notification : sortedNotifications) {
-            try {
-                // Inflate the layout
-                View notificationCard = inflater.inflate(R.layout.notifications_card, notificationContainer, false);
-
-                // Get the inner LinearLayout that has the proper styling
-                LinearLayout innerLayout = (LinearLayout) ((ViewGroup) notificationCard).getChildAt(0);
-
-                // Remove it from the CardView parent
-                ((ViewGroup) notificationCard).removeView(innerLayout);
-
-                // Set margins for the inner layout
-                LinearLayout.LayoutParams params = new LinearLayout.LayoutParams(
-                        LinearLayout.LayoutParams.MATCH_PARENT,
-                        LinearLayout.LayoutParams.WRAP_CONTENT
-                );
-                params.setMargins(8, 8, 8, 8);
-                innerLayout.setLayoutParams(params);
-
-                // Access views within the inner layout with null checks
-                TextView titleView = innerLayout.findViewById(R.id.notification_title);
-                TextView dateView = innerLayout.findViewById(R.id.notification_date);
-                TextView timeView = innerLayout.findViewById(R.id.notification_time);
-                ImageView notificationIcon = innerLayout.findViewById(R.id.notification_icon);
-                View deleteButton = innerLayout.findViewById(R.id.delete_button);
-                
-                // Set icon based on notification type with enhanced detection
-                String detectionType = "unknown";
-                if (notification.metadata != null && notification.metadata.containsKey("detectionType")) {
-                    detectionType = (String) notification.metadata.get("detectionType");
-                }
+            // Get the inner LinearLayout that has the proper styling
+            LinearLayout innerLayout = (LinearLayout) ((ViewGroup) notificationCard).getChildAt(0);
+
+            // Remove it from the CardView parent
+            ((ViewGroup) notificationCard).removeView(innerLayout);
+
+            // Set margins for the inner layout
+            LinearLayout.LayoutParams params = new LinearLayout.LayoutParams(
+                    LinearLayout.LayoutParams.MATCH_PARENT,
+                    LinearLayout.LayoutParams.WRAP_CONTENT
+            );
+            params.setMargins(8, 8, 8, 8);
+            innerLayout.setLayoutParams(params);
+
+            // Access views within the inner layout with null checks
+            TextView titleView = innerLayout.findViewById(R.id.notification_title);
+            TextView dateView = innerLayout.findViewById(R.id.notification_date);
+            TextView timeView = innerLayout.findViewById(R.id.notification_time);
+            ImageView notificationIcon = innerLayout.findViewById(R.id.notification_icon);
+            View deleteButton = innerLayout.findViewById(R.id.delete_button);
+            
+            // Set icon based on notification type with enhanced detection
+            String detectionType = "unknown";
+            if (notification.metadata != null && notification.metadata.containsKey("detectionType")) {
+                detectionType = (String) notification.metadata.get("detectionType");
+            }
 
-                if ("sound".equals(detectionType)) {
+            if ("sound".equals(detectionType)) {
+                if (notificationIcon != null) notificationIcon.setImageResource(R.drawable.ic_sound);
+            } else if ("person".equals(detectionType)) {
+                if (notificationIcon != null) notificationIcon.setImageResource(R.drawable.ic_person);
+            } else {
+                // Fallback detection from title text if metadata is missing or unclear
+                String title = notification.title.toLowerCase();
+                if (title.contains("sound")) {
                     if (notificationIcon != null) notificationIcon.setImageResource(R.drawable.ic_sound);
-                } else if ("person".equals(detectionType)) {
+                } else if (title.contains("person")) {
                     if (notificationIcon != null) notificationIcon.setImageResource(R.drawable.ic_person);
-                } else {
-                    // Fallback detection from title text if metadata is missing or unclear
-                    String title = notification.title.toLowerCase();
-                    if (title.contains("sound")) {
-                        if (notificationIcon != null) notificationIcon.setImageResource(R.drawable.ic_sound);
-                    } else if (title.contains("person")) {
-                        if (notificationIcon != null) notificationIcon.setImageResource(R.drawable.ic_person);
-                    }
                 }
+            }
 
-                // Set the basic data - with null checks
-                if (titleView != null) titleView.setText(notification.title);
-                if (dateView != null) dateView.setText(notification.date);
-                if (timeView != null) timeView.setText(notification.time);
+            // Set the basic data - with null checks
+            if (titleView != null) titleView.setText(notification.title);
+            if (dateView != null) dateView.setText(notification.date);
+            if (timeView != null) timeView.setText(notification.time);
 
-                // Enhanced metadata display
-                if (notification.metadata != null && !notification.metadata.isEmpty()) {
-                    setupMetadataDisplay(innerLayout, notification);
-                } else {
-                    // Hide metadata container if no metadata available
-                    View metadataContainer = innerLayout.findViewById(R.id.metadata_container);
-                    if (metadataContainer != null) {
-                        metadataContainer.setVisibility(View.GONE);
-                    }
+            // Enhanced metadata display
+            if (notification.metadata != null && !notification.metadata.isEmpty()) {
+                setupMetadataDisplay(innerLayout, notification);
+            } else {
+                // Hide metadata container if no metadata available
+                View metadataContainer = innerLayout.findViewById(R.id.metadata_container);
+                if (metadataContainer != null) {
+                    metadataContainer.setVisibility(View.GONE);
                 }
+            }
 
-                // Set delete button click listener - handles different button types
-                setupDeleteButton(context, notificationContainer, deleteButton, notification, innerLayout);
+            // Set delete button click listener - handles different button types
+            setupDeleteButton(context, notificationContainer, deleteButton, notification, innerLayout);
 
-                // Set up view details button with enhanced functionality
-                setupViewDetailsButton(context, innerLayout);
+            // Set up view details button with enhanced functionality
+            setupViewDetailsButton(context, innerLayout);
 
-                // Add the inner layout to the container
-                notificationContainer.addView(innerLayout);
-                
-            } catch (Exception e) {
-                Log.e(TAG, "Error creating notification view for ID: " + notification.id, e);
-                // Continue with next notification instead of crashing
-            }
+            // Add the inner layout to the container
+            notificationContainer.addView(innerLayout);
+            
+        } catch (Exception e) {
+            Log.e(TAG, "Error creating notification view for ID: " + notification.id, e);
+            // Continue with next notification instead of crashing
         }
     }
 
@@ -583,7 +502,11 @@ public class PopulateNotifs {
                             dateString,
                             timeString
                     );
+                    // Newest notification, so it goes first
+                    Map<String, NotificationData> loaded = new LinkedHashMap<>(notificationMap);
+                    notificationMap.clear();
                     notificationMap.put(timeStamp, newNotification);
+                    notificationMap.putAll(loaded);
 
                     // Refresh UI if needed
                     refreshNotificationUI();
@@ -835,175 +758,7 @@ public class PopulateNotifs {
                         }
                     });
         }
-    }    // Helper method to find session name in all possible locations
-    private void findSessionNameInLoginInfo(String formattedEmail, String sessionKey, SessionNameCallback callback) {
-        Log.d(TAG, "Looking for session name for session: " + sessionKey);
-        DatabaseReference userRef = FirebaseDatabase.getInstance()
-                .getReference("users")
-                .child(formattedEmail);
-                
-        userRef.addListenerForSingleValueEvent(new ValueEventListener() {
-            @Override
-            public void onDataChange(DataSnapshot userSnapshot) {
-                String foundSessionName = null;
-                
-                // FIRST: Check direct sessions node (most common location)
-                DataSnapshot directSessionsNode = userSnapshot.child("sessions");
-                if (directSessionsNode.hasChild(sessionKey)) {
-                    String sessionName = directSessionsNode.child(sessionKey).child("session_name").getValue(String.class);
-                    if (sessionName != null) {
-                        Log.d(TAG, "Found session name in direct sessions path: " + sessionName + " for session: " + sessionKey);
-                        foundSessionName = sessionName;
-                    }
-                }
-                
-                // SECOND: Loop through all logininfo nodes if not found in direct path
-                if (foundSessionName == null) {
-                    for (DataSnapshot loginInfo : userSnapshot.getChildren()) {
-                        String key = loginInfo.getKey();
-                        if (key != null && key.startsWith("logininfo_")) {
-                            // Check sessions_added node for this session
-                            DataSnapshot sessionsNode = loginInfo.child("sessions_added");
-                            if (sessionsNode.hasChild(sessionKey)) {
-                                String sessionName = sessionsNode.child(sessionKey).child("session_name").getValue(String.class);
-                                if (sessionName != null) {
-                                    Log.d(TAG, "Found session name in logininfo: " + sessionName + " for session: " + sessionKey);
-                                    foundSessionName = sessionName;
-                                    break;
-                                }
-                            }
-                        }
-                    }
-                }
-                
-                // THIRD: Check joined_sessions as a final fallback
-                if (foundSessionName == null) {
-                    DataSnapshot joinedSessionsNode = userSnapshot.child("joined_sessions");
-                    if (joinedSessionsNode.hasChild(sessionKey)) {
-                        String sessionName = joinedSessionsNode.child(sessionKey).child("session_name").getValue(String.class);
-                        if (sessionName != null) {
-                            Log.d(TAG, "Found session name in joined_sessions: " + sessionName + " for session: " + sessionKey);
-                            foundSessionName = sessionName;
-                        }
-                    }
-                }
-                
-                // If we still don't have a name, check for session_code matching
-                if (foundSessionName == null) {
-                    // Get session code reference
-                    String finalFoundSessionName = foundSessionName;
-                    FirebaseDatabase.getInstance()
-                        .getReference("session_codes")
-                        .addListenerForSingleValueEvent(new ValueEventListener() {
-                            @Override
-                            public void onDataChange(DataSnapshot codesSnapshot) {
-                                for (DataSnapshot codeSnapshot : codesSnapshot.getChildren()) {
-                                    if (codeSnapshot.hasChild("session_id") && 
-                                        sessionKey.equals(codeSnapshot.child("session_id").getValue(String.class))) {
-                                        // Found matching session code, now fetch the name from host
-                                        String hostEmail = codeSnapshot.child("host_email").getValue(String.class);
-                                        if (hostEmail != null) {
-                                            String formattedHostEmail = hostEmail.replace(".", "_");
-                                            FirebaseDatabase.getInstance()
-                                                .getReference("users")
-                                                .child(formattedHostEmail)
-                                                .child("sessions")
-                                                .child(sessionKey)
-                                                .child("session_name")
-                                                .addListenerForSingleValueEvent(new ValueEventListener() {
-                                                    @Override
-                                                    public void onDataChange(DataSnapshot nameSnapshot) {
-                                                        String hostSessionName = nameSnapshot.getValue(String.class);
-                                                        if (hostSessionName != null) {
-                                                            Log.d(TAG, "Found session name via session_code lookup: " + hostSessionName);
-                                                            callback.onSessionNameFound(hostSessionName);
-                                                        } else {
-                                                            callback.onSessionNameFound(null);
-                                                        }
-                                                    }
-
-                                                    @Override
-                                                    public void onCancelled(DatabaseError error) {
-                                                        Log.e(TAG, "Error finding session name via host lookup: " + error.getMessage());
-                                                        callback.onSessionNameFound(null);
-                                                    }
-                                                });
-                                            return; // Exit early since we're handling callback in nested listener
-                                        }
-                                    }
-                                }
-                                // If we get here, we couldn't find a matching session code
-                                callback.onSessionNameFound(finalFoundSessionName);
-                            }
-
-                            @Override
-                            public void onCancelled(DatabaseError error) {
-                                Log.e(TAG, "Error searching session codes: " + error.getMessage());
-                                callback.onSessionNameFound(finalFoundSessionName);
-                            }
-                        });
-                    return; // Exit early since we're handling callback in nested listener
-                }
-                
-                // Return the found session name (may still be null)
-                callback.onSessionNameFound(foundSessionName);
-            }
-            
-            @Override
-            public void onCancelled(DatabaseError error) {
-                Log.e(TAG, "Error finding session name: " + error.getMessage());
-                callback.onSessionNameFound(null);
-            }
-        });
-    }
-    
-    // Process session notifications with the provided session name
-    private void processSessionNotificationsWithName(DataSnapshot sessionSnapshot, String sessionKey, String sessionName, 
-                                                    String formattedEmail, Set<String> deletedNotifs, 
-                                                    int[] pendingRequests, Context context, ViewGroup notificationContainer) {
-        Log.d(TAG, "Processing notifications for session: " + sessionName + " with key: " + sessionKey);
-        
-        // Check the notifications path
-        DataSnapshot notifications = sessionSnapshot.child("notifications");
-        if (notifications.exists()) {
-            Log.d(TAG, "Found notifications for session: " + sessionName + ", count: " + notifications.getChildrenCount());
-            
-            for (DataSnapshot notificationSnapshot : notifications.getChildren()) {
-                String notificationId = notificationSnapshot.getKey();
-                if (notificationId != null && !deletedNotifs.contains(notificationId)) {
-                    // Process these as enhanced notifications
-                    processSessionNotification(notificationId, notificationSnapshot, sessionName);
-                }
-            }
-        } else {
-            Log.d(TAG, "No notifications found for session: " + sessionName);
-        }
-        
-        // Also check detection_events path
-        DataSnapshot detectionEvents = sessionSnapshot.child("detection_events");
-        if (detectionEvents.exists()) {
-            Log.d(TAG, "Found detection events for session: " + sessionName + ", count: " + detectionEvents.getChildrenCount());
-            
-            for (DataSnapshot eventSnapshot : detectionEvents.getChildren()) {
-                String eventId = eventSnapshot.getKey();
-                if (eventId != null && !deletedNotifs.contains(eventId)) {
-                    processDetectionEvent(context, eventId, eventSnapshot, sessionName);
-                }
-            }
-        }
-        
-        pendingRequests[0]--;
-        if (pendingRequests[0] == 0) {
-            displayNotifications(context, notificationContainer);
-        }
-    }
-    
-    // Callback interface for finding session name
-    interface SessionNameCallback {
-        void onSessionNameFound(String sessionName);
-    }
-    
-    // Add this new method to process session notifications with enhanced metadata
+    }    // Add this new method to process session notifications with enhanced metadata
     private void processSessionNotification(String notificationId, DataSnapshot notificationSnapshot, String sessionName) {
         try {
             String reason = notificationSnapshot.child("reason").getValue(String.class);
@@ -48,12 +48,12 @@ import org.webrtc.EglBase;
 import org.webrtc.SurfaceViewRenderer;
 import org.webrtc.VideoTrack;
 import org.webrtc.PeerConnectionFactory;
-import org.webrtc.VideoSink;
 import org.webrtc.VideoFrame;
 import org.webrtc.SurfaceTextureHelper;
 
 import com.summersoft.heliocam.webrtcfork.MultiSinkVideoRenderer;
 
+import com.google.android.material.switchmaterial.SwitchMaterial;
 import com.google.firebase.auth.FirebaseAuth;
 import com.google.firebase.database.DataSnapshot;
 import com.google.firebase.database.DatabaseReference;
@@ -66,6 +66,9 @@ import com.summersoft.heliocam.detection.SoundDetection;
 
 import com.summersoft.heliocam.utils.DetectionDirectoryManager;
 import com.summersoft.heliocam.webrtc_utils.RTCJoiner;
+import com.summersoft.heliocam.webrtc_utils.ReplayBuffer;
+import com.summersoft.heliocam.webrtc_utils.SegmentedRecording;
+import com.summersoft.heliocam.webrtc_utils.SurfaceRecordingSink;
 
 import java.io.File;
 import java.util.Date;
@@ -98,7 +101,6 @@ public class CameraActivity extends AppCompatActivity {
 
     private boolean isMicOn = true;    // Add these fields to CameraActivity
     private boolean isRecording = false;
-    private boolean isReplayBufferRunning = false;
     private TextView recordingStatus;    // New fields for direct camera recording
     private MediaRecorder mediaRecorder;
     private String recordingPath;
@@ -106,12 +108,17 @@ public class CameraActivity extends AppCompatActivity {
     private static final int REPLAY_BUFFER_DURATION_MS = 30000; // 30 seconds buffer
     private static final int MAX_REPLAY_BUFFER_DURATION_MS = 60000; // Maximum 60 seconds buffer
     private int currentReplayBufferDuration = REPLAY_BUFFER_DURATION_MS; // Current setting
-    private VideoSink recordingVideoSink;
+    private SurfaceRecordingSink recordingVideoSink;
     private SurfaceViewRenderer recordingSurfaceRenderer;
       // Replay buffer specific fields
-    private MediaRecorder replayBufferRecorder;
-    private String replayBufferPath;
-    private long replayBufferStartTime;    private VideoSink replayBufferVideoSink;
+    private static final int REPLAY_BUFFER_POST_ROLL_MS = 5000; // Keep recording 5 seconds after a save
+    private static final int DETECTION_CLIP_PRE_ROLL_MS = 3000; // Lead-in kept before a detection
+    private ReplayBuffer replayBuffer;
+    // Manual recording written from the replay buffer, when it is running
+    private ReplayBuffer.Export activeRecording;
+    private String recordingFilenamePrefix;
+    // Record as short MP4 segments plus an index, so a crash loses at most one segment
+    private boolean segmentedRecordingEnabled = false;
 
     // Timestamp related fields
     private TextView liveTimestampText;
@@ -204,6 +211,7 @@ public class CameraActivity extends AppCompatActivity {
         finish();
     }// Dispose resources properly
     private void disposeResources() {
+        stopReplayBuffer();
         if (videoCapturer != null) {
             try {
                 videoCapturer.stopCapture();
@@ -372,6 +380,9 @@ public class CameraActivity extends AppCompatActivity {
         if (liveTimestampText != null) {
             liveTimestampText.setVisibility(View.VISIBLE);
         }
+
+        // Keep a rolling pre-event buffer from the start of the session
+        startReplayBuffer();
         
         Log.d(TAG, "Session setup completed successfully");
     }
@@ -565,10 +576,20 @@ public class CameraActivity extends AppCompatActivity {
                 showDetectionSettingsDialog();
                 return true;
 
+            case R.id.option_2: // Replay Buffer Settings
+                showReplayBufferSettingsDialog();
+                return true;
+
             case R.id.option_3: // Start/Stop Recording
                 showRecordDialog();
                 return true;
 
+            case R.id.option_4: // Save Replay Buffer
+                if (!saveReplayBuffer(null)) {
+                    Toast.makeText(this, "Replay buffer is not running", Toast.LENGTH_SHORT).show();
+                }
+                return true;
+
             default:
                 return super.onContextItemSelected(item);
         }
@@ -593,6 +614,10 @@ public class CameraActivity extends AppCompatActivity {
         Button btnSelectPath = view.findViewById(R.id.btn_select_path);
         Button btnRecordNow = view.findViewById(R.id.btn_record_now);
         Button btnRecordStop = view.findViewById(R.id.btn_record_stop);
+        SwitchMaterial segmentedSwitch = view.findViewById(R.id.switch_segmented_recording);
+        segmentedSwitch.setChecked(segmentedRecordingEnabled);
+        segmentedSwitch.setEnabled(!isRecording);
+        segmentedSwitch.setOnCheckedChangeListener((buttonView, isChecked) -> segmentedRecordingEnabled = isChecked);
           // Set initial button states based on CameraActivity state
         btnRecordStop.setEnabled(isRecording);
         btnRecordNow.setEnabled(!isRecording);
@@ -1093,6 +1118,13 @@ public class CameraActivity extends AppCompatActivity {
                 fileName = timestamp + ".mp4";
             }
 
+            // The replay buffer already encodes the camera, so record from it when it runs
+            if (replayBuffer != null && replayBuffer.isRunning()) {
+                recordingFilenamePrefix = filenamePrefix;
+                startBufferedRecording(fileName);
+                return;
+            }
+
             // Try to use the user-selected directory first
             File recordingDir;
 
@@ -1119,22 +1151,7 @@ public class CameraActivity extends AppCompatActivity {
             }
 
             // Fall back to app-specific directory or public directory
-            recordingDir = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_MOVIES), "HelioCam");
-            if (!recordingDir.exists()) {
-                if (!recordingDir.mkdirs()) {
-                    Log.e(TAG, "Failed to create recording directory");
-                    recordingDir = directoryManager.getAppStorageDirectory("Video_Clips");
-                }
-            }
-
-            // Fall back to app-specific directory if public directory fails
-            if (!recordingDir.exists() || !recordingDir.canWrite()) {
-                Log.w(TAG, "Failed to use public directory, falling back to app-specific storage");
-                recordingDir = new File(getExternalFilesDir(Environment.DIRECTORY_MOVIES), "HelioCam");
-                if (!recordingDir.exists()) {
-                    recordingDir.mkdirs();
-                }
-            }
+            recordingDir = getFallbackRecordingDirectory();
 
             // Create file for recording
             File videoFile = new File(recordingDir, fileName);
@@ -1153,6 +1170,164 @@ public class CameraActivity extends AppCompatActivity {
         }
     }
 
+    /**
+     * Record from the replay buffer into the user-selected video clips directory, or the
+     * fallback recording directory. Nothing is encoded for the recording itself.
+     */
+    private void startBufferedRecording(String fileName) throws Exception {
+        if (segmentedRecordingEnabled) {
+            startSegmentedRecording(fileName.substring(0, fileName.length() - ".mp4".length()));
+            return;
+        }
+
+        String target = null;
+        ReplayBuffer.Export export = null;
+        // MediaMuxer can only write to a descriptor from Android 8.0
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O
+                && directoryManager != null && directoryManager.hasValidDirectory()) {
+            DocumentFile videoClipsDir = directoryManager.getVideoClipsDirectory();
+            DocumentFile newFile = videoClipsDir != null ? videoClipsDir.createFile("video/mp4", fileName) : null;
+            if (newFile != null) {
+                ParcelFileDescriptor pfd = getContentResolver().openFileDescriptor(newFile.getUri(), "rw");
+                if (pfd != null) {
+                    target = newFile.getUri().toString();
+                    export = replayBuffer.startRecording(pfd, target, bufferedRecordingCallback(target));
+                }
+            }
+        }
+        if (export == null) {
+            target = new File(getFallbackRecordingDirectory(), fileName).getAbsolutePath();
+            export = replayBuffer.startRecording(target, bufferedRecordingCallback(target));
+        }
+
+        activeRecording = export;
+        recordingPath = target;
+        recordingStartTime = System.currentTimeMillis();
+        isRecording = true;
+        Log.d(TAG, "Recording from replay buffer (" + replayBuffer.getVideoSource() + " encoder) to " + target);
+    }
+
+    /**
+     * Record from the replay buffer as one-minute segments in a directory of their own, with
+     * an index for seeking by time. Segments need plain files, so the user-selected directory
+     * is not used.
+     */
+    private void startSegmentedRecording(String name) throws Exception {
+        File directory = new File(getFallbackRecordingDirectory(), name);
+        SegmentedRecording recording = new SegmentedRecording(directory, name);
+        String target = directory.getAbsolutePath();
+        ReplayBuffer.SaveCallback callback = bufferedRecordingCallback(target);
+
+        activeRecording = replayBuffer.startSegmentedRecording(recording, target,
+                SegmentedRecording.DEFAULT_SEGMENT_DURATION_MS, new ReplayBuffer.SaveCallback() {
+                    @Override
+                    public void onSaved(String savedTarget, long durationMs) {
+                        finishSegmentedRecording(recording);
+                        callback.onSaved(savedTarget, durationMs);
+                    }
+
+                    @Override
+                    public void onError(String message, Exception e) {
+                        finishSegmentedRecording(recording);
+                        callback.onError(message, e);
+                    }
+                });
+        recordingPath = target;
+        recordingStartTime = System.currentTimeMillis();
+        isRecording = true;
+        Log.d(TAG, "Segmented recording from replay buffer to " + target);
+    }
+
+    private void finishSegmentedRecording(SegmentedRecording recording) {
+        recording.close();
+        List<File> segments = recording.getFinishedSegments();
+        String[] paths = new String[segments.size()];
+        String[] mimeTypes = new String[segments.size()];
+        for (int i = 0; i < paths.length; i++) {
+            paths[i] = segments.get(i).getAbsolutePath();
+            mimeTypes[i] = "video/mp4";
+        }
+        MediaScannerConnection.scanFile(this, paths, mimeTypes, null);
+    }
+
+    private ReplayBuffer.SaveCallback bufferedRecordingCallback(String target) {
+        return new ReplayBuffer.SaveCallback() {
+            @Override
+            public void onSaved(String savedTarget, long durationMs) {
+                runOnUiThread(() -> onBufferedRecordingFinished(target, savedTarget, null));
+            }
+
+            @Override
+            public void onPartSaved(String partTarget, long durationMs) {
+                MediaScannerConnection.scanFile(CameraActivity.this, new String[]{partTarget},
+                        new String[]{"video/mp4"}, null);
+            }
+
+            @Override
+            public void onError(String message, Exception e) {
+                runOnUiThread(() -> onBufferedRecordingFinished(target, target, message));
+            }
+        };
+    }
+
+    /**
+     * A recording from the replay buffer was finished. If it was not stopped, the buffer's
+     * video source changed (a call started or ended) while writing to a document, which can't
+     * be continued, so recording continues in a new file.
+     *
+     * @param savedTarget the last file written, a later part of {@code target} if it was split
+     * @param error       null if the file was saved
+     */
+    private void onBufferedRecordingFinished(String target, String savedTarget, String error) {
+        if (error == null) {
+            // Segmented recordings are a directory; their segments were scanned already
+            if (!savedTarget.startsWith("content://") && new File(savedTarget).isFile()) {
+                MediaScannerConnection.scanFile(this, new String[]{savedTarget}, new String[]{"video/mp4"}, null);
+            }
+            Toast.makeText(this, "Recording saved", Toast.LENGTH_SHORT).show();
+        } else {
+            Log.e(TAG, "Recording " + target + " failed: " + error);
+            Toast.makeText(this, "Recording may not have been saved properly", Toast.LENGTH_SHORT).show();
+        }
+
+        if (!isRecording || !target.equals(recordingPath)) {
+            return;
+        }
+        activeRecording = null;
+        isRecording = false;
+        recordingPath = null;
+        if (error == null && replayBuffer != null && replayBuffer.isRunning()) {
+            Log.d(TAG, "Replay buffer video source changed, continuing recording in a new file");
+            startRecording(recordingFilenamePrefix);
+        }
+        if (!isRecording && recordingStatus != null) {
+            recordingStatus.setVisibility(View.GONE);
+        }
+    }
+
+    /**
+     * Public Movies/HelioCam directory, or app-specific storage if that cannot be written
+     */
+    private File getFallbackRecordingDirectory() {
+        File recordingDir = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_MOVIES), "HelioCam");
+        if (!recordingDir.exists()) {
+            if (!recordingDir.mkdirs()) {
+                Log.e(TAG, "Failed to create recording directory");
+                recordingDir = directoryManager.getAppStorageDirectory("Video_Clips");
+            }
+        }
+
+        // Fall back to app-specific directory if public directory fails
+        if (!recordingDir.exists() || !recordingDir.canWrite()) {
+            Log.w(TAG, "Failed to use public directory, falling back to app-specific storage");
+            recordingDir = new File(getExternalFilesDir(Environment.DIRECTORY_MOVIES), "HelioCam");
+            if (!recordingDir.exists()) {
+                recordingDir.mkdirs();
+            }
+        }
+        return recordingDir;
+    }
+
     /**
      * Configure the MediaRecorder with optimal settings
      */
@@ -1195,77 +1370,8 @@ public class CameraActivity extends AppCompatActivity {
                 // Get EGL context from RTCJoiner
                 org.webrtc.EglBase.Context eglContext = rtcJoiner.getEglContext();
                 if (eglContext != null) {
-
-                    // Create a VideoSink that renders frames to the MediaRecorder surface
-                    recordingVideoSink = new org.webrtc.VideoSink() {
-                        private org.webrtc.VideoFrame lastFrame;
-                        private android.graphics.Canvas canvas;
-
-                        @Override
-                        public void onFrame(org.webrtc.VideoFrame frame) {
-                            try {
-                                // Convert VideoFrame to bitmap and draw to surface
-                                this.lastFrame = frame;
-
-                                // Lock the canvas for drawing
-                                if (recorderSurface != null && recorderSurface.isValid()) {
-                                    canvas = recorderSurface.lockCanvas(null);
-                                    if (canvas != null) {
-                                        // Convert VideoFrame to Bitmap using proper I420 to RGB conversion
-                                        org.webrtc.VideoFrame.I420Buffer i420Buffer = frame.getBuffer().toI420();
-
-                                        // Get dimensions
-                                        int width = i420Buffer.getWidth();
-                                        int height = i420Buffer.getHeight();
-
-                                        // Use the direct conversion method for better color accuracy
-                                        android.graphics.Bitmap bitmap = convertI420ToBitmapDirect(i420Buffer, width, height);
-
-                                        if (bitmap != null) {
-                                            // Create a mutable copy to draw on
-                                            android.graphics.Bitmap mutableBitmap = bitmap.copy(android.graphics.Bitmap.Config.ARGB_8888, true);
-                                            android.graphics.Canvas tempCanvas = new android.graphics.Canvas(mutableBitmap);
-                                            android.graphics.Paint paint = new android.graphics.Paint();
-                                            paint.setColor(android.graphics.Color.WHITE);
-                                            paint.setTextSize(20); // Adjust size as needed
-                                            paint.setAntiAlias(true);
-                                            String currentTime = new java.text.SimpleDateFormat("yyyy-MM-dd HH:mm:ss", java.util.Locale.getDefault()).format(new java.util.Date());
-                                            tempCanvas.drawText(currentTime, 10, 30, paint); // Adjust position as needed
-
-                                            // Scale bitmap to fit canvas
-                                            android.graphics.Bitmap scaledBitmap = android.graphics.Bitmap.createScaledBitmap(
-                                                    mutableBitmap, canvas.getWidth(), canvas.getHeight(), false);
-
-                                            // Draw bitmap to canvas
-                                            canvas.drawBitmap(scaledBitmap, 0, 0, null);
-
-                                            bitmap.recycle();
-                                            mutableBitmap.recycle();
-                                            scaledBitmap.recycle();
-                                        }
-
-                                        // Unlock and post the canvas
-                                        recorderSurface.unlockCanvasAndPost(canvas);
-
-                                        i420Buffer.release();
-                                    }
-                                }
-                            } catch (Exception e) {
-                                Log.w(TAG, "Error rendering frame to recording surface: " + e.getMessage());
-                                if (canvas != null) {
-                                    try {
-                                        recorderSurface.unlockCanvasAndPost(canvas);
-                                    } catch (Exception ignored) {
-                                    }
-                                }
-                            }
-                        }
-                    };
-
-                    // Add the video sink to capture frames
-                    rtcJoiner.getLocalVideoTrack().addSink(recordingVideoSink);
-
-                    Log.d(TAG, "Connected video track to MediaRecorder surface via custom VideoSink");
+                    // Render frames on the GPU straight onto the MediaRecorder surface
+                    recordingVideoSink = new SurfaceRecordingSink(eglContext, recorderSurface, true);
                 } else {
                     throw new Exception("EGL context not available from RTCJoiner");
                 }
@@ -1280,6 +1386,10 @@ public class CameraActivity extends AppCompatActivity {
             Log.d(TAG, "Starting MediaRecorder...");
             mediaRecorder.start();
 
+            // Feed frames only once the recorder is running
+            rtcJoiner.getLocalVideoTrack().addSink(recordingVideoSink);
+            Log.d(TAG, "Connected video track to MediaRecorder surface via EGL");
+
             // Mark the recording start time
             recordingStartTime = System.currentTimeMillis();
 
@@ -1296,61 +1406,6 @@ public class CameraActivity extends AppCompatActivity {
         }
     }
 
-    /**
-     * Convert I420 buffer to RGB bitmap with direct pixel conversion
-     */
-    private android.graphics.Bitmap convertI420ToBitmapDirect(org.webrtc.VideoFrame.I420Buffer i420Buffer, int width, int height) {
-        try {
-            // Get Y, U, V planes
-            java.nio.ByteBuffer yPlane = i420Buffer.getDataY();
-            java.nio.ByteBuffer uPlane = i420Buffer.getDataU();
-            java.nio.ByteBuffer vPlane = i420Buffer.getDataV();
-
-            int yStride = i420Buffer.getStrideY();
-            int uStride = i420Buffer.getStrideU();
-            int vStride = i420Buffer.getStrideV();
-
-            // Create RGB array
-            int[] rgbArray = new int[width * height];
-
-            // Convert YUV to RGB pixel by pixel
-            for (int y = 0; y < height; y++) {
-                for (int x = 0; x < width; x++) {
-                    int yIndex = y * yStride + x;
-                    int uvIndex = (y / 2) * uStride + (x / 2);
-
-                    // Get YUV values
-                    int yValue = yPlane.get(yIndex) & 0xFF;
-                    int uValue = (uPlane.get(uvIndex) & 0xFF) - 128;
-                    int vValue = (vPlane.get(uvIndex) & 0xFF) - 128;
-
-                    // Convert to RGB using standard formula
-                    int r = (int) (yValue + 1.402 * vValue);
-                    int g = (int) (yValue - 0.344 * uValue - 0.714 * vValue);
-                    int b = (int) (yValue + 1.772 * uValue);
-
-                    // Clamp values to 0-255
-                    r = Math.max(0, Math.min(255, r));
-                    g = Math.max(0, Math.min(255, g));
-                    b = Math.max(0, Math.min(255, b));
-
-                    // Set RGB pixel
-                    rgbArray[y * width + x] = (0xFF << 24) | (r << 16) | (g << 8) | b;
-                }
-            }
-
-            // Create bitmap from RGB array
-            android.graphics.Bitmap bitmap = android.graphics.Bitmap.createBitmap(
-                    rgbArray, width, height, android.graphics.Bitmap.Config.ARGB_8888);
-
-            return bitmap;
-
-        } catch (Exception e) {
-            Log.e(TAG, "Error converting I420 to bitmap directly: " + e.getMessage());
-            return null;
-        }
-    }
-
     /**
      * Stop recording
      */
@@ -1360,6 +1415,18 @@ public class CameraActivity extends AppCompatActivity {
             return;
         }
 
+        if (activeRecording != null) {
+            // Written from the replay buffer; the file is finished and reported in the callback
+            if (replayBuffer != null) {
+                replayBuffer.stopRecording(activeRecording);
+            }
+            Log.d(TAG, "Stopping replay buffer recording at path: " + recordingPath);
+            activeRecording = null;
+            isRecording = false;
+            recordingPath = null;
+            return;
+        }
+
         // Store path for later
         String storedPath = recordingPath;
 
@@ -1439,6 +1506,9 @@ public class CameraActivity extends AppCompatActivity {
             } catch (Exception e) {
                 Log.e(TAG, "Error removing VideoSink: " + e.getMessage());
             }
+        }
+        if (recordingVideoSink != null) {
+            recordingVideoSink.release();
             recordingVideoSink = null;
         }
 
@@ -1488,242 +1558,152 @@ public class CameraActivity extends AppCompatActivity {
     }
 
     /**
-     * Start direct replay buffer recording by connecting VideoTrack to MediaRecorder surface
+     * Start the continuous replay buffer, which keeps the last few seconds of encoded audio and
+     * video in memory so a save can include what happened before it.
      */
-    private void startDirectReplayBufferRecording() throws Exception {
-        try {
-            // Get the MediaRecorder's surface for recording
-            android.view.Surface recorderSurface = replayBufferRecorder.getSurface();
-
-            if (rtcJoiner != null && rtcJoiner.getLocalVideoTrack() != null && recorderSurface != null) {
-                // Get EGL context from RTCJoiner
-                org.webrtc.EglBase.Context eglContext = rtcJoiner.getEglContext();
-                if (eglContext != null) {
-
-                    // Create a VideoSink that renders frames to the MediaRecorder surface
-                    replayBufferVideoSink = new org.webrtc.VideoSink() {
-                        private org.webrtc.VideoFrame lastFrame;
-                        private android.graphics.Canvas canvas;
-
-                        @Override
-                        public void onFrame(org.webrtc.VideoFrame frame) {
-                            try {
-                                // Convert VideoFrame to bitmap and draw to surface
-                                this.lastFrame = frame;
-
-                                // Lock the canvas for drawing
-                                if (recorderSurface != null && recorderSurface.isValid()) {
-                                    canvas = recorderSurface.lockCanvas(null);
-                                    if (canvas != null) {
-                                        // Convert VideoFrame to Bitmap using proper I420 to RGB conversion
-                                        org.webrtc.VideoFrame.I420Buffer i420Buffer = frame.getBuffer().toI420();
-
-                                        // Get dimensions
-                                        int width = i420Buffer.getWidth();
-                                        int height = i420Buffer.getHeight();
-
-                                        // Use the direct conversion method for better color accuracy
-                                        android.graphics.Bitmap bitmap = convertI420ToBitmapDirect(i420Buffer, width, height);
-
-                                        if (bitmap != null) {
-                                            // Create a mutable copy to draw on
-                                            android.graphics.Bitmap mutableBitmap = bitmap.copy(android.graphics.Bitmap.Config.ARGB_8888, true);
-                                            android.graphics.Canvas tempCanvas = new android.graphics.Canvas(mutableBitmap);
-                                            android.graphics.Paint paint = new android.graphics.Paint();
-                                            paint.setColor(android.graphics.Color.WHITE);
-                                            paint.setTextSize(20); // Adjust size as needed
-                                            paint.setAntiAlias(true);
-                                            String currentTime = new java.text.SimpleDateFormat("yyyy-MM-dd HH:mm:ss", java.util.Locale.getDefault()).format(new java.util.Date());
-                                            tempCanvas.drawText(currentTime, 10, 30, paint); // Adjust position as needed
-
-                                            // Scale bitmap to fit canvas
-                                            android.graphics.Bitmap scaledBitmap = android.graphics.Bitmap.createScaledBitmap(
-                                                    mutableBitmap, canvas.getWidth(), canvas.getHeight(), false);
-
-                                            // Draw bitmap to canvas
-                                            canvas.drawBitmap(scaledBitmap, 0, 0, null);
-
-                                            bitmap.recycle();
-                                            mutableBitmap.recycle();
-                                            scaledBitmap.recycle();
-                                        }
-
-                                        // Unlock and post the canvas
-                                        recorderSurface.unlockCanvasAndPost(canvas);
-
-                                        i420Buffer.release();
-                                    }
-                                }
-                            } catch (Exception e) {
-                                Log.w(TAG, "Error rendering frame to replay buffer surface: " + e.getMessage());
-                                if (canvas != null) {
-                                    try {
-                                        recorderSurface.unlockCanvasAndPost(canvas);
-                                    } catch (Exception ignored) {
-                                    }
-                                }
-                            }
-                        }
-                    };
-
-                    // Add the video sink to capture frames
-                    rtcJoiner.getLocalVideoTrack().addSink(replayBufferVideoSink);
-
-                    Log.d(TAG, "Connected video track to replay buffer MediaRecorder surface via custom VideoSink");
-                } else {
-                    throw new Exception("EGL context not available from RTCJoiner");
-                }
-            } else {
-                Log.e(TAG, "Missing components - rtcJoiner: " + (rtcJoiner != null) +
-                        ", videoTrack: " + (rtcJoiner != null && rtcJoiner.getLocalVideoTrack() != null) +
-                        ", surface: " + (recorderSurface != null));
-                throw new Exception("Cannot connect video track to replay buffer MediaRecorder surface - missing components");
-            }            // Start the media recorder
-            Log.d(TAG, "Starting replay buffer MediaRecorder...");
-            replayBufferRecorder.start();
-
-            // Mark the recording start time
-            replayBufferStartTime = System.currentTimeMillis();
-
-            // Schedule automatic stop based on current replay buffer duration
-            Handler durationHandler = new Handler(Looper.getMainLooper());
-            durationHandler.postDelayed(() -> {
-                if (isReplayBufferRunning) {
-                    checkReplayBufferDuration();
-                }
-            }, currentReplayBufferDuration);
-
-            Log.d(TAG, "Direct replay buffer recording started successfully at path: " + replayBufferPath + 
-                      " with duration limit: " + currentReplayBufferDuration + "ms");
+    private void startReplayBuffer() {
+        if (replayBuffer != null && replayBuffer.isRunning()) {
+            return;
+        }
+        if (rtcJoiner == null || rtcJoiner.getLocalVideoTrack() == null || rtcJoiner.getEglContext() == null) {
+            Log.w(TAG, "Camera not ready, replay buffer not started");
+            return;
+        }
 
+        try {
+            replayBuffer = new ReplayBuffer(rtcJoiner.getEglContext(), rtcJoiner.getLocalVideoTrack(),
+                    rtcJoiner.getAudioCapture(), rtcJoiner.getEncoderTee(), currentReplayBufferDuration,
+                    ReplayBuffer.defaultMaxBytes(currentReplayBufferDuration));
+            replayBuffer.start();
         } catch (Exception e) {
-            Log.e(TAG, "Failed to start direct replay buffer recording: " + e.getMessage(), e);
-            cleanupReplayBufferResources();
-            throw e;
+            Log.e(TAG, "Failed to start replay buffer: " + e.getMessage(), e);
+            replayBuffer = null;
         }
     }
 
     /**
-     * Stop direct replay buffer recording - wrapper for stopReplayBuffer
+     * Stop the replay buffer. Saves in progress finish with what was already buffered.
      */
-    private void stopDirectReplayBufferRecording() {
-        stopReplayBuffer();
+    private void stopReplayBuffer() {
+        if (replayBuffer != null) {
+            replayBuffer.stop();
+            replayBuffer = null;
+        }
     }
 
     /**
-     * Stop replay buffer and save the recording
+     * Save the replay buffer plus the next few seconds to the recordings directory.
+     * Capture continues while the clip is written.
+     *
+     * @param filenamePrefix Optional prefix for the filename (null for default naming)
+     * @return true if the save was started
      */
-    private void stopReplayBuffer() {
-        if (!isReplayBufferRunning) {
+    public boolean saveReplayBuffer(String filenamePrefix) {
+        if (replayBuffer == null || !replayBuffer.isRunning()) {
             Log.w(TAG, "No replay buffer running");
-            return;
+            return false;
+        }
+        if (!hasStoragePermissions()) {
+            Log.d(TAG, "Storage permissions not granted");
+            return false;
         }
 
-        // Store path for later
-        String storedPath = replayBufferPath;
-
-        Log.d(TAG, "Attempting to stop replay buffer at path: " + storedPath);
+        String timestamp = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date());
+        String prefix = filenamePrefix != null && !filenamePrefix.trim().isEmpty() ? filenamePrefix : "Replay";
+        String fileName = prefix + "_" + timestamp + ".mp4";
 
-        // First ensure we've recorded for at least 1 second
-        long recordingDuration = System.currentTimeMillis() - replayBufferStartTime;
-        if (recordingDuration < 1200) { // Give extra buffer time
-            try {
-                long waitTime = 1200 - recordingDuration;
-                Log.d(TAG, "Replay buffer too short (" + recordingDuration + "ms), waiting " + waitTime + "ms");
-                Thread.sleep(waitTime);
-            } catch (InterruptedException e) {
-                Log.e(TAG, "Sleep interrupted", e);
+        ReplayBuffer.SaveCallback callback = new ReplayBuffer.SaveCallback() {
+            @Override
+            public void onSaved(String target, long durationMs) {
+                runOnUiThread(() -> {
+                    if (!target.startsWith("content://")) {
+                        MediaScannerConnection.scanFile(CameraActivity.this, new String[]{target},
+                                new String[]{"video/mp4"}, null);
+                    }
+                    Toast.makeText(CameraActivity.this, "Replay buffer saved (" + durationMs / 1000 + "s)",
+                            Toast.LENGTH_SHORT).show();
+                });
             }
-        }
 
-        // Now stop the recording
-        boolean recordingStopped = false;
+            @Override
+            public void onPartSaved(String target, long durationMs) {
+                MediaScannerConnection.scanFile(CameraActivity.this, new String[]{target},
+                        new String[]{"video/mp4"}, null);
+            }
 
-        try {
-            // Try to stop the MediaRecorder
-            if (replayBufferRecorder != null) {
-                try {
-                    replayBufferRecorder.stop();
-                    recordingStopped = true;
-                    Log.d(TAG, "Replay buffer MediaRecorder stopped successfully");
-                } catch (RuntimeException e) {
-                    Log.e(TAG, "Error stopping replay buffer MediaRecorder: " + e.getMessage());
-                    // Fall through and try to save anyway
-                }
+            @Override
+            public void onTruncated(String target, long durationMs) {
+                Log.w(TAG, "Replay clip " + target + " cut short by a video source change");
+                runOnUiThread(() -> Toast.makeText(CameraActivity.this,
+                        "Replay buffer saved (" + durationMs / 1000 + "s), cut short by a camera switch",
+                        Toast.LENGTH_SHORT).show());
             }
-        } finally {
-            // Clean up resources including VideoSink
-            cleanupReplayBufferResources();
-        }
 
-        // Try to save the recording if we have a path
-        if (storedPath != null) {
-            // For content URIs, the file is already saved via the SAF system
-            if (storedPath.startsWith("content://")) {
-                Toast.makeText(this, "Replay buffer saved to custom location", Toast.LENGTH_SHORT).show();
-            } else {
-                // Scan file to make it visible in gallery
-                File file = new File(storedPath);
-                if (file.exists() && file.length() > 0) {
-                    MediaScannerConnection.scanFile(
-                            this,
-                            new String[]{file.getAbsolutePath()},
-                            new String[]{"video/mp4"},
-                            null
-                    );
-                    Toast.makeText(this, "Replay buffer saved to " + file.getAbsolutePath(), Toast.LENGTH_SHORT).show();
-                } else {
-                    Log.e(TAG, "Replay buffer file does not exist or is empty: " + storedPath);
-                    Toast.makeText(this, "Replay buffer may not have been saved properly", Toast.LENGTH_SHORT).show();
-                }
+            @Override
+            public void onError(String message, Exception e) {
+                runOnUiThread(() -> Toast.makeText(CameraActivity.this, message, Toast.LENGTH_SHORT).show());
             }
-        } else {
-            Toast.makeText(this, "Replay buffer path was not available", Toast.LENGTH_SHORT).show();
-        }
+        };
 
-        // Always reset state
-        isReplayBufferRunning = false;
-        replayBufferPath = null;
+        try {
+            exportReplayClip(fileName, getFallbackRecordingDirectory(), currentReplayBufferDuration,
+                    REPLAY_BUFFER_POST_ROLL_MS, callback);
+            return true;
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to save replay buffer", e);
+            Toast.makeText(this, "Failed to save replay buffer: " + e.getMessage(), Toast.LENGTH_SHORT).show();
+            return false;
+        }
     }
 
     /**
-     * Clean up replay buffer resources including VideoSink
+     * Save a detection clip cut from the replay buffer into the video clips directory: a short
+     * lead-in from before the detection plus {@code durationMs} after it. The clip is remuxed
+     * from the packets already encoded, so no encoder is started and no frames are lost.
+     *
+     * @param filenamePrefix Prefix for the filename (e.g., "Person_Detected")
+     * @param durationMs     How long to keep recording after the detection
+     * @param callback       Called on a background thread when the clip is written or fails
+     * @return true if the save was started, false if the replay buffer is not running
      */
-    private void cleanupReplayBufferResources() {
-        // Remove VideoSink from video track if it exists
-        if (replayBufferVideoSink != null && rtcJoiner != null && rtcJoiner.getLocalVideoTrack() != null) {
-            try {
-                rtcJoiner.getLocalVideoTrack().removeSink(replayBufferVideoSink);
-                Log.d(TAG, "Removed replay buffer VideoSink from video track");
-            } catch (Exception e) {
-                Log.e(TAG, "Error removing replay buffer VideoSink: " + e.getMessage());
-            }
-            replayBufferVideoSink = null;
+    public boolean saveDetectionClip(String filenamePrefix, int durationMs, ReplayBuffer.SaveCallback callback) {
+        if (replayBuffer == null || !replayBuffer.isRunning() || directoryManager == null) {
+            return false;
         }
 
-        // Release MediaRecorder
-        releaseReplayBufferRecorder();
+        String fileName = directoryManager.generateTimestampedFilename(filenamePrefix, ".mp4");
+        try {
+            exportReplayClip(fileName, directoryManager.getAppStorageDirectory("Video_Clips"),
+                    DETECTION_CLIP_PRE_ROLL_MS, durationMs, callback);
+            return true;
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to save detection clip", e);
+            return false;
+        }
     }
 
     /**
-     * Release replay buffer MediaRecorder resources
+     * Write a clip from the replay buffer to the user-selected video clips directory, or to a
+     * file in {@code fallbackDir} when there is none.
      */
-    private void releaseReplayBufferRecorder() {
-        if (replayBufferRecorder != null) {
-            try {
-                replayBufferRecorder.reset();
-            } catch (Exception e) {
-                Log.e(TAG, "Error resetting replay buffer MediaRecorder", e);
-            }
-
-            try {
-                replayBufferRecorder.release();
-            } catch (Exception e) {
-                Log.e(TAG, "Error releasing replay buffer MediaRecorder", e);
+    private void exportReplayClip(String fileName, File fallbackDir, long preRollMs, long postRollMs,
+                                  ReplayBuffer.SaveCallback callback) throws Exception {
+        // MediaMuxer can only write to a descriptor from Android 8.0
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O
+                && directoryManager != null && directoryManager.hasValidDirectory()) {
+            DocumentFile videoClipsDir = directoryManager.getVideoClipsDirectory();
+            DocumentFile newFile = videoClipsDir != null ? videoClipsDir.createFile("video/mp4", fileName) : null;
+            if (newFile != null) {
+                ParcelFileDescriptor pfd = getContentResolver().openFileDescriptor(newFile.getUri(), "rw");
+                if (pfd != null) {
+                    replayBuffer.saveClip(pfd, newFile.getUri().toString(), preRollMs, postRollMs, callback);
+                    return;
+                }
             }
-
-            replayBufferRecorder = null;
         }
+
+        File videoFile = new File(fallbackDir, fileName);
+        replayBuffer.saveClip(videoFile.getAbsolutePath(), preRollMs, postRollMs, callback);
     }
 
     // Add this new method to your CameraActivity class
@@ -1841,7 +1821,7 @@ public class CameraActivity extends AppCompatActivity {
 
     /**
      * Set the replay buffer duration in milliseconds.
-     * This defines how long the replay buffer should record continuously.
+     * This defines how much video from before a save is kept in memory.
      * Duration is constrained between 10-60 seconds for optimal performance and storage.
      *
      * @param milliseconds The replay buffer duration in milliseconds (10000-60000ms)
@@ -1856,6 +1836,12 @@ public class CameraActivity extends AppCompatActivity {
         }
         
         Log.d(TAG, "Replay buffer duration set to " + constrainedDuration + " ms");
+
+        // The ring is sized for its window, so a running buffer is restarted with the new one
+        if (replayBuffer != null && replayBuffer.getWindowMs() != constrainedDuration) {
+            stopReplayBuffer();
+            startReplayBuffer();
+        }
     }
 
     /**
@@ -1867,28 +1853,6 @@ public class CameraActivity extends AppCompatActivity {
         return currentReplayBufferDuration;
     }
 
-    /**
-     * Check if replay buffer has reached its maximum duration and should be automatically saved
-     */
-    private void checkReplayBufferDuration() {
-        if (isReplayBufferRunning && replayBufferStartTime > 0) {
-            long currentDuration = System.currentTimeMillis() - replayBufferStartTime;
-            if (currentDuration >= currentReplayBufferDuration) {
-                Log.d(TAG, "Replay buffer reached maximum duration (" + currentReplayBufferDuration + "ms), auto-saving...");
-                stopReplayBuffer();
-                
-                // Automatically restart replay buffer for continuous buffering
-                Handler handler = new Handler(Looper.getMainLooper());
-                handler.postDelayed(() -> {
-                    if (!isRecording) { // Only restart if not doing regular recording
-
-                        Toast.makeText(this, "Replay buffer auto-restarted", Toast.LENGTH_SHORT).show();
-                    }
-                }, 1000); // 1 second delay before restart
-            }
-        }
-    }
-
     // Add this new method to your CameraActivity class
     private void showReplayBufferSettingsDialog() {
         AlertDialog.Builder builder = new AlertDialog.Builder(this);
@@ -12,7 +12,10 @@ import androidx.fragment.app.Fragment;
 import androidx.fragment.app.FragmentManager;
 
 import com.google.android.material.bottomnavigation.BottomNavigationView;
+import com.google.firebase.auth.FirebaseAuth;
 import com.summersoft.heliocam.R;
+import com.summersoft.heliocam.webrtc_utils.SessionCodeIndex;
+import com.summersoft.heliocam.webrtc_utils.SessionDirectory;
 import com.summersoft.heliocam.notifs.SoundNotifListener;
 
 import androidx.core.app.ActivityCompat;
@@ -39,6 +42,15 @@ public class HomeActivity extends AppCompatActivity {
         // Check for notification permission
         checkNotificationPermission();
 
+        // Index join codes and sessions created before those indexes existed
+        if (FirebaseAuth.getInstance().getCurrentUser() != null) {
+            String email = FirebaseAuth.getInstance().getCurrentUser().getEmail();
+            SessionCodeIndex.migrateHostSessions(email);
+            if (email != null) {
+                SessionDirectory.migrateHostSessions(email.replace(".", "_"));
+            }
+        }
+
         // Set up Bottom Navigation
         BottomNavigationView bottomNavigationView = findViewById(R.id.bottomNavigation);
         bottomNavigationView.setSelectedItemId(R.id.bottom_home);
@@ -16,8 +16,9 @@ import com.google.firebase.auth.FirebaseAuth;
 import com.google.firebase.database.DatabaseReference;
 import com.google.firebase.database.FirebaseDatabase;
 import com.summersoft.heliocam.R;
+import com.summersoft.heliocam.webrtc_utils.SessionCodeIndex;
+import com.summersoft.heliocam.webrtc_utils.SessionDirectory;
 
-import java.security.SecureRandom;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -27,7 +28,6 @@ public class HostSession extends AppCompatActivity {
     public static final String EXTRA_SESSION_NAME = "session_name";
 
     private EditText passkeyInput, sessionNameInput;
-    private SecureRandom random;
     private FirebaseAuth mAuth;
     private DatabaseReference mDatabase;
 
@@ -39,7 +39,6 @@ public class HostSession extends AppCompatActivity {
 
         passkeyInput = findViewById(R.id.passkey_input);
         sessionNameInput = findViewById(R.id.session_name_input);
-        random = new SecureRandom();
         mAuth = FirebaseAuth.getInstance();
         mDatabase = FirebaseDatabase.getInstance().getReference();
 
@@ -101,21 +100,11 @@ public class HostSession extends AppCompatActivity {
     }
 
     private void generateRandomPasskey() {
-        String passkey = generateRandomString(6);
+        String passkey = SessionCodeIndex.generateCode();
         passkeyInput.setText(passkey);
         Toast.makeText(this, "Passkey generated", Toast.LENGTH_SHORT).show();
     }
 
-    private String generateRandomString(int length) {
-        String characters = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789";
-        StringBuilder passkey = new StringBuilder(length);
-        for (int i = 0; i < length; i++) {
-            int index = random.nextInt(characters.length());
-            passkey.append(characters.charAt(index));
-        }
-        return passkey.toString();
-    }
-
     private void addSession() {
         String sessionName = sessionNameInput.getText().toString().trim();
         String passkey = passkeyInput.getText().toString().trim();
@@ -130,6 +119,11 @@ public class HostSession extends AppCompatActivity {
             return;
         }
 
+        if (SessionCodeIndex.normalize(passkey) == null) {
+            Toast.makeText(this, "Passkey cannot contain . # $ [ ] or /", Toast.LENGTH_SHORT).show();
+            return;
+        }
+
         // No need to check for camera permission since the host is only a viewer
         proceedWithAddingSession(sessionName, passkey);
     }
@@ -149,34 +143,41 @@ public class HostSession extends AppCompatActivity {
         sessionData.put("active", true);  // Add this line
         sessionData.put("created_at", System.currentTimeMillis());  // Optional: add creation timestamp
 
-        // Save the session under the current user's sessions node - MODIFIED
-        mDatabase.child("users").child(userEmail).child("sessions").child(sessionId).setValue(sessionData)
-                .addOnCompleteListener(task -> {
-                    if (task.isSuccessful()) {
-                        // IMPORTANT: Also save a reference to the session in a lookup table
-                        Map<String, Object> sessionCodeData = new HashMap<>();
-                        sessionCodeData.put("session_id", sessionId);
-                        sessionCodeData.put("host_email", originalEmail);
-                        
-                        mDatabase.child("session_codes").child(passkey).setValue(sessionCodeData)
-                                .addOnCompleteListener(codeTask -> {
-                                    if (codeTask.isSuccessful()) {
-                                        Toast.makeText(this, "Session added successfully", Toast.LENGTH_SHORT).show();
-                                        
-                                        // After adding the session, open WatchSessionActivity
-                                        Intent intent = new Intent(HostSession.this, WatchSessionActivity.class);
-                                        intent.putExtra(EXTRA_SESSION_ID, sessionId);
-                                        intent.putExtra(EXTRA_SESSION_NAME, sessionName);
-                                        startActivity(intent);
-                                        finish(); // Close this activity
-                                    } else {
-                                        Toast.makeText(this, "Failed to register session code", Toast.LENGTH_SHORT).show();
-                                    }
-                                });
-                    } else {
-                        Toast.makeText(this, "Failed to add session", Toast.LENGTH_SHORT).show();
-                    }
-                });
+        // Claim the passkey in the session code index first, so no two live sessions share one
+        SessionCodeIndex.claim(passkey, sessionId, originalEmail, new SessionCodeIndex.ClaimCallback() {
+            @Override
+            public void onClaimed(String code) {
+                // Save the session under the current user's sessions node
+                mDatabase.child("users").child(userEmail).child("sessions").child(sessionId).setValue(sessionData)
+                        .addOnCompleteListener(task -> {
+                            if (task.isSuccessful()) {
+                                SessionDirectory.add(userEmail, sessionId, sessionName, (Long) sessionData.get("created_at"));
+                                Toast.makeText(HostSession.this, "Session added successfully", Toast.LENGTH_SHORT).show();
+
+                                // After adding the session, open WatchSessionActivity
+                                Intent intent = new Intent(HostSession.this, WatchSessionActivity.class);
+                                intent.putExtra(EXTRA_SESSION_ID, sessionId);
+                                intent.putExtra(EXTRA_SESSION_NAME, sessionName);
+                                startActivity(intent);
+                                finish(); // Close this activity
+                            } else {
+                                SessionCodeIndex.release(code, sessionId);
+                                Toast.makeText(HostSession.this, "Failed to add session", Toast.LENGTH_SHORT).show();
+                            }
+                        });
+            }
+
+            @Override
+            public void onCodeTaken(String code) {
+                Toast.makeText(HostSession.this, "Passkey is already in use, please choose another", Toast.LENGTH_SHORT).show();
+            }
+
+            @Override
+            public void onError(String message, Exception e) {
+                Log.e("HostSession", message, e);
+                Toast.makeText(HostSession.this, "Failed to register session code", Toast.LENGTH_SHORT).show();
+            }
+        });
     }
 
     // Session data model
@@ -118,6 +118,22 @@ public class NotificationFragment extends Fragment {
             Log.e(TAG, "Clear all button not found in layout");
         }
 
+        // Load older notifications when the list is scrolled near its end
+        androidx.core.widget.NestedScrollView scrollView = view.findViewById(R.id.mainContent);
+        if (scrollView != null) {
+            scrollView.setOnScrollChangeListener((androidx.core.widget.NestedScrollView.OnScrollChangeListener)
+                    (v, scrollX, scrollY, oldScrollX, oldScrollY) -> {
+                View content = v.getChildAt(0);
+                if (content != null && scrollY > oldScrollY
+                        && scrollY + v.getHeight() >= content.getHeight() - v.getHeight() / 2) {
+                    PopulateNotifs populator = PopulateNotifs.getInstance();
+                    if (populator.hasMoreNotifs() && getContext() != null) {
+                        populator.loadMoreNotifs(getContext(), notificationContainer);
+                    }
+                }
+            });
+        }
+
         // Only attempt to populate notifications if container exists
         if (notificationContainer != null && getContext() != null) {
             Log.d(TAG, "Starting notification population");
@@ -40,6 +40,8 @@ import com.google.firebase.database.FirebaseDatabase;
 import com.google.firebase.database.ValueEventListener;
 import com.summersoft.heliocam.R;
 import com.summersoft.heliocam.webrtc_utils.RTCHost;
+import com.summersoft.heliocam.webrtc_utils.SessionCodeIndex;
+import com.summersoft.heliocam.webrtc_utils.SessionDirectory;
 
 import org.webrtc.EglBase;
 import org.webrtc.SurfaceViewRenderer;
@@ -774,6 +776,13 @@ public class WatchSessionActivity extends AppCompatActivity {
                 historySession.put("created_at", sessionData.child("created_at").getValue());
                 historySession.put("active", false);
                 historySession.put("ended_at", System.currentTimeMillis());
+
+                // The passkey no longer leads to this session
+                Object passkey = sessionData.child("passkey").getValue();
+                if (passkey instanceof String) {
+                    SessionCodeIndex.release((String) passkey, sessionId);
+                }
+                SessionDirectory.remove(userEmail, sessionId);
                 
                 // Save to session history
                 DatabaseReference historyRef = mDatabase.child("users").child(userEmail)
@@ -0,0 +1,138 @@
+package com.summersoft.heliocam.utils;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Encodes short mono PCM clips to AAC in an .m4a container, with a WAV writer as fallback.
+ * Blocking; call it from a background thread.
+ */
+public final class AudioClipEncoder {
+    private static final String TAG = "AudioClipEncoder";
+    private static final String MIME_AAC = MediaFormat.MIMETYPE_AUDIO_AAC;
+    private static final int AAC_BIT_RATE = 48000;
+    private static final long DEQUEUE_TIMEOUT_US = 10000;
+
+    private AudioClipEncoder() {
+    }
+
+    /**
+     * Encode 16-bit mono PCM to AAC-LC in an MP4 container.
+     *
+     * @return true if the file was written
+     */
+    public static boolean encodeM4a(short[] pcm, int sampleRate, File outFile) {
+        MediaCodec codec = null;
+        MediaMuxer muxer = null;
+        boolean muxerStarted = false;
+        try {
+            MediaFormat format = MediaFormat.createAudioFormat(MIME_AAC, sampleRate, 1);
+            format.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+            format.setInteger(MediaFormat.KEY_BIT_RATE, AAC_BIT_RATE);
+
+            codec = MediaCodec.createEncoderByType(MIME_AAC);
+            codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            codec.start();
+            muxer = new MediaMuxer(outFile.getAbsolutePath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            int track = -1;
+            int inputPos = 0;
+            boolean inputDone = false;
+            boolean outputDone = false;
+
+            while (!outputDone) {
+                if (!inputDone) {
+                    int inIndex = codec.dequeueInputBuffer(DEQUEUE_TIMEOUT_US);
+                    if (inIndex >= 0) {
+                        ByteBuffer in = codec.getInputBuffer(inIndex);
+                        in.clear();
+                        in.order(ByteOrder.LITTLE_ENDIAN);
+                        int count = Math.min(pcm.length - inputPos, in.remaining() / 2);
+                        in.asShortBuffer().put(pcm, inputPos, count);
+                        long ptsUs = inputPos * 1_000_000L / sampleRate;
+                        inputPos += count;
+                        inputDone = inputPos >= pcm.length;
+                        codec.queueInputBuffer(inIndex, 0, count * 2, ptsUs,
+                                inputDone ? MediaCodec.BUFFER_FLAG_END_OF_STREAM : 0);
+                    }
+                }
+
+                int outIndex = codec.dequeueOutputBuffer(info, DEQUEUE_TIMEOUT_US);
+                if (outIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    track = muxer.addTrack(codec.getOutputFormat());
+                    muxer.start();
+                    muxerStarted = true;
+                } else if (outIndex >= 0) {
+                    ByteBuffer out = codec.getOutputBuffer(outIndex);
+                    boolean config = (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
+                    if (!config && info.size > 0 && muxerStarted && out != null) {
+                        out.position(info.offset);
+                        out.limit(info.offset + info.size);
+                        muxer.writeSampleData(track, out, info);
+                    }
+                    codec.releaseOutputBuffer(outIndex, false);
+                    outputDone = (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+                }
+            }
+            return muxerStarted;
+        } catch (Exception e) {
+            Log.e(TAG, "AAC encoding failed: " + e.getMessage(), e);
+            return false;
+        } finally {
+            if (codec != null) {
+                try {
+                    codec.stop();
+                } catch (Exception ignored) {
+                }
+                codec.release();
+            }
+            if (muxer != null) {
+                try {
+                    if (muxerStarted) {
+                        muxer.stop();
+                    }
+                } catch (Exception e) {
+                    Log.w(TAG, "Muxer stop failed: " + e.getMessage());
+                }
+                muxer.release();
+            }
+        }
+    }
+
+    /**
+     * Write 16-bit mono PCM as a canonical WAV file.
+     */
+    public static void writeWav(short[] pcm, int sampleRate, OutputStream out) throws IOException {
+        int dataBytes = pcm.length * 2;
+        ByteBuffer header = ByteBuffer.allocate(44).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(new byte[]{'R', 'I', 'F', 'F'}).putInt(36 + dataBytes)
+                .put(new byte[]{'W', 'A', 'V', 'E'})
+                .put(new byte[]{'f', 'm', 't', ' '}).putInt(16)
+                .putShort((short) 1).putShort((short) 1)
+                .putInt(sampleRate).putInt(sampleRate * 2)
+                .putShort((short) 2).putShort((short) 16)
+                .put(new byte[]{'d', 'a', 't', 'a'}).putInt(dataBytes);
+        out.write(header.array());
+
+        ByteBuffer data = ByteBuffer.allocate(dataBytes).order(ByteOrder.LITTLE_ENDIAN);
+        data.asShortBuffer().put(pcm);
+        out.write(data.array());
+    }
+
+    public static void writeWav(short[] pcm, int sampleRate, File outFile) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(outFile)) {
+            writeWav(pcm, sampleRate, out);
+        }
+    }
+}
@@ -9,6 +9,8 @@ import com.google.firebase.database.DatabaseError;
 import com.google.firebase.database.DatabaseReference;
 import com.google.firebase.database.FirebaseDatabase;
 import com.google.firebase.database.ValueEventListener;
+import com.summersoft.heliocam.webrtc_utils.SessionCodeIndex;
+import com.summersoft.heliocam.webrtc_utils.SessionDirectory;
 
 import org.webrtc.AudioSource;
 import org.webrtc.AudioTrack;
@@ -66,6 +68,7 @@ public class SfuManager {
     // Session management
     private String sessionId;
     private String sessionName;
+    private String sessionCode;
     private boolean isHost;
     
     // Store all peer connections and renderers
@@ -146,6 +149,8 @@ public class SfuManager {
                     Log.d(TAG, "Session created successfully in Firebase");
                     // Start listening for join requests
                     listenForJoinRequests();
+                    registerSessionCode(sessionRef);
+                    SessionDirectory.add(formattedEmail, sessionId, sessionName, (Long) sessionData.get("created_at"));
                 })
                 .addOnFailureListener(e -> {
                     Log.e(TAG, "Failed to create session in Firebase", e);
@@ -154,6 +159,33 @@ public class SfuManager {
         return sessionId;
     }
     
+    /**
+     * Reserve a join code for the new session and store it with the session
+     */
+    private void registerSessionCode(DatabaseReference sessionRef) {
+        String createdSessionId = sessionId;
+        SessionCodeIndex.claimGeneratedCode(createdSessionId, userEmail, new SessionCodeIndex.ClaimCallback() {
+            @Override
+            public void onClaimed(String code) {
+                sessionCode = code;
+                Map<String, Object> codeData = new HashMap<>();
+                codeData.put("session_code", code);
+                codeData.put("passkey", code);
+                sessionRef.updateChildren(codeData);
+            }
+
+            @Override
+            public void onCodeTaken(String code) {
+                Log.e(TAG, "Could not find a free session code for " + createdSessionId);
+            }
+
+            @Override
+            public void onError(String message, Exception e) {
+                Log.e(TAG, message, e);
+            }
+        });
+    }
+
     /**
      * Listen for join requests from cameras
      */
@@ -732,6 +764,9 @@ public class SfuManager {
                     .child(sessionId)
                     .child("active")
                     .setValue(false);
+            if (sessionCode != null) {
+                SessionCodeIndex.setActive(sessionCode, sessionId, false);
+            }
         }
         
         // If we're a joiner, remove our join request
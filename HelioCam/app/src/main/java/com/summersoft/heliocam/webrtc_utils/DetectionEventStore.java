@@ -0,0 +1,46 @@
+package com.summersoft.heliocam.webrtc_utils;
+
+import java.util.Map;
+
+/**
+ * The few database operations the detection event writer needs, so the writer can run
+ * against Firebase in the app and against an in-memory map in tests.
+ */
+public interface DetectionEventStore {
+
+    interface CompletionListener {
+        /**
+         * @param error null on success
+         */
+        void onComplete(Exception error);
+    }
+
+    /**
+     * Passed to {@link CompletionListener#onComplete} when the database rules refuse the write;
+     * retrying it cannot succeed.
+     */
+    class PermissionDeniedException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        public PermissionDeniedException(String message) {
+            super(message);
+        }
+    }
+
+    interface ConnectionListener {
+        void onConnectionChanged(boolean connected);
+    }
+
+    /**
+     * Atomically write several locations, as {@code DatabaseReference.updateChildren} on the root.
+     *
+     * @param updates slash-separated paths from the database root to the values stored there
+     */
+    void updateChildren(Map<String, Object> updates, CompletionListener listener);
+
+    /**
+     * Follow the connection state; the listener is told the current state soon after it is set.
+     * Null stops following.
+     */
+    void setConnectionListener(ConnectionListener listener);
+}
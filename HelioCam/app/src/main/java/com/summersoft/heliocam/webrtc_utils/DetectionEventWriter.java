@@ -0,0 +1,481 @@
+package com.summersoft.heliocam.webrtc_utils;
+
+import com.summersoft.heliocam.detection.DetectionFusion;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Queues detection events of one session and writes them in batches.
+ *
+ * The session name is resolved once and cached, found or not. Events are queued and, once
+ * per flush interval, every queued event is written covering the session's detection_events
+ * and notifications and both universal notification lists. The batch is split by the
+ * account that owns each path (users/&lt;key&gt;), one multi-path
+ * {@link DetectionEventStore#updateChildren} per owner, because a multi-path update is
+ * all-or-nothing and the camera account is not necessarily allowed to write the host's
+ * lists. An owner that denies permission is given up on for the rest of the session;
+ * other failures put the events back and retry only the owners that were not yet written.
+ *
+ * Only one batch is in flight at a time; events arriving meanwhile join the next batch.
+ * While the store reports being offline nothing is written, failed batches are retried
+ * with exponential backoff, and the queue is bounded, dropping the oldest events when it
+ * overflows.
+ *
+ * No Android or Firebase dependencies; time and scheduling come from the caller.
+ * Methods are synchronized.
+ */
+public class DetectionEventWriter {
+
+    private static final String UNKNOWN_SESSION = "Unknown Session";
+    private static final long MAX_BACKOFF_MS = 60000;
+
+    /**
+     * Looks up the session name; called at most once at a time.
+     */
+    public interface SessionNameResolver {
+        void resolveSessionName(SessionNameListener listener);
+    }
+
+    public interface SessionNameListener {
+        /**
+         * @param sessionName the name, or null if it could not be found
+         */
+        void onSessionName(String sessionName);
+    }
+
+    /**
+     * Runs the writer's flushes, e.g. on a Handler.
+     */
+    public interface Scheduler {
+        void schedule(Runnable task, long delayMs);
+
+        void cancel(Runnable task);
+    }
+
+    /**
+     * One detection to write.
+     */
+    public static final class Event {
+        final String type;
+        final Map<String, Object> data;
+        final long timestampMs;
+        final int cameraNumber;
+        final String deviceInfo;
+        final String userEmail;
+        // Owners (users/<key>) whose paths for this event are written or given up on
+        final Set<String> doneOwners = new HashSet<>();
+        String eventId;
+
+        /**
+         * @param userEmail email of the camera's account, or empty if there is none
+         */
+        public Event(String type, Map<String, Object> data, long timestampMs, int cameraNumber,
+                     String deviceInfo, String userEmail) {
+            this.type = type;
+            this.data = data;
+            this.timestampMs = timestampMs;
+            this.cameraNumber = cameraNumber;
+            this.deviceInfo = deviceInfo;
+            this.userEmail = userEmail != null ? userEmail : "";
+        }
+
+        public String getEventId() {
+            return eventId;
+        }
+    }
+
+    private final DetectionEventStore store;
+    private final Scheduler scheduler;
+    private final SessionNameResolver resolver;
+    private final String hostEmailKey;
+    private final String sessionId;
+
+    private final ArrayDeque<Event> queue = new ArrayDeque<>();
+    private final Runnable flushTask = this::flush;
+    private long flushIntervalMs = 1000;
+    private int maxQueuedEvents = 200;
+    private int maxBatchEvents = 50;
+
+    private String sessionName;
+    private boolean resolvingName = false;
+    private final Set<String> deniedOwners = new HashSet<>();
+    private boolean connected = true;
+    private boolean inFlight = false;
+    private int ownerWritesPending = 0;
+    private boolean batchFailed = false;
+    private boolean flushScheduled = false;
+    private boolean released = false;
+    private long backoffMs = 0;
+    private long lastEventId = 0;
+
+    // Stats
+    private int writes = 0;
+    private int eventsWritten = 0;
+    private int failedWrites = 0;
+    private int deniedWrites = 0;
+    private int droppedEvents = 0;
+
+    /**
+     * @param hostEmailKey host email with '.' replaced by '_', as used in database paths
+     */
+    public DetectionEventWriter(DetectionEventStore store, Scheduler scheduler, SessionNameResolver resolver,
+                                String hostEmailKey, String sessionId) {
+        this.store = store;
+        this.scheduler = scheduler;
+        this.resolver = resolver;
+        this.hostEmailKey = hostEmailKey;
+        this.sessionId = sessionId;
+        store.setConnectionListener(this::onConnectionChanged);
+    }
+
+    /**
+     * Queue an event for the next flush.
+     *
+     * @return false if the queue was full and the oldest event was dropped to make room
+     */
+    public synchronized boolean enqueue(Event event) {
+        if (released) {
+            return false;
+        }
+        // Timestamp keys, nudged forward so events in the same millisecond do not overwrite each other
+        long id = Math.max(event.timestampMs, lastEventId + 1);
+        lastEventId = id;
+        event.eventId = String.valueOf(id);
+
+        boolean dropped = false;
+        if (queue.size() >= maxQueuedEvents) {
+            queue.pollFirst();
+            droppedEvents++;
+            dropped = true;
+        }
+        queue.addLast(event);
+        scheduleFlush(flushIntervalMs);
+        return !dropped;
+    }
+
+    /**
+     * Write everything queued right away, ignoring the interval, backoff and connection
+     * state, e.g. before the session ends. Firebase keeps the write until it reconnects.
+     */
+    public synchronized void flushNow() {
+        if (queue.isEmpty()) {
+            return;
+        }
+        scheduler.cancel(flushTask);
+        flushScheduled = false;
+        List<Event> batch = new ArrayList<>(queue);
+        queue.clear();
+        String name = sessionName != null ? sessionName : UNKNOWN_SESSION;
+        for (Map<String, Object> updates : splitByOwner(buildUpdates(batch, name)).values()) {
+            store.updateChildren(updates, error -> {
+                synchronized (DetectionEventWriter.this) {
+                    if (error != null) {
+                        failedWrites++;
+                    } else {
+                        writes++;
+                    }
+                }
+            });
+        }
+        eventsWritten += batch.size();
+    }
+
+    /**
+     * Stop scheduling flushes and following the connection state. Call {@link #flushNow()} first
+     * to keep queued events.
+     */
+    public synchronized void release() {
+        released = true;
+        scheduler.cancel(flushTask);
+        flushScheduled = false;
+        store.setConnectionListener(null);
+    }
+
+    private synchronized void onConnectionChanged(boolean isConnected) {
+        connected = isConnected;
+        if (isConnected && !queue.isEmpty()) {
+            // Reconnected: no need to wait out a backoff meant for the outage
+            backoffMs = 0;
+            scheduleFlush(0);
+        }
+    }
+
+    private void scheduleFlush(long delayMs) {
+        if (released || flushScheduled) {
+            return;
+        }
+        flushScheduled = true;
+        scheduler.schedule(flushTask, delayMs);
+    }
+
+    private synchronized void flush() {
+        flushScheduled = false;
+        if (released || inFlight || !connected || queue.isEmpty()) {
+            // Completion or reconnection schedules the next attempt
+            return;
+        }
+
+        if (sessionName == null) {
+            if (!resolvingName) {
+                resolvingName = true;
+                resolver.resolveSessionName(this::onSessionNameResolved);
+            }
+            return;
+        }
+
+        writeBatch(sessionName);
+    }
+
+    private synchronized void onSessionNameResolved(String name) {
+        resolvingName = false;
+        // A missing name is cached too: the lookup is several reads and will not find it next time either
+        sessionName = name != null ? name : UNKNOWN_SESSION;
+        if (released || inFlight || !connected || queue.isEmpty()) {
+            return;
+        }
+        writeBatch(sessionName);
+    }
+
+    private void writeBatch(String name) {
+        List<Event> batch = new ArrayList<>(Math.min(queue.size(), maxBatchEvents));
+        while (!queue.isEmpty() && batch.size() < maxBatchEvents) {
+            batch.add(queue.pollFirst());
+        }
+        Map<String, Map<String, Object>> byOwner = splitByOwner(buildUpdates(batch, name));
+        inFlight = true;
+        batchFailed = false;
+        ownerWritesPending = byOwner.size();
+        if (byOwner.isEmpty()) {
+            // Every owner was already written or denied
+            onBatchComplete(batch);
+            return;
+        }
+        for (Map.Entry<String, Map<String, Object>> entry : byOwner.entrySet()) {
+            String owner = entry.getKey();
+            store.updateChildren(entry.getValue(), error -> onOwnerWriteComplete(batch, owner, error));
+        }
+    }
+
+    private synchronized void onOwnerWriteComplete(List<Event> batch, String owner, Exception error) {
+        if (error instanceof DetectionEventStore.PermissionDeniedException) {
+            // Retrying cannot succeed; keep writing the other owners' paths
+            deniedOwners.add(owner);
+            deniedWrites++;
+        } else if (error != null) {
+            failedWrites++;
+            batchFailed = true;
+        }
+        if (error == null) {
+            for (Event event : batch) {
+                event.doneOwners.add(owner);
+            }
+        }
+        if (--ownerWritesPending == 0) {
+            onBatchComplete(batch);
+        }
+    }
+
+    private void onBatchComplete(List<Event> batch) {
+        inFlight = false;
+        if (batchFailed) {
+            // Put the batch back in front, keeping its order, within the queue bound
+            for (int i = batch.size() - 1; i >= 0; i--) {
+                if (queue.size() >= maxQueuedEvents) {
+                    droppedEvents++;
+                    continue;
+                }
+                queue.addFirst(batch.get(i));
+            }
+            backoffMs = backoffMs == 0 ? flushIntervalMs : Math.min(MAX_BACKOFF_MS, backoffMs * 2);
+            scheduleFlush(backoffMs);
+            return;
+        }
+        writes++;
+        eventsWritten += batch.size();
+        backoffMs = 0;
+        if (!queue.isEmpty()) {
+            scheduleFlush(flushIntervalMs);
+        }
+    }
+
+    /**
+     * All database locations for a batch of events still to be written, keyed by path from
+     * the root. Paths of owners that were already written for an event, or that denied
+     * permission, are left out.
+     */
+    Map<String, Object> buildUpdates(List<Event> batch, String name) {
+        Map<String, Object> updates = new HashMap<>();
+        String sessionPath = "users/" + hostEmailKey + "/sessions/" + sessionId;
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd", Locale.getDefault());
+        SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss", Locale.getDefault());
+
+        for (Event event : batch) {
+            Date eventDate = new Date(event.timestampMs);
+            String dateString = dateFormat.format(eventDate);
+            String timeString = timeFormat.format(eventDate);
+            String what = describe(event);
+
+            // Metadata structure that matches the notification cards
+            Map<String, Object> metadata = new HashMap<>();
+            metadata.put("sessionName", name);
+            metadata.put("cameraNumber", "Camera " + event.cameraNumber);
+            metadata.put("deviceInfo", event.deviceInfo);
+            metadata.put("detectionType", event.type);
+            if (!event.userEmail.isEmpty()) {
+                metadata.put("userEmail", event.userEmail);
+            }
+            if (event.data != null) {
+                copyIfPresent(event.data, metadata, "personCount");
+                copyIfPresent(event.data, metadata, "amplitude");
+                copyIfPresent(event.data, metadata, "confidence");
+                copyIfPresent(event.data, metadata, DetectionFusion.KEY_FUSED_WITH);
+                copyIfPresent(event.data, metadata, "jointConfidence");
+            }
+
+            // 1. Host session detection_events (format shared with the web app)
+            Map<String, Object> eventData = new HashMap<>();
+            eventData.put("type", event.type);
+            eventData.put("timestamp", event.timestampMs);
+            eventData.put("cameraNumber", event.cameraNumber);
+            eventData.put("deviceName", event.deviceInfo);
+            eventData.put("email", event.userEmail);
+            if (event.data != null) {
+                eventData.putAll(event.data);
+            }
+            put(updates, event, sessionPath + "/detection_events/" + event.eventId, eventData);
+
+            // 2. Host session notifications
+            String reason = what + " by Camera " + event.cameraNumber;
+            Map<String, Object> notification = new HashMap<>();
+            notification.put("reason", reason);
+            notification.put("date", dateString);
+            notification.put("time", timeString);
+            notification.put("cameraNumber", event.cameraNumber);
+            notification.put("deviceInfo", event.deviceInfo);
+            notification.put("metadata", metadata);
+            put(updates, event, sessionPath + "/notifications/" + event.eventId, notification);
+
+            // 3. Camera account's universal notifications
+            if (!event.userEmail.isEmpty()) {
+                Map<String, Object> joinerNotification = new HashMap<>();
+                joinerNotification.put("reason", reason + " at " + name);
+                joinerNotification.put("date", dateString);
+                joinerNotification.put("time", timeString);
+                joinerNotification.put("metadata", metadata);
+                put(updates, event, "users/" + event.userEmail.replace(".", "_") + "/universal_notifications/"
+                        + event.eventId, joinerNotification);
+            }
+
+            // 4. Host's universal notifications
+            Map<String, Object> hostMetadata = new HashMap<>(metadata);
+            hostMetadata.put("isHostNotification", true);
+            Map<String, Object> hostNotification = new HashMap<>();
+            hostNotification.put("reason", String.format(Locale.US, "Detection in '%s': %s by Camera %d",
+                    name, what, event.cameraNumber));
+            hostNotification.put("date", dateString);
+            hostNotification.put("time", timeString);
+            hostNotification.put("metadata", hostMetadata);
+            put(updates, event, "users/" + hostEmailKey + "/universal_notifications/" + event.eventId, hostNotification);
+        }
+        return updates;
+    }
+
+    private void put(Map<String, Object> updates, Event event, String path, Object value) {
+        String owner = ownerOf(path);
+        if (!event.doneOwners.contains(owner) && !deniedOwners.contains(owner)) {
+            updates.put(path, value);
+        }
+    }
+
+    /**
+     * Updates grouped by the account whose subtree they are in, in a stable order.
+     */
+    static Map<String, Map<String, Object>> splitByOwner(Map<String, Object> updates) {
+        Map<String, Map<String, Object>> byOwner = new TreeMap<>();
+        for (Map.Entry<String, Object> entry : updates.entrySet()) {
+            String owner = ownerOf(entry.getKey());
+            Map<String, Object> group = byOwner.get(owner);
+            if (group == null) {
+                group = new HashMap<>();
+                byOwner.put(owner, group);
+            }
+            group.put(entry.getKey(), entry.getValue());
+        }
+        return byOwner;
+    }
+
+    /**
+     * "users/&lt;key&gt;" for a path under users, otherwise the first path segment.
+     */
+    static String ownerOf(String path) {
+        int first = path.indexOf('/');
+        if (first < 0) {
+            return path;
+        }
+        int second = path.indexOf('/', first + 1);
+        return second < 0 ? path : path.substring(0, second);
+    }
+
+    /**
+     * What the notification says was detected; a fused person event names both modalities.
+     */
+    static String describe(Event event) {
+        if (!DetectionFusion.TYPE_PERSON.equals(event.type)) {
+            return "Sound detected";
+        }
+        if (event.data != null && DetectionFusion.TYPE_SOUND.equals(event.data.get(DetectionFusion.KEY_FUSED_WITH))) {
+            return "Person and sound detected";
+        }
+        return "Person detected";
+    }
+
+    private static void copyIfPresent(Map<String, Object> from, Map<String, Object> to, String key) {
+        if (from.containsKey(key)) {
+            to.put(key, from.get(key));
+        }
+    }
+
+    /**
+     * @param flushIntervalMs how long events are collected before a write
+     */
+    public synchronized void setFlushIntervalMs(long flushIntervalMs) {
+        this.flushIntervalMs = Math.max(0, flushIntervalMs);
+    }
+
+    /**
+     * @param maxQueuedEvents events kept while offline or failing before the oldest are dropped
+     */
+    public synchronized void setMaxQueuedEvents(int maxQueuedEvents) {
+        this.maxQueuedEvents = Math.max(1, maxQueuedEvents);
+    }
+
+    /**
+     * @param maxBatchEvents events written per update at most
+     */
+    public synchronized void setMaxBatchEvents(int maxBatchEvents) {
+        this.maxBatchEvents = Math.max(1, maxBatchEvents);
+    }
+
+    public synchronized int getQueuedCount() {
+        return queue.size();
+    }
+
+    public synchronized String getCachedSessionName() {
+        return sessionName;
+    }
+
+    public synchronized String getStats() {
+        return "writes=" + writes + " events=" + eventsWritten + " failed=" + failedWrites
+                + " denied=" + deniedWrites + " dropped=" + droppedEvents + " queued=" + queue.size() + (connected ? "" : " offline");
+    }
+}
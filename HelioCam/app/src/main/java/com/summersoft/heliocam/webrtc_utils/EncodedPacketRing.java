@@ -0,0 +1,330 @@
+package com.summersoft.heliocam.webrtc_utils;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Fixed-size memory ring of encoded access units (H.264 video and AAC audio) used as a
+ * pre-event buffer.
+ *
+ * All packet data lives in one byte array allocated up front, so memory use never grows past
+ * the configured capacity. The ring always starts on a video key frame: old packets are
+ * evicted a whole GOP at a time, either when the packets after the next key frame still
+ * cover the time window, or when a new packet does not fit. Packets arriving while no key
+ * frame has been seen yet are dropped.
+ *
+ * Every packet gets an increasing sequence number. Readers walk the ring by sequence number
+ * and can follow it live with {@link #awaitPacket}; a reader that falls so far behind that its
+ * packet was evicted restarts at {@link #getOldestSeq()}, which is always a key frame.
+ * {@link #clear()} starts a new epoch, for when the stream format changes; each packet carries
+ * the epoch it was written in so readers can tell the streams apart.
+ */
+public class EncodedPacketRing {
+    public static final int TRACK_VIDEO = 0;
+    public static final int TRACK_AUDIO = 1;
+    /** Same value as MediaCodec.BUFFER_FLAG_KEY_FRAME */
+    public static final int FLAG_KEY_FRAME = 1;
+
+    /**
+     * A packet copied out of the ring. The data array is reused between reads and grows as needed.
+     */
+    public static class Packet {
+        public int track;
+        public long ptsUs;
+        public int flags;
+        public int size;
+        public int epoch;
+        public byte[] data = new byte[0];
+
+        public boolean isKeyFrame() {
+            return track == TRACK_VIDEO && (flags & FLAG_KEY_FRAME) != 0;
+        }
+    }
+
+    private final byte[] data;
+    private final int maxPackets;
+    private volatile long windowUs;
+
+    // Per-packet metadata, indexed by seq % maxPackets
+    private final int[] offsets;
+    private final int[] sizes;
+    private final int[] flags;
+    private final byte[] tracks;
+    private final long[] pts;
+    private final int[] epochs;
+
+    // Sequence numbers of the key frames in the ring, oldest first
+    private final long[] keySeqs;
+    private int keyHead = 0;
+    private int keyCount = 0;
+
+    private long headSeq = 0;   // oldest packet in the ring
+    private long tailSeq = 0;   // next packet to be written
+    private int usedBytes = 0;
+    private long newestPtsUs = Long.MIN_VALUE;
+    private boolean waitingForKeyFrame = true;
+    private boolean closed = false;
+    private int epoch = 0;
+
+    // Stats
+    private long packetsAdded = 0;
+    private long packetsDropped = 0;
+    private long gopsEvicted = 0;
+
+    /**
+     * @param capacityBytes memory for packet data, allocated once
+     * @param maxPackets    most packets held at once
+     * @param windowUs      how much time to keep, in microseconds
+     */
+    public EncodedPacketRing(int capacityBytes, int maxPackets, long windowUs) {
+        if (capacityBytes <= 0 || maxPackets <= 0) {
+            throw new IllegalArgumentException("Ring capacity must be positive");
+        }
+        this.data = new byte[capacityBytes];
+        this.maxPackets = maxPackets;
+        this.windowUs = windowUs;
+        this.offsets = new int[maxPackets];
+        this.sizes = new int[maxPackets];
+        this.flags = new int[maxPackets];
+        this.tracks = new byte[maxPackets];
+        this.pts = new long[maxPackets];
+        this.epochs = new int[maxPackets];
+        this.keySeqs = new long[maxPackets];
+    }
+
+    /**
+     * Copy a packet into the ring, evicting the oldest GOPs to make room.
+     *
+     * @param buffer packet data between position and limit; the position is not changed
+     * @return the packet's sequence number, or -1 if it was dropped
+     */
+    public synchronized long append(int track, ByteBuffer buffer, long ptsUs, int packetFlags) {
+        if (closed) {
+            return -1;
+        }
+        int size = buffer.remaining();
+        boolean keyFrame = track == TRACK_VIDEO && (packetFlags & FLAG_KEY_FRAME) != 0;
+
+        if (size > data.length) {
+            // A single packet larger than the whole ring; start over at the next key frame
+            clearLocked();
+            packetsDropped++;
+            return -1;
+        }
+
+        while (tailSeq - headSeq == maxPackets || data.length - usedBytes < size) {
+            evictOldestGop();
+        }
+        if (waitingForKeyFrame) {
+            if (!keyFrame) {
+                packetsDropped++;
+                return -1;
+            }
+            waitingForKeyFrame = false;
+        }
+
+        int offset = writeOffset();
+        int first = Math.min(size, data.length - offset);
+        int position = buffer.position();
+        buffer.get(data, offset, first);
+        if (first < size) {
+            buffer.get(data, 0, size - first);
+        }
+        buffer.position(position);
+
+        long seq = tailSeq++;
+        int slot = slot(seq);
+        offsets[slot] = offset;
+        sizes[slot] = size;
+        flags[slot] = packetFlags;
+        tracks[slot] = (byte) track;
+        pts[slot] = ptsUs;
+        epochs[slot] = epoch;
+        usedBytes += size;
+        newestPtsUs = Math.max(newestPtsUs, ptsUs);
+        packetsAdded++;
+
+        if (keyFrame) {
+            keySeqs[(keyHead + keyCount) % maxPackets] = seq;
+            keyCount++;
+        }
+
+        // Drop the oldest GOP once the rest of the ring still covers the window
+        while (keyCount >= 2 && pts[slot(keySeqs[(keyHead + 1) % maxPackets])] <= newestPtsUs - windowUs) {
+            evictOldestGop();
+        }
+
+        notifyAll();
+        return seq;
+    }
+
+    /**
+     * Copy a packet out of the ring.
+     *
+     * @return false if the packet was evicted or has not been written yet
+     */
+    public synchronized boolean read(long seq, Packet out) {
+        if (seq < headSeq || seq >= tailSeq) {
+            return false;
+        }
+        int slot = slot(seq);
+        int size = sizes[slot];
+        if (out.data.length < size) {
+            out.data = new byte[Math.max(size, out.data.length * 2)];
+        }
+        int offset = offsets[slot];
+        int first = Math.min(size, data.length - offset);
+        System.arraycopy(data, offset, out.data, 0, first);
+        if (first < size) {
+            System.arraycopy(data, 0, out.data, first, size - first);
+        }
+        out.track = tracks[slot];
+        out.ptsUs = pts[slot];
+        out.flags = flags[slot];
+        out.size = size;
+        out.epoch = epochs[slot];
+        return true;
+    }
+
+    /**
+     * Wait until the packet with the given sequence number has been written.
+     *
+     * @return true if it is available (or already evicted), false on timeout or close
+     */
+    public synchronized boolean awaitPacket(long seq, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (seq >= tailSeq && !closed) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return seq < tailSeq;
+    }
+
+    /**
+     * Sequence number of the oldest packet, always a video key frame while the ring is not empty.
+     */
+    public synchronized long getOldestSeq() {
+        return headSeq;
+    }
+
+    /**
+     * Sequence number of the newest key frame at or before the given time, or of the oldest
+     * packet if every key frame is later.
+     */
+    public synchronized long findKeyFrameAtOrBefore(long ptsUs) {
+        // Key frame timestamps increase, so binary search the key frame list
+        int low = 0;
+        int high = keyCount - 1;
+        long found = headSeq;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long seq = keySeqs[(keyHead + mid) % maxPackets];
+            if (pts[slot(seq)] <= ptsUs) {
+                found = seq;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Sequence number the next packet will get.
+     */
+    public synchronized long getNextSeq() {
+        return tailSeq;
+    }
+
+    public synchronized long getNewestPtsUs() {
+        return newestPtsUs;
+    }
+
+    public synchronized long getBufferedDurationUs() {
+        return headSeq == tailSeq ? 0 : newestPtsUs - pts[slot(headSeq)];
+    }
+
+    public synchronized int getUsedBytes() {
+        return usedBytes;
+    }
+
+    public int getCapacityBytes() {
+        return data.length;
+    }
+
+    public void setWindowUs(long windowUs) {
+        this.windowUs = windowUs;
+    }
+
+    /**
+     * Drop all packets and start a new epoch. New packets are accepted again from the next key frame.
+     */
+    public synchronized void clear() {
+        clearLocked();
+        epoch++;
+        notifyAll();
+    }
+
+    public synchronized int getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Stop accepting packets and wake up all waiting readers. Buffered packets can still be read.
+     */
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    public synchronized String getStats() {
+        return "packets=" + (tailSeq - headSeq) + ", bytes=" + usedBytes + "/" + data.length
+                + ", duration=" + (getBufferedDurationUs() / 1000) + "ms, added=" + packetsAdded
+                + ", dropped=" + packetsDropped + ", gopsEvicted=" + gopsEvicted;
+    }
+
+    private void evictOldestGop() {
+        // Up to the second key frame, or everything if the ring holds a single GOP
+        long end = keyCount >= 2 ? keySeqs[(keyHead + 1) % maxPackets] : tailSeq;
+        if (end == tailSeq) {
+            clearLocked();
+            return;
+        }
+        while (headSeq < end) {
+            usedBytes -= sizes[slot(headSeq)];
+            headSeq++;
+        }
+        keyHead = (keyHead + 1) % maxPackets;
+        keyCount--;
+        gopsEvicted++;
+    }
+
+    private void clearLocked() {
+        if (headSeq != tailSeq) {
+            gopsEvicted++;
+        }
+        headSeq = tailSeq;
+        usedBytes = 0;
+        keyHead = 0;
+        keyCount = 0;
+        waitingForKeyFrame = true;
+    }
+
+    private int writeOffset() {
+        if (headSeq == tailSeq) {
+            return 0;
+        }
+        int last = slot(tailSeq - 1);
+        return (offsets[last] + sizes[last]) % data.length;
+    }
+
+    private int slot(long seq) {
+        return (int) (seq % maxPackets);
+    }
+}
@@ -0,0 +1,67 @@
+package com.summersoft.heliocam.webrtc_utils;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.FirebaseDatabase;
+import com.google.firebase.database.ValueEventListener;
+
+import java.util.Map;
+
+/**
+ * {@link DetectionEventStore} backed by the Firebase Realtime Database.
+ */
+public class FirebaseDetectionEventStore implements DetectionEventStore {
+    private static final String TAG = "FirebaseEventStore";
+
+    private final DatabaseReference root;
+    private final DatabaseReference connectedRef;
+    private ValueEventListener connectedListener;
+
+    public FirebaseDetectionEventStore() {
+        FirebaseDatabase database = FirebaseDatabase.getInstance();
+        root = database.getReference();
+        connectedRef = database.getReference(".info/connected");
+    }
+
+    @Override
+    public void updateChildren(Map<String, Object> updates, CompletionListener listener) {
+        root.updateChildren(updates, (error, ref) -> {
+            if (error == null) {
+                listener.onComplete(null);
+            } else if (error.getCode() == DatabaseError.PERMISSION_DENIED) {
+                listener.onComplete(new PermissionDeniedException(error.getMessage()));
+            } else {
+                listener.onComplete(error.toException());
+            }
+        });
+    }
+
+    @Override
+    public synchronized void setConnectionListener(ConnectionListener listener) {
+        if (connectedListener != null) {
+            connectedRef.removeEventListener(connectedListener);
+            connectedListener = null;
+        }
+        if (listener == null) {
+            return;
+        }
+        connectedListener = new ValueEventListener() {
+            @Override
+            public void onDataChange(@NonNull DataSnapshot snapshot) {
+                Boolean connected = snapshot.getValue(Boolean.class);
+                listener.onConnectionChanged(connected != null && connected);
+            }
+
+            @Override
+            public void onCancelled(@NonNull DatabaseError error) {
+                Log.w(TAG, "Connection state listener cancelled: " + error.getMessage());
+            }
+        };
+        connectedRef.addValueEventListener(connectedListener);
+    }
+}
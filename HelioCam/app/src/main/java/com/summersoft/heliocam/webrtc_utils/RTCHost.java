@@ -53,6 +53,7 @@ public class RTCHost {
     // Firebase components
     private DatabaseReference mDatabase;
     private String sessionId;
+    private String sessionCode;
     private String userEmail;
     private String formattedEmail;
     
@@ -211,6 +212,8 @@ public class RTCHost {
                 .addOnSuccessListener(aVoid -> {
                     Log.d(TAG, "Session created successfully: " + sessionId);
                     listenForJoinRequests();
+                    registerSessionCode(sessionRef);
+                    SessionDirectory.add(formattedEmail, sessionId, sessionName, (Long) sessionData.get("created_at"));
                 })
                 .addOnFailureListener(e -> {
                     Log.e(TAG, "Failed to create session", e);
@@ -219,6 +222,41 @@ public class RTCHost {
                 
         return sessionId;
     }
+
+    /**
+     * Reserve a join code for a session created here and store it with the session
+     */
+    private void registerSessionCode(DatabaseReference sessionRef) {
+        String createdSessionId = sessionId;
+        SessionCodeIndex.claimGeneratedCode(createdSessionId, userEmail, new SessionCodeIndex.ClaimCallback() {
+            @Override
+            public void onClaimed(String code) {
+                sessionCode = code;
+                Map<String, Object> codeData = new HashMap<>();
+                codeData.put("session_code", code);
+                codeData.put("passkey", code);
+                codeData.put("host_email", userEmail);
+                sessionRef.updateChildren(codeData);
+            }
+
+            @Override
+            public void onCodeTaken(String code) {
+                Log.e(TAG, "Could not find a free session code for " + createdSessionId);
+            }
+
+            @Override
+            public void onError(String message, Exception e) {
+                Log.e(TAG, message, e);
+            }
+        });
+    }
+
+    /**
+     * Join code of the current session, or null until it is known
+     */
+    public String getSessionCode() {
+        return sessionCode;
+    }
     
     /**
      * Listen for join requests from cameras
@@ -690,6 +728,9 @@ public class RTCHost {
                             .child(sessionId)
                             .child("active")
                             .setValue(false);
+                    if (sessionCode != null) {
+                        SessionCodeIndex.setActive(sessionCode, sessionId, false);
+                    }
                 } catch (Exception e) {
                     Log.e(TAG, "Failed to update Firebase session", e);
                 }
@@ -711,6 +752,62 @@ public class RTCHost {
         
         // Set up listeners for incoming connections
         setupJoinListeners();
+        activateSessionCode();
+    }
+
+    /**
+     * Mark the session's join code active in the index while it is being hosted
+     */
+    private void activateSessionCode() {
+        if (sessionId == null || formattedEmail == null) {
+            return;
+        }
+        String hostedSessionId = sessionId;
+        DatabaseReference sessionRef = mDatabase.child("users").child(formattedEmail).child("sessions").child(hostedSessionId);
+        // Read only the code fields, not the session's notifications and events
+        sessionRef.child("passkey").get()
+                .addOnSuccessListener(passkey -> {
+                    String code = passkey.getValue(String.class);
+                    if (code != null) {
+                        activateSessionCode(sessionRef, hostedSessionId, code);
+                        return;
+                    }
+                    sessionRef.child("session_code").get()
+                            .addOnSuccessListener(sessionCodeSnapshot -> {
+                                String sessionCodeValue = sessionCodeSnapshot.getValue(String.class);
+                                if (sessionCodeValue != null) {
+                                    activateSessionCode(sessionRef, hostedSessionId, sessionCodeValue);
+                                }
+                            })
+                            .addOnFailureListener(e -> Log.e(TAG, "Failed to read session code", e));
+                })
+                .addOnFailureListener(e -> Log.e(TAG, "Failed to read session code", e));
+    }
+
+    private void activateSessionCode(DatabaseReference sessionRef, String hostedSessionId, String code) {
+        if (!hostedSessionId.equals(sessionId)) {
+            return;
+        }
+        sessionCode = code;
+        SessionCodeIndex.setActive(code, hostedSessionId, !isDisposed, new SessionCodeIndex.ClaimCallback() {
+            @Override
+            public void onClaimed(String key) {
+            }
+
+            @Override
+            public void onCodeTaken(String key) {
+                // Joiners typing the old code would reach another session or none
+                Log.w(TAG, "Session code " + key + " is not indexed for " + hostedSessionId + ", assigning a new one");
+                if (!isDisposed && hostedSessionId.equals(sessionId)) {
+                    registerSessionCode(sessionRef);
+                }
+            }
+
+            @Override
+            public void onError(String message, Exception e) {
+                Log.e(TAG, message, e);
+            }
+        });
     }
 
     private void setupJoinListeners() {
@@ -795,58 +892,25 @@ public class RTCHost {
      * @param sessionCode The 6-digit session code entered by user
      */
     public static void findSessionByCode(String sessionCode, SessionFoundCallback callback) {
-        // Add debug logging
         Log.d(TAG, "Looking for session with code: " + sessionCode);
-        
-        // Normalize session code (trim whitespace, convert to lowercase)
-        String normalizedCode = sessionCode.trim().toLowerCase();
-        
-        // First check in the users path where sessions are actually created
-        DatabaseReference usersRef = FirebaseDatabase.getInstance().getReference("users");
-        
-        // Use a single query instead of fetching all users
-        usersRef.get().addOnCompleteListener(task -> {
-            if (task.isSuccessful()) {
-                boolean found = false;
-                Log.d(TAG, "Searching through " + task.getResult().getChildrenCount() + " users");
-                
-                // Iterate through all users
-                for (DataSnapshot userSnapshot : task.getResult().getChildren()) {
-                    DataSnapshot sessionsSnapshot = userSnapshot.child("sessions");
-                    
-                    // Search sessions for this user
-                    for (DataSnapshot sessionSnapshot : sessionsSnapshot.getChildren()) {
-                        String code = sessionSnapshot.child("session_code").getValue(String.class);
-                        Boolean active = sessionSnapshot.child("active").getValue(Boolean.class);
-                        
-                        Log.d(TAG, "Found session with code: " + code + ", active: " + active + 
-                              " (comparing with: " + normalizedCode + ")");
-                        
-                        // Check if session is active and code matches (case-insensitive)
-                        if (code != null && active != null && active && 
-                                code.equalsIgnoreCase(normalizedCode)) {
-                            String sessionId = sessionSnapshot.getKey();
-                            String hostEmail = sessionSnapshot.child("host_email").getValue(String.class);
-                            
-                            if (hostEmail != null) {
-                                Log.d(TAG, "Session found! ID: " + sessionId + ", Host: " + hostEmail);
-                                callback.onSessionFound(sessionId, hostEmail);
-                                found = true;
-                                break;
-                            }
-                        }
-                    }
-                    
-                    if (found) break;
-                }
-                
-                if (!found) {
-                    Log.d(TAG, "No session found with code: " + normalizedCode);
-                    callback.onSessionNotFound();
-                }
-            } else {
-                Log.e(TAG, "Failed to search for sessions", task.getException());
-                callback.onError("Failed to search for sessions", task.getException());
+
+        // One keyed read of the session code index
+        SessionCodeIndex.resolve(sessionCode, new RTCJoiner.SessionFoundCallback() {
+            @Override
+            public void onSessionFound(String sessionId, String hostEmail) {
+                Log.d(TAG, "Session found! ID: " + sessionId + ", Host: " + hostEmail);
+                callback.onSessionFound(sessionId, hostEmail);
+            }
+
+            @Override
+            public void onSessionNotFound() {
+                callback.onSessionNotFound();
+            }
+
+            @Override
+            public void onError(String message, Exception e) {
+                Log.e(TAG, "Failed to look up session code", e);
+                callback.onError(message, e);
             }
         });
     }
@@ -7,6 +7,9 @@ import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 import android.widget.Toast;
 
@@ -20,6 +23,7 @@ import com.google.firebase.database.DatabaseError;
 import com.google.firebase.database.DatabaseReference;
 import com.google.firebase.database.FirebaseDatabase;
 import com.google.firebase.database.ValueEventListener;
+import com.summersoft.heliocam.detection.DetectionFusion;
 
 import org.webrtc.AudioSource;
 import org.webrtc.AudioTrack;
@@ -40,13 +44,11 @@ import org.webrtc.VideoFrame;
 import org.webrtc.VideoSink;
 import org.webrtc.VideoSource;
 import org.webrtc.VideoTrack;
+import org.webrtc.audio.JavaAudioDeviceModule;
 
-import java.text.SimpleDateFormat;
 import java.util.Arrays;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
 import java.util.UUID;
 import java.util.Set;
@@ -66,6 +68,10 @@ public class RTCJoiner {
     private AudioSource audioSource;
     private CameraVideoCapturer videoCapturer;
     private SurfaceTextureHelper surfaceTextureHelper;
+    // Mic capture shared between the audio track and sound detection
+    private SharedAudioCapture audioCapture;
+    // Lets local recording reuse the call's H.264 encoder
+    private TeeVideoEncoderFactory encoderTee;
 
     // Connection components
     private Context context;
@@ -99,6 +105,14 @@ public class RTCJoiner {
     // Disposal state tracking to prevent double disposal
     private boolean isDisposed = false;
 
+    // Correlates person and sound reports into one event before they are written
+    private final DetectionFusion detectionFusion = new DetectionFusion(this::publishDetectionEvent);
+    private volatile boolean detectionFusionEnabled = true;
+    private final Handler detectionHandler = new Handler(Looper.getMainLooper());
+    private DetectionEventWriter detectionEventWriter;
+    private String detectionEventWriterSession;
+    private final Runnable fusionTimeoutRunnable = this::advanceDetectionFusion;
+
     /**
      * Constructor for RTCJoiner
      *
@@ -143,18 +157,30 @@ public class RTCJoiner {
                         .createInitializationOptions();
         PeerConnectionFactory.initialize(options);
 
-        DefaultVideoEncoderFactory encoderFactory =
-                new DefaultVideoEncoderFactory(eglBase.getEglBaseContext(), true, true);
+        encoderTee = new TeeVideoEncoderFactory(
+                new DefaultVideoEncoderFactory(eglBase.getEglBaseContext(), true, true));
         DefaultVideoDecoderFactory decoderFactory =
                 new DefaultVideoDecoderFactory(eglBase.getEglBaseContext());
 
         PeerConnectionFactory.Options peerOptions = new PeerConnectionFactory.Options();
 
+        // Hand the samples WebRTC captures to local listeners instead of opening the mic twice
+        audioCapture = new SharedAudioCapture(context);
+        JavaAudioDeviceModule audioDeviceModule = JavaAudioDeviceModule.builder(context)
+                .setSampleRate(SharedAudioCapture.SAMPLE_RATE)
+                .setSamplesReadyCallback(audioCapture)
+                .setAudioRecordStateCallback(audioCapture)
+                .createAudioDeviceModule();
+
         peerConnectionFactory = PeerConnectionFactory.builder()
                 .setOptions(peerOptions)
-                .setVideoEncoderFactory(encoderFactory)
+                .setAudioDeviceModule(audioDeviceModule)
+                .setVideoEncoderFactory(encoderTee)
                 .setVideoDecoderFactory(decoderFactory)
                 .createPeerConnectionFactory();
+
+        // The factory keeps its own reference
+        audioDeviceModule.release();
     }
 
     /**
@@ -362,6 +388,10 @@ public class RTCJoiner {
             localStream.addTrack(localVideoTrack);
         }
         if (localAudioTrack != null) {
+            // Free the mic first; WebRTC opens its own capture once the answer is set
+            if (audioCapture != null) {
+                audioCapture.yieldToWebRtc();
+            }
             localStream.addTrack(localAudioTrack);
         }
         peerConnection.addStream(localStream);
@@ -382,6 +412,7 @@ public class RTCJoiner {
             @Override
             public void onSetFailure(String error) {
                 Log.e(TAG, "Failed to set remote description: " + error);
+                reclaimAudioCapture();
             }
         }, offer);
 
@@ -412,10 +443,21 @@ public class RTCJoiner {
             @Override
             public void onCreateFailure(String error) {
                 Log.e(TAG, "Failed to create answer: " + error);
+                reclaimAudioCapture();
             }
         }, constraints);
     }
 
+    /**
+     * Let local listeners capture from the mic again when the call failed before sending audio.
+     */
+    private void reclaimAudioCapture() {
+        SharedAudioCapture capture = audioCapture;
+        if (capture != null) {
+            capture.reclaimFromWebRtc();
+        }
+    }
+
     /**
      * Send SDP answer to host
      */
@@ -604,6 +646,19 @@ public class RTCJoiner {
         Log.d(TAG, "Disposing RTCJoiner resources");
         isDisposed = true;
 
+        // Write detections still waiting for a partner while the session info is still set
+        detectionHandler.removeCallbacks(fusionTimeoutRunnable);
+        detectionFusion.flush();
+        Log.d(TAG, "Detection fusion: " + detectionFusion.getStats());
+        synchronized (this) {
+            if (detectionEventWriter != null) {
+                detectionEventWriter.flushNow();
+                detectionEventWriter.release();
+                Log.d(TAG, "Detection event writer: " + detectionEventWriter.getStats());
+                detectionEventWriter = null;
+            }
+        }
+
         // Remove join request from Firebase
         if (joinerId != null && formattedHostEmail != null && sessionId != null) {
             firebaseDatabase.child("users")
@@ -652,6 +707,12 @@ public class RTCJoiner {
             audioSource = null;
         }
 
+        // Stop the shared mic capture
+        if (audioCapture != null) {
+            audioCapture.release();
+            audioCapture = null;
+        }
+
         // Release surface texture helper
         if (surfaceTextureHelper != null) {
             surfaceTextureHelper.dispose();
@@ -716,30 +777,7 @@ public class RTCJoiner {
      * @param sessionCode The 6-digit session code entered by user
      */
     public static void findSessionByCode(String sessionCode, SessionFoundCallback callback) {
-        DatabaseReference sessionCodeRef = FirebaseDatabase.getInstance().getReference().child("session_codes").child(sessionCode);
-
-        sessionCodeRef.addListenerForSingleValueEvent(new ValueEventListener() {
-            @Override
-            public void onDataChange(DataSnapshot dataSnapshot) {
-                if (dataSnapshot.exists()) {
-                    String sessionId = dataSnapshot.child("session_id").getValue(String.class);
-                    String hostEmail = dataSnapshot.child("host_email").getValue(String.class);
-
-                    if (sessionId != null && hostEmail != null) {
-                        callback.onSessionFound(sessionId, hostEmail);
-                    } else {
-                        callback.onError("Session data incomplete", null);
-                    }
-                } else {
-                    callback.onSessionNotFound();
-                }
-            }
-
-            @Override
-            public void onCancelled(DatabaseError databaseError) {
-                callback.onError("Database error", databaseError.toException());
-            }
-        });
+        SessionCodeIndex.resolve(sessionCode, callback);
     }
 
     /**
@@ -773,110 +811,160 @@ public class RTCJoiner {
     }
 
     /**
-     * Report a sound detection event to the host session
+     * Report a detection event to the host session - Enhanced to match notification card design
      *
-     * @param amplitude Sound amplitude detected
+     * @param detectionType Type of detection (sound, person)
+     * @param detectionData Additional data about the detection
      */
-    public void reportSoundDetection(double amplitude) {
+    public void reportDetectionEvent(String detectionType, Map<String, Object> detectionData) {
         if (sessionId == null || hostEmail == null) {
-            Log.w(TAG, "Cannot report sound detection - missing session info");
+            Log.w(TAG, "Cannot report detection: session or host info missing");
             return;
         }
 
-        Map<String, Object> detectionData = new HashMap<>();
-        detectionData.put("type", "sound");
-        detectionData.put("amplitude", amplitude);
-        detectionData.put("threshold", "exceeded");
-        
-        reportDetectionEvent("sound", detectionData);
+        if (detectionFusionEnabled) {
+            // Held for the fusion window, then written by publishDetectionEvent
+            detectionFusion.offer(detectionType, detectionData, SystemClock.elapsedRealtime());
+            scheduleDetectionFusionTimeout();
+        } else {
+            publishDetectionEvent(detectionType, detectionData);
+        }
     }
 
     /**
-     * Report a detection event to the host session - Enhanced to match notification card design
+     * Enable or disable audio-visual fusion. When disabled every detection is written as it is reported.
+     */
+    public void setDetectionFusionEnabled(boolean enabled) {
+        detectionFusionEnabled = enabled;
+        if (!enabled) {
+            detectionHandler.removeCallbacks(fusionTimeoutRunnable);
+            detectionFusion.flush();
+        }
+        Log.d(TAG, "Detection fusion " + (enabled ? "enabled" : "disabled"));
+    }
+
+    /**
+     * Set how far apart a person and a sound detection may be to be reported as one event.
+     * Single detections are delayed by up to this long.
      *
-     * @param detectionType Type of detection (sound, person)
-     * @param detectionData Additional data about the detection
+     * @param windowMs fusion window in milliseconds
      */
-    public void reportDetectionEvent(String detectionType, Map<String, Object> detectionData) {
+    public void setDetectionFusionWindow(long windowMs) {
+        detectionFusion.setWindowMs(windowMs);
+    }
+
+    /**
+     * Drop person-only or sound-only detections below this confidence (0-1); 0 keeps them all.
+     */
+    public void setSingleModalitySuppressionThreshold(float threshold) {
+        detectionFusion.setSingleModalitySuppressionThreshold(threshold);
+    }
+
+    private void scheduleDetectionFusionTimeout() {
+        long deadline = detectionFusion.getNextDeadlineMs();
+        detectionHandler.removeCallbacks(fusionTimeoutRunnable);
+        if (deadline >= 0) {
+            detectionHandler.postDelayed(fusionTimeoutRunnable,
+                    Math.max(0, deadline - SystemClock.elapsedRealtime()));
+        }
+    }
+
+    private void advanceDetectionFusion() {
+        detectionFusion.advanceTo(SystemClock.elapsedRealtime());
+        scheduleDetectionFusionTimeout();
+    }
+
+    /**
+     * Write a detection event, fused or not, to the host session and notifications
+     */
+    private void publishDetectionEvent(String detectionType, Map<String, Object> detectionData) {
         if (sessionId == null || hostEmail == null) {
-            Log.w(TAG, "Cannot report detection: session or host info missing");
+            Log.w(TAG, "Cannot publish detection: session or host info missing");
             return;
         }
 
-        // Get the current time for the event ID
-        long timestamp = System.currentTimeMillis();
-        String eventId = String.valueOf(timestamp);
-
-        // Format host email for Firebase path
-        String formattedHostEmail = hostEmail.replace(".", "_");
-        
         // Get current user info
         String currentUserEmail;
         String deviceInfo = android.os.Build.MANUFACTURER + " " + android.os.Build.MODEL;
-        
+
         if (FirebaseAuth.getInstance().getCurrentUser() != null) {
             currentUserEmail = FirebaseAuth.getInstance().getCurrentUser().getEmail();
         } else {
             currentUserEmail = "";
         }
 
-        // Create formatted date/time for notifications
-        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd", Locale.getDefault());
-        SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss", Locale.getDefault());
-        Date eventDate = new Date(timestamp);
-        String dateString = dateFormat.format(eventDate);
-        String timeString = timeFormat.format(eventDate);
-          // First, get the session name to create proper notifications
+        DetectionEventWriter.Event event = new DetectionEventWriter.Event(detectionType, detectionData,
+                System.currentTimeMillis(), assignedCameraNumber, deviceInfo, currentUserEmail);
+        if (!getDetectionEventWriter().enqueue(event)) {
+            Log.w(TAG, "Detection event queue full, dropped oldest event");
+        }
+        Log.d(TAG, "Detection event queued: " + detectionType + " id " + event.getEventId());
+    }
+
+    /**
+     * Writer for the current session, created on first use and replaced if the session changes
+     */
+    private synchronized DetectionEventWriter getDetectionEventWriter() {
+        String formattedHostEmail = hostEmail.replace(".", "_");
+        String writerSession = formattedHostEmail + "/" + sessionId;
+        if (detectionEventWriter == null || !writerSession.equals(detectionEventWriterSession)) {
+            if (detectionEventWriter != null) {
+                detectionEventWriter.flushNow();
+                detectionEventWriter.release();
+            }
+            String writerSessionId = sessionId;
+            detectionEventWriter = new DetectionEventWriter(
+                    new FirebaseDetectionEventStore(),
+                    new DetectionEventWriter.Scheduler() {
+                        @Override
+                        public void schedule(Runnable task, long delayMs) {
+                            detectionHandler.postDelayed(task, delayMs);
+                        }
+
+                        @Override
+                        public void cancel(Runnable task) {
+                            detectionHandler.removeCallbacks(task);
+                        }
+                    },
+                    listener -> resolveSessionName(formattedHostEmail, writerSessionId, listener),
+                    formattedHostEmail, writerSessionId);
+            detectionEventWriterSession = writerSession;
+        }
+        return detectionEventWriter;
+    }
+
+    /**
+     * Look up the session name, first on the host's session and then in the logininfo nodes
+     */
+    private void resolveSessionName(String formattedHostEmail, String sessionId,
+                                    DetectionEventWriter.SessionNameListener listener) {
         DatabaseReference sessionNameRef = FirebaseDatabase.getInstance()
                 .getReference("users")
                 .child(formattedHostEmail)
                 .child("sessions")
                 .child(sessionId)
                 .child("session_name");
-                
+
         sessionNameRef.get().addOnCompleteListener(task -> {
-            String sessionName = "Unknown Session";
-            
             // Try primary location first
             if (task.isSuccessful() && task.getResult().exists()) {
                 String foundName = task.getResult().getValue(String.class);
-                if (foundName != null) {
-                    sessionName = foundName;
-                    Log.d(TAG, "Found session name in main path: " + sessionName);
-                } else {
-                    Log.d(TAG, "Session name is null in main path, will try logininfo nodes");
+                if (foundName != null && !foundName.trim().isEmpty()) {
+                    Log.d(TAG, "Found session name in main path: " + foundName);
+                    listener.onSessionName(foundName);
+                    return;
                 }
-            } else {
-                Log.d(TAG, "Session name not found in main path, will try logininfo nodes");
-            }
-            
-            // If session name is still "Unknown Session", try to find it in logininfo nodes
-            if (sessionName.equals("Unknown Session")) {
-                // Fallback to check logininfo paths
-                findSessionNameInLoginInfo(formattedHostEmail, sessionId, foundSessionName -> {
-                    // Use the found session name if available, otherwise keep "Unknown Session"
-                    String finalSessionName = foundSessionName != null ? foundSessionName : "Unknown Session";
-                    if (foundSessionName == null) {
-                        Log.w(TAG, "Session name not found in any location, using default: " + finalSessionName);
-                    } else {
-                        Log.d(TAG, "Final session name after logininfo check: " + finalSessionName);
-                    }
-                    
-                    // Create notification with the determined session name
-                    createDetectionNotification(
-                        detectionType, detectionData, eventId, formattedHostEmail, 
-                        currentUserEmail, deviceInfo, dateString, timeString, 
-                        finalSessionName, timestamp, assignedCameraNumber
-                    );
-                });
-            } else {
-                // Session name was found in primary location, proceed with it
-                createDetectionNotification(
-                    detectionType, detectionData, eventId, formattedHostEmail, 
-                    currentUserEmail, deviceInfo, dateString, timeString, 
-                    sessionName, timestamp, assignedCameraNumber
-                );
             }
+            Log.d(TAG, "Session name not found in main path, will try logininfo nodes");
+
+            findSessionNameInLoginInfo(formattedHostEmail, sessionId, foundSessionName -> {
+                if (foundSessionName == null) {
+                    Log.w(TAG, "Session name not found in any location, using a placeholder for this session");
+                } else {
+                    Log.d(TAG, "Final session name after logininfo check: " + foundSessionName);
+                }
+                listener.onSessionName(foundSessionName);
+            });
         });
     }
       /**
@@ -1019,167 +1107,6 @@ public class RTCJoiner {
     interface SessionNameCallback {
         void onSessionNameFound(String sessionName);
     }
-      /**
-     * Helper method to create a notification with the provided session name
-     */
-    private void createDetectionNotification(String detectionType, Map<String, Object> detectionData, 
-                                String eventId, String formattedHostEmail, String currentUserEmail,
-                                String deviceInfo, String dateString, String timeString, 
-                                String sessionName, long timestamp, int cameraNumber) {
-        // Verify that we have a valid session name
-        if (sessionName == null || sessionName.trim().isEmpty()) {
-            Log.w(TAG, "Session name is null or empty, using default name");
-            sessionName = "Default Session";  // Use a slightly different default to distinguish from "Unknown Session"
-        }
-        
-        // Verify that we're not using the fallback name if we can get a better one
-        if (sessionName.equals("Unknown Session")) {
-            Log.w(TAG, "Using fallback session name. This may indicate a problem with session data.");
-        }
-        
-        // Create the complete metadata structure that matches notification card expectations
-        Map<String, Object> completeMetadata = new HashMap<>();
-        completeMetadata.put("sessionName", sessionName);
-        completeMetadata.put("cameraNumber", "Camera " + cameraNumber);
-        completeMetadata.put("deviceInfo", deviceInfo);
-        completeMetadata.put("detectionType", detectionType);
-        if (currentUserEmail != null && !currentUserEmail.isEmpty()) {
-            completeMetadata.put("userEmail", currentUserEmail);
-        }
-        
-        // Add any additional detection-specific data
-        if (detectionData != null) {
-            if (detectionData.containsKey("personCount")) {
-                completeMetadata.put("personCount", detectionData.get("personCount"));
-            }
-            if (detectionData.containsKey("amplitude")) {
-                completeMetadata.put("amplitude", detectionData.get("amplitude"));
-            }
-            if (detectionData.containsKey("confidence")) {
-                completeMetadata.put("confidence", detectionData.get("confidence"));
-            }
-        }
-
-        // 1. Save to host's session detection_events (new format matching web app)
-        Map<String, Object> eventData = new HashMap<>();
-        eventData.put("type", detectionType);
-        eventData.put("timestamp", timestamp);
-        eventData.put("cameraNumber", cameraNumber);
-        eventData.put("deviceName", deviceInfo);
-        eventData.put("email", currentUserEmail);
-        
-        // Add detection-specific data to event
-        if (detectionData != null) {
-            eventData.putAll(detectionData);
-        }
-
-        DatabaseReference hostEventRef = FirebaseDatabase.getInstance()
-                .getReference("users")
-                .child(formattedHostEmail)
-                .child("sessions")
-                .child(sessionId)
-                .child("detection_events")
-                .child(eventId);
-
-        hostEventRef.setValue(eventData)
-                .addOnSuccessListener(aVoid -> {
-                    Log.d(TAG, "Detection event saved successfully to host session");
-                })
-                .addOnFailureListener(e -> {
-                    Log.e(TAG, "Failed to save detection event to host session", e);
-                });
-
-        // 2. Save enhanced notification to host's session notifications (matching notification card design)
-        String notificationReason = detectionType.equals("person") ? 
-            "Person detected by Camera " + cameraNumber :
-            "Sound detected by Camera " + cameraNumber;
-            
-        Map<String, Object> enhancedNotificationData = new HashMap<>();
-        enhancedNotificationData.put("reason", notificationReason);
-        enhancedNotificationData.put("date", dateString);
-        enhancedNotificationData.put("time", timeString);
-        enhancedNotificationData.put("cameraNumber", cameraNumber);
-        enhancedNotificationData.put("deviceInfo", deviceInfo);
-        
-        // Add the complete metadata that matches notification card expectations
-        enhancedNotificationData.put("metadata", completeMetadata);
-
-        DatabaseReference hostNotificationRef = FirebaseDatabase.getInstance()
-                .getReference("users")
-                .child(formattedHostEmail)
-                .child("sessions")
-                .child(sessionId)
-                .child("notifications")
-                .child(eventId);
-
-        hostNotificationRef.setValue(enhancedNotificationData)
-                .addOnSuccessListener(aVoid -> {
-                    Log.d(TAG, "Enhanced notification saved successfully to host session");
-                })
-                .addOnFailureListener(e -> {
-                    Log.e(TAG, "Failed to save enhanced notification to host session", e);
-                });
-
-        // 3. Save to camera user's universal notifications if they have an account
-        if (currentUserEmail != null && !currentUserEmail.isEmpty()) {
-            String formattedCameraEmail = currentUserEmail.replace(".", "_");
-            
-            // Create enhanced universal notification with complete metadata
-            Map<String, Object> universalNotificationDataJoiner = new HashMap<>();
-            universalNotificationDataJoiner.put("reason", notificationReason + " at " + sessionName);
-            universalNotificationDataJoiner.put("date", dateString);
-            universalNotificationDataJoiner.put("time", timeString);
-            
-            // Add the same complete metadata for universal notifications
-            universalNotificationDataJoiner.put("metadata", completeMetadata);
-            
-            DatabaseReference universalNotifRef = FirebaseDatabase.getInstance()
-                    .getReference("users")
-                    .child(formattedCameraEmail)
-                    .child("universal_notifications")
-                    .child(eventId);
-                
-            universalNotifRef.setValue(universalNotificationDataJoiner)
-                    .addOnSuccessListener(aVoid -> {
-                        Log.d(TAG, "Enhanced universal notification saved successfully for joiner");
-                    })
-                    .addOnFailureListener(e -> {
-                        Log.e(TAG, "Failed to save enhanced universal notification for joiner", e);
-                    });
-        }
-
-        // 4. Save to HOST'S universal notifications
-        Map<String, Object> universalNotificationDataHost = new HashMap<>();
-        String hostNotificationReason = String.format(Locale.US, "Detection in '%s': %s by Camera %d",
-                                            sessionName,
-                                            detectionType.equals("person") ? "Person detected" : "Sound detected",
-                                            cameraNumber);
-        universalNotificationDataHost.put("reason", hostNotificationReason);
-        universalNotificationDataHost.put("date", dateString);
-        universalNotificationDataHost.put("time", timeString);
-
-        // Create a copy of completeMetadata to add the host-specific flag
-        Map<String, Object> hostUniversalMetadata = new HashMap<>(completeMetadata);
-        hostUniversalMetadata.put("isHostNotification", true); // Add the flag here
-        universalNotificationDataHost.put("metadata", hostUniversalMetadata); // Use the modified metadata
-
-        DatabaseReference hostUniversalNotifRef = FirebaseDatabase.getInstance()
-                .getReference("users")
-                .child(formattedHostEmail) // HOST'S EMAIL
-                .child("universal_notifications")
-                .child(eventId);
-
-        hostUniversalNotifRef.setValue(universalNotificationDataHost)
-                .addOnSuccessListener(aVoid -> {
-                    Log.d(TAG, "Enhanced universal notification saved successfully for HOST");
-                })
-                .addOnFailureListener(e -> {
-                    Log.e(TAG, "Failed to save enhanced universal notification for HOST", e);
-                });
-
-        Log.d(TAG, "Enhanced detection event reported: " + detectionType + " at " + timeString + " for session: " + sessionName);
-    }
-
     /**
      * Set the camera number assigned by the host
      *
@@ -1206,6 +1133,24 @@ public class RTCJoiner {
         return localVideoTrack;
     }
 
+    /**
+     * Get the microphone capture shared with the WebRTC audio track
+     *
+     * @return the shared capture, or null once disposed
+     */
+    public SharedAudioCapture getAudioCapture() {
+        return audioCapture;
+    }
+
+    /**
+     * Get the tap on the call's video encoder, for recording without a second encode
+     *
+     * @return the encoder tee, or null before WebRTC is initialized
+     */
+    public TeeVideoEncoderFactory getEncoderTee() {
+        return encoderTee;
+    }
+
     /**
      * Get access to EGL context for surface operations
      *
@@ -0,0 +1,1078 @@
+package com.summersoft.heliocam.webrtc_utils;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.Surface;
+
+import org.webrtc.EglBase;
+import org.webrtc.EncodedImage;
+import org.webrtc.ThreadUtils;
+import org.webrtc.VideoTrack;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Continuous pre-event buffer of the local camera and microphone.
+ *
+ * Encoded packets are kept in an {@link EncodedPacketRing}, so the last {@code windowMs} of
+ * audio and video are always in memory, starting on a key frame, within a fixed byte budget.
+ * Microphone samples from {@link SharedAudioCapture} go to an AAC encoder. Video comes from
+ * the call's own H.264 encoder through {@link TeeVideoEncoderFactory} while a call sends
+ * video at a size and bit rate good enough to record, so the camera is only encoded once.
+ * Otherwise frames are drawn onto the input surface of a separate H.264 encoder.
+ *
+ * Changing the video source changes the stream format, so the ring starts a new epoch that
+ * can't follow in the same file. A clip or recording written to a path carries on in a second
+ * file next to it ({@link #partPath}); one written to a descriptor ends there and is reported
+ * with {@link SaveCallback#onTruncated}. The buffer only moves to the call's encoder while no
+ * single file is being written, so this is left to the call ending and to format changes.
+ *
+ * {@link #saveClip} and {@link #startRecording} write packets to an MP4 with
+ * {@link MediaMuxer} on their own thread; {@link #startSegmentedRecording} writes a series of
+ * shorter MP4s instead. Nothing is re-encoded and capture never stops, so clips can overlap
+ * and there is no gap between them.
+ */
+public class ReplayBuffer {
+    private static final String TAG = "ReplayBuffer";
+
+    public static final int VIDEO_WIDTH = 720;
+    public static final int VIDEO_HEIGHT = 480;
+    public static final int VIDEO_BIT_RATE = 2500000;
+    public static final int VIDEO_FRAME_RATE = 25;
+    // One key frame a second, so the pre-roll never starts more than a second early
+    private static final int VIDEO_I_FRAME_INTERVAL_S = 1;
+    // Longest GOP from either video source, for sizing the ring
+    private static final int MAX_GOP_S = (int) Math.max(VIDEO_I_FRAME_INTERVAL_S,
+            TeeVideoEncoderFactory.KEY_FRAME_INTERVAL_MS / 1000);
+    public static final int AUDIO_BIT_RATE = 96000;
+
+    // The call's video is only recorded while it is at least this good
+    private static final int SHARED_MIN_SHORT_SIDE = 480;
+    private static final int SHARED_MIN_BIT_RATE = 800000;
+    // How long the call's video may stay below that before the separate encoder takes over
+    private static final long SHARED_FALLBACK_MS = 5000;
+    // WebRTC recreates its encoder on some setting changes; don't fall back for that
+    private static final long SHARED_RESTART_GRACE_MS = 1000;
+
+    private static final String MIME_VIDEO = MediaFormat.MIMETYPE_VIDEO_AVC;
+    private static final String MIME_AUDIO = MediaFormat.MIMETYPE_AUDIO_AAC;
+    private static final int NAL_SPS = 7;
+    private static final int NAL_PPS = 8;
+    private static final long DEQUEUE_TIMEOUT_US = 10000;
+    private static final long EXPORT_POLL_MS = 500;
+    private static final long FORMAT_WAIT_MS = 3000;
+    // Re-anchor audio timestamps when the sample count drifts this far from the clock
+    private static final long AUDIO_RESYNC_US = 100000;
+    // AAC frames per second at 48 kHz plus video frames, with headroom
+    private static final int PACKETS_PER_SECOND = 150;
+
+    /**
+     * Where the buffered video comes from.
+     */
+    public enum VideoSource {
+        NONE,
+        /** Separate encoder fed from the camera track */
+        OWN,
+        /** The call's WebRTC encoder */
+        SHARED
+    }
+
+    /**
+     * Result of a clip or recording, called on the export thread.
+     */
+    public interface SaveCallback {
+        /**
+         * @param target     the last file written; earlier parts went to {@link #onPartSaved}
+         * @param durationMs of all parts together
+         */
+        void onSaved(String target, long durationMs);
+
+        void onError(String message, Exception e);
+
+        /**
+         * The video source changed, so {@code target} was finished early and writing carries on
+         * in the next part. {@link #onSaved} still follows for the last one.
+         */
+        default void onPartSaved(String target, long durationMs) {
+        }
+
+        /**
+         * The video source changed and the file could not be continued, so it ends before the
+         * requested post-roll or stop. Reported as saved unless overridden.
+         */
+        default void onTruncated(String target, long durationMs) {
+            onSaved(target, durationMs);
+        }
+    }
+
+    /**
+     * A clip or recording being written.
+     */
+    public static class Export {
+        private volatile long endPtsUs;
+        private volatile boolean stopRequested = false;
+
+        Export(long endPtsUs) {
+            this.endPtsUs = endPtsUs;
+        }
+
+        /**
+         * True if the export was ended with {@link ReplayBuffer#stopRecording}. A recording
+         * that finished without it was cut short, e.g. by a change of video source.
+         */
+        public boolean isStopRequested() {
+            return stopRequested;
+        }
+    }
+
+    /**
+     * Files of a segmented recording, called on the export thread.
+     */
+    public interface SegmentSink {
+        /** Open the MP4 for segment {@code index}, counting from 0. */
+        MediaMuxer openSegment(int index) throws IOException;
+
+        /** A key frame was written to the open segment, {@code offsetUs} from its start. */
+        void onKeyFrame(int index, long wallClockMs, long offsetUs) throws IOException;
+
+        /** The segment's file is finished and playable on its own. */
+        void onSegmentFinished(int index, long durationMs);
+    }
+
+    private interface MuxerOpener {
+        MediaMuxer open(int segment) throws IOException;
+    }
+
+    private final EglBase.Context eglContext;
+    private final VideoTrack videoTrack;
+    private final SharedAudioCapture audioCapture;
+    private final TeeVideoEncoderFactory sharedEncoder;
+    private final int windowMs;
+    private final EncodedPacketRing ring;
+    private final AtomicInteger activeExports = new AtomicInteger();
+    private volatile boolean running = false;
+
+    // Video source changes run on the control thread
+    private HandlerThread controlThread;
+    private volatile Handler controlHandler;
+    // Guards the source together with the ring epoch against frames from the call's encoder
+    private final Object videoLock = new Object();
+    private volatile VideoSource videoSource = VideoSource.NONE;
+    private int sourceSwitches = 0;
+
+    // Separate encoder
+    private MediaCodec videoEncoder;
+    private Surface videoInputSurface;
+    private SurfaceRecordingSink videoSink;
+    private Thread videoDrainThread;
+    private volatile boolean ownVideoRunning = false;
+
+    // The call's encoder, as reported by the tee
+    private volatile boolean sharedRunning = false;
+    private volatile int sharedWidth;
+    private volatile int sharedHeight;
+    private volatile int sharedBitRateBps;
+    private volatile long sharedStoppedAtMs;
+    private long sharedInadequateSinceMs = 0;
+    private ByteBuffer sharedSps;   // guarded by videoLock
+    private long sharedFrames = 0;
+
+    private volatile MediaCodec audioEncoder;
+    private final SharedAudioCapture.Listener pcmListener = this::onPcm;
+    private final MediaCodec.BufferInfo audioInfo = new MediaCodec.BufferInfo();
+    private long audioBaseUs = -1;
+    private long audioSamplesQueued = 0;
+    private long audioSamplesDropped = 0;
+    private boolean audioRateWarningLogged = false;
+
+    // Video format of one ring epoch, and the audio format; guarded by this
+    private MediaFormat videoFormat;
+    private int videoFormatEpoch = -1;
+    private int videoRotation = 0;
+    private MediaFormat audioFormat;
+
+    private final TeeVideoEncoderFactory.Listener sharedListener = new TeeVideoEncoderFactory.Listener() {
+        @Override
+        public void onEncoderStarted(int width, int height) {
+            sharedWidth = width;
+            sharedHeight = height;
+            sharedRunning = true;
+            postEvaluate(0);
+        }
+
+        @Override
+        public void onFrameSizeChanged(int width, int height) {
+            boolean wasAdequate = Math.min(sharedWidth, sharedHeight) >= SHARED_MIN_SHORT_SIDE;
+            sharedWidth = width;
+            sharedHeight = height;
+            if (wasAdequate != (Math.min(width, height) >= SHARED_MIN_SHORT_SIDE)) {
+                postEvaluate(0);
+            }
+        }
+
+        @Override
+        public void onBitRateChanged(int bitRateBps) {
+            boolean wasAdequate = sharedBitRateBps >= SHARED_MIN_BIT_RATE;
+            sharedBitRateBps = bitRateBps;
+            if (wasAdequate != (bitRateBps >= SHARED_MIN_BIT_RATE)) {
+                postEvaluate(0);
+            }
+        }
+
+        @Override
+        public void onEncodedFrame(EncodedImage image) {
+            onSharedFrame(image);
+        }
+
+        @Override
+        public void onEncoderStopped() {
+            sharedRunning = false;
+            sharedStoppedAtMs = SystemClock.elapsedRealtime();
+            postEvaluate(SHARED_RESTART_GRACE_MS);
+        }
+    };
+
+    /**
+     * @param eglContext    EGL context of the camera, e.g. {@link RTCJoiner#getEglContext()}
+     * @param videoTrack    local camera track
+     * @param audioCapture  shared microphone capture, or null for video only
+     * @param sharedEncoder the call's encoder, e.g. {@link RTCJoiner#getEncoderTee()}, or null to
+     *                      always use a separate encoder
+     * @param windowMs      how much time before a save to keep
+     * @param maxBytes      memory for encoded packets; see {@link #defaultMaxBytes(int)}
+     */
+    public ReplayBuffer(EglBase.Context eglContext, VideoTrack videoTrack, SharedAudioCapture audioCapture,
+                        TeeVideoEncoderFactory sharedEncoder, int windowMs, int maxBytes) {
+        this.eglContext = eglContext;
+        this.videoTrack = videoTrack;
+        this.audioCapture = audioCapture;
+        this.sharedEncoder = sharedEncoder;
+        this.windowMs = windowMs;
+        int maxPackets = (windowMs / 1000 + 2 * MAX_GOP_S + 1) * PACKETS_PER_SECOND;
+        this.ring = new EncodedPacketRing(maxBytes, maxPackets, windowMs * 1000L);
+    }
+
+    /**
+     * Memory needed to hold a window at the configured bit rates, with room for one extra GOP
+     * and encoder overshoot.
+     */
+    public static int defaultMaxBytes(int windowMs) {
+        long bytesPerSecond = (VIDEO_BIT_RATE + AUDIO_BIT_RATE) / 8;
+        long seconds = windowMs / 1000 + MAX_GOP_S;
+        return (int) Math.min(Integer.MAX_VALUE, bytesPerSecond * seconds * 3 / 2);
+    }
+
+    /**
+     * Start the encoders and begin filling the buffer. Call start and stop from the same thread;
+     * a stopped buffer cannot be started again.
+     */
+    public void start() throws IOException {
+        if (running) {
+            return;
+        }
+        if (ring.isClosed()) {
+            throw new IllegalStateException("Replay buffer was stopped");
+        }
+        controlThread = new HandlerThread("ReplayBuffer-Control");
+        controlThread.start();
+        controlHandler = new Handler(controlThread.getLooper());
+        running = true;
+
+        try {
+            // The separate encoder runs until the call's encoder is known to be good enough
+            startOwnVideo();
+            videoSource = VideoSource.OWN;
+
+            if (audioCapture != null) {
+                startAudioEncoder();
+                audioCapture.addListener(pcmListener);
+            }
+            if (sharedEncoder != null) {
+                sharedEncoder.setListener(sharedListener);
+            }
+            Log.d(TAG, "Replay buffer started: window " + windowMs + "ms, " + ring.getCapacityBytes() + " bytes");
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Failed to start replay buffer: " + e.getMessage(), e);
+            stop();
+            throw e;
+        }
+    }
+
+    /**
+     * Stop the encoders. Clips being saved are finished with the packets already buffered.
+     */
+    public void stop() {
+        running = false;
+        if (sharedEncoder != null) {
+            sharedEncoder.setListener(null);
+        }
+        if (audioCapture != null) {
+            // No more callbacks once this returns
+            audioCapture.removeListener(pcmListener);
+        }
+
+        Handler handler = controlHandler;
+        if (handler != null) {
+            controlHandler = null;
+            ThreadUtils.invokeAtFrontUninterruptibly(handler, () -> {
+                synchronized (videoLock) {
+                    videoSource = VideoSource.NONE;
+                }
+                stopOwnVideo();
+            });
+            controlThread.quitSafely();
+            controlThread = null;
+        }
+        if (sharedEncoder != null) {
+            // After the control thread, which may have just turned them on
+            sharedEncoder.setPeriodicKeyFrames(false);
+        }
+
+        releaseCodec(audioEncoder);
+        audioEncoder = null;
+        synchronized (this) {
+            ring.close();
+            notifyAll();
+        }
+        Log.d(TAG, "Replay buffer stopped: " + ring.getStats() + ", audio samples dropped=" + audioSamplesDropped
+                + ", frames from call encoder=" + sharedFrames + ", source switches=" + sourceSwitches);
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public int getWindowMs() {
+        return windowMs;
+    }
+
+    public VideoSource getVideoSource() {
+        return videoSource;
+    }
+
+    /**
+     * Milliseconds of audio and video currently buffered.
+     */
+    public long getBufferedMs() {
+        return ring.getBufferedDurationUs() / 1000;
+    }
+
+    /**
+     * Save the buffered window plus the next {@code postRollMs} to an MP4 file.
+     */
+    public Export saveClip(String path, long postRollMs, SaveCallback callback) {
+        return saveClip(path, windowMs, postRollMs, callback);
+    }
+
+    /**
+     * Save the last {@code preRollMs} (from the key frame at or before it) plus the next
+     * {@code postRollMs} to an MP4 file.
+     */
+    public Export saveClip(String path, long preRollMs, long postRollMs, SaveCallback callback) {
+        return startExport(pathOpener(path), null, path, null, preRollMs, postRollMs, callback);
+    }
+
+    /**
+     * Save the buffered window plus the next {@code postRollMs} to an open file, such as a
+     * document in a user-selected directory. The descriptor is closed when the clip is done.
+     * Requires API 26.
+     */
+    public Export saveClip(ParcelFileDescriptor pfd, String target, long postRollMs, SaveCallback callback) {
+        return saveClip(pfd, target, windowMs, postRollMs, callback);
+    }
+
+    /**
+     * Like {@link #saveClip(String, long, long, SaveCallback)}, writing to an open file. Requires API 26.
+     */
+    public Export saveClip(ParcelFileDescriptor pfd, String target, long preRollMs, long postRollMs,
+                           SaveCallback callback) {
+        MuxerOpener opener = descriptorOpener(pfd, callback);
+        return opener != null ? startExport(opener, null, target, pfd, preRollMs, postRollMs, callback) : null;
+    }
+
+    /**
+     * Record from the newest key frame until {@link #stopRecording}. A change of video source
+     * continues the recording in a next part, see {@link #partPath}.
+     */
+    public Export startRecording(String path, SaveCallback callback) {
+        return startExport(pathOpener(path), null, path, null, 0, -1, callback);
+    }
+
+    /**
+     * Like {@link #startRecording(String, SaveCallback)}, writing to an open file. Requires API 26.
+     * An open file can't be continued, so the recording ends at a change of video source;
+     * {@link Export#isStopRequested()} tells that apart from a stop.
+     */
+    public Export startRecording(ParcelFileDescriptor pfd, String target, SaveCallback callback) {
+        MuxerOpener opener = descriptorOpener(pfd, callback);
+        return opener != null ? startExport(opener, null, target, pfd, 0, -1, callback) : null;
+    }
+
+    /**
+     * Record from the newest key frame until {@link #stopRecording}, as a series of MP4 files
+     * of about {@code segmentDurationMs} each, cut at key frames. Each segment is finished as
+     * soon as the next one starts, so a crash loses at most the open segment. A change of video
+     * source starts a new segment instead of ending the recording.
+     *
+     * @param target name reported to the callback
+     */
+    public Export startSegmentedRecording(SegmentSink sink, String target, long segmentDurationMs,
+                                          SaveCallback callback) {
+        return startExport(sink::openSegment, sink, target, null, 0, -1, segmentDurationMs * 1000, callback);
+    }
+
+    /**
+     * End a recording at the newest buffered packet. The callback follows once the file is finished.
+     */
+    public void stopRecording(Export export) {
+        if (export == null) {
+            return;
+        }
+        export.endPtsUs = ring.getNewestPtsUs();
+        export.stopRequested = true;
+    }
+
+    /**
+     * File for part {@code part} of a clip or recording written to {@code path}, counting from 0:
+     * the path itself, then {@code name_part2.mp4} and so on.
+     */
+    public static String partPath(String path, int part) {
+        if (part == 0) {
+            return path;
+        }
+        int dot = path.lastIndexOf('.');
+        if (dot <= path.lastIndexOf(File.separatorChar)) {
+            dot = path.length();
+        }
+        return path.substring(0, dot) + "_part" + (part + 1) + path.substring(dot);
+    }
+
+    private MuxerOpener pathOpener(String path) {
+        return part -> new MediaMuxer(partPath(path, part), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+    }
+
+    private MuxerOpener descriptorOpener(ParcelFileDescriptor pfd, SaveCallback callback) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+            closeQuietly(pfd);
+            callback.onError("Saving to a file descriptor needs Android 8.0", null);
+            return null;
+        }
+        return segment -> new MediaMuxer(pfd.getFileDescriptor(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+    }
+
+    private Export startExport(MuxerOpener opener, SegmentSink segments, String target, ParcelFileDescriptor pfd,
+                               long preRollMs, long postRollMs, SaveCallback callback) {
+        return startExport(opener, segments, target, pfd, preRollMs, postRollMs, Long.MAX_VALUE, callback);
+    }
+
+    /**
+     * @param postRollMs        how long to keep writing after the request, or -1 to write until stopped
+     * @param segmentDurationUs when to start a new segment, or Long.MAX_VALUE for a single file
+     */
+    private Export startExport(MuxerOpener opener, SegmentSink segments, String target, ParcelFileDescriptor pfd,
+                               long preRollMs, long postRollMs, long segmentDurationUs, SaveCallback callback) {
+        // The clip is placed around the newest packet at the time of the request
+        int epoch = ring.getEpoch();
+        long newestPtsUs = ring.getNewestPtsUs();
+        Export export;
+        long startSeq;
+        if (newestPtsUs == Long.MIN_VALUE) {
+            export = new Export(Long.MAX_VALUE);
+            startSeq = ring.getOldestSeq();
+        } else {
+            export = new Export(postRollMs < 0 ? Long.MAX_VALUE : newestPtsUs + postRollMs * 1000);
+            startSeq = ring.findKeyFrameAtOrBefore(newestPtsUs - preRollMs * 1000);
+        }
+
+        // Segmented recordings carry on across a source change; single files would end there,
+        // or be split in two when written to a path
+        boolean blocksSourceChange = segments == null;
+        boolean continues = segments == null && pfd == null;
+        if (blocksSourceChange) {
+            activeExports.incrementAndGet();
+        }
+        new Thread(() -> {
+            try {
+                export(opener, segments, continues, target, export, epoch, startSeq, postRollMs, segmentDurationUs,
+                        callback);
+            } finally {
+                closeQuietly(pfd);
+                if (blocksSourceChange && activeExports.decrementAndGet() == 0) {
+                    // A switch to the call's encoder may have been waiting for this
+                    postEvaluate(0);
+                }
+            }
+        }, "ReplayBuffer-Export").start();
+        return export;
+    }
+
+    /**
+     * Formats of one ring epoch's streams.
+     */
+    private static class StreamFormats {
+        MediaFormat video;
+        MediaFormat audio;
+        int rotation;
+    }
+
+    /**
+     * Wait until the video format of the given epoch is known.
+     *
+     * @return the formats, or null if there is no video for that epoch
+     */
+    private synchronized StreamFormats awaitFormats(int epoch) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + FORMAT_WAIT_MS;
+        while (videoFormatEpoch != epoch && ring.getEpoch() == epoch && running
+                && System.currentTimeMillis() < deadline) {
+            wait(EXPORT_POLL_MS);
+        }
+        if (videoFormatEpoch != epoch) {
+            return null;
+        }
+        StreamFormats formats = new StreamFormats();
+        formats.video = videoFormat;
+        formats.audio = audioFormat;
+        formats.rotation = videoRotation;
+        return formats;
+    }
+
+    /**
+     * @param continues whether a single file may carry on in a next part after a source change
+     */
+    private void export(MuxerOpener opener, SegmentSink segments, boolean continues, String target, Export export,
+                        int epoch, long startSeq, long postRollMs, long segmentDurationUs, SaveCallback callback) {
+        MediaMuxer muxer = null;
+        boolean muxerStarted = false;
+        boolean allFinished = true;
+        long durationUs = 0;
+        String lastTarget = target;
+        try {
+            StreamFormats formats = awaitFormats(epoch);
+            if (formats == null) {
+                callback.onError("Replay buffer has no video yet", null);
+                return;
+            }
+
+            EncodedPacketRing.Packet packet = new EncodedPacketRing.Packet();
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            long seq = startSeq;
+            int segment = -1;
+            int videoTrackIndex = -1;
+            int audioTrackIndex = -1;
+            long segmentStartPtsUs = -1;
+            long segmentDurationWrittenUs = 0;
+            long wallClockOffsetMs = 0;
+            long lastVideoPtsUs = -1;
+            long lastAudioPtsUs = -1;
+            int gaps = 0;
+            boolean sourceChanged = false;
+            // Give up if the post-roll never arrives, e.g. the camera stopped
+            long deadline = postRollMs < 0 ? Long.MAX_VALUE
+                    : System.currentTimeMillis() + postRollMs + windowMs + FORMAT_WAIT_MS;
+
+            while (System.currentTimeMillis() < deadline) {
+                if (!ring.awaitPacket(seq, EXPORT_POLL_MS)) {
+                    if (ring.isClosed() || export.stopRequested) {
+                        break;
+                    }
+                    continue;
+                }
+                if (!ring.read(seq, packet)) {
+                    // Fell behind and the packet was evicted; resume at the oldest key frame
+                    seq = ring.getOldestSeq();
+                    gaps++;
+                    continue;
+                }
+                seq++;
+
+                if (packet.epoch != epoch) {
+                    // Another video source; its packets don't fit this file's format
+                    if (segments == null && !continues) {
+                        sourceChanged = true;
+                        break;
+                    }
+                    if (muxer != null) {
+                        allFinished &= finishSegment(muxer, muxerStarted, segments, segment, segmentDurationWrittenUs);
+                        muxer = null;
+                        muxerStarted = false;
+                        if (segments == null) {
+                            Log.d(TAG, "Video source changed, continuing " + target + " in part " + (segment + 2));
+                            callback.onPartSaved(partPath(target, segment), segmentDurationWrittenUs / 1000);
+                        }
+                    }
+                    epoch = packet.epoch;
+                    formats = awaitFormats(epoch);
+                    if (formats == null) {
+                        Log.w(TAG, "No video format after the video source changed, ending " + target);
+                        sourceChanged = segments == null;
+                        break;
+                    }
+                }
+                if (packet.ptsUs > export.endPtsUs) {
+                    break;
+                }
+
+                boolean keyFrame = packet.isKeyFrame();
+                if (muxer == null || keyFrame && packet.ptsUs - segmentStartPtsUs >= segmentDurationUs) {
+                    // Every file starts on a key frame
+                    if (!keyFrame) {
+                        continue;
+                    }
+                    if (muxer != null) {
+                        allFinished &= finishSegment(muxer, muxerStarted, segments, segment, segmentDurationWrittenUs);
+                        muxer = null;
+                        muxerStarted = false;
+                    }
+                    segment++;
+                    muxer = opener.open(segment);
+                    muxer.setOrientationHint(formats.rotation);
+                    videoTrackIndex = muxer.addTrack(formats.video);
+                    audioTrackIndex = formats.audio != null ? muxer.addTrack(formats.audio) : -1;
+                    muxer.start();
+                    muxerStarted = true;
+                    segmentStartPtsUs = packet.ptsUs;
+                    segmentDurationWrittenUs = 0;
+                    lastVideoPtsUs = -1;
+                    lastAudioPtsUs = -1;
+                    // Packet times follow System.nanoTime; the index wants the wall clock
+                    wallClockOffsetMs = System.currentTimeMillis() - System.nanoTime() / 1000000;
+                }
+
+                int trackIndex;
+                if (packet.track == EncodedPacketRing.TRACK_VIDEO) {
+                    if (packet.ptsUs <= lastVideoPtsUs) {
+                        continue;
+                    }
+                    lastVideoPtsUs = packet.ptsUs;
+                    trackIndex = videoTrackIndex;
+                } else {
+                    // Audio from before the first key frame, or out of order after a re-anchor
+                    if (audioTrackIndex < 0 || packet.ptsUs < segmentStartPtsUs || packet.ptsUs <= lastAudioPtsUs) {
+                        continue;
+                    }
+                    lastAudioPtsUs = packet.ptsUs;
+                    trackIndex = audioTrackIndex;
+                }
+
+                long offsetUs = packet.ptsUs - segmentStartPtsUs;
+                info.set(0, packet.size, offsetUs, keyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+                muxer.writeSampleData(trackIndex, ByteBuffer.wrap(packet.data, 0, packet.size), info);
+                if (offsetUs > segmentDurationWrittenUs) {
+                    durationUs += offsetUs - segmentDurationWrittenUs;
+                    segmentDurationWrittenUs = offsetUs;
+                }
+                if (keyFrame && segments != null) {
+                    segments.onKeyFrame(segment, packet.ptsUs / 1000 + wallClockOffsetMs, offsetUs);
+                }
+            }
+
+            if (segment < 0) {
+                throw new IOException("No key frame in the replay buffer");
+            }
+            if (segments == null) {
+                lastTarget = partPath(target, segment);
+            }
+            if (gaps > 0) {
+                Log.w(TAG, "Clip " + target + " skipped " + gaps + " evicted ranges");
+            }
+            if (sourceChanged) {
+                Log.w(TAG, "Clip " + target + " ended early, video source changed");
+            }
+            if (muxer != null) {
+                allFinished &= finishSegment(muxer, muxerStarted, segments, segment, segmentDurationWrittenUs);
+                muxer = null;
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Failed to save clip " + target + ": " + e.getMessage(), e);
+            releaseMuxer(muxer, muxerStarted);
+            callback.onError("Failed to save replay buffer", e);
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            releaseMuxer(muxer, muxerStarted);
+            callback.onError("Interrupted", e);
+            return;
+        }
+
+        if (!allFinished) {
+            callback.onError("Failed to finish replay buffer file", null);
+        } else if (sourceChanged) {
+            callback.onTruncated(lastTarget, durationUs / 1000);
+        } else {
+            Log.d(TAG, "Saved clip " + lastTarget + " (" + durationUs / 1000 + "ms)");
+            callback.onSaved(lastTarget, durationUs / 1000);
+        }
+    }
+
+    /**
+     * @return true if the segment's file was finished properly
+     */
+    private static boolean finishSegment(MediaMuxer muxer, boolean started, SegmentSink segments, int segment,
+                                         long durationUs) {
+        boolean finished = releaseMuxer(muxer, started);
+        if (!finished) {
+            Log.e(TAG, "Failed to finish segment " + segment);
+        } else if (segments != null) {
+            segments.onSegmentFinished(segment, durationUs / 1000);
+        }
+        return finished;
+    }
+
+    // Video source, on the control thread
+
+    private void postEvaluate(long delayMs) {
+        Handler handler = controlHandler;
+        if (handler != null && running) {
+            handler.postDelayed(this::evaluateVideoSource, delayMs);
+        }
+    }
+
+    private void evaluateVideoSource() {
+        if (!running || sharedEncoder == null) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        boolean adequate = sharedRunning
+                && Math.min(sharedWidth, sharedHeight) >= SHARED_MIN_SHORT_SIDE
+                && sharedBitRateBps >= SHARED_MIN_BIT_RATE;
+
+        if (videoSource == VideoSource.SHARED) {
+            if (!sharedRunning) {
+                if (now - sharedStoppedAtMs >= SHARED_RESTART_GRACE_MS) {
+                    switchVideoSource(VideoSource.OWN);
+                }
+            } else if (adequate) {
+                sharedInadequateSinceMs = 0;
+            } else if (sharedInadequateSinceMs == 0) {
+                sharedInadequateSinceMs = now;
+                postEvaluate(SHARED_FALLBACK_MS);
+            } else if (now - sharedInadequateSinceMs >= SHARED_FALLBACK_MS) {
+                switchVideoSource(VideoSource.OWN);
+            }
+        } else if (adequate && activeExports.get() == 0) {
+            // Switching ends files being written, so only move over while there are none
+            switchVideoSource(VideoSource.SHARED);
+        }
+    }
+
+    private void switchVideoSource(VideoSource target) {
+        Log.d(TAG, "Video source " + videoSource + " -> " + target + ", call encoder "
+                + sharedWidth + "x" + sharedHeight + " at " + sharedBitRateBps / 1000 + " kbps");
+        sourceSwitches++;
+        sharedInadequateSinceMs = 0;
+
+        if (videoSource == VideoSource.OWN) {
+            stopOwnVideo();
+        }
+        synchronized (videoLock) {
+            videoSource = target;
+            // New format, so a new epoch; packets of the old one can't follow in the same file
+            ring.clear();
+            sharedSps = null;
+            synchronized (this) {
+                videoFormat = null;
+                notifyAll();
+            }
+        }
+
+        sharedEncoder.setPeriodicKeyFrames(target == VideoSource.SHARED);
+        if (target == VideoSource.SHARED) {
+            sharedEncoder.requestKeyFrame();
+            return;
+        }
+        try {
+            startOwnVideo();
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Failed to start separate video encoder: " + e.getMessage(), e);
+            stopOwnVideo();
+            videoSource = VideoSource.NONE;
+        }
+    }
+
+    // Separate encoder
+
+    private void startOwnVideo() throws IOException {
+        MediaFormat format = MediaFormat.createVideoFormat(MIME_VIDEO, VIDEO_WIDTH, VIDEO_HEIGHT);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, VIDEO_BIT_RATE);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, VIDEO_FRAME_RATE);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, VIDEO_I_FRAME_INTERVAL_S);
+
+        videoEncoder = MediaCodec.createEncoderByType(MIME_VIDEO);
+        videoEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        videoInputSurface = videoEncoder.createInputSurface();
+        videoEncoder.start();
+
+        ownVideoRunning = true;
+        MediaCodec codec = videoEncoder;
+        videoDrainThread = new Thread(() -> drainOwnVideo(codec), "ReplayBuffer-Video");
+        videoDrainThread.start();
+
+        // Frames go to the encoder only after it is running
+        videoSink = new SurfaceRecordingSink(eglContext, videoInputSurface, true);
+        videoTrack.addSink(videoSink);
+    }
+
+    private void stopOwnVideo() {
+        if (videoSink != null) {
+            try {
+                videoTrack.removeSink(videoSink);
+            } catch (Exception e) {
+                Log.w(TAG, "Error removing replay buffer sink: " + e.getMessage());
+            }
+            videoSink.release();
+            videoSink = null;
+        }
+
+        ownVideoRunning = false;
+        if (videoDrainThread != null) {
+            try {
+                videoDrainThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            videoDrainThread = null;
+        }
+
+        releaseCodec(videoEncoder);
+        videoEncoder = null;
+        if (videoInputSurface != null) {
+            videoInputSurface.release();
+            videoInputSurface = null;
+        }
+    }
+
+    private void drainOwnVideo(MediaCodec codec) {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        try {
+            while (ownVideoRunning) {
+                int index = codec.dequeueOutputBuffer(info, DEQUEUE_TIMEOUT_US);
+                if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    setVideoFormat(codec.getOutputFormat(), 0);
+                } else if (index >= 0) {
+                    writePacket(EncodedPacketRing.TRACK_VIDEO, codec.getOutputBuffer(index), info);
+                    codec.releaseOutputBuffer(index, false);
+                }
+            }
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "Video encoder stopped: " + e.getMessage());
+        }
+    }
+
+    // The call's encoder, on the WebRTC encoder thread
+
+    private void onSharedFrame(EncodedImage image) {
+        synchronized (videoLock) {
+            if (videoSource != VideoSource.SHARED || image.buffer == null) {
+                return;
+            }
+            ByteBuffer data = image.buffer.duplicate();
+            boolean keyFrame = image.frameType == EncodedImage.FrameType.VideoFrameKey;
+
+            if (keyFrame) {
+                // Hardware key frames carry SPS and PPS in band; the muxer needs them up front
+                ByteBuffer sps = findNalUnit(data, NAL_SPS);
+                ByteBuffer pps = findNalUnit(data, NAL_PPS);
+                if (sps != null && pps != null && (!sps.equals(sharedSps) || image.rotation != videoRotation)) {
+                    if (sharedSps != null) {
+                        // Resolution or rotation changed mid-call
+                        ring.clear();
+                    }
+                    sharedSps = sps;
+                    MediaFormat format = MediaFormat.createVideoFormat(MIME_VIDEO,
+                            image.encodedWidth, image.encodedHeight);
+                    format.setByteBuffer("csd-0", sps);
+                    format.setByteBuffer("csd-1", pps);
+                    setVideoFormat(format, image.rotation);
+                }
+            }
+            if (sharedSps == null) {
+                sharedEncoder.requestKeyFrame();
+                return;
+            }
+
+            int flags = keyFrame ? EncodedPacketRing.FLAG_KEY_FRAME : 0;
+            if (ring.append(EncodedPacketRing.TRACK_VIDEO, data, image.captureTimeNs / 1000, flags) >= 0) {
+                sharedFrames++;
+            }
+        }
+    }
+
+    /**
+     * Find a NAL unit of the given type in an Annex B buffer.
+     *
+     * @return a copy of the unit with a 4-byte start code, or null
+     */
+    private static ByteBuffer findNalUnit(ByteBuffer data, int type) {
+        int end = data.limit();
+        int unitStart = -1;
+        for (int i = data.position(); i + 3 <= end; i++) {
+            if (data.get(i) != 0 || data.get(i + 1) != 0 || data.get(i + 2) != 1) {
+                continue;
+            }
+            if (unitStart >= 0) {
+                // A zero before the next start code belongs to that start code
+                return copyNalUnit(data, unitStart, data.get(i - 1) == 0 ? i - 1 : i);
+            }
+            if (i + 3 < end && (data.get(i + 3) & 0x1F) == type) {
+                unitStart = i + 3;
+            }
+            i += 2;
+        }
+        return unitStart >= 0 ? copyNalUnit(data, unitStart, end) : null;
+    }
+
+    private static ByteBuffer copyNalUnit(ByteBuffer data, int from, int to) {
+        ByteBuffer unit = ByteBuffer.allocate(4 + to - from);
+        unit.put(new byte[]{0, 0, 0, 1});
+        for (int i = from; i < to; i++) {
+            unit.put(data.get(i));
+        }
+        unit.flip();
+        return unit;
+    }
+
+    private void setVideoFormat(MediaFormat format, int rotation) {
+        synchronized (this) {
+            videoFormat = format;
+            videoFormatEpoch = ring.getEpoch();
+            videoRotation = rotation;
+            notifyAll();
+        }
+    }
+
+    // Audio, on the SharedAudioCapture thread
+
+    private void startAudioEncoder() throws IOException {
+        MediaFormat format = MediaFormat.createAudioFormat(MIME_AUDIO, SharedAudioCapture.SAMPLE_RATE, 1);
+        format.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, AUDIO_BIT_RATE);
+
+        audioEncoder = MediaCodec.createEncoderByType(MIME_AUDIO);
+        audioEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        audioEncoder.start();
+    }
+
+    private void onPcm(short[] samples, int length, int sampleRate) {
+        MediaCodec codec = audioEncoder;
+        if (codec == null || !running) {
+            return;
+        }
+        if (sampleRate != SharedAudioCapture.SAMPLE_RATE) {
+            if (!audioRateWarningLogged) {
+                audioRateWarningLogged = true;
+                Log.w(TAG, "Audio arrives at " + sampleRate + " Hz, replay buffer expects "
+                        + SharedAudioCapture.SAMPLE_RATE + "; audio not buffered");
+            }
+            return;
+        }
+
+        // Timestamps follow the sample count, anchored to the clock the camera frames use
+        long nowUs = System.nanoTime() / 1000 - length * 1000000L / sampleRate;
+        long expectedUs = audioBaseUs + audioSamplesQueued * 1000000L / sampleRate;
+        if (audioBaseUs < 0 || Math.abs(nowUs - expectedUs) > AUDIO_RESYNC_US) {
+            audioBaseUs = nowUs;
+            audioSamplesQueued = 0;
+        }
+
+        try {
+            int position = 0;
+            while (position < length) {
+                int index = codec.dequeueInputBuffer(0);
+                if (index < 0) {
+                    // Encoder is behind; dropping keeps the capture thread from blocking
+                    audioSamplesDropped += length - position;
+                    audioSamplesQueued += length - position;
+                    break;
+                }
+                ByteBuffer input = codec.getInputBuffer(index);
+                input.clear();
+                input.order(ByteOrder.LITTLE_ENDIAN);
+                int count = Math.min(length - position, input.remaining() / 2);
+                input.asShortBuffer().put(samples, position, count);
+                long ptsUs = audioBaseUs + audioSamplesQueued * 1000000L / sampleRate;
+                codec.queueInputBuffer(index, 0, count * 2, ptsUs, 0);
+                position += count;
+                audioSamplesQueued += count;
+            }
+
+            int index;
+            while ((index = codec.dequeueOutputBuffer(audioInfo, 0)) != MediaCodec.INFO_TRY_AGAIN_LATER) {
+                if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    synchronized (this) {
+                        audioFormat = codec.getOutputFormat();
+                    }
+                } else if (index >= 0) {
+                    writePacket(EncodedPacketRing.TRACK_AUDIO, codec.getOutputBuffer(index), audioInfo);
+                    codec.releaseOutputBuffer(index, false);
+                }
+            }
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "Audio encoder error: " + e.getMessage());
+        }
+    }
+
+    private void writePacket(int track, ByteBuffer buffer, MediaCodec.BufferInfo info) {
+        // Codec config is already part of the output format
+        if (buffer == null || info.size == 0 || (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            return;
+        }
+        buffer.position(info.offset);
+        buffer.limit(info.offset + info.size);
+        int flags = (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0 ? EncodedPacketRing.FLAG_KEY_FRAME : 0;
+        ring.append(track, buffer, info.presentationTimeUs, flags);
+    }
+
+    private static void releaseCodec(MediaCodec codec) {
+        if (codec == null) {
+            return;
+        }
+        try {
+            codec.stop();
+        } catch (Exception ignored) {
+        }
+        codec.release();
+    }
+
+    /**
+     * @return true if the file was finished properly
+     */
+    private static boolean releaseMuxer(MediaMuxer muxer, boolean started) {
+        if (muxer == null) {
+            return false;
+        }
+        boolean finished = false;
+        try {
+            if (started) {
+                muxer.stop();
+                finished = true;
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Muxer stop failed: " + e.getMessage());
+        }
+        muxer.release();
+        return finished;
+    }
+
+    private static void closeQuietly(ParcelFileDescriptor pfd) {
+        if (pfd == null) {
+            return;
+        }
+        try {
+            pfd.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package com.summersoft.heliocam.webrtc_utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Sidecar index of a segmented recording, mapping wall-clock time to a segment file and the
+ * presentation offset of a key frame in it.
+ *
+ * The file is a 16-byte header followed by fixed-size 24-byte records in increasing wall-clock
+ * order: one per key frame, appended as it is written, and one when a segment's file is
+ * finished. A segment that was still open when the app was killed has no playable file, so
+ * readers only use records up to the last finished segment; a torn record at the end is
+ * ignored. A clean {@link Writer#close} appends an end record. Because records have a fixed
+ * size, {@link Reader#find} binary searches the file and reads O(log n) records.
+ *
+ * No Android dependencies.
+ */
+public class SegmentIndex {
+    private static final int MAGIC = 0x48435349; // "HCSI"
+    private static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    static final int RECORD_SIZE = 24;
+    /** Last record of a recording that was stopped cleanly */
+    private static final int FLAG_END = 1;
+    /** End of a segment whose file was finished */
+    private static final int FLAG_SEGMENT_FINISHED = 2;
+
+    /**
+     * A key frame: the wall-clock time it was captured, its segment and its presentation
+     * offset from the start of that segment. Or, if {@link #segmentFinished}, the end of a
+     * finished segment, with its duration as the offset.
+     */
+    public static final class Entry {
+        public final long wallClockMs;
+        public final int segment;
+        public final long offsetUs;
+        public final boolean segmentFinished;
+
+        Entry(long wallClockMs, int segment, long offsetUs, boolean segmentFinished) {
+            this.wallClockMs = wallClockMs;
+            this.segment = segment;
+            this.offsetUs = offsetUs;
+            this.segmentFinished = segmentFinished;
+        }
+
+        @Override
+        public String toString() {
+            return "Entry{wallClockMs=" + wallClockMs + ", segment=" + segment + ", offsetUs=" + offsetUs
+                    + (segmentFinished ? ", segmentFinished" : "") + "}";
+        }
+    }
+
+    /**
+     * Appends records, each with a single write so a kill leaves at most one torn record.
+     * Not thread-safe.
+     */
+    public static class Writer implements Closeable {
+        private final FileOutputStream out;
+        private final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        private long lastWallClockMs = Long.MIN_VALUE;
+        private int lastSegment = 0;
+        private boolean closed = false;
+
+        /**
+         * Create or truncate the index file.
+         */
+        public Writer(File file) throws IOException {
+            out = new FileOutputStream(file);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putLong(System.currentTimeMillis());
+            out.write(header.array());
+        }
+
+        /**
+         * Add a key frame. Wall-clock times that go backwards, e.g. after a clock change, are
+         * clamped so the records stay sorted.
+         */
+        public void append(long wallClockMs, int segment, long offsetUs) throws IOException {
+            write(wallClockMs, segment, offsetUs, 0);
+        }
+
+        /**
+         * Record that a segment's file is finished and playable, ending at the given time, and
+         * flush the index so the record survives a crash.
+         */
+        public void finishSegment(int segment, long endWallClockMs, long durationUs) throws IOException {
+            write(endWallClockMs, segment, durationUs, FLAG_SEGMENT_FINISHED);
+            sync();
+        }
+
+        /**
+         * Flush the index to storage.
+         */
+        public void sync() throws IOException {
+            out.getFD().sync();
+        }
+
+        /**
+         * Mark the recording as complete, ending at the given time, and close the file.
+         */
+        public void close(long endWallClockMs) throws IOException {
+            if (closed) {
+                return;
+            }
+            try {
+                write(endWallClockMs, lastSegment, 0, FLAG_END);
+                sync();
+            } finally {
+                close();
+            }
+        }
+
+        /**
+         * Close without an end record, leaving the index as if the recording was cut short.
+         */
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                out.close();
+            }
+        }
+
+        private void write(long wallClockMs, int segment, long offsetUs, int flags) throws IOException {
+            wallClockMs = Math.max(wallClockMs, lastWallClockMs);
+            lastWallClockMs = wallClockMs;
+            lastSegment = segment;
+            record.clear();
+            record.putLong(wallClockMs).putLong(offsetUs).putInt(segment).putInt(flags);
+            out.write(record.array());
+        }
+    }
+
+    /**
+     * Random-access reader. Reads records on demand; nothing is loaded up front.
+     */
+    public static class Reader implements Closeable {
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        // Records up to and including the last finished segment's
+        private final int count;
+        private final boolean complete;
+        private final long endWallClockMs;
+
+        public Reader(File indexFile) throws IOException {
+            file = new RandomAccessFile(indexFile, "r");
+            channel = file.getChannel();
+            try {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                if (channel.read(header, 0) != HEADER_SIZE || header.getInt(0) != MAGIC) {
+                    throw new IOException("Not a segment index: " + indexFile);
+                }
+                if (header.getInt(4) != VERSION) {
+                    throw new IOException("Unsupported segment index version " + header.getInt(4));
+                }
+
+                // Whole records only; the last one may have been cut off by a crash
+                long records = (channel.size() - HEADER_SIZE) / RECORD_SIZE;
+                boolean ended = records > 0 && (readFlags(records - 1) & FLAG_END) != 0;
+                complete = ended;
+                // Key frames after the last finished segment point into a file that was never
+                // finished. This reads back through at most one segment's records.
+                long last = ended ? records - 2 : records - 1;
+                while (last >= 0 && (readFlags(last) & FLAG_SEGMENT_FINISHED) == 0) {
+                    last--;
+                }
+                count = (int) (last + 1);
+                endWallClockMs = count > 0 ? readWallClockMs(last) : Long.MIN_VALUE;
+            } catch (IOException e) {
+                file.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Number of usable records: key frames and finished segments up to the end of the last
+         * finished segment.
+         */
+        public int size() {
+            return count;
+        }
+
+        /**
+         * True if the recording was stopped cleanly. If not, the last segment may be unplayable.
+         */
+        public boolean isComplete() {
+            return complete;
+        }
+
+        public long getStartWallClockMs() throws IOException {
+            return count > 0 ? readWallClockMs(0) : Long.MIN_VALUE;
+        }
+
+        /**
+         * End of the last finished segment.
+         */
+        public long getEndWallClockMs() {
+            return endWallClockMs;
+        }
+
+        public Entry get(int index) throws IOException {
+            if (index < 0 || index >= count) {
+                throw new IndexOutOfBoundsException("Entry " + index + " of " + count);
+            }
+            readRecord(index);
+            return new Entry(record.getLong(0), record.getInt(16), record.getLong(8),
+                    (record.getInt(20) & FLAG_SEGMENT_FINISHED) != 0);
+        }
+
+        /**
+         * The last key frame at or before the given time, to start playback from.
+         *
+         * @return the entry, or null if the time is outside the finished part of the recording
+         */
+        public Entry find(long wallClockMs) throws IOException {
+            if (count == 0 || wallClockMs > endWallClockMs) {
+                return null;
+            }
+            int low = 0;
+            int high = count - 1;
+            int found = -1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (readWallClockMs(mid) <= wallClockMs) {
+                    found = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            // Between a segment's end and the next key frame: the segment's last key frame
+            while (found >= 0 && (readFlags(found) & FLAG_SEGMENT_FINISHED) != 0) {
+                found--;
+            }
+            return found >= 0 ? get(found) : null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+
+        private long readWallClockMs(long index) throws IOException {
+            readRecord(index);
+            return record.getLong(0);
+        }
+
+        private int readFlags(long index) throws IOException {
+            readRecord(index);
+            return record.getInt(20);
+        }
+
+        private void readRecord(long index) throws IOException {
+            record.clear();
+            long position = HEADER_SIZE + index * RECORD_SIZE;
+            while (record.hasRemaining()) {
+                if (channel.read(record, position + record.position()) < 0) {
+                    throw new IOException("Segment index truncated at record " + index);
+                }
+            }
+        }
+    }
+
+    private SegmentIndex() {
+    }
+}
@@ -0,0 +1,141 @@
+package com.summersoft.heliocam.webrtc_utils;
+
+import android.media.MediaMuxer;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Files of a segmented recording from {@link ReplayBuffer#startSegmentedRecording}: a directory
+ * with {@code <name>_0000.mp4}, {@code <name>_0001.mp4}, ... and the {@link SegmentIndex}
+ * {@code <name>.idx} that maps wall-clock time to a segment and offset.
+ *
+ * The index is written as key frames arrive, and each finished segment is recorded in it and
+ * synced, so if the app is killed only the open segment is lost and readers of the index stop
+ * at the end of the last finished one.
+ */
+public class SegmentedRecording implements ReplayBuffer.SegmentSink {
+    private static final String TAG = "SegmentedRecording";
+
+    public static final long DEFAULT_SEGMENT_DURATION_MS = 60000;
+
+    /**
+     * A position in a segmented recording: a segment file and the presentation time in it,
+     * e.g. for MediaExtractor.seekTo.
+     */
+    public static final class Location {
+        public final File segmentFile;
+        public final long offsetUs;
+
+        Location(File segmentFile, long offsetUs) {
+            this.segmentFile = segmentFile;
+            this.offsetUs = offsetUs;
+        }
+    }
+
+    private final File directory;
+    private final String name;
+    private final SegmentIndex.Writer index;
+    private final List<File> finishedSegments = new ArrayList<>();
+    private long segmentStartWallClockMs = Long.MIN_VALUE;
+    private long endWallClockMs = Long.MIN_VALUE;
+    private boolean closed = false;
+
+    /**
+     * @param directory where the segments and index go; created if needed
+     * @param name      base name of the files
+     */
+    public SegmentedRecording(File directory, String name) throws IOException {
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Cannot create recording directory " + directory);
+        }
+        this.directory = directory;
+        this.name = name;
+        this.index = new SegmentIndex.Writer(indexFile(directory, name));
+    }
+
+    public static File segmentFile(File directory, String name, int segment) {
+        return new File(directory, String.format(Locale.US, "%s_%04d.mp4", name, segment));
+    }
+
+    public static File indexFile(File directory, String name) {
+        return new File(directory, name + ".idx");
+    }
+
+    /**
+     * Find the key frame at or before a wall-clock time in a recording, reading only the index.
+     *
+     * @return where to start playback, or null if the time is not in the recording
+     */
+    public static Location locate(File directory, String name, long wallClockMs) throws IOException {
+        try (SegmentIndex.Reader reader = new SegmentIndex.Reader(indexFile(directory, name))) {
+            SegmentIndex.Entry entry = reader.find(wallClockMs);
+            if (entry == null) {
+                return null;
+            }
+            return new Location(segmentFile(directory, name, entry.segment), entry.offsetUs);
+        }
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Segment files finished so far, oldest first.
+     */
+    public synchronized List<File> getFinishedSegments() {
+        return new ArrayList<>(finishedSegments);
+    }
+
+    @Override
+    public MediaMuxer openSegment(int segment) throws IOException {
+        File file = segmentFile(directory, name, segment);
+        Log.d(TAG, "Starting segment " + file.getName());
+        return new MediaMuxer(file.getAbsolutePath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+    }
+
+    @Override
+    public synchronized void onKeyFrame(int segment, long wallClockMs, long offsetUs) throws IOException {
+        if (offsetUs == 0) {
+            segmentStartWallClockMs = wallClockMs;
+        }
+        index.append(wallClockMs, segment, offsetUs);
+    }
+
+    @Override
+    public synchronized void onSegmentFinished(int segment, long durationMs) {
+        finishedSegments.add(segmentFile(directory, name, segment));
+        endWallClockMs = segmentStartWallClockMs + durationMs;
+        try {
+            index.finishSegment(segment, endWallClockMs, durationMs * 1000);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to record finished segment in index: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Mark the index complete once the recording has ended. Without this, readers treat the
+     * recording as cut short.
+     */
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (endWallClockMs != Long.MIN_VALUE) {
+                index.close(endWallClockMs);
+            } else {
+                index.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to close segment index: " + e.getMessage(), e);
+        }
+        Log.d(TAG, "Recording " + name + " closed with " + finishedSegments.size() + " segments");
+    }
+}
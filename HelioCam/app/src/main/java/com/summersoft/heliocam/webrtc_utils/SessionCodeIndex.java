@@ -0,0 +1,394 @@
+package com.summersoft.heliocam.webrtc_utils;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.FirebaseDatabase;
+import com.google.firebase.database.MutableData;
+import com.google.firebase.database.Transaction;
+import com.google.firebase.database.ValueEventListener;
+
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Index from join codes (passkeys) to sessions, kept under {@code session_codes/{code}} as
+ * {@code {session_id, host_email, active, updated_at}}.
+ *
+ * Joiners resolve a code with one keyed read instead of searching every user's sessions.
+ * Codes are claimed with a transaction and stay with their session until it ends and the
+ * entry is removed; an inactive entry only means nobody is hosting the session right now,
+ * so it still cannot be taken by another session. Codes match ignoring case and
+ * surrounding whitespace, as the old search of the users tree did: the key is the trimmed,
+ * lower-cased code, while sessions keep the code as it was typed.
+ */
+public final class SessionCodeIndex {
+    private static final String TAG = "SessionCodeIndex";
+
+    public static final String NODE = "session_codes";
+    public static final int GENERATED_CODE_LENGTH = 6;
+
+    // One case only, since codes match ignoring case
+    private static final String CODE_CHARACTERS = "ABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789";
+    private static final int MAX_GENERATE_ATTEMPTS = 5;
+    // v1 keyed entries by the code as typed; v2 re-indexes them under the lower-cased key
+    private static final String MIGRATION_KEY = "session_code_index_v2";
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private SessionCodeIndex() {
+    }
+
+    /**
+     * Result of claiming a code
+     */
+    public interface ClaimCallback {
+        /** @param code the code as given, without surrounding whitespace */
+        void onClaimed(String code);
+
+        /** The code belongs to another active session. */
+        void onCodeTaken(String code);
+
+        void onError(String message, Exception e);
+    }
+
+    /**
+     * Index key for a code as typed by the user, or null if it cannot be used as a database key
+     */
+    public static String normalize(String code) {
+        if (code == null) {
+            return null;
+        }
+        String trimmed = code.trim();
+        if (trimmed.isEmpty() || trimmed.matches(".*[.#$\\[\\]/].*")) {
+            return null;
+        }
+        return trimmed.toLowerCase(Locale.ROOT);
+    }
+
+    public static String generateCode() {
+        StringBuilder code = new StringBuilder(GENERATED_CODE_LENGTH);
+        for (int i = 0; i < GENERATED_CODE_LENGTH; i++) {
+            code.append(CODE_CHARACTERS.charAt(random.nextInt(CODE_CHARACTERS.length())));
+        }
+        return code.toString();
+    }
+
+    /**
+     * Claim a code for a session and mark it active. Claiming a code the session already holds
+     * succeeds; a code held by another session, active or not, is reported as taken.
+     *
+     * @param hostEmail the host's email as typed, with dots
+     */
+    public static void claim(String code, String sessionId, String hostEmail, ClaimCallback callback) {
+        String key = normalize(code);
+        if (key == null) {
+            callback.onError("Invalid session code", null);
+            return;
+        }
+
+        reference(key).runTransaction(new Transaction.Handler() {
+            @NonNull
+            @Override
+            public Transaction.Result doTransaction(@NonNull MutableData currentData) {
+                String owner = currentData.child("session_id").getValue(String.class);
+                // Ended sessions are removed from the index; anything still here is in use
+                if (owner != null && !owner.equals(sessionId)) {
+                    return Transaction.abort();
+                }
+                currentData.setValue(entry(sessionId, hostEmail, true));
+                return Transaction.success(currentData);
+            }
+
+            @Override
+            public void onComplete(DatabaseError error, boolean committed, DataSnapshot currentData) {
+                if (error != null) {
+                    Log.e(TAG, "Failed to claim session code " + key + ": " + error.getMessage());
+                    callback.onError("Failed to register session code", error.toException());
+                } else if (committed) {
+                    Log.d(TAG, "Session code " + key + " claimed for session " + sessionId);
+                    callback.onClaimed(code.trim());
+                } else {
+                    Log.d(TAG, "Session code " + key + " is already in use");
+                    callback.onCodeTaken(code.trim());
+                }
+            }
+        });
+    }
+
+    /**
+     * Generate a random code and claim it, retrying with a new code if it is taken
+     */
+    public static void claimGeneratedCode(String sessionId, String hostEmail, ClaimCallback callback) {
+        claimGeneratedCode(sessionId, hostEmail, MAX_GENERATE_ATTEMPTS, callback);
+    }
+
+    private static void claimGeneratedCode(String sessionId, String hostEmail, int attemptsLeft,
+                                           ClaimCallback callback) {
+        claim(generateCode(), sessionId, hostEmail, new ClaimCallback() {
+            @Override
+            public void onClaimed(String code) {
+                callback.onClaimed(code);
+            }
+
+            @Override
+            public void onCodeTaken(String code) {
+                if (attemptsLeft > 1) {
+                    claimGeneratedCode(sessionId, hostEmail, attemptsLeft - 1, callback);
+                } else {
+                    callback.onCodeTaken(code);
+                }
+            }
+
+            @Override
+            public void onError(String message, Exception e) {
+                callback.onError(message, e);
+            }
+        });
+    }
+
+    /**
+     * Mark a code active or inactive, if it still belongs to the session
+     */
+    public static void setActive(String code, String sessionId, boolean active) {
+        setActive(code, sessionId, active, null);
+    }
+
+    /**
+     * Mark a code active or inactive, if it still belongs to the session.
+     *
+     * @param callback told {@link ClaimCallback#onCodeTaken} if the code is missing from the
+     *                 index or held by another session, so joiners cannot reach this one;
+     *                 may be null
+     */
+    public static void setActive(String code, String sessionId, boolean active, ClaimCallback callback) {
+        String key = normalize(code);
+        if (key == null) {
+            if (callback != null) {
+                callback.onError("Invalid session code", null);
+            }
+            return;
+        }
+
+        reference(key).runTransaction(new Transaction.Handler() {
+            @NonNull
+            @Override
+            public Transaction.Result doTransaction(@NonNull MutableData currentData) {
+                if (!sessionId.equals(currentData.child("session_id").getValue(String.class))) {
+                    return Transaction.abort();
+                }
+                currentData.child("active").setValue(active);
+                currentData.child("updated_at").setValue(System.currentTimeMillis());
+                return Transaction.success(currentData);
+            }
+
+            @Override
+            public void onComplete(DatabaseError error, boolean committed, DataSnapshot currentData) {
+                if (error != null) {
+                    Log.e(TAG, "Failed to update session code " + key + ": " + error.getMessage());
+                    if (callback != null) {
+                        callback.onError("Failed to update session code", error.toException());
+                    }
+                } else if (committed) {
+                    Log.d(TAG, "Session code " + key + (active ? " active" : " inactive"));
+                    if (callback != null) {
+                        callback.onClaimed(code.trim());
+                    }
+                } else {
+                    Log.w(TAG, "Session code " + key + " no longer belongs to session " + sessionId);
+                    if (callback != null) {
+                        callback.onCodeTaken(code.trim());
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Remove a code from the index, if it still belongs to the session
+     */
+    public static void release(String code, String sessionId) {
+        String key = normalize(code);
+        if (key != null) {
+            removeEntry(key, sessionId);
+        }
+    }
+
+    private static void removeEntry(String key, String sessionId) {
+        reference(key).runTransaction(new Transaction.Handler() {
+            @NonNull
+            @Override
+            public Transaction.Result doTransaction(@NonNull MutableData currentData) {
+                if (!sessionId.equals(currentData.child("session_id").getValue(String.class))) {
+                    return Transaction.abort();
+                }
+                currentData.setValue(null);
+                return Transaction.success(currentData);
+            }
+
+            @Override
+            public void onComplete(DatabaseError error, boolean committed, DataSnapshot currentData) {
+                if (error != null) {
+                    Log.e(TAG, "Failed to release session code " + key + ": " + error.getMessage());
+                } else if (committed) {
+                    Log.d(TAG, "Session code " + key + " released");
+                }
+            }
+        });
+    }
+
+    /**
+     * Look up the active session for a code with one keyed read
+     */
+    public static void resolve(String code, RTCJoiner.SessionFoundCallback callback) {
+        String key = normalize(code);
+        if (key == null) {
+            callback.onSessionNotFound();
+            return;
+        }
+
+        reference(key).addListenerForSingleValueEvent(new ValueEventListener() {
+            @Override
+            public void onDataChange(@NonNull DataSnapshot dataSnapshot) {
+                if (!dataSnapshot.exists()) {
+                    Log.d(TAG, "No session found with code: " + key);
+                    callback.onSessionNotFound();
+                    return;
+                }
+
+                String sessionId = dataSnapshot.child("session_id").getValue(String.class);
+                String hostEmail = dataSnapshot.child("host_email").getValue(String.class);
+                Boolean active = dataSnapshot.child("active").getValue(Boolean.class);
+
+                if (active != null && !active) {
+                    Log.d(TAG, "Session for code " + key + " is not active");
+                    callback.onSessionNotFound();
+                } else if (sessionId != null && hostEmail != null) {
+                    callback.onSessionFound(sessionId, hostEmail);
+                } else {
+                    callback.onError("Session data incomplete", null);
+                }
+            }
+
+            @Override
+            public void onCancelled(@NonNull DatabaseError databaseError) {
+                callback.onError("Database error", databaseError.toException());
+            }
+        });
+    }
+
+    /**
+     * Index the codes of a host's sessions created before the index existed, or indexed under
+     * the code as typed. Runs once per account; only the host's own sessions are read.
+     *
+     * @param hostEmail the host's email as typed, with dots
+     */
+    public static void migrateHostSessions(String hostEmail) {
+        if (hostEmail == null) {
+            return;
+        }
+        DatabaseReference userRef = FirebaseDatabase.getInstance().getReference("users")
+                .child(hostEmail.replace(".", "_"));
+        DatabaseReference flagRef = userRef.child("migrations").child(MIGRATION_KEY);
+
+        flagRef.get().addOnCompleteListener(flagTask -> {
+            if (!flagTask.isSuccessful()) {
+                Log.w(TAG, "Could not check session code migration", flagTask.getException());
+                return;
+            }
+            if (Boolean.TRUE.equals(flagTask.getResult().getValue(Boolean.class))) {
+                return;
+            }
+
+            userRef.child("sessions").get().addOnCompleteListener(task -> {
+                if (!task.isSuccessful()) {
+                    Log.w(TAG, "Could not read sessions for code migration", task.getException());
+                    return;
+                }
+
+                Map<String, String> codes = new HashMap<>();
+                Map<String, Boolean> activeStates = new HashMap<>();
+                for (DataSnapshot session : task.getResult().getChildren()) {
+                    // HostSession stores the code as passkey, RTCHost as session_code
+                    String code = session.child("passkey").getValue(String.class);
+                    if (code == null) {
+                        code = session.child("session_code").getValue(String.class);
+                    }
+                    Boolean active = session.child("active").getValue(Boolean.class);
+                    if (normalize(code) != null) {
+                        codes.put(session.getKey(), code);
+                        activeStates.put(session.getKey(), active == null || active);
+                    }
+                }
+
+                if (codes.isEmpty()) {
+                    flagRef.setValue(true);
+                    return;
+                }
+
+                AtomicInteger remaining = new AtomicInteger(codes.size());
+                AtomicInteger failures = new AtomicInteger();
+                for (Map.Entry<String, String> entry : codes.entrySet()) {
+                    String sessionId = entry.getKey();
+                    claim(entry.getValue(), sessionId, hostEmail, new ClaimCallback() {
+                        @Override
+                        public void onClaimed(String code) {
+                            if (!activeStates.get(sessionId)) {
+                                setActive(code, sessionId, false);
+                            }
+                            // Drop the entry v1 kept under the code as typed
+                            String typedKey = entry.getValue().trim();
+                            if (!typedKey.equals(normalize(typedKey))) {
+                                removeEntry(typedKey, sessionId);
+                            }
+                            finish();
+                        }
+
+                        @Override
+                        public void onCodeTaken(String code) {
+                            Log.w(TAG, "Session " + sessionId + " shares code " + code + " with another session, not indexed");
+                            finish();
+                        }
+
+                        @Override
+                        public void onError(String message, Exception e) {
+                            failures.incrementAndGet();
+                            finish();
+                        }
+
+                        private void finish() {
+                            if (remaining.decrementAndGet() == 0) {
+                                // Retried on a later start if any entry could not be written
+                                if (failures.get() == 0) {
+                                    flagRef.setValue(true);
+                                }
+                                Log.d(TAG, "Session code migration done: " + codes.size() + " sessions, "
+                                        + failures.get() + " failed");
+                            }
+                        }
+                    });
+                }
+            });
+        });
+    }
+
+    private static DatabaseReference reference(String key) {
+        return FirebaseDatabase.getInstance().getReference(NODE).child(key);
+    }
+
+    private static Map<String, Object> entry(String sessionId, String hostEmail, boolean active) {
+        Map<String, Object> data = new HashMap<>();
+        data.put("session_id", sessionId);
+        data.put("host_email", hostEmail);
+        data.put("active", active);
+        data.put("updated_at", System.currentTimeMillis());
+        return data;
+    }
+}
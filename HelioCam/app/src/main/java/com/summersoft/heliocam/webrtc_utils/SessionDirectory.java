@@ -0,0 +1,96 @@
+package com.summersoft.heliocam.webrtc_utils;
+
+import android.util.Log;
+
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.FirebaseDatabase;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Small per-user list of hosted sessions, kept under {@code users/{email}/session_index/{sessionId}}
+ * as {@code {session_name, created_at}}.
+ *
+ * Lets screens such as the notification feed find a user's sessions and their names without
+ * downloading the sessions themselves, which hold every notification and detection event.
+ */
+public final class SessionDirectory {
+    private static final String TAG = "SessionDirectory";
+
+    public static final String NODE = "session_index";
+    private static final String MIGRATION_KEY = "session_index_v1";
+
+    private SessionDirectory() {
+    }
+
+    /**
+     * @param formattedEmail user email with '.' replaced by '_'
+     */
+    public static DatabaseReference reference(String formattedEmail) {
+        return FirebaseDatabase.getInstance().getReference("users").child(formattedEmail).child(NODE);
+    }
+
+    public static void add(String formattedEmail, String sessionId, String sessionName, long createdAt) {
+        if (formattedEmail == null || sessionId == null) {
+            return;
+        }
+        reference(formattedEmail).child(sessionId).setValue(entry(sessionName, createdAt))
+                .addOnFailureListener(e -> Log.e(TAG, "Failed to index session " + sessionId, e));
+    }
+
+    public static void remove(String formattedEmail, String sessionId) {
+        if (formattedEmail == null || sessionId == null) {
+            return;
+        }
+        reference(formattedEmail).child(sessionId).removeValue();
+    }
+
+    /**
+     * Index sessions created before the directory existed. Runs once per account.
+     */
+    public static void migrateHostSessions(String formattedEmail) {
+        if (formattedEmail == null) {
+            return;
+        }
+        DatabaseReference userRef = FirebaseDatabase.getInstance().getReference("users").child(formattedEmail);
+        DatabaseReference flagRef = userRef.child("migrations").child(MIGRATION_KEY);
+
+        flagRef.get().addOnCompleteListener(flagTask -> {
+            if (!flagTask.isSuccessful() || Boolean.TRUE.equals(flagTask.getResult().getValue(Boolean.class))) {
+                return;
+            }
+
+            userRef.child("sessions").get().addOnCompleteListener(task -> {
+                if (!task.isSuccessful()) {
+                    Log.w(TAG, "Could not read sessions for directory migration", task.getException());
+                    return;
+                }
+
+                Map<String, Object> updates = new HashMap<>();
+                for (DataSnapshot session : task.getResult().getChildren()) {
+                    String name = session.child("session_name").getValue(String.class);
+                    if (name == null) {
+                        // RTCHost sessions store the name as "name"
+                        name = session.child("name").getValue(String.class);
+                    }
+                    Long createdAt = session.child("created_at").getValue(Long.class);
+                    updates.put(NODE + "/" + session.getKey(), entry(name, createdAt != null ? createdAt : 0L));
+                }
+                updates.put("migrations/" + MIGRATION_KEY, true);
+
+                userRef.updateChildren(updates)
+                        .addOnSuccessListener(aVoid -> Log.d(TAG, "Indexed " + (updates.size() - 1) + " sessions"))
+                        .addOnFailureListener(e -> Log.e(TAG, "Session directory migration failed", e));
+            });
+        });
+    }
+
+    private static Map<String, Object> entry(String sessionName, long createdAt) {
+        Map<String, Object> data = new HashMap<>();
+        data.put("session_name", sessionName);
+        data.put("created_at", createdAt);
+        return data;
+    }
+}
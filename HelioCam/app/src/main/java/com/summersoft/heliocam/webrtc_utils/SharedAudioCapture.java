@@ -0,0 +1,328 @@
+package com.summersoft.heliocam.webrtc_utils;
+
+import android.Manifest;
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+import android.os.Process;
+import android.util.Log;
+
+import androidx.core.content.ContextCompat;
+
+import org.webrtc.audio.JavaAudioDeviceModule;
+
+/**
+ * One microphone capture shared by the WebRTC audio track and local listeners such as
+ * sound detection.
+ *
+ * While WebRTC is recording (a call is sending audio), the samples the audio device module
+ * already captures are handed to the listeners through its samples-ready callback, so no
+ * second {@link AudioRecord} is opened. When WebRTC is not recording and someone is
+ * listening, a single fallback {@link AudioRecord} at the same rate takes over.
+ *
+ * WebRTC creates and starts its own AudioRecord before it reports the start, so the fallback
+ * has to be closed earlier: the caller calls {@link #yieldToWebRtc} before it adds the audio
+ * track to a call, and {@link #reclaimFromWebRtc} if the call fails before audio starts.
+ * Otherwise two captures would be open on the same microphone, and on Android 9 and older
+ * the second one may fail or be silenced.
+ *
+ * Samples are delivered as 16-bit mono PCM in a buffer that is reused for every callback.
+ * Callbacks never overlap and arrive on the WebRTC or fallback capture thread, so
+ * listeners must return quickly.
+ */
+public class SharedAudioCapture implements JavaAudioDeviceModule.SamplesReadyCallback,
+        JavaAudioDeviceModule.AudioRecordStateCallback {
+    private static final String TAG = "SharedAudioCapture";
+
+    /** Capture rate of both paths; the native rate of most devices, so WebRTC does not resample. */
+    public static final int SAMPLE_RATE = 48000;
+    // 20 ms reads on the fallback path, the same wakeup rate order as the WebRTC path
+    private static final int FALLBACK_READ_SAMPLES = SAMPLE_RATE / 50;
+    private static final long FALLBACK_JOIN_TIMEOUT_MS = 500;
+
+    /**
+     * Receives captured audio.
+     */
+    public interface Listener {
+        /**
+         * @param samples    mono PCM, only valid during the call
+         * @param length     number of valid samples
+         * @param sampleRate sample rate in Hz
+         */
+        void onPcm(short[] samples, int length, int sampleRate);
+    }
+
+    private static final Listener[] NO_LISTENERS = new Listener[0];
+
+    private final Context context;
+    // Serialises delivery, and lets removeListener guarantee no further callbacks
+    private final Object dispatchLock = new Object();
+    private volatile Listener[] listeners = NO_LISTENERS;
+    private short[] pcm = new short[FALLBACK_READ_SAMPLES];
+
+    private volatile boolean webRtcRecording = false;
+    // Fallback kept closed because WebRTC is about to open the mic
+    private volatile boolean yieldedToWebRtc = false;
+    private volatile boolean released = false;
+    private Thread fallbackThread;
+    private volatile boolean fallbackRunning = false;
+
+    // Stats
+    private long webRtcCallbacks = 0;
+    private long webRtcSamples = 0;
+    private long fallbackReads = 0;
+    private long fallbackSamples = 0;
+    private int fallbackStarts = 0;
+    private boolean rateWarningLogged = false;
+
+    public SharedAudioCapture(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    /**
+     * Start delivering audio to a listener, opening the fallback capture if WebRTC is not recording.
+     */
+    public void addListener(Listener listener) {
+        synchronized (dispatchLock) {
+            Listener[] current = listeners;
+            for (Listener l : current) {
+                if (l == listener) {
+                    return;
+                }
+            }
+            Listener[] updated = new Listener[current.length + 1];
+            System.arraycopy(current, 0, updated, 0, current.length);
+            updated[current.length] = listener;
+            listeners = updated;
+        }
+        updateFallback();
+    }
+
+    /**
+     * Stop delivering audio to a listener. No callback reaches it after this returns.
+     */
+    public void removeListener(Listener listener) {
+        synchronized (dispatchLock) {
+            Listener[] current = listeners;
+            int index = -1;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i] == listener) {
+                    index = i;
+                    break;
+                }
+            }
+            if (index < 0) {
+                return;
+            }
+            Listener[] updated = new Listener[current.length - 1];
+            System.arraycopy(current, 0, updated, 0, index);
+            System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+            listeners = updated.length == 0 ? NO_LISTENERS : updated;
+        }
+        updateFallback();
+    }
+
+    /**
+     * True if audio currently comes from the WebRTC capture rather than the fallback.
+     */
+    public boolean isSharingWebRtcCapture() {
+        return webRtcRecording;
+    }
+
+    /**
+     * Close the fallback capture and keep it closed, because WebRTC is about to open the
+     * microphone. Call before the audio track starts sending. Blocks until the mic is free.
+     */
+    public void yieldToWebRtc() {
+        yieldedToWebRtc = true;
+        updateFallback();
+    }
+
+    /**
+     * Undo {@link #yieldToWebRtc} when the call ended or failed before WebRTC started recording.
+     */
+    public void reclaimFromWebRtc() {
+        yieldedToWebRtc = false;
+        updateFallback();
+    }
+
+    // JavaAudioDeviceModule callbacks, on the WebRTC audio thread
+
+    @Override
+    public void onWebRtcAudioRecordSamplesReady(JavaAudioDeviceModule.AudioSamples samples) {
+        if (listeners.length == 0) {
+            return;
+        }
+        if (samples.getAudioFormat() != AudioFormat.ENCODING_PCM_16BIT) {
+            return;
+        }
+        byte[] data = samples.getData();
+        int channels = Math.max(1, samples.getChannelCount());
+        int frames = data.length / (2 * channels);
+
+        synchronized (dispatchLock) {
+            if (pcm.length < frames) {
+                pcm = new short[frames];
+            }
+            // Little-endian 16-bit, averaged down to mono
+            for (int i = 0, b = 0; i < frames; i++) {
+                int sum = 0;
+                for (int c = 0; c < channels; c++, b += 2) {
+                    sum += (short) ((data[b] & 0xFF) | (data[b + 1] << 8));
+                }
+                pcm[i] = (short) (sum / channels);
+            }
+            webRtcCallbacks++;
+            webRtcSamples += frames;
+            int rate = samples.getSampleRate();
+            if (rate != SAMPLE_RATE && !rateWarningLogged) {
+                rateWarningLogged = true;
+                Log.w(TAG, "WebRTC captures at " + rate + " Hz instead of " + SAMPLE_RATE);
+            }
+            dispatch(pcm, frames, rate);
+        }
+    }
+
+    @Override
+    public void onWebRtcAudioRecordStart() {
+        Log.d(TAG, "WebRTC recording started, sharing its capture");
+        webRtcRecording = true;
+        yieldedToWebRtc = false;
+        // WebRTC's AudioRecord is already running by now; the fallback should have been closed
+        // by yieldToWebRtc, this only catches a caller that didn't
+        if (fallbackRunning) {
+            Log.w(TAG, "WebRTC started recording while the fallback capture was open");
+            stopFallback();
+        }
+    }
+
+    @Override
+    public void onWebRtcAudioRecordStop() {
+        Log.d(TAG, "WebRTC recording stopped");
+        webRtcRecording = false;
+        updateFallback();
+    }
+
+    private void dispatch(short[] samples, int length, int sampleRate) {
+        for (Listener listener : listeners) {
+            try {
+                listener.onPcm(samples, length, sampleRate);
+            } catch (Exception e) {
+                Log.e(TAG, "Audio listener failed", e);
+            }
+        }
+    }
+
+    // Fallback capture, used only while WebRTC is not recording
+
+    private synchronized void updateFallback() {
+        boolean needed = !released && !webRtcRecording && !yieldedToWebRtc && listeners.length > 0;
+        if (needed && !fallbackRunning) {
+            startFallback();
+        } else if (!needed && fallbackRunning) {
+            stopFallback();
+        }
+    }
+
+    @SuppressLint("MissingPermission")
+    private synchronized void startFallback() {
+        if (ContextCompat.checkSelfPermission(context, Manifest.permission.RECORD_AUDIO)
+                != PackageManager.PERMISSION_GRANTED) {
+            Log.w(TAG, "Microphone permission not granted, fallback capture not started");
+            return;
+        }
+        int minBuffer = AudioRecord.getMinBufferSize(SAMPLE_RATE,
+                AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT);
+        AudioRecord record;
+        try {
+            record = new AudioRecord(MediaRecorder.AudioSource.MIC, SAMPLE_RATE,
+                    AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT,
+                    Math.max(minBuffer, FALLBACK_READ_SAMPLES * 2 * 2));
+            if (record.getState() != AudioRecord.STATE_INITIALIZED) {
+                Log.e(TAG, "Fallback AudioRecord failed to initialise");
+                record.release();
+                return;
+            }
+            record.startRecording();
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to start fallback capture", e);
+            return;
+        }
+
+        fallbackRunning = true;
+        fallbackStarts++;
+        Log.d(TAG, "Fallback capture started");
+        fallbackThread = new Thread(() -> {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+            short[] buffer = new short[FALLBACK_READ_SAMPLES];
+            try {
+                while (fallbackRunning) {
+                    int read = record.read(buffer, 0, buffer.length);
+                    if (read <= 0) {
+                        continue;
+                    }
+                    synchronized (dispatchLock) {
+                        if (!fallbackRunning) {
+                            break;
+                        }
+                        fallbackReads++;
+                        fallbackSamples += read;
+                        dispatch(buffer, read, SAMPLE_RATE);
+                    }
+                }
+            } finally {
+                try {
+                    record.stop();
+                } catch (IllegalStateException ignored) {
+                }
+                record.release();
+            }
+        }, "SharedAudioCapture-Fallback");
+        fallbackThread.start();
+    }
+
+    private synchronized void stopFallback() {
+        if (!fallbackRunning) {
+            return;
+        }
+        fallbackRunning = false;
+        Thread thread = fallbackThread;
+        fallbackThread = null;
+        if (thread != null && thread != Thread.currentThread()) {
+            try {
+                // At most one read in flight; wait so the mic is free before WebRTC reads it
+                thread.join(FALLBACK_JOIN_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        Log.d(TAG, "Fallback capture stopped");
+    }
+
+    /**
+     * Stop the fallback capture and drop all listeners.
+     */
+    public void release() {
+        released = true;
+        synchronized (dispatchLock) {
+            listeners = NO_LISTENERS;
+        }
+        stopFallback();
+        logStats();
+    }
+
+    /**
+     * Log how much audio came from each capture path, to compare against separate captures.
+     */
+    public void logStats() {
+        synchronized (dispatchLock) {
+            Log.d(TAG, "Capture stats: webrtc callbacks=" + webRtcCallbacks + " samples=" + webRtcSamples
+                    + ", fallback reads=" + fallbackReads + " samples=" + fallbackSamples
+                    + " starts=" + fallbackStarts + ", second AudioRecord avoided for "
+                    + (webRtcSamples * 1000L / SAMPLE_RATE) + " ms");
+        }
+    }
+}
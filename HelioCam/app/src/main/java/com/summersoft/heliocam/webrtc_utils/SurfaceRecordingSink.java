@@ -0,0 +1,229 @@
+package com.summersoft.heliocam.webrtc_utils;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.opengl.GLES20;
+import android.opengl.GLUtils;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.view.Surface;
+
+import org.webrtc.EglBase;
+import org.webrtc.GlRectDrawer;
+import org.webrtc.ThreadUtils;
+import org.webrtc.VideoFrame;
+import org.webrtc.VideoFrameDrawer;
+import org.webrtc.VideoSink;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Renders WebRTC frames straight onto an encoder input surface (MediaRecorder or MediaCodec)
+ * with OpenGL, sharing the camera's EGL context.
+ *
+ * Texture frames are drawn as they are, with no copy to the CPU, and the
+ * "yyyy-MM-dd HH:mm:ss" overlay is a small texture that is only redrawn when the second
+ * changes. Rendering runs on its own thread and only the newest frame is kept: if the
+ * encoder falls behind, frames are dropped instead of queued.
+ */
+public class SurfaceRecordingSink implements VideoSink {
+    private static final String TAG = "SurfaceRecordingSink";
+
+    private static final int OVERLAY_WIDTH = 320;
+    private static final int OVERLAY_HEIGHT = 32;
+    private static final int OVERLAY_MARGIN = 10;
+    // Flips the overlay bitmap, whose rows run top to bottom, for GL's bottom-up texture space
+    private static final float[] FLIP_VERTICAL = {
+            1, 0, 0, 0,
+            0, -1, 0, 0,
+            0, 0, 1, 0,
+            0, 1, 0, 1
+    };
+
+    private final HandlerThread renderThread;
+    private final Handler renderHandler;
+    private final AtomicReference<VideoFrame> pendingFrame = new AtomicReference<>();
+    private final Runnable renderRunnable = this::renderPendingFrame;
+    private final boolean drawTimestamp;
+
+    // Render thread only
+    private EglBase eglBase;
+    private GlRectDrawer drawer;
+    private VideoFrameDrawer frameDrawer;
+    private int surfaceWidth;
+    private int surfaceHeight;
+    private int overlayTexture;
+    private Bitmap overlayBitmap;
+    private Canvas overlayCanvas;
+    private Paint overlayPaint;
+    private SimpleDateFormat overlayFormat;
+    private long overlaySecond = -1;
+
+    private volatile boolean released = false;
+    private volatile long framesRendered = 0;
+    private volatile long framesDropped = 0;
+
+    /**
+     * @param sharedContext EGL context of the camera, e.g. {@link RTCJoiner#getEglContext()}
+     * @param surface       encoder input surface
+     * @param drawTimestamp whether to burn the wall-clock time into the top-left corner
+     */
+    public SurfaceRecordingSink(EglBase.Context sharedContext, Surface surface, boolean drawTimestamp) {
+        this.drawTimestamp = drawTimestamp;
+        renderThread = new HandlerThread("RecordingRender");
+        renderThread.start();
+        renderHandler = new Handler(renderThread.getLooper());
+
+        try {
+            ThreadUtils.invokeAtFrontUninterruptibly(renderHandler, () -> {
+                eglBase = EglBase.create(sharedContext, EglBase.CONFIG_RECORDABLE);
+                eglBase.createSurface(surface);
+                eglBase.makeCurrent();
+                surfaceWidth = eglBase.surfaceWidth();
+                surfaceHeight = eglBase.surfaceHeight();
+                drawer = new GlRectDrawer();
+                frameDrawer = new VideoFrameDrawer();
+            });
+        } catch (RuntimeException e) {
+            renderThread.quitSafely();
+            throw e;
+        }
+        Log.d(TAG, "Recording surface ready: " + surfaceWidth + "x" + surfaceHeight);
+    }
+
+    @Override
+    public void onFrame(VideoFrame frame) {
+        if (released) {
+            return;
+        }
+        frame.retain();
+        VideoFrame previous = pendingFrame.getAndSet(frame);
+        if (previous != null) {
+            // The render thread has not picked up the last one yet; it is replaced, not queued
+            previous.release();
+            framesDropped++;
+        } else {
+            renderHandler.post(renderRunnable);
+        }
+    }
+
+    private void renderPendingFrame() {
+        VideoFrame frame = pendingFrame.getAndSet(null);
+        if (frame == null) {
+            return;
+        }
+        try {
+            if (released || eglBase == null) {
+                return;
+            }
+            GLES20.glClearColor(0, 0, 0, 1);
+            GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+            // Stretched to the encoder size, as the recordings always were
+            frameDrawer.drawFrame(frame, drawer, null, 0, 0, surfaceWidth, surfaceHeight);
+
+            if (drawTimestamp) {
+                drawOverlay();
+            }
+
+            eglBase.swapBuffers(frame.getTimestampNs());
+            framesRendered++;
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Error rendering frame to recording surface: " + e.getMessage());
+        } finally {
+            frame.release();
+        }
+    }
+
+    private void drawOverlay() {
+        long now = System.currentTimeMillis();
+        long second = now / 1000;
+        if (overlayTexture == 0) {
+            overlayBitmap = Bitmap.createBitmap(OVERLAY_WIDTH, OVERLAY_HEIGHT, Bitmap.Config.ARGB_8888);
+            overlayCanvas = new Canvas(overlayBitmap);
+            overlayPaint = new Paint();
+            overlayPaint.setColor(Color.WHITE);
+            overlayPaint.setTextSize(20);
+            overlayPaint.setAntiAlias(true);
+            overlayFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.getDefault());
+
+            int[] textures = new int[1];
+            GLES20.glGenTextures(1, textures, 0);
+            overlayTexture = textures[0];
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, overlayTexture);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        }
+
+        if (second != overlaySecond) {
+            // Text only changes once a second; re-upload the small texture then
+            overlaySecond = second;
+            overlayCanvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+            overlayCanvas.drawText(overlayFormat.format(new Date(now)), 0, 22, overlayPaint);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, overlayTexture);
+            GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, overlayBitmap, 0);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        }
+
+        GLES20.glEnable(GLES20.GL_BLEND);
+        GLES20.glBlendFunc(GLES20.GL_ONE, GLES20.GL_ONE_MINUS_SRC_ALPHA);
+        drawer.drawRgb(overlayTexture, FLIP_VERTICAL, OVERLAY_WIDTH, OVERLAY_HEIGHT,
+                OVERLAY_MARGIN, surfaceHeight - OVERLAY_MARGIN - OVERLAY_HEIGHT, OVERLAY_WIDTH, OVERLAY_HEIGHT);
+        GLES20.glDisable(GLES20.GL_BLEND);
+    }
+
+    /**
+     * Stop rendering and release the EGL surface. Remove the sink from its track first.
+     * Blocks until the render thread has finished.
+     */
+    public void release() {
+        if (released) {
+            return;
+        }
+        released = true;
+        ThreadUtils.invokeAtFrontUninterruptibly(renderHandler, () -> {
+            VideoFrame frame = pendingFrame.getAndSet(null);
+            if (frame != null) {
+                frame.release();
+            }
+            if (overlayTexture != 0) {
+                GLES20.glDeleteTextures(1, new int[]{overlayTexture}, 0);
+                overlayTexture = 0;
+            }
+            if (overlayBitmap != null) {
+                overlayBitmap.recycle();
+                overlayBitmap = null;
+            }
+            if (drawer != null) {
+                drawer.release();
+                drawer = null;
+            }
+            if (frameDrawer != null) {
+                frameDrawer.release();
+                frameDrawer = null;
+            }
+            if (eglBase != null) {
+                eglBase.release();
+                eglBase = null;
+            }
+        });
+        renderThread.quitSafely();
+        Log.d(TAG, "Released after " + framesRendered + " frames, " + framesDropped + " dropped");
+    }
+
+    public long getFramesRendered() {
+        return framesRendered;
+    }
+
+    public long getFramesDropped() {
+        return framesDropped;
+    }
+}
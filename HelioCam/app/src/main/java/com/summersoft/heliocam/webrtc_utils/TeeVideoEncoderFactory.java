@@ -0,0 +1,224 @@
+package com.summersoft.heliocam.webrtc_utils;
+
+import android.util.Log;
+
+import org.webrtc.EncodedImage;
+import org.webrtc.VideoCodecInfo;
+import org.webrtc.VideoCodecStatus;
+import org.webrtc.VideoEncoder;
+import org.webrtc.VideoEncoderFactory;
+import org.webrtc.VideoFrame;
+import org.webrtc.WrappedNativeVideoEncoder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Encoder factory that hands the H.264 frames WebRTC encodes for a call to a local listener
+ * as well, so local recording can reuse the call's hardware encoder instead of running a
+ * second encode of the same camera frames.
+ *
+ * Only Java (hardware) H.264 encoders can be tapped; native encoders such as VP8 are passed
+ * through untouched. H.264 is listed first in the supported codecs so calls prefer it when
+ * both sides can decode it. While periodic key frames are enabled, a key frame is requested
+ * at least every {@link #KEY_FRAME_INTERVAL_MS} so recordings can start and be cut close to
+ * any moment.
+ */
+public class TeeVideoEncoderFactory implements VideoEncoderFactory {
+    private static final String TAG = "TeeVideoEncoderFactory";
+
+    private static final String H264 = "H264";
+    public static final long KEY_FRAME_INTERVAL_MS = 2000;
+
+    /**
+     * Receives the call's encoded H.264 stream, on the WebRTC encoder thread.
+     */
+    public interface Listener {
+        /** The encoder (re)started; frames that follow use this size. */
+        void onEncoderStarted(int width, int height);
+
+        /**
+         * The encoded frame size changed without a restart, e.g. the quality scaler lowered
+         * the resolution and the hardware encoder reset itself.
+         */
+        void onFrameSizeChanged(int width, int height);
+
+        /** The encoder's target bit rate changed. */
+        void onBitRateChanged(int bitRateBps);
+
+        /**
+         * An encoded frame in Annex B format. Key frames carry SPS and PPS.
+         * The image is only valid during the call.
+         */
+        void onEncodedFrame(EncodedImage image);
+
+        void onEncoderStopped();
+    }
+
+    private final VideoEncoderFactory delegate;
+    private volatile Listener listener;
+    private volatile TeeEncoder activeEncoder;
+    private volatile boolean periodicKeyFrames = false;
+    private volatile boolean keyFrameRequested = false;
+
+    public TeeVideoEncoderFactory(VideoEncoderFactory delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * Attach or detach (null) the listener. Only one listener is supported. If an encoder is
+     * already running, the listener is told its size and bit rate right away.
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+        TeeEncoder encoder = activeEncoder;
+        if (listener != null && encoder != null) {
+            listener.onEncoderStarted(encoder.width, encoder.height);
+            listener.onBitRateChanged(encoder.bitRateBps);
+        }
+    }
+
+    /**
+     * Request a key frame at least every {@link #KEY_FRAME_INTERVAL_MS}. This costs the call
+     * some bit rate, so enable it only while the frames are being kept.
+     */
+    public void setPeriodicKeyFrames(boolean enabled) {
+        periodicKeyFrames = enabled;
+    }
+
+    /**
+     * Ask the running encoder for a key frame on its next frame.
+     */
+    public void requestKeyFrame() {
+        keyFrameRequested = true;
+    }
+
+    @Override
+    public VideoEncoder createEncoder(VideoCodecInfo info) {
+        VideoEncoder encoder = delegate.createEncoder(info);
+        if (encoder == null || !H264.equalsIgnoreCase(info.name) || encoder instanceof WrappedNativeVideoEncoder) {
+            return encoder;
+        }
+        Log.d(TAG, "Tapping " + info.name + " encoder " + encoder.getImplementationName());
+        return new TeeEncoder(encoder);
+    }
+
+    @Override
+    public VideoCodecInfo[] getSupportedCodecs() {
+        VideoCodecInfo[] codecs = delegate.getSupportedCodecs();
+        List<VideoCodecInfo> ordered = new ArrayList<>(codecs.length);
+        for (VideoCodecInfo codec : codecs) {
+            if (H264.equalsIgnoreCase(codec.name)) {
+                ordered.add(codec);
+            }
+        }
+        for (VideoCodecInfo codec : codecs) {
+            if (!H264.equalsIgnoreCase(codec.name)) {
+                ordered.add(codec);
+            }
+        }
+        return ordered.toArray(new VideoCodecInfo[0]);
+    }
+
+    private class TeeEncoder implements VideoEncoder {
+        private final VideoEncoder encoder;
+        private volatile long lastKeyFrameMs = 0;
+        private boolean started = false;
+        volatile int width;
+        volatile int height;
+        volatile int bitRateBps;
+
+        TeeEncoder(VideoEncoder encoder) {
+            this.encoder = encoder;
+        }
+
+        @Override
+        public VideoCodecStatus initEncode(Settings settings, Callback callback) {
+            VideoCodecStatus status = encoder.initEncode(settings, (image, codecInfo) -> {
+                Listener current = listener;
+                // Size changes don't go through initEncode, so follow the frames themselves
+                if (image.encodedWidth > 0 && image.encodedHeight > 0
+                        && (image.encodedWidth != width || image.encodedHeight != height)) {
+                    width = image.encodedWidth;
+                    height = image.encodedHeight;
+                    if (current != null) {
+                        current.onFrameSizeChanged(width, height);
+                    }
+                }
+                if (current != null) {
+                    if (image.frameType == EncodedImage.FrameType.VideoFrameKey) {
+                        lastKeyFrameMs = System.currentTimeMillis();
+                    }
+                    try {
+                        current.onEncodedFrame(image);
+                    } catch (Exception e) {
+                        Log.e(TAG, "Encoded frame listener failed", e);
+                    }
+                }
+                callback.onEncodedFrame(image, codecInfo);
+            });
+
+            if (status == VideoCodecStatus.OK) {
+                started = true;
+                width = settings.width;
+                height = settings.height;
+                bitRateBps = settings.startBitrate * 1000;
+                activeEncoder = this;
+                Listener current = listener;
+                if (current != null) {
+                    current.onEncoderStarted(settings.width, settings.height);
+                    current.onBitRateChanged(bitRateBps);
+                }
+            }
+            return status;
+        }
+
+        @Override
+        public VideoCodecStatus release() {
+            if (started) {
+                started = false;
+                if (activeEncoder == this) {
+                    activeEncoder = null;
+                }
+                Listener current = listener;
+                if (current != null) {
+                    current.onEncoderStopped();
+                }
+            }
+            return encoder.release();
+        }
+
+        @Override
+        public VideoCodecStatus encode(VideoFrame frame, EncodeInfo info) {
+            if (listener != null) {
+                long now = System.currentTimeMillis();
+                if (keyFrameRequested || (periodicKeyFrames && now - lastKeyFrameMs >= KEY_FRAME_INTERVAL_MS)) {
+                    keyFrameRequested = false;
+                    lastKeyFrameMs = now;
+                    info = new EncodeInfo(new EncodedImage.FrameType[]{EncodedImage.FrameType.VideoFrameKey});
+                }
+            }
+            return encoder.encode(frame, info);
+        }
+
+        @Override
+        public VideoCodecStatus setRateAllocation(BitrateAllocation allocation, int framerate) {
+            bitRateBps = allocation.getSum();
+            Listener current = listener;
+            if (current != null) {
+                current.onBitRateChanged(bitRateBps);
+            }
+            return encoder.setRateAllocation(allocation, framerate);
+        }
+
+        @Override
+        public ScalingSettings getScalingSettings() {
+            return encoder.getScalingSettings();
+        }
+
+        @Override
+        public String getImplementationName() {
+            return encoder.getImplementationName();
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.summersoft.heliocam.detection;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Counts heap bytes allocated by the current thread, using HotSpot's per-thread counter.
+ * Tests that need it are skipped on JVMs without one.
+ */
+final class AllocationCounter {
+    private final com.sun.management.ThreadMXBean bean;
+
+    AllocationCounter() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        assumeTrue("Per-thread allocation counting not available",
+                threads instanceof com.sun.management.ThreadMXBean);
+        bean = (com.sun.management.ThreadMXBean) threads;
+        assumeTrue("Per-thread allocation counting not supported", bean.isThreadAllocatedMemorySupported());
+        bean.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    long allocatedBytes() {
+        return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
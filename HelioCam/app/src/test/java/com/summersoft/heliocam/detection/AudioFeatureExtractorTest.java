@@ -0,0 +1,142 @@
+package com.summersoft.heliocam.detection;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AudioFeatureExtractorTest {
+
+    private static final int SAMPLE_RATE = 16000;
+    private static final int HOP = 512;
+
+    private static short[] tone(float hz, float amplitude, int samples) {
+        short[] pcm = new short[samples];
+        for (int i = 0; i < samples; i++) {
+            pcm[i] = (short) Math.round(amplitude * 32767 * Math.sin(2 * Math.PI * hz * i / SAMPLE_RATE));
+        }
+        return pcm;
+    }
+
+    /** Copies the fields of interest out, the extractor reuses its frame. */
+    private static final class Captured implements AudioFeatureExtractor.Listener {
+        final List<float[]> frames = new ArrayList<>();
+        final List<Integer> peakBins = new ArrayList<>();
+
+        @Override
+        public void onFeatureFrame(AudioFeatureFrame frame) {
+            frames.add(new float[]{frame.getRmsDbfs(), frame.getPeakDbfs(), frame.getSpectralFlux(),
+                    frame.hasSpectrum() ? 1 : 0, frame.getEndSample()});
+            int peak = 0;
+            if (frame.hasSpectrum()) {
+                float[] m = frame.getMagnitudes();
+                for (int k = 1; k < frame.getBinCount(); k++) {
+                    if (m[k] > m[peak]) {
+                        peak = k;
+                    }
+                }
+            }
+            peakBins.add(peak);
+        }
+    }
+
+    @Test
+    public void sineLevelsAndDominantBin() {
+        AudioFeatureExtractor extractor = new AudioFeatureExtractor(SAMPLE_RATE, HOP);
+        Captured captured = new Captured();
+        extractor.addListener(captured);
+        extractor.process(tone(1000f, 0.5f, HOP * 8), 0, HOP * 8);
+
+        assertEquals(8, captured.frames.size());
+        float[] last = captured.frames.get(7);
+        // RMS of a 0.5 sine is 0.354, or -9.0 dBFS; its peak is -6.0 dBFS
+        assertEquals(-9.03f, last[0], 0.1f);
+        assertEquals(-6.02f, last[1], 0.1f);
+        // 1000 Hz in 1024-point bins of 15.6 Hz
+        assertEquals(64, (int) captured.peakBins.get(7));
+        assertEquals(1000f, 64 * extractor.getSampleRate() / (float) extractor.getWindowSize(), 0.1f);
+        assertEquals(HOP * 8, last[4], 0f);
+        assertEquals(32f, extractor.getHopDurationMs(), 1e-3f);
+    }
+
+    @Test
+    public void readSizeDoesNotChangeFeatures() {
+        short[] pcm = tone(440f, 0.3f, HOP * 10);
+        for (int i = HOP * 5; i < pcm.length; i++) {
+            pcm[i] += (short) ((i * 7919) % 2000 - 1000);
+        }
+        Captured whole = new Captured();
+        AudioFeatureExtractor a = new AudioFeatureExtractor(SAMPLE_RATE, HOP);
+        a.addListener(whole);
+        a.process(pcm, 0, pcm.length);
+
+        Captured chunked = new Captured();
+        AudioFeatureExtractor b = new AudioFeatureExtractor(SAMPLE_RATE, HOP);
+        b.addListener(chunked);
+        for (int offset = 0; offset < pcm.length; offset += 333) {
+            b.process(pcm, offset, Math.min(333, pcm.length - offset));
+        }
+
+        assertEquals(whole.frames.size(), chunked.frames.size());
+        for (int i = 0; i < whole.frames.size(); i++) {
+            for (int f = 0; f < 5; f++) {
+                assertEquals(whole.frames.get(i)[f], chunked.frames.get(i)[f], 0f);
+            }
+        }
+    }
+
+    @Test
+    public void fluxSpikesOnOnsetOnly() {
+        short[] pcm = new short[HOP * 12];
+        short[] burst = tone(2000f, 0.5f, HOP * 6);
+        System.arraycopy(burst, 0, pcm, HOP * 6, burst.length);
+        AudioFeatureExtractor extractor = new AudioFeatureExtractor(SAMPLE_RATE, HOP);
+        Captured captured = new Captured();
+        extractor.addListener(captured);
+        extractor.process(pcm, 0, pcm.length);
+
+        assertEquals(0f, captured.frames.get(4)[2], 0f);
+        float onset = captured.frames.get(6)[2];
+        assertTrue(onset > 0f);
+        // Steady tone once the window is full of it
+        assertTrue(captured.frames.get(10)[2] < onset * 0.05f);
+        assertEquals(AudioFeatureFrame.SILENCE_DBFS, captured.frames.get(0)[0], 0f);
+    }
+
+    @Test
+    public void spectrumGateSkipsQuietHops() {
+        short[] pcm = new short[HOP * 6];
+        short[] loud = tone(1000f, 0.5f, HOP * 2);
+        System.arraycopy(loud, 0, pcm, HOP * 4, loud.length);
+        AudioFeatureExtractor extractor = new AudioFeatureExtractor(SAMPLE_RATE, HOP);
+        extractor.setSpectrumGate(rmsDbfs -> rmsDbfs > -40f);
+        Captured captured = new Captured();
+        extractor.addListener(captured);
+        extractor.process(pcm, 0, pcm.length);
+
+        for (int i = 0; i < 4; i++) {
+            assertEquals(0f, captured.frames.get(i)[3], 0f);
+        }
+        assertEquals(1f, captured.frames.get(4)[3], 0f);
+        // No previous spectrum, so no flux on the first gated-in hop
+        assertEquals(0f, captured.frames.get(4)[2], 0f);
+        assertEquals(1f, captured.frames.get(5)[3], 0f);
+    }
+
+    @Test
+    public void listenersCanBeRemoved() {
+        AudioFeatureExtractor extractor = new AudioFeatureExtractor(SAMPLE_RATE, HOP);
+        Captured captured = new Captured();
+        extractor.addListener(captured);
+        extractor.addListener(captured);
+        extractor.process(new short[HOP], 0, HOP);
+        extractor.removeListener(captured);
+        extractor.process(new short[HOP], 0, HOP);
+        assertEquals(1, captured.frames.size());
+        assertFalse(captured.frames.isEmpty() && captured.frames.get(0)[3] == 0f);
+    }
+}
@@ -0,0 +1,224 @@
+package com.summersoft.heliocam.detection;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Scripted person and sound reports on a simulated clock, with a 2 s window.
+ */
+public class DetectionFusionTest {
+
+    private static final long WINDOW_MS = 2000;
+
+    private static final class Emitted {
+        final String type;
+        final Map<String, Object> data;
+
+        Emitted(String type, Map<String, Object> data) {
+            this.type = type;
+            this.data = data;
+        }
+    }
+
+    private final List<Emitted> emitted = new ArrayList<>();
+    private DetectionFusion fusion;
+
+    @Before
+    public void setUp() {
+        fusion = new DetectionFusion((type, data) -> emitted.add(new Emitted(type, data)));
+        fusion.setWindowMs(WINDOW_MS);
+    }
+
+    private static Map<String, Object> scored(float score) {
+        Map<String, Object> data = new HashMap<>();
+        data.put(DetectionFusion.KEY_SCORE, score);
+        return data;
+    }
+
+    private static Map<String, Object> scored(float score, long latencyMs) {
+        Map<String, Object> data = scored(score);
+        data.put(DetectionFusion.KEY_DETECTION_LATENCY, latencyMs);
+        return data;
+    }
+
+    /** Run the engine the way RTCJoiner does: advance at each deadline up to {@code untilMs}. */
+    private void runUntil(long untilMs) {
+        long deadline;
+        while ((deadline = fusion.getNextDeadlineMs()) >= 0 && deadline <= untilMs) {
+            fusion.advanceTo(deadline);
+        }
+    }
+
+    @Test
+    public void personAndSoundInsideWindowBecomeOneEvent() {
+        fusion.offer(DetectionFusion.TYPE_PERSON, scored(0.8f), 1000);
+        fusion.offer(DetectionFusion.TYPE_SOUND, scored(0.6f), 1500);
+        runUntil(10000);
+
+        assertEquals(1, emitted.size());
+        Emitted event = emitted.get(0);
+        assertEquals(DetectionFusion.TYPE_PERSON, event.type);
+        assertEquals(DetectionFusion.TYPE_SOUND, event.data.get(DetectionFusion.KEY_FUSED_WITH));
+        assertEquals(500L, event.data.get("fusionGapMs"));
+        assertEquals(DetectionFusion.jointConfidence(0.8f, 0.6f, 500, WINDOW_MS),
+                (float) event.data.get("jointConfidence"), 1e-6f);
+        assertTrue(event.data.get(DetectionFusion.TYPE_SOUND) instanceof Map);
+        assertEquals(0, fusion.getPendingCount());
+    }
+
+    @Test
+    public void soundFirstStillFusesIntoPersonEvent() {
+        fusion.offer(DetectionFusion.TYPE_SOUND, scored(0.7f), 1000);
+        fusion.offer(DetectionFusion.TYPE_PERSON, scored(0.9f), 2900);
+
+        assertEquals(1, emitted.size());
+        assertEquals(DetectionFusion.TYPE_PERSON, emitted.get(0).type);
+        assertEquals(-1900L, emitted.get(0).data.get("fusionGapMs"));
+    }
+
+    @Test
+    public void eventsFurtherApartThanWindowStaySeparate() {
+        fusion.offer(DetectionFusion.TYPE_PERSON, scored(0.8f), 1000);
+        runUntil(3500);
+        fusion.offer(DetectionFusion.TYPE_SOUND, scored(0.6f), 3500);
+        runUntil(10000);
+
+        assertEquals(2, emitted.size());
+        assertEquals(DetectionFusion.TYPE_PERSON, emitted.get(0).type);
+        assertEquals(DetectionFusion.TYPE_SOUND, emitted.get(1).type);
+        assertFalse(emitted.get(0).data.containsKey(DetectionFusion.KEY_FUSED_WITH));
+    }
+
+    @Test
+    public void singleEventIsHeldForTheWindow() {
+        fusion.offer(DetectionFusion.TYPE_SOUND, scored(0.6f), 1000);
+        assertEquals(3000, fusion.getNextDeadlineMs());
+        fusion.advanceTo(2999);
+        assertTrue(emitted.isEmpty());
+        fusion.advanceTo(3000);
+        assertEquals(1, emitted.size());
+        assertEquals(-1, fusion.getNextDeadlineMs());
+    }
+
+    @Test
+    public void reportingLatencyMovesEventTimeBack() {
+        // Reported 1.8 s after the person, but the sound happened 1.5 s before the report
+        fusion.offer(DetectionFusion.TYPE_PERSON, scored(0.8f), 1000);
+        fusion.offer(DetectionFusion.TYPE_SOUND, scored(0.6f, 1500), 2800);
+        assertEquals(1, emitted.size());
+        assertEquals(300L, emitted.get(0).data.get("fusionGapMs"));
+
+        emitted.clear();
+        fusion.offer(DetectionFusion.TYPE_PERSON, scored(0.8f), 10000);
+        fusion.offer(DetectionFusion.TYPE_SOUND, scored(0.6f), 11900);
+        assertEquals(1, emitted.size());
+    }
+
+    @Test
+    public void lowConfidenceSingleEventsAreSuppressed() {
+        fusion.setSingleModalitySuppressionThreshold(0.5f);
+        fusion.offer(DetectionFusion.TYPE_SOUND, scored(0.3f), 1000);
+        fusion.offer(DetectionFusion.TYPE_PERSON, scored(0.4f), 10000);
+        fusion.offer(DetectionFusion.TYPE_PERSON, scored(0.7f), 20000);
+        runUntil(30000);
+
+        assertEquals(1, emitted.size());
+        assertEquals(0.7f, (float) emitted.get(0).data.get(DetectionFusion.KEY_SCORE), 0f);
+        assertTrue(fusion.getStats().contains("suppressed=2"));
+    }
+
+    @Test
+    public void lowConfidencePairIsNeverSuppressed() {
+        fusion.setSingleModalitySuppressionThreshold(0.5f);
+        fusion.offer(DetectionFusion.TYPE_PERSON, scored(0.3f), 1000);
+        fusion.offer(DetectionFusion.TYPE_SOUND, scored(0.3f), 1200);
+        runUntil(10000);
+
+        assertEquals(1, emitted.size());
+        assertEquals(DetectionFusion.TYPE_SOUND, emitted.get(0).data.get(DetectionFusion.KEY_FUSED_WITH));
+    }
+
+    @Test
+    public void repeatedSameModalityIsMerged() {
+        fusion.offer(DetectionFusion.TYPE_SOUND, scored(0.4f), 1000);
+        fusion.offer(DetectionFusion.TYPE_SOUND, scored(0.9f), 1300);
+        fusion.offer(DetectionFusion.TYPE_SOUND, scored(0.5f), 1600);
+        runUntil(10000);
+
+        assertEquals(1, emitted.size());
+        assertEquals(2, emitted.get(0).data.get("mergedEvents"));
+        assertEquals(0.9f, (float) emitted.get(0).data.get(DetectionFusion.KEY_SCORE), 0f);
+    }
+
+    @Test
+    public void unscoredEventsAreTrustedAndNotSuppressed() {
+        fusion.setSingleModalitySuppressionThreshold(0.9f);
+        fusion.offer(DetectionFusion.TYPE_PERSON, new HashMap<>(), 1000);
+        runUntil(10000);
+        assertEquals(1, emitted.size());
+        assertNull(emitted.get(0).data.get(DetectionFusion.KEY_SCORE));
+    }
+
+    @Test
+    public void otherTypesPassStraightThrough() {
+        Map<String, Object> data = new HashMap<>();
+        fusion.offer("motion", data, 1000);
+        assertEquals(1, emitted.size());
+        assertEquals("motion", emitted.get(0).type);
+        assertEquals(0, fusion.getPendingCount());
+    }
+
+    @Test
+    public void flushEmitsEverythingHeld() {
+        fusion.offer(DetectionFusion.TYPE_PERSON, scored(0.8f), 1000);
+        fusion.offer(DetectionFusion.TYPE_SOUND, scored(0.6f), 5000);
+        fusion.flush();
+        assertEquals(2, emitted.size());
+        assertEquals(0, fusion.getPendingCount());
+    }
+
+    @Test
+    public void sameScriptGivesSameOutput() {
+        long[] times = {100, 900, 1500, 4200, 4300, 8000, 8100, 8150, 12000};
+        String[] types = {"person", "sound", "sound", "sound", "person", "person", "person", "sound", "sound"};
+        List<String> first = replay(times, types);
+        List<String> second = replay(times, types);
+        assertEquals(first, second);
+        assertEquals(Arrays.asList("person:sound:null", "sound:null:null", "person:sound:null",
+                "person:sound:1", "sound:null:null"), first);
+    }
+
+    private List<String> replay(long[] times, String[] types) {
+        emitted.clear();
+        fusion = new DetectionFusion((type, data) -> emitted.add(new Emitted(type, data)));
+        fusion.setWindowMs(WINDOW_MS);
+        for (int i = 0; i < times.length; i++) {
+            runUntil(times[i]);
+            fusion.offer(types[i], scored(0.5f + i * 0.05f), times[i]);
+        }
+        runUntil(Long.MAX_VALUE / 2);
+        List<String> out = new ArrayList<>();
+        for (Emitted event : emitted) {
+            out.add(event.type + ":" + event.data.get(DetectionFusion.KEY_FUSED_WITH) + ":" + event.data.get("mergedEvents"));
+        }
+        return out;
+    }
+
+    @Test
+    public void jointConfidenceIsNoisyOrDiscountedByGap() {
+        assertEquals(1f - 0.2f * 0.4f, DetectionFusion.jointConfidence(0.8f, 0.6f, 0, WINDOW_MS), 1e-6f);
+        assertEquals(1f - 0.2f * 0.7f, DetectionFusion.jointConfidence(0.8f, 0.6f, WINDOW_MS, WINDOW_MS), 1e-6f);
+        assertTrue(DetectionFusion.jointConfidence(0.5f, 0.5f, 0, WINDOW_MS) > 0.5f);
+    }
+}
@@ -0,0 +1,98 @@
+package com.summersoft.heliocam.detection;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FftTest {
+
+    @Test
+    public void matchesDirectDft() {
+        int n = 64;
+        Random random = new Random(1);
+        float[] re = new float[n];
+        float[] im = new float[n];
+        for (int i = 0; i < n; i++) {
+            re[i] = random.nextFloat() * 2 - 1;
+            im[i] = random.nextFloat() * 2 - 1;
+        }
+        float[] inRe = re.clone();
+        float[] inIm = im.clone();
+
+        new Fft(n).transform(re, im);
+
+        for (int k = 0; k < n; k++) {
+            double sumRe = 0;
+            double sumIm = 0;
+            for (int t = 0; t < n; t++) {
+                double angle = -2 * Math.PI * k * t / n;
+                sumRe += inRe[t] * Math.cos(angle) - inIm[t] * Math.sin(angle);
+                sumIm += inRe[t] * Math.sin(angle) + inIm[t] * Math.cos(angle);
+            }
+            assertEquals("re " + k, sumRe, re[k], 1e-4);
+            assertEquals("im " + k, sumIm, im[k], 1e-4);
+        }
+    }
+
+    @Test
+    public void fullScaleSinePeaksNearOneAtItsBin() {
+        int n = 1024;
+        int sampleRate = 48000;
+        Fft fft = new Fft(n);
+        float[] scratch = new float[n];
+        float[] magnitude = new float[n / 2 + 1];
+
+        for (int bin : new int[]{8, 43, 200, 511}) {
+            float[] samples = new float[n];
+            for (int i = 0; i < n; i++) {
+                samples[i] = (float) Math.sin(2 * Math.PI * bin * i / n);
+            }
+            fft.magnitudeSpectrum(samples, scratch, magnitude);
+
+            int peak = 0;
+            for (int k = 1; k < magnitude.length; k++) {
+                if (magnitude[k] > magnitude[peak]) {
+                    peak = k;
+                }
+            }
+            assertEquals("tone at " + bin * sampleRate / n + " Hz", bin, peak);
+            assertEquals(1f, magnitude[peak], 0.01f);
+            // Hann leakage stays in the neighbouring bins
+            assertTrue(magnitude[Math.max(0, bin - 3)] < 1e-3f);
+        }
+    }
+
+    @Test
+    public void halfScaleToneBetweenBinsSplitsAcrossNeighbours() {
+        int n = 256;
+        Fft fft = new Fft(n);
+        float[] samples = new float[n];
+        for (int i = 0; i < n; i++) {
+            samples[i] = 0.5f * (float) Math.sin(2 * Math.PI * 20.5 * i / n);
+        }
+        float[] magnitude = new float[n / 2 + 1];
+        fft.magnitudeSpectrum(samples, new float[n], magnitude);
+
+        assertEquals(magnitude[20], magnitude[21], 1e-3f);
+        // Scalloping loss of the Hann window is about 1.42 dB
+        assertEquals(0.5f * 0.85f, magnitude[20], 0.01f);
+    }
+
+    @Test
+    public void silenceHasEmptySpectrum() {
+        Fft fft = new Fft(512);
+        float[] magnitude = new float[257];
+        fft.magnitudeSpectrum(new float[512], new float[512], magnitude);
+        for (float m : magnitude) {
+            assertEquals(0f, m, 0f);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNonPowerOfTwo() {
+        new Fft(1000);
+    }
+}
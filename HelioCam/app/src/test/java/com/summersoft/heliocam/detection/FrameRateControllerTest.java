@@ -0,0 +1,157 @@
+package com.summersoft.heliocam.detection;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives the controller with a simulated camera clock and synthetic latency traces.
+ */
+public class FrameRateControllerTest {
+
+    /** End-to-end latency for a frame completed at the given simulated time. */
+    private interface LatencyTrace {
+        long latencyMs(long nowMs);
+    }
+
+    private static final LatencyTrace FAST = nowMs -> 40;
+
+    /**
+     * Feed frames at {@code fps} from {@code startMs} for {@code durationMs}, completing each
+     * admitted frame with the traced latency.
+     *
+     * @return number of frames admitted
+     */
+    private static int simulate(FrameRateController controller, float fps, long startMs, long durationMs,
+                                LatencyTrace trace) {
+        int admitted = 0;
+        double frameMs = 1000.0 / fps;
+        for (int i = 0; ; i++) {
+            long nowMs = startMs + Math.round(i * frameMs);
+            if (nowMs >= startMs + durationMs) {
+                return admitted;
+            }
+            if (controller.shouldAdmit(nowMs)) {
+                admitted++;
+                long latency = trace.latencyMs(nowMs);
+                controller.onFrameCompleted(nowMs + latency, latency);
+            }
+        }
+    }
+
+    private static FrameRateController steady(float targetRate) {
+        FrameRateController controller = new FrameRateController(targetRate);
+        // No quiet decay unless a test asks for it
+        controller.setQuietHalfLife(Long.MAX_VALUE / 4);
+        return controller;
+    }
+
+    @Test
+    public void targetRateIsIndependentOfCaptureFps() {
+        FrameRateController at30 = steady(3f);
+        FrameRateController at15 = steady(3f);
+        FrameRateController at24 = steady(3f);
+
+        assertEquals(30, simulate(at30, 30f, 0, 10000, FAST), 1);
+        assertEquals(30, simulate(at15, 15f, 0, 10000, FAST), 1);
+        assertEquals(30, simulate(at24, 24f, 0, 10000, FAST), 1);
+        assertEquals(30f, at30.getCaptureFps(), 0.5f);
+    }
+
+    @Test
+    public void detectionBoostsThenFallsBackToTarget() {
+        FrameRateController controller = steady(2f);
+        controller.setBoostRate(10f);
+        controller.setBoostHold(3000);
+        simulate(controller, 30f, 0, 5000, FAST);
+
+        controller.onDetection(5000);
+        int boosted = simulate(controller, 30f, 5000, 3000, FAST);
+        assertEquals(30, boosted, 2);
+        assertEquals(10f, controller.getCurrentRate(), 0.01f);
+
+        int after = simulate(controller, 30f, 8000, 5000, FAST);
+        assertEquals(10, after, 1);
+        assertEquals(2f, controller.getCurrentRate(), 0.01f);
+    }
+
+    @Test
+    public void firstFrameAfterDetectionIsAdmittedImmediately() {
+        FrameRateController controller = steady(0.5f);
+        simulate(controller, 30f, 0, 1000, FAST);
+        controller.onDetection(1000);
+        // Without the reset the next slot would be up to 2 s away
+        assertTrue(controller.shouldAdmit(1033));
+    }
+
+    @Test
+    public void quietPeriodDecaysTowardsMinimum() {
+        FrameRateController controller = new FrameRateController(4f);
+        controller.setMinRate(1f);
+        controller.setQuietHalfLife(10000);
+
+        int first = simulate(controller, 30f, 0, 10000, FAST);
+        simulate(controller, 30f, 10000, 40000, FAST);
+        int later = simulate(controller, 30f, 50000, 10000, FAST);
+        // 4/s decaying to 2.5/s over the first 10 s, about 1.05/s after a minute
+        assertTrue("first 10 s admitted " + first, first >= 30 && first <= 34);
+        assertTrue("later 10 s admitted " + later, later >= 10 && later <= 12);
+        assertEquals(1f, controller.getCurrentRate(), 0.1f);
+    }
+
+    @Test
+    public void latencyTraceCapsRate() {
+        FrameRateController controller = steady(5f);
+        controller.setBoostRate(10f);
+        // Latency climbs from 40 ms to 400 ms over the first 5 s, then stays there
+        LatencyTrace rising = nowMs -> Math.min(400, 40 + nowMs * 360 / 5000);
+        simulate(controller, 30f, 0, 10000, rising);
+
+        // 0.8 utilisation of 1000 / 400 ms
+        assertEquals(400f, controller.getAverageLatencyMs(), 10f);
+        assertEquals(2f, controller.getCurrentRate(), 0.1f);
+
+        // Boost cannot push past the latency bound either
+        controller.onDetection(10000);
+        int boosted = simulate(controller, 30f, 10000, 4000, rising);
+        assertEquals(8, boosted, 1);
+    }
+
+    @Test
+    public void latencySpikeRecovers() {
+        FrameRateController controller = steady(5f);
+        LatencyTrace spike = nowMs -> nowMs >= 2000 && nowMs < 4000 ? 1000 : 40;
+        simulate(controller, 30f, 0, 4000, spike);
+        assertTrue(controller.getCurrentRate() < 2f);
+
+        // Only admitted frames report latency, so recovery takes a few slow frames
+        int recovered = simulate(controller, 30f, 4000, 6000, spike);
+        assertEquals(5f, controller.getCurrentRate(), 0.01f);
+        assertTrue("admitted " + recovered, recovered >= 15);
+    }
+
+    @Test
+    public void thermalScaleAndCaptureFpsCapRate() {
+        FrameRateController hot = steady(4f);
+        hot.setThermalScale(0.5f);
+        assertEquals(20, simulate(hot, 30f, 0, 10000, FAST), 1);
+
+        FrameRateController slowCamera = steady(4f);
+        slowCamera.setBoostRate(10f);
+        simulate(slowCamera, 5f, 0, 2000, FAST);
+        slowCamera.onDetection(2000);
+        // Boost wants 10/s but the camera only delivers 5
+        assertEquals(20, simulate(slowCamera, 5f, 2000, 4000, FAST), 1);
+    }
+
+    @Test
+    public void resetForgetsHistory() {
+        FrameRateController controller = steady(3f);
+        simulate(controller, 30f, 0, 3000, nowMs -> 900);
+        controller.reset();
+        assertEquals(0, controller.getAdmittedCount());
+        assertEquals(0f, controller.getAverageLatencyMs(), 0f);
+        assertEquals(30, simulate(controller, 30f, 3000, 10000, FAST), 1);
+    }
+}
@@ -0,0 +1,192 @@
+package com.summersoft.heliocam.detection;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class I420TensorPreprocessorTest {
+
+    private static final float FILL = I420TensorPreprocessor.LETTERBOX_FILL / 255f;
+    // Fixed-point conversion against the float reference
+    private static final float TOLERANCE = 2.5f / 255f;
+
+    /** Synthetic I420 frame with gradients in every plane. */
+    private static final class Frame {
+        final int width;
+        final int height;
+        final int strideY;
+        final int strideUV;
+        final ByteBuffer y;
+        final ByteBuffer u;
+        final ByteBuffer v;
+
+        Frame(int width, int height, int seed) {
+            this.width = width;
+            this.height = height;
+            // Padded strides, as camera buffers usually have
+            this.strideY = width + 16;
+            this.strideUV = width / 2 + 8;
+            y = ByteBuffer.allocateDirect(strideY * height);
+            u = ByteBuffer.allocateDirect(strideUV * height / 2);
+            v = ByteBuffer.allocateDirect(strideUV * height / 2);
+            for (int row = 0; row < height; row++) {
+                for (int col = 0; col < width; col++) {
+                    y.put(row * strideY + col, (byte) (16 + (col * 7 + row * 3 + seed) % 220));
+                }
+            }
+            for (int row = 0; row < height / 2; row++) {
+                for (int col = 0; col < width / 2; col++) {
+                    u.put(row * strideUV + col, (byte) (64 + (col * 5 + seed) % 128));
+                    v.put(row * strideUV + col, (byte) (64 + (row * 3 + seed) % 128));
+                }
+            }
+        }
+
+        ByteBuffer process(I420TensorPreprocessor p) {
+            return p.process(y, strideY, u, strideUV, v, strideUV, width, height);
+        }
+
+        /** Reference BT.601 limited-range conversion in floating point, 0..255. */
+        float[] rgb(int x, int yy) {
+            float luma = Math.max(0, (y.get(yy * strideY + x) & 0xFF) - 16) * 1.164f;
+            float cb = (u.get((yy / 2) * strideUV + x / 2) & 0xFF) - 128;
+            float cr = (v.get((yy / 2) * strideUV + x / 2) & 0xFF) - 128;
+            return new float[]{
+                    clamp(luma + 1.596f * cr),
+                    clamp(luma - 0.813f * cr - 0.391f * cb),
+                    clamp(luma + 2.018f * cb)
+            };
+        }
+
+        private static float clamp(float value) {
+            return Math.max(0, Math.min(255, value));
+        }
+    }
+
+    @Test
+    public void matchesReferenceConversionWithLetterbox() {
+        // 4:3 frame into a square tensor: bars at top and bottom
+        Frame frame = new Frame(160, 120, 0);
+        I420TensorPreprocessor p = new I420TensorPreprocessor(64, 64, false, 0f, 1f);
+        FloatBuffer out = frame.process(p).asFloatBuffer();
+
+        assertEquals(0, p.getPadX());
+        assertEquals(8, p.getPadY());
+        float scale = p.getScale();
+        assertEquals(0.4f, scale, 1e-6f);
+
+        for (int ty = 0; ty < 64; ty++) {
+            for (int tx = 0; tx < 64; tx++) {
+                int base = (ty * 64 + tx) * 3;
+                if (ty < 8 || ty >= 56) {
+                    for (int c = 0; c < 3; c++) {
+                        assertEquals("padding at " + tx + "," + ty, FILL, out.get(base + c), 1e-6f);
+                    }
+                    continue;
+                }
+                int srcX = Math.min((int) ((tx + 0.5f) / scale), 159);
+                int srcY = Math.min((int) ((ty - 8 + 0.5f) / scale), 119);
+                float[] expected = frame.rgb(srcX, srcY);
+                for (int c = 0; c < 3; c++) {
+                    assertEquals("pixel " + tx + "," + ty + " channel " + c,
+                            expected[c] / 255f, out.get(base + c), TOLERANCE);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void channelsFirstHoldsSameValuesAsChannelsLast() {
+        Frame frame = new Frame(96, 128, 3);
+        I420TensorPreprocessor nhwc = new I420TensorPreprocessor(48, 48, false, 0.5f, 0.25f);
+        I420TensorPreprocessor nchw = new I420TensorPreprocessor(48, 48, true, 0.5f, 0.25f);
+        FloatBuffer last = frame.process(nhwc).asFloatBuffer();
+        FloatBuffer first = frame.process(nchw).asFloatBuffer();
+
+        int plane = 48 * 48;
+        for (int pixel = 0; pixel < plane; pixel++) {
+            for (int c = 0; c < 3; c++) {
+                assertEquals(last.get(pixel * 3 + c), first.get(c * plane + pixel), 0f);
+            }
+        }
+        // Portrait frame: bars at the sides
+        assertEquals(6, nchw.getPadX());
+        assertEquals(0, nchw.getPadY());
+    }
+
+    @Test
+    public void normalisesWithMeanAndStd() {
+        Frame frame = new Frame(32, 32, 1);
+        I420TensorPreprocessor p = new I420TensorPreprocessor(32, 32, false, 0.5f, 0.5f);
+        FloatBuffer out = frame.process(p).asFloatBuffer();
+        float[] expected = frame.rgb(0, 0);
+        assertEquals((expected[0] / 255f - 0.5f) / 0.5f, out.get(0), TOLERANCE / 0.5f);
+        for (int i = 0; i < 32 * 32 * 3; i++) {
+            assertTrue(out.get(i) >= -1f && out.get(i) <= 1f);
+        }
+    }
+
+    @Test
+    public void cropMapsBackToSourceCoordinates() {
+        Frame frame = new Frame(320, 240, 2);
+        I420TensorPreprocessor p = new I420TensorPreprocessor(64, 64, false, 0f, 1f);
+        // Odd crop origin is aligned down to the chroma grid
+        p.process(frame.y, frame.strideY, frame.u, frame.strideUV, frame.v, frame.strideUV,
+                320, 240, 101, 41, 128, 64);
+
+        assertEquals(100, p.getCropX());
+        assertEquals(40, p.getCropY());
+        assertEquals(128, p.getCropWidth());
+        assertEquals(0.5f, p.getScale(), 1e-6f);
+        assertEquals(16, p.getPadY());
+        assertEquals(100f, p.toSourceX(0), 1e-4f);
+        assertEquals(228f, p.toSourceX(64), 1e-4f);
+        assertEquals(40f, p.toSourceY(16), 1e-4f);
+        assertEquals(104f, p.toSourceY(48), 1e-4f);
+    }
+
+    @Test
+    public void reusesOneTensorAndLeavesPlanePositionsAlone() {
+        Frame frame = new Frame(64, 48, 0);
+        I420TensorPreprocessor p = new I420TensorPreprocessor(32, 32, false, 0f, 1f);
+        ByteBuffer first = frame.process(p);
+        ByteBuffer second = frame.process(p);
+        assertSame(first, second);
+        assertSame(p.getInputBuffer(), first);
+        assertEquals(0, second.position());
+        assertEquals(0, frame.y.position());
+        assertEquals(0, frame.u.position());
+    }
+
+    /**
+     * Microbenchmark: bytes allocated and time per frame for a 640x480 frame into a 640x640
+     * tensor, after warm-up. Steady-state frames must not allocate.
+     */
+    @Test
+    public void steadyStateFramesDoNotAllocate() {
+        AllocationCounter counter = new AllocationCounter();
+        Frame frame = new Frame(640, 480, 0);
+        I420TensorPreprocessor p = new I420TensorPreprocessor(640, 640, false, 0f, 1f);
+        for (int i = 0; i < 50; i++) {
+            frame.process(p);
+        }
+
+        int frames = 200;
+        long bytesBefore = counter.allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < frames; i++) {
+            frame.process(p);
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = counter.allocatedBytes() - bytesBefore;
+
+        System.out.println("I420TensorPreprocessor 640x480 -> 640x640: "
+                + allocated / frames + " bytes/frame, " + elapsed / frames + " ns/frame");
+        assertEquals(0, allocated / frames);
+    }
+}
@@ -0,0 +1,84 @@
+package com.summersoft.heliocam.detection;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MelFilterbankTest {
+
+    private static final int SAMPLE_RATE = 16000;
+    private static final int FFT_SIZE = 1024;
+
+    private static float[] toneSpectrum(float hz) {
+        Fft fft = new Fft(FFT_SIZE);
+        float[] samples = new float[FFT_SIZE];
+        for (int i = 0; i < FFT_SIZE; i++) {
+            samples[i] = (float) Math.sin(2 * Math.PI * hz * i / SAMPLE_RATE);
+        }
+        float[] magnitude = new float[FFT_SIZE / 2 + 1];
+        fft.magnitudeSpectrum(samples, new float[FFT_SIZE], magnitude);
+        return magnitude;
+    }
+
+    @Test
+    public void melScaleRoundTrips() {
+        assertEquals(1000f, MelFilterbank.hzToMel(1000f), 0.5f);
+        for (float hz : new float[]{0f, 60f, 440f, 3400f, 8000f}) {
+            assertEquals(hz, MelFilterbank.melToHz(MelFilterbank.hzToMel(hz)), 0.05f);
+        }
+    }
+
+    @Test
+    public void centresIncreaseAndStayInRange() {
+        MelFilterbank bank = new MelFilterbank(SAMPLE_RATE, FFT_SIZE, 40, 60f, 20000f);
+        assertEquals(FFT_SIZE / 2 + 1, bank.getBinCount());
+        float previous = 60f;
+        for (int b = 0; b < bank.getBandCount(); b++) {
+            float centre = bank.getCentreFrequency(b);
+            assertTrue(centre > previous);
+            previous = centre;
+        }
+        // Upper edge is clamped to Nyquist
+        assertTrue(previous < SAMPLE_RATE / 2f);
+    }
+
+    @Test
+    public void toneLandsInNearestBand() {
+        MelFilterbank bank = new MelFilterbank(SAMPLE_RATE, FFT_SIZE, 40, 60f, 8000f);
+        float[] energy = new float[bank.getBandCount()];
+        for (float hz : new float[]{250f, 1000f, 3000f, 6500f}) {
+            bank.apply(toneSpectrum(hz), energy);
+            int best = 0;
+            for (int b = 1; b < energy.length; b++) {
+                if (energy[b] > energy[best]) {
+                    best = b;
+                }
+            }
+            int nearest = 0;
+            for (int b = 1; b < energy.length; b++) {
+                if (Math.abs(bank.getCentreFrequency(b) - hz) < Math.abs(bank.getCentreFrequency(nearest) - hz)) {
+                    nearest = b;
+                }
+            }
+            assertTrue(hz + " Hz peaked in band " + best + ", nearest " + nearest, Math.abs(best - nearest) <= 1);
+        }
+    }
+
+    @Test
+    public void energyScalesWithSquaredAmplitude() {
+        MelFilterbank bank = new MelFilterbank(SAMPLE_RATE, FFT_SIZE, 24, 60f, 8000f);
+        float[] full = toneSpectrum(1000f);
+        float[] half = full.clone();
+        for (int i = 0; i < half.length; i++) {
+            half[i] *= 0.5f;
+        }
+        float[] fullEnergy = new float[24];
+        float[] halfEnergy = new float[24];
+        bank.apply(full, fullEnergy);
+        bank.apply(half, halfEnergy);
+        for (int b = 0; b < 24; b++) {
+            assertEquals(fullEnergy[b] * 0.25f, halfEnergy[b], 1e-6f + fullEnergy[b] * 1e-4f);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.summersoft.heliocam.detection;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MotionGateTest {
+
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+    private static final int STRIDE = 336;
+    private static final long FRAME_MS = 100;
+
+    private final Random random = new Random(42);
+    private ByteBuffer frame;
+    private MotionGate gate;
+
+    @Before
+    public void setUp() {
+        frame = ByteBuffer.allocateDirect(STRIDE * HEIGHT);
+        gate = new MotionGate(32, 24);
+        gate.setKeepAliveInterval(5000);
+        gate.setDetectionHold(1000);
+    }
+
+    /** Flat grey scene with a little sensor noise, brightened by {@code offset}. */
+    private void drawBackground(int offset) {
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                frame.put(y * STRIDE + x, (byte) (100 + offset + random.nextInt(5) - 2));
+            }
+        }
+    }
+
+    private void drawBlock(int left, int top, int size) {
+        for (int y = top; y < top + size; y++) {
+            for (int x = left; x < left + size; x++) {
+                frame.put(y * STRIDE + x, (byte) 220);
+            }
+        }
+    }
+
+    private boolean evaluate(long nowMs) {
+        return gate.shouldRunInference(frame, STRIDE, WIDTH, HEIGHT, nowMs);
+    }
+
+    @Test
+    public void staticSceneOnlyRunsKeepAlive() {
+        int runs = 0;
+        for (int i = 0; i < 300; i++) {
+            drawBackground(0);
+            if (evaluate(i * FRAME_MS)) {
+                runs++;
+            }
+        }
+        // The first frame, then one keep-alive every 5 s over 30 s; all of them keep-alives
+        assertEquals(6, runs);
+        assertEquals(6, gate.getKeepAliveCount());
+        assertEquals(294f / 300f, gate.getSkippedFraction(), 1e-6f);
+        assertEquals(0f, gate.getLastChangedFraction(), 0f);
+    }
+
+    @Test
+    public void movingObjectOpensGateAndReportsBounds() {
+        drawBackground(0);
+        evaluate(0);
+        for (int i = 1; i <= 20; i++) {
+            drawBackground(0);
+            drawBlock(40 + i * 8, 80, 40);
+            assertTrue("frame " + i, evaluate(i * FRAME_MS));
+        }
+
+        int[] rect = new int[4];
+        assertTrue(gate.getMotionBounds(rect, 0f));
+        // The block is at x 200..240, y 80..120; cells are 10 px
+        assertTrue(rect[0] <= 200 && rect[0] + rect[2] >= 240);
+        assertTrue(rect[1] <= 80 && rect[1] + rect[3] >= 120);
+        assertTrue(rect[2] <= WIDTH / 2);
+        assertEquals(0, gate.getSkippedCount());
+
+        int[] padded = new int[4];
+        assertTrue(gate.getMotionBounds(padded, 0.5f));
+        assertTrue(padded[2] > rect[2] && padded[3] > rect[3]);
+    }
+
+    @Test
+    public void smallChangeBelowAreaThresholdIsSkipped() {
+        gate.setAreaThreshold(0.05f);
+        drawBackground(0);
+        evaluate(0);
+        drawBackground(0);
+        // Two cells out of 768
+        drawBlock(100, 100, 20);
+        assertFalse(evaluate(FRAME_MS));
+        assertTrue(gate.getLastChangedFraction() > 0f);
+        assertTrue(gate.getLastChangedFraction() < 0.05f);
+    }
+
+    @Test
+    public void slowLightingDriftIsAbsorbedByBackground() {
+        int runs = 0;
+        for (int i = 0; i < 200; i++) {
+            // +1 luma level every 4 frames
+            drawBackground(i / 4);
+            if (evaluate(i * FRAME_MS)) {
+                runs++;
+            }
+        }
+        assertEquals(4, runs);
+    }
+
+    @Test
+    public void suddenLightingChangeOpensGateThenSettles() {
+        drawBackground(0);
+        evaluate(0);
+        drawBackground(60);
+        assertTrue(evaluate(FRAME_MS));
+        assertEquals(1f, gate.getLastChangedFraction(), 0f);
+
+        boolean settled = false;
+        for (int i = 2; i < 100 && !settled; i++) {
+            drawBackground(60);
+            settled = !evaluate(i * FRAME_MS);
+        }
+        assertTrue(settled);
+    }
+
+    @Test
+    public void detectionHoldKeepsGateOpenWithoutMotion() {
+        drawBackground(0);
+        evaluate(0);
+        gate.notifyDetection(0);
+        for (int i = 1; i < 10; i++) {
+            drawBackground(0);
+            assertTrue("frame " + i, evaluate(i * FRAME_MS));
+        }
+        drawBackground(0);
+        assertFalse(evaluate(10 * FRAME_MS));
+    }
+
+    @Test
+    public void resolutionChangeRebuildsBackground() {
+        drawBackground(0);
+        evaluate(0);
+        drawBackground(0);
+        drawBlock(0, 0, 100);
+        // Same buffer read as a smaller frame: no stale comparison, nothing counts as changed
+        gate.setKeepAliveInterval(Long.MAX_VALUE);
+        assertFalse(gate.shouldRunInference(frame, STRIDE, 160, 120, FRAME_MS));
+        assertEquals(0f, gate.getLastChangedFraction(), 0f);
+    }
+
+    @Test
+    public void resetClearsCounters() {
+        drawBackground(0);
+        for (int i = 0; i < 10; i++) {
+            evaluate(i * FRAME_MS);
+        }
+        gate.reset();
+        assertEquals(0, gate.getEvaluatedCount());
+        assertEquals(0f, gate.getSkippedFraction(), 0f);
+        // First frame after a reset is always run
+        assertTrue(evaluate(10 * FRAME_MS));
+    }
+}
@@ -0,0 +1,194 @@
+package com.summersoft.heliocam.detection;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Scripted box sequences at 200 ms per inference.
+ */
+public class PersonTrackerTest {
+
+    private static final long STEP_MS = 200;
+
+    private PersonTracker tracker;
+    private long nowMs;
+
+    @Before
+    public void setUp() {
+        tracker = new PersonTracker(8);
+        tracker.setMinHits(2);
+        tracker.setMaxMisses(3);
+        tracker.setMaxAge(5000);
+        nowMs = 0;
+    }
+
+    private static float[] boxes(float... ltrb) {
+        return ltrb;
+    }
+
+    /** Box of a person 60x160 px with the top-left corner at (x, y). */
+    private static float[] person(float x, float y) {
+        return boxes(x, y, x + 60, y + 160);
+    }
+
+    private int step(float[] boxes) {
+        nowMs += STEP_MS;
+        return tracker.update(boxes, boxes.length / 4, nowMs);
+    }
+
+    private int stepInRegion(float[] boxes, float left, float top, float right, float bottom) {
+        nowMs += STEP_MS;
+        return tracker.update(boxes, boxes.length / 4, nowMs, left, top, right, bottom);
+    }
+
+    @Test
+    public void personEntersOnceAfterMinHits() {
+        assertEquals(0, step(person(100, 100)));
+        assertEquals(0, tracker.getConfirmedCount());
+        assertEquals(1, tracker.getTentativeCount());
+
+        assertEquals(1, step(person(104, 100)));
+        assertEquals(1, tracker.getConfirmedCount());
+        int id = tracker.getEnteredId(0);
+
+        for (int i = 2; i < 20; i++) {
+            assertEquals(0, step(person(100 + i * 4, 100)));
+        }
+        assertEquals(1, tracker.getConfirmedCount());
+        assertEquals(id, tracker.getTrackId(0));
+    }
+
+    @Test
+    public void singleFrameFalsePositiveNeverEnters() {
+        step(person(300, 50));
+        assertEquals(0, step(boxes()));
+        assertEquals(0, tracker.getTrackCount());
+    }
+
+    @Test
+    public void missedDetectionsDoNotFlickerCount() {
+        step(person(100, 100));
+        step(person(100, 100));
+        // Detector drops the person for three inferences, then finds them again
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, step(boxes()));
+            assertEquals(1, tracker.getConfirmedCount());
+        }
+        assertEquals(0, step(person(100, 100)));
+        assertEquals(1, tracker.getConfirmedCount());
+    }
+
+    @Test
+    public void personExitsAfterMaxMisses() {
+        step(person(100, 100));
+        step(person(100, 100));
+        for (int i = 0; i < 3; i++) {
+            step(boxes());
+        }
+        assertEquals(1, tracker.getTrackCount());
+        step(boxes());
+        assertEquals(0, tracker.getTrackCount());
+
+        // Coming back is a new entry with a new id
+        step(person(100, 100));
+        assertEquals(1, step(person(100, 100)));
+        assertTrue(tracker.getEnteredId(0) > 1);
+    }
+
+    @Test
+    public void twoPeopleCrossingKeepTheirIds() {
+        step(boxes(0, 100, 60, 260, 400, 100, 460, 260));
+        assertEquals(2, step(boxes(20, 100, 80, 260, 380, 100, 440, 260)));
+        int leftId = tracker.getTrackId(0);
+        int rightId = tracker.getTrackId(1);
+
+        // Walk towards each other and past, 20 px per step
+        for (int i = 2; i <= 20; i++) {
+            float a = i * 20;
+            float b = 400 - i * 20;
+            assertEquals(0, step(boxes(a, 100, a + 60, 260, b, 100, b + 60, 260)));
+            assertEquals(2, tracker.getConfirmedCount());
+        }
+        for (int t = 0; t < tracker.getTrackCount(); t++) {
+            if (tracker.getTrackId(t) == leftId) {
+                assertTrue(tracker.getLeft(t) > 300);
+            } else {
+                assertEquals(rightId, tracker.getTrackId(t));
+                assertTrue(tracker.getLeft(t) < 100);
+            }
+        }
+    }
+
+    @Test
+    public void fastMoverMatchesByCentroid() {
+        step(person(100, 100));
+        step(person(140, 100));
+        // 50 px per step: no IoU overlap with the unpredicted box, within the centroid limit
+        for (int i = 2; i < 8; i++) {
+            assertEquals(0, step(person(140 + (i - 1) * 50, 100)));
+        }
+        assertEquals(1, tracker.getTrackCount());
+    }
+
+    @Test
+    public void predictionCarriesTrackThroughGap() {
+        for (int i = 0; i < 5; i++) {
+            step(person(100 + i * 20, 100));
+        }
+        step(boxes());
+        step(boxes());
+        // 20 px per step kept going while unseen
+        assertEquals(0, step(person(240, 100)));
+        assertEquals(1, tracker.getTrackCount());
+        assertTrue(tracker.getLeft(0) > 200);
+    }
+
+    @Test
+    public void tracksOutsideInferredRegionDoNotAge() {
+        step(person(50, 100));
+        step(person(50, 100));
+        // Motion moves to the right half; ROI inferences there do not see the person on the left
+        for (int i = 0; i < 20; i++) {
+            assertEquals(0, stepInRegion(boxes(), 320, 0, 640, 480));
+        }
+        assertEquals(1, tracker.getConfirmedCount());
+
+        // Back in a full-frame inference the person is still there: no second entry
+        assertEquals(0, step(person(50, 100)));
+        assertEquals(1, tracker.getConfirmedCount());
+    }
+
+    @Test
+    public void tracksInsideInferredRegionAge() {
+        step(person(400, 100));
+        step(person(400, 100));
+        for (int i = 0; i < 4; i++) {
+            stepInRegion(boxes(), 320, 0, 640, 480);
+        }
+        assertEquals(0, tracker.getTrackCount());
+    }
+
+    @Test
+    public void trackMostlyOutsideRegionDoesNotAge() {
+        step(person(290, 100));
+        step(person(290, 100));
+        // Only 10 of 60 px inside the region
+        for (int i = 0; i < 10; i++) {
+            stepInRegion(boxes(), 340, 0, 640, 480);
+        }
+        assertEquals(1, tracker.getTrackCount());
+    }
+
+    @Test
+    public void resetDropsTracks() {
+        step(person(100, 100));
+        step(person(100, 100));
+        tracker.reset();
+        assertEquals(0, tracker.getTrackCount());
+        step(person(100, 100));
+        assertEquals(1, step(person(100, 100)));
+    }
+}
@@ -0,0 +1,245 @@
+package com.summersoft.heliocam.detection;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Synthetic events through the same extractor and classifier set-up as SoundDetection.
+ */
+public class SoundEventClassifierTest {
+
+    private static final int SAMPLE_RATE = 16000;
+    private static final int HOP = 512;
+    private static final float GATE_DBFS = -30f;
+
+    /** Pipeline: extractor -> amplitude gate -> classifier, recording the first result. */
+    private static final class Pipeline implements AudioFeatureExtractor.Listener {
+        final AudioFeatureExtractor extractor;
+        final SoundEventClassifier classifier;
+        SoundEventClassifier.Label label;
+        float score;
+        int events;
+
+        Pipeline(int sampleRate, int hop) {
+            extractor = new AudioFeatureExtractor(sampleRate, hop);
+            classifier = new SoundEventClassifier(sampleRate, extractor.getWindowSize(), 1000f,
+                    extractor.getHopDurationMs());
+            extractor.addListener(this);
+        }
+
+        @Override
+        public void onFeatureFrame(AudioFeatureFrame frame) {
+            if (classifier.processHop(frame, frame.getRmsDbfs() >= GATE_DBFS)) {
+                events++;
+                if (label == null) {
+                    label = classifier.getLabel();
+                    score = classifier.getScore();
+                }
+            }
+        }
+
+        Pipeline feed(float[] signal) {
+            short[] pcm = new short[signal.length];
+            for (int i = 0; i < signal.length; i++) {
+                pcm[i] = (short) Math.max(-32768, Math.min(32767, Math.round(signal[i] * 32767)));
+            }
+            extractor.process(pcm, 0, pcm.length);
+            return this;
+        }
+    }
+
+    private static float[] silence(float seconds) {
+        return new float[Math.round(seconds * SAMPLE_RATE)];
+    }
+
+    private static float[] concat(float[]... parts) {
+        int length = 0;
+        for (float[] part : parts) {
+            length += part.length;
+        }
+        float[] out = new float[length];
+        int offset = 0;
+        for (float[] part : parts) {
+            System.arraycopy(part, 0, out, offset, part.length);
+            offset += part.length;
+        }
+        return out;
+    }
+
+    private static float[] tone(float hz, float amplitude, float seconds) {
+        float[] out = silence(seconds);
+        for (int i = 0; i < out.length; i++) {
+            out[i] = amplitude * (float) Math.sin(2 * Math.PI * hz * i / SAMPLE_RATE);
+        }
+        return out;
+    }
+
+    /** Two-tone siren alternating every 250 ms, like a smoke or car alarm. */
+    private static float[] alarm(float seconds) {
+        float[] out = silence(seconds);
+        for (int i = 0; i < out.length; i++) {
+            float hz = (i / (SAMPLE_RATE / 4)) % 2 == 0 ? 3100f : 2600f;
+            out[i] = 0.5f * (float) Math.sin(2 * Math.PI * hz * i / SAMPLE_RATE);
+        }
+        return out;
+    }
+
+    private static float[] whiteNoise(float amplitude, float seconds, long seed) {
+        Random random = new Random(seed);
+        float[] out = silence(seconds);
+        for (int i = 0; i < out.length; i++) {
+            out[i] = amplitude * (random.nextFloat() * 2 - 1);
+        }
+        return out;
+    }
+
+    /** Short burst of high-passed noise with a fast decay, like shattering glass. */
+    private static float[] glassBreak(long seed) {
+        Random random = new Random(seed);
+        float[] out = silence(0.25f);
+        float previous = 0f;
+        for (int i = 0; i < out.length; i++) {
+            float noise = random.nextFloat() * 2 - 1;
+            // First difference tilts the spectrum towards the top octaves
+            float high = noise - previous;
+            previous = noise;
+            float envelope = (float) Math.exp(-i / (0.05 * SAMPLE_RATE));
+            out[i] = 0.45f * envelope * high;
+        }
+        return out;
+    }
+
+    @Test
+    public void steadyAlarmToneIsAlarm() {
+        Pipeline pipeline = new Pipeline(SAMPLE_RATE, HOP)
+                .feed(concat(silence(0.5f), alarm(1.5f), silence(0.5f)));
+        assertEquals(SoundEventClassifier.Label.ALARM, pipeline.label);
+        assertTrue(pipeline.score >= 0.5f);
+    }
+
+    @Test
+    public void continuousToneIsAlarm() {
+        Pipeline pipeline = new Pipeline(SAMPLE_RATE, HOP)
+                .feed(concat(silence(0.5f), tone(2000f, 0.5f, 1.5f)));
+        assertEquals(SoundEventClassifier.Label.ALARM, pipeline.label);
+    }
+
+    @Test
+    public void mainsHumIsNotClassified() {
+        Pipeline pipeline = new Pipeline(SAMPLE_RATE, HOP)
+                .feed(concat(silence(0.5f), tone(100f, 0.5f, 1.5f)));
+        assertEquals(SoundEventClassifier.Label.OTHER, pipeline.label);
+    }
+
+    @Test
+    public void broadbandNoiseIsNotClassified() {
+        Pipeline pipeline = new Pipeline(SAMPLE_RATE, HOP)
+                .feed(concat(silence(0.5f), whiteNoise(0.5f, 1.5f, 3)));
+        assertEquals(SoundEventClassifier.Label.OTHER, pipeline.label);
+    }
+
+    @Test
+    public void shortHighBurstIsGlassBreak() {
+        Pipeline pipeline = new Pipeline(SAMPLE_RATE, HOP)
+                .feed(concat(silence(0.5f), glassBreak(5), silence(1.2f)));
+        assertEquals(SoundEventClassifier.Label.GLASS_BREAK, pipeline.label);
+    }
+
+    @Test
+    public void quietSoundNeverStartsAnEvent() {
+        Pipeline pipeline = new Pipeline(SAMPLE_RATE, HOP)
+                .feed(concat(silence(0.5f), tone(2000f, 0.01f, 2f)));
+        assertEquals(0, pipeline.events);
+        assertFalse(pipeline.classifier.isCollecting());
+    }
+
+    @Test
+    public void eventCoversOneWindowAndReportsLevels() {
+        Pipeline pipeline = new Pipeline(SAMPLE_RATE, HOP);
+        pipeline.feed(concat(silence(0.5f), tone(2000f, 0.5f, 0.5f)));
+        assertTrue(pipeline.classifier.isCollecting());
+        assertEquals(0, pipeline.events);
+        pipeline.feed(tone(2000f, 0.5f, 0.6f));
+        assertEquals(1, pipeline.events);
+        // 0.5 sine: -9 dBFS RMS, -6 dBFS peak
+        assertEquals(-9f, pipeline.classifier.getEventMaxRmsDbfs(), 0.2f);
+        assertEquals(-6f, pipeline.classifier.getEventMaxPeakDbfs(), 0.2f);
+        assertEquals(31, pipeline.classifier.getWindowHops());
+        assertNotEquals(0L, pipeline.classifier.getEventTriggerSample());
+    }
+
+    @Test
+    public void sameResultAtCaptureRate() {
+        // NORMAL power mode analyses 48 kHz audio in 1024-sample hops
+        int rate = 48000;
+        float[] signal = new float[rate * 2];
+        for (int i = rate / 2; i < signal.length; i++) {
+            signal[i] = 0.5f * (float) Math.sin(2 * Math.PI * 2000f * i / rate);
+        }
+        short[] pcm = new short[signal.length];
+        for (int i = 0; i < pcm.length; i++) {
+            pcm[i] = (short) Math.round(signal[i] * 32767);
+        }
+        Pipeline pipeline = new Pipeline(rate, 1024);
+        pipeline.extractor.process(pcm, 0, pcm.length);
+        assertEquals(SoundEventClassifier.Label.ALARM, pipeline.label);
+    }
+
+    /**
+     * Cost per 20 ms capture read (960 samples at 48 kHz) in both power modes, with every hop
+     * analysed and classified, against the 20 ms the read covers.
+     */
+    @Test
+    public void throughputFitsInsideReadPeriod() {
+        int captureRate = 48000;
+        int readSamples = captureRate / 50;
+        int seconds = 60;
+        short[] pcm = new short[captureRate * seconds];
+        Random random = new Random(9);
+        for (int i = 0; i < pcm.length; i++) {
+            pcm[i] = (short) (8000 * Math.sin(2 * Math.PI * 2000 * i / captureRate) + random.nextInt(4000) - 2000);
+        }
+
+        // Sample rate and hop of SoundDetection.PowerMode NORMAL and LOW_POWER
+        int[][] modes = {{48000, 1024}, {16000, 1024}};
+        String[] names = {"NORMAL", "LOW_POWER"};
+        for (int m = 0; m < modes.length; m++) {
+            int rate = modes[m][0];
+            Pipeline pipeline = new Pipeline(rate, modes[m][1]);
+            Decimator decimator = rate < captureRate ? new Decimator(captureRate / rate) : null;
+            short[] decimated = new short[decimator != null ? decimator.getMaxOutput(readSamples) : 0];
+
+            long worst = 0;
+            long total = 0;
+            int reads = 0;
+            for (int pass = 0; pass < 2; pass++) {
+                for (int offset = 0; offset + readSamples <= pcm.length; offset += readSamples) {
+                    long start = System.nanoTime();
+                    if (decimator != null) {
+                        int n = decimator.process(pcm, offset, readSamples, decimated);
+                        pipeline.extractor.process(decimated, 0, n);
+                    } else {
+                        pipeline.extractor.process(pcm, offset, readSamples);
+                    }
+                    long elapsed = System.nanoTime() - start;
+                    // First pass is warm-up
+                    if (pass == 1) {
+                        total += elapsed;
+                        worst = Math.max(worst, elapsed);
+                        reads++;
+                    }
+                }
+            }
+            long average = total / reads;
+            System.out.println("Sound pipeline " + names[m] + ": " + average / 1000 + " us per 20 ms read on average, "
+                    + worst / 1000 + " us worst, " + pipeline.events + " events");
+            assertTrue(names[m] + " average " + average + " ns", average < 20_000_000L / 10);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.summersoft.heliocam.detection;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the per-frame work PersonDetection does around the interpreter - preprocessing into
+ * the reused input tensor, writing the reused direct output buffer, decoding and tracking -
+ * over 1,000 synthetic frames and checks that none of it allocates.
+ */
+public class SteadyStateAllocationTest {
+
+    private static final int FRAMES = 1000;
+    private static final int INPUT = 320;
+    private static final int CHANNELS = 84;
+    private static final int ANCHORS = 2100;
+
+    @Test
+    public void thousandFramesAllocateNothing() {
+        AllocationCounter counter = new AllocationCounter();
+
+        int width = 640;
+        int height = 480;
+        ByteBuffer y = ByteBuffer.allocateDirect(width * height);
+        ByteBuffer u = ByteBuffer.allocateDirect(width * height / 4);
+        ByteBuffer v = ByteBuffer.allocateDirect(width * height / 4);
+
+        // Stand-ins for the interpreter output: one person walking across the frame
+        FloatBuffer[] tensors = new FloatBuffer[8];
+        for (int i = 0; i < tensors.length; i++) {
+            float[] values = new float[CHANNELS * ANCHORS];
+            int anchor = 100 + i;
+            values[anchor] = 60 + i * 20;
+            values[ANCHORS + anchor] = 160;
+            values[2 * ANCHORS + anchor] = 40;
+            values[3 * ANCHORS + anchor] = 120;
+            values[4 * ANCHORS + anchor] = 0.8f;
+            tensors[i] = FloatBuffer.wrap(values);
+        }
+
+        I420TensorPreprocessor preprocessor = new I420TensorPreprocessor(INPUT, INPUT, false, 0f, 1f);
+        ByteBuffer output = ByteBuffer.allocateDirect(CHANNELS * ANCHORS * 4).order(ByteOrder.nativeOrder());
+        FloatBuffer outputView = output.asFloatBuffer();
+        YoloPersonDecoder decoder = new YoloPersonDecoder(100, 20);
+        PersonTracker tracker = new PersonTracker(16);
+        float[] boxes = new float[20 * 4];
+
+        long before = 0;
+        for (int frame = 0; frame < FRAMES + 100; frame++) {
+            if (frame == 100) {
+                // Warm-up done; JIT compilation and class loading are out of the way
+                before = counter.allocatedBytes();
+            }
+            y.put(frame % y.capacity(), (byte) frame);
+
+            ByteBuffer input = preprocessor.process(y, width, u, width / 2, v, width / 2, width, height);
+            input.rewind();
+
+            FloatBuffer tensor = tensors[frame % tensors.length];
+            tensor.rewind();
+            outputView.clear();
+            outputView.put(tensor);
+
+            int count = decoder.decode(outputView, CHANNELS, ANCHORS, true, INPUT, INPUT, 0.5f, 0.45f);
+            for (int i = 0; i < count; i++) {
+                boxes[i * 4] = preprocessor.toSourceX(decoder.getLeft(i));
+                boxes[i * 4 + 1] = preprocessor.toSourceY(decoder.getTop(i));
+                boxes[i * 4 + 2] = preprocessor.toSourceX(decoder.getRight(i));
+                boxes[i * 4 + 3] = preprocessor.toSourceY(decoder.getBottom(i));
+            }
+            tracker.update(boxes, count, frame * 100L);
+        }
+        long allocated = counter.allocatedBytes() - before;
+
+        assertTrue(tracker.getConfirmedCount() > 0);
+        assertEquals("bytes allocated over " + FRAMES + " frames", 0, allocated);
+    }
+}
@@ -0,0 +1,289 @@
+package com.summersoft.heliocam.detection;
+
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class YoloPersonDecoderTest {
+
+    private static final int CHANNELS = 84;
+    private static final int ANCHORS = 8400;
+    private static final int INPUT = 640;
+    private static final float THRESHOLD = 0.5f;
+    private static final float IOU = 0.45f;
+
+    /**
+     * Synthetic [1, 84, 8400] output: background noise below threshold, and a cluster of
+     * jittered, overlapping anchors around each person, the way YOLOv8 fires on a real one.
+     */
+    private static float[][] syntheticOutput(long seed, float[][] people, int anchorsPerPerson) {
+        Random random = new Random(seed);
+        float[][] output = new float[CHANNELS][ANCHORS];
+        for (int a = 0; a < ANCHORS; a++) {
+            output[0][a] = random.nextFloat() * INPUT;
+            output[1][a] = random.nextFloat() * INPUT;
+            output[2][a] = 10 + random.nextFloat() * 100;
+            output[3][a] = 10 + random.nextFloat() * 100;
+            for (int c = 4; c < CHANNELS; c++) {
+                output[c][a] = random.nextFloat() * 0.2f;
+            }
+        }
+        // Spread the hits over the whole tensor, as the anchor grid spreads them over the image
+        int stride = people.length > 0 ? ANCHORS / (people.length * anchorsPerPerson) : 0;
+        int anchor = stride / 2;
+        for (float[] person : people) {
+            for (int k = 0; k < anchorsPerPerson; k++, anchor += stride) {
+                output[0][anchor] = person[0] + (random.nextFloat() - 0.5f) * 8;
+                output[1][anchor] = person[1] + (random.nextFloat() - 0.5f) * 8;
+                output[2][anchor] = person[2] * (0.95f + random.nextFloat() * 0.1f);
+                output[3][anchor] = person[3] * (0.95f + random.nextFloat() * 0.1f);
+                output[4][anchor] = 0.55f + random.nextFloat() * 0.4f;
+            }
+        }
+        return output;
+    }
+
+    private static final float[][] THREE_PEOPLE = {
+            {120, 300, 80, 240},
+            {320, 320, 90, 260},
+            {520, 280, 70, 220}
+    };
+
+    private static FloatBuffer channelsFirst(float[][] output) {
+        FloatBuffer flat = FloatBuffer.allocate(CHANNELS * ANCHORS);
+        for (float[] channel : output) {
+            flat.put(channel);
+        }
+        flat.rewind();
+        return flat;
+    }
+
+    private static FloatBuffer channelsLast(float[][] output) {
+        FloatBuffer flat = FloatBuffer.allocate(CHANNELS * ANCHORS);
+        for (int a = 0; a < ANCHORS; a++) {
+            for (int c = 0; c < CHANNELS; c++) {
+                flat.put(output[c][a]);
+            }
+        }
+        flat.rewind();
+        return flat;
+    }
+
+    /**
+     * The loop PersonDetection used before the decoder, without its logging: counts anchors
+     * above threshold, stopping at 10, with no NMS.
+     */
+    private static int legacyCount(float[][][] output, int inputWidth, int inputHeight, int frameWidth, int frameHeight) {
+        int numDetections = output[0][0].length;
+        float xScale = (float) frameWidth / inputWidth;
+        float yScale = (float) frameHeight / inputHeight;
+        int detectionCount = 0;
+        float maxPersonConfidence = 0f;
+        for (int i = 0; i < numDetections && detectionCount < 10; i++) {
+            float x = output[0][0][i];
+            float y = output[0][1][i];
+            float w = output[0][2][i];
+            float h = output[0][3][i];
+            float personConfidence = output[0][4][i];
+            if (personConfidence > maxPersonConfidence) {
+                maxPersonConfidence = personConfidence;
+            }
+            if (personConfidence > THRESHOLD) {
+                detectionCount++;
+                float left = (x - w / 2) * xScale;
+                float top = (y - h / 2) * yScale;
+                float right = (x + w / 2) * xScale;
+                float bottom = (y + h / 2) * yScale;
+                if (!(left >= 0 && top >= 0 && right <= frameWidth && bottom <= frameHeight)) {
+                    detectionCount--;
+                }
+            }
+        }
+        return detectionCount;
+    }
+
+    /** Straightforward sort-everything greedy NMS, as the reference for the decoder. */
+    private static List<float[]> referenceNms(float[][] output, float threshold, float iouThreshold) {
+        List<float[]> candidates = new ArrayList<>();
+        for (int a = 0; a < ANCHORS; a++) {
+            float score = output[4][a];
+            if (score > threshold) {
+                float cx = output[0][a];
+                float cy = output[1][a];
+                float w = output[2][a];
+                float h = output[3][a];
+                candidates.add(new float[]{cx - w / 2, cy - h / 2, cx + w / 2, cy + h / 2, score});
+            }
+        }
+        candidates.sort((p, q) -> Float.compare(q[4], p[4]));
+        List<float[]> kept = new ArrayList<>();
+        for (float[] candidate : candidates) {
+            boolean overlaps = false;
+            for (float[] box : kept) {
+                if (iou(box, candidate) > iouThreshold) {
+                    overlaps = true;
+                    break;
+                }
+            }
+            if (!overlaps) {
+                kept.add(candidate);
+            }
+        }
+        return kept;
+    }
+
+    private static float iou(float[] a, float[] b) {
+        float ix = Math.min(a[2], b[2]) - Math.max(a[0], b[0]);
+        float iy = Math.min(a[3], b[3]) - Math.max(a[1], b[1]);
+        if (ix <= 0 || iy <= 0) {
+            return 0;
+        }
+        float intersection = ix * iy;
+        float union = (a[2] - a[0]) * (a[3] - a[1]) + (b[2] - b[0]) * (b[3] - b[1]) - intersection;
+        return intersection / union;
+    }
+
+    @Test
+    public void countsEachPersonOnceWhereTheOldLoopOvercounted() {
+        float[][] output = syntheticOutput(1, THREE_PEOPLE, 8);
+        YoloPersonDecoder decoder = new YoloPersonDecoder(100, 20);
+        int count = decoder.decode(channelsFirst(output), CHANNELS, ANCHORS, true, INPUT, INPUT, THRESHOLD, IOU);
+
+        assertEquals(3, count);
+        assertEquals(10, legacyCount(new float[][][]{output}, INPUT, INPUT, INPUT, INPUT));
+    }
+
+    @Test
+    public void matchesReferenceNms() {
+        float[][][] scenes = {
+                {},
+                {{320, 320, 100, 300}},
+                THREE_PEOPLE,
+                // Two people side by side, overlapping less than the IoU threshold
+                {{300, 300, 100, 300}, {370, 300, 100, 300}}
+        };
+        YoloPersonDecoder decoder = new YoloPersonDecoder(100, 20);
+        for (int s = 0; s < scenes.length; s++) {
+            float[][] output = syntheticOutput(s, scenes[s], 6);
+            List<float[]> expected = referenceNms(output, THRESHOLD, IOU);
+            int count = decoder.decode(channelsFirst(output), CHANNELS, ANCHORS, true, INPUT, INPUT, THRESHOLD, IOU);
+
+            assertEquals("scene " + s, expected.size(), count);
+            for (int i = 0; i < count; i++) {
+                float[] box = expected.get(i);
+                assertEquals(box[0], decoder.getLeft(i), 1e-3f);
+                assertEquals(box[1], decoder.getTop(i), 1e-3f);
+                assertEquals(box[2], decoder.getRight(i), 1e-3f);
+                assertEquals(box[3], decoder.getBottom(i), 1e-3f);
+                assertEquals(box[4], decoder.getScore(i), 0f);
+            }
+        }
+    }
+
+    @Test
+    public void channelsLastGivesSameResult() {
+        float[][] output = syntheticOutput(7, THREE_PEOPLE, 5);
+        YoloPersonDecoder first = new YoloPersonDecoder(100, 20);
+        YoloPersonDecoder last = new YoloPersonDecoder(100, 20);
+        int count = first.decode(channelsFirst(output), CHANNELS, ANCHORS, true, INPUT, INPUT, THRESHOLD, IOU);
+
+        assertEquals(count, last.decode(channelsLast(output), CHANNELS, ANCHORS, false, INPUT, INPUT, THRESHOLD, IOU));
+        assertEquals(first.getMaxScore(), last.getMaxScore(), 0f);
+        for (int i = 0; i < count; i++) {
+            assertEquals(first.getLeft(i), last.getLeft(i), 0f);
+            assertEquals(first.getBottom(i), last.getBottom(i), 0f);
+        }
+    }
+
+    @Test
+    public void scalesNormalisedBoxes() {
+        FloatBuffer output = FloatBuffer.allocate(5 * 2);
+        // Two anchors, channels first: one normalised person box and one below threshold
+        output.put(new float[]{0.5f, 0.1f, 0.5f, 0.1f, 0.25f, 0.1f, 0.5f, 0.1f, 0.9f, 0.3f});
+        YoloPersonDecoder decoder = new YoloPersonDecoder(10, 5);
+
+        assertEquals(1, decoder.decode(output, 5, 2, true, 640, 480, THRESHOLD, IOU));
+        assertEquals(240f, decoder.getLeft(0), 1e-3f);
+        assertEquals(400f, decoder.getRight(0), 1e-3f);
+        assertEquals(120f, decoder.getTop(0), 1e-3f);
+        assertEquals(360f, decoder.getBottom(0), 1e-3f);
+        assertEquals(0.9f, decoder.getMaxScore(), 0f);
+    }
+
+    @Test
+    public void keepsOnlyTopCandidatesAndCapsDetections() {
+        // 30 separate people; only the best 12 candidates survive, and 5 are reported
+        float[][] people = new float[30][];
+        for (int i = 0; i < people.length; i++) {
+            people[i] = new float[]{20 + (i % 6) * 100, 60 + (i / 6) * 120, 40, 80};
+        }
+        float[][] output = syntheticOutput(3, people, 1);
+        YoloPersonDecoder decoder = new YoloPersonDecoder(12, 5);
+        int count = decoder.decode(channelsFirst(output), CHANNELS, ANCHORS, true, INPUT, INPUT, THRESHOLD, IOU);
+
+        assertEquals(5, count);
+        List<float[]> expected = referenceNms(output, THRESHOLD, IOU);
+        for (int i = 0; i < count; i++) {
+            assertEquals(expected.get(i)[4], decoder.getScore(i), 0f);
+            if (i > 0) {
+                assertTrue(decoder.getScore(i) <= decoder.getScore(i - 1));
+            }
+        }
+    }
+
+    @Test
+    public void decodeDoesNotAllocate() {
+        AllocationCounter counter = new AllocationCounter();
+        FloatBuffer output = channelsFirst(syntheticOutput(5, THREE_PEOPLE, 8));
+        YoloPersonDecoder decoder = new YoloPersonDecoder(100, 20);
+        for (int i = 0; i < 200; i++) {
+            decoder.decode(output, CHANNELS, ANCHORS, true, INPUT, INPUT, THRESHOLD, IOU);
+        }
+        long before = counter.allocatedBytes();
+        for (int i = 0; i < 1000; i++) {
+            decoder.decode(output, CHANNELS, ANCHORS, true, INPUT, INPUT, THRESHOLD, IOU);
+        }
+        assertEquals(0, counter.allocatedBytes() - before);
+    }
+
+    /**
+     * Cost against the old loop on an empty scene and a three-person scene. The old loop
+     * here has its per-anchor logging removed, which flatters it.
+     */
+    @Test
+    public void benchmarkAgainstLegacyLoop() {
+        float[][][] scenes = {syntheticOutput(11, new float[0][], 0), syntheticOutput(12, THREE_PEOPLE, 8)};
+        String[] names = {"empty", "three people"};
+        YoloPersonDecoder decoder = new YoloPersonDecoder(100, 20);
+        int iterations = 2000;
+        for (int s = 0; s < scenes.length; s++) {
+            float[][][] nested = {scenes[s]};
+            FloatBuffer flat = channelsFirst(scenes[s]);
+            int sink = 0;
+            for (int i = 0; i < iterations; i++) {
+                sink += legacyCount(nested, INPUT, INPUT, INPUT, INPUT);
+                sink += decoder.decode(flat, CHANNELS, ANCHORS, true, INPUT, INPUT, THRESHOLD, IOU);
+            }
+
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                sink += legacyCount(nested, INPUT, INPUT, INPUT, INPUT);
+            }
+            long legacyNs = (System.nanoTime() - start) / iterations;
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                sink += decoder.decode(flat, CHANNELS, ANCHORS, true, INPUT, INPUT, THRESHOLD, IOU);
+            }
+            long decoderNs = (System.nanoTime() - start) / iterations;
+
+            System.out.println("Decode " + names[s] + ": old loop " + legacyNs + " ns, decoder "
+                    + decoderNs + " ns (" + sink + ")");
+        }
+    }
+}
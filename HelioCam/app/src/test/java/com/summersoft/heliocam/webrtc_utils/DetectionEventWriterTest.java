@@ -0,0 +1,336 @@
+package com.summersoft.heliocam.webrtc_utils;
+
+import com.summersoft.heliocam.detection.DetectionFusion;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Writer against an in-memory store and a manual scheduler.
+ */
+public class DetectionEventWriterTest {
+
+    private static final String HOST = "host@example_com";
+    private static final String CAMERA = "camera@example.com";
+    private static final String SESSION = "session1";
+
+    /** Store that keeps writes in a map and completes them when told to. */
+    private static final class FakeStore implements DetectionEventStore {
+        final Map<String, Object> data = new HashMap<>();
+        final List<Map<String, Object>> calls = new ArrayList<>();
+        final List<CompletionListener> pending = new ArrayList<>();
+        final Set<String> deniedOwners = new HashSet<>();
+        ConnectionListener connectionListener;
+        boolean autoComplete = true;
+        Exception nextError;
+
+        @Override
+        public void updateChildren(Map<String, Object> updates, CompletionListener listener) {
+            calls.add(updates);
+            String owner = DetectionEventWriter.ownerOf(updates.keySet().iterator().next());
+            if (deniedOwners.contains(owner)) {
+                listener.onComplete(new PermissionDeniedException("Permission denied"));
+            } else if (autoComplete) {
+                complete(updates, listener);
+            } else {
+                pending.add(error -> complete(updates, listener));
+            }
+        }
+
+        private void complete(Map<String, Object> updates, CompletionListener listener) {
+            Exception error = nextError;
+            if (error == null) {
+                data.putAll(updates);
+            }
+            listener.onComplete(error);
+        }
+
+        void completePending() {
+            List<CompletionListener> listeners = new ArrayList<>(pending);
+            pending.clear();
+            for (CompletionListener listener : listeners) {
+                listener.onComplete(null);
+            }
+        }
+
+        int written(String prefix) {
+            int count = 0;
+            for (String path : data.keySet()) {
+                if (path.startsWith(prefix)) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        @Override
+        public void setConnectionListener(ConnectionListener listener) {
+            connectionListener = listener;
+        }
+    }
+
+    /** Scheduler that only runs tasks when the test advances its clock. */
+    private static final class ManualScheduler implements DetectionEventWriter.Scheduler {
+        final Map<Runnable, Long> tasks = new HashMap<>();
+        long nowMs;
+
+        @Override
+        public void schedule(Runnable task, long delayMs) {
+            tasks.put(task, nowMs + delayMs);
+        }
+
+        @Override
+        public void cancel(Runnable task) {
+            tasks.remove(task);
+        }
+
+        void advance(long ms) {
+            long until = nowMs + ms;
+            while (true) {
+                Runnable next = null;
+                long at = Long.MAX_VALUE;
+                for (Map.Entry<Runnable, Long> entry : tasks.entrySet()) {
+                    if (entry.getValue() <= until && entry.getValue() < at) {
+                        next = entry.getKey();
+                        at = entry.getValue();
+                    }
+                }
+                if (next == null) {
+                    break;
+                }
+                tasks.remove(next);
+                nowMs = at;
+                next.run();
+            }
+            nowMs = until;
+        }
+
+        Long nextAt() {
+            return tasks.isEmpty() ? null : tasks.values().iterator().next();
+        }
+    }
+
+    private FakeStore store;
+    private ManualScheduler scheduler;
+    private int nameLookups;
+    private String sessionName;
+    private DetectionEventWriter writer;
+
+    @Before
+    public void setUp() {
+        store = new FakeStore();
+        scheduler = new ManualScheduler();
+        nameLookups = 0;
+        sessionName = "Front door";
+        writer = new DetectionEventWriter(store, scheduler, listener -> {
+            nameLookups++;
+            listener.onSessionName(sessionName);
+        }, HOST, SESSION);
+    }
+
+    private static DetectionEventWriter.Event event(String type, long timeMs) {
+        return event(type, new HashMap<>(), timeMs);
+    }
+
+    private static DetectionEventWriter.Event event(String type, Map<String, Object> data, long timeMs) {
+        return new DetectionEventWriter.Event(type, data, timeMs, 2, "Pixel", CAMERA);
+    }
+
+    @Test
+    public void burstIsCoalescedIntoOneWritePerOwner() {
+        for (int i = 0; i < 10; i++) {
+            writer.enqueue(event("person", 1000 + i));
+        }
+        assertTrue(store.calls.isEmpty());
+        scheduler.advance(1000);
+
+        // Host subtree and camera account subtree
+        assertEquals(2, store.calls.size());
+        assertEquals(10, store.written("users/" + HOST + "/sessions/" + SESSION + "/detection_events/"));
+        assertEquals(10, store.written("users/" + HOST + "/sessions/" + SESSION + "/notifications/"));
+        assertEquals(10, store.written("users/" + HOST + "/universal_notifications/"));
+        assertEquals(10, store.written("users/camera@example_com/universal_notifications/"));
+        assertEquals(0, writer.getQueuedCount());
+    }
+
+    @Test
+    public void sameMillisecondEventsGetDistinctIds() {
+        DetectionEventWriter.Event a = event("person", 5000);
+        DetectionEventWriter.Event b = event("sound", 5000);
+        writer.enqueue(a);
+        writer.enqueue(b);
+        assertEquals("5000", a.getEventId());
+        assertEquals("5001", b.getEventId());
+    }
+
+    @Test
+    public void sessionNameIsLookedUpOnce() {
+        for (int round = 0; round < 5; round++) {
+            writer.enqueue(event("person", 1000 + round));
+            scheduler.advance(1000);
+        }
+        assertEquals(1, nameLookups);
+        assertEquals("Front door", writer.getCachedSessionName());
+    }
+
+    @Test
+    public void missingSessionNameIsCachedToo() {
+        sessionName = null;
+        for (int round = 0; round < 5; round++) {
+            writer.enqueue(event("person", 1000 + round));
+            scheduler.advance(1000);
+        }
+        assertEquals(1, nameLookups);
+        assertEquals(5, store.written("users/" + HOST + "/universal_notifications/"));
+    }
+
+    @Test
+    public void nothingIsWrittenWhileOffline() {
+        store.connectionListener.onConnectionChanged(false);
+        for (int i = 0; i < 5; i++) {
+            writer.enqueue(event("person", 1000 + i));
+        }
+        scheduler.advance(60000);
+        assertTrue(store.calls.isEmpty());
+        assertEquals(5, writer.getQueuedCount());
+
+        store.connectionListener.onConnectionChanged(true);
+        scheduler.advance(0);
+        assertEquals(2, store.calls.size());
+        assertEquals(0, writer.getQueuedCount());
+    }
+
+    @Test
+    public void queueIsBoundedWhileOffline() {
+        writer.setMaxQueuedEvents(3);
+        store.connectionListener.onConnectionChanged(false);
+        assertTrue(writer.enqueue(event("person", 1)));
+        assertTrue(writer.enqueue(event("person", 2)));
+        assertTrue(writer.enqueue(event("person", 3)));
+        assertFalse(writer.enqueue(event("person", 4)));
+        assertEquals(3, writer.getQueuedCount());
+        assertTrue(writer.getStats().contains("dropped=1"));
+    }
+
+    @Test
+    public void onlyOneBatchInFlight() {
+        store.autoComplete = false;
+        writer.enqueue(event("person", 1000));
+        scheduler.advance(1000);
+        assertEquals(2, store.calls.size());
+
+        writer.enqueue(event("person", 2000));
+        scheduler.advance(5000);
+        assertEquals(2, store.calls.size());
+
+        store.completePending();
+        scheduler.advance(1000);
+        assertEquals(4, store.calls.size());
+    }
+
+    @Test
+    public void failedBatchIsRetriedWithBackoff() {
+        store.nextError = new Exception("Disconnected");
+        writer.enqueue(event("person", 1000));
+        scheduler.advance(1000);
+        assertEquals(2, store.calls.size());
+        assertEquals(1, writer.getQueuedCount());
+
+        // 1 s, then 2 s
+        scheduler.advance(1000);
+        assertEquals(4, store.calls.size());
+        scheduler.advance(1000);
+        assertEquals(4, store.calls.size());
+
+        store.nextError = null;
+        scheduler.advance(1000);
+        assertEquals(6, store.calls.size());
+        assertEquals(0, writer.getQueuedCount());
+        assertEquals(1, store.written("users/" + HOST + "/universal_notifications/"));
+    }
+
+    @Test
+    public void deniedOwnerIsGivenUpWithoutBlockingTheHost() {
+        store.deniedOwners.add("users/" + HOST);
+        writer.enqueue(event("person", 1000));
+        scheduler.advance(1000);
+
+        // The camera's own list is written, the host's refusal is not retried
+        assertEquals(1, store.written("users/camera@example_com/"));
+        assertEquals(0, writer.getQueuedCount());
+        assertTrue(writer.getStats().contains("denied=1"));
+
+        writer.enqueue(event("person", 2000));
+        scheduler.advance(60000);
+        assertEquals(3, store.calls.size());
+        assertEquals(2, store.written("users/camera@example_com/"));
+        assertTrue(writer.getStats().contains("denied=1"));
+    }
+
+    @Test
+    public void retryOnlyRewritesOwnersThatFailed() {
+        writer.enqueue(event("person", 1000));
+        store.autoComplete = false;
+        scheduler.advance(1000);
+        assertEquals(2, store.calls.size());
+
+        // First owner's write succeeds, the second fails
+        store.pending.get(0).onComplete(null);
+        store.nextError = new Exception("Disconnected");
+        store.pending.get(1).onComplete(null);
+        store.pending.clear();
+        assertEquals(1, writer.getQueuedCount());
+
+        store.nextError = null;
+        store.autoComplete = true;
+        scheduler.advance(1000);
+        assertEquals(3, store.calls.size());
+        assertEquals(0, writer.getQueuedCount());
+    }
+
+    @Test
+    public void flushNowWritesImmediatelyAndReleaseStopsScheduling() {
+        writer.enqueue(event("sound", 1000));
+        writer.flushNow();
+        assertEquals(2, store.calls.size());
+        assertEquals(0, writer.getQueuedCount());
+
+        writer.release();
+        assertFalse(writer.enqueue(event("sound", 2000)));
+        assertEquals(null, scheduler.nextAt());
+        assertEquals(null, store.connectionListener);
+    }
+
+    @Test
+    public void reasonTextNamesFusedEvents() {
+        Map<String, Object> fused = new HashMap<>();
+        fused.put(DetectionFusion.KEY_FUSED_WITH, DetectionFusion.TYPE_SOUND);
+        assertEquals("Person and sound detected", DetectionEventWriter.describe(event("person", fused, 1)));
+        assertEquals("Person detected", DetectionEventWriter.describe(event("person", 1)));
+        assertEquals("Sound detected", DetectionEventWriter.describe(event("sound", 1)));
+
+        writer.enqueue(event("person", fused, 1000));
+        scheduler.advance(1000);
+        @SuppressWarnings("unchecked")
+        Map<String, Object> notification = (Map<String, Object>) store.data.get(
+                "users/" + HOST + "/sessions/" + SESSION + "/notifications/1000");
+        assertEquals("Person and sound detected by Camera 2", notification.get("reason"));
+    }
+
+    @Test
+    public void ownerIsTheAccountSubtree() {
+        assertEquals("users/a_b", DetectionEventWriter.ownerOf("users/a_b/sessions/s/notifications/1"));
+        assertEquals("users/a_b", DetectionEventWriter.ownerOf("users/a_b"));
+    }
+}
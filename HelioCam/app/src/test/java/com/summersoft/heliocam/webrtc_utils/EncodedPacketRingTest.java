@@ -0,0 +1,157 @@
+package com.summersoft.heliocam.webrtc_utils;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Eviction, wrap-around and reader behaviour with synthetic 25 fps streams.
+ */
+public class EncodedPacketRingTest {
+
+    private static final long FRAME_US = 40000;
+
+    private static ByteBuffer packet(int size, int fill) {
+        byte[] bytes = new byte[size];
+        Arrays.fill(bytes, (byte) fill);
+        return ByteBuffer.wrap(bytes);
+    }
+
+    private static int keyFlag(int frame, int gop) {
+        return frame % gop == 0 ? EncodedPacketRing.FLAG_KEY_FRAME : 0;
+    }
+
+    @Test
+    public void packetsBeforeFirstKeyFrameAreDropped() {
+        EncodedPacketRing ring = new EncodedPacketRing(10000, 100, 1_000_000);
+        assertEquals(-1, ring.append(EncodedPacketRing.TRACK_AUDIO, packet(10, 0), 0, 0));
+        assertEquals(-1, ring.append(EncodedPacketRing.TRACK_VIDEO, packet(10, 0), 0, 0));
+        assertEquals(0, ring.append(EncodedPacketRing.TRACK_VIDEO, packet(10, 0), FRAME_US,
+                EncodedPacketRing.FLAG_KEY_FRAME));
+        assertEquals(1, ring.append(EncodedPacketRing.TRACK_AUDIO, packet(10, 0), FRAME_US, 1));
+    }
+
+    @Test
+    public void windowIsCoveredWithHeadOnKeyFrame() {
+        // 1 s window, key frame every 25 frames, audio between frames
+        EncodedPacketRing ring = new EncodedPacketRing(200_000, 1000, 1_000_000);
+        for (int i = 0; i < 250; i++) {
+            ring.append(EncodedPacketRing.TRACK_VIDEO, packet(500, i), i * FRAME_US, keyFlag(i, 25));
+            ring.append(EncodedPacketRing.TRACK_AUDIO, packet(50, i), i * FRAME_US + 10000, 1);
+        }
+
+        EncodedPacketRing.Packet out = new EncodedPacketRing.Packet();
+        assertTrue(ring.read(ring.getOldestSeq(), out));
+        assertTrue(out.isKeyFrame());
+        long duration = ring.getBufferedDurationUs();
+        // At least the window, less than the window plus one GOP
+        assertTrue("duration " + duration, duration >= 1_000_000 && duration < 2_000_000);
+    }
+
+    @Test
+    public void byteCapacityIsNeverExceededAndWrappedPacketsStayIntact() {
+        EncodedPacketRing ring = new EncodedPacketRing(10000, 1000, 60_000_000);
+        for (int i = 0; i < 100; i++) {
+            ring.append(EncodedPacketRing.TRACK_VIDEO, packet(900, i), i * FRAME_US, keyFlag(i, 5));
+            assertTrue(ring.getUsedBytes() <= ring.getCapacityBytes());
+        }
+
+        EncodedPacketRing.Packet out = new EncodedPacketRing.Packet();
+        assertTrue(ring.read(ring.getOldestSeq(), out));
+        assertTrue(out.isKeyFrame());
+        // 900-byte packets in a 10000-byte array: several of these straddle the end
+        for (long seq = ring.getOldestSeq(); seq < ring.getNextSeq(); seq++) {
+            assertTrue(ring.read(seq, out));
+            assertEquals(900, out.size);
+            for (int k = 0; k < out.size; k++) {
+                assertEquals("seq " + seq + " byte " + k, (byte) seq, out.data[k]);
+            }
+        }
+        assertFalse(ring.read(0, out));
+    }
+
+    @Test
+    public void packetCountIsBounded() {
+        EncodedPacketRing ring = new EncodedPacketRing(100_000, 10, 60_000_000);
+        for (int i = 0; i < 50; i++) {
+            ring.append(EncodedPacketRing.TRACK_VIDEO, packet(1, i), i, keyFlag(i, 3));
+            assertTrue(ring.getNextSeq() - ring.getOldestSeq() <= 10);
+        }
+    }
+
+    @Test
+    public void oversizePacketClearsAndWaitsForKeyFrame() {
+        EncodedPacketRing ring = new EncodedPacketRing(10000, 100, 60_000_000);
+        ring.append(EncodedPacketRing.TRACK_VIDEO, packet(100, 0), 0, EncodedPacketRing.FLAG_KEY_FRAME);
+        assertEquals(-1, ring.append(EncodedPacketRing.TRACK_VIDEO, packet(20000, 0), FRAME_US,
+                EncodedPacketRing.FLAG_KEY_FRAME));
+        assertEquals(0, ring.getUsedBytes());
+        assertEquals(-1, ring.append(EncodedPacketRing.TRACK_VIDEO, packet(10, 0), 2 * FRAME_US, 0));
+        assertTrue(ring.append(EncodedPacketRing.TRACK_VIDEO, packet(10, 0), 3 * FRAME_US,
+                EncodedPacketRing.FLAG_KEY_FRAME) >= 0);
+    }
+
+    @Test
+    public void keyFrameLookupForPreEventStart() {
+        EncodedPacketRing ring = new EncodedPacketRing(1_000_000, 1000, 3_000_000);
+        for (int i = 0; i < 200; i++) {
+            ring.append(EncodedPacketRing.TRACK_VIDEO, packet(10, i), i * FRAME_US, keyFlag(i, 25));
+        }
+        long newest = ring.getNewestPtsUs();
+        EncodedPacketRing.Packet out = new EncodedPacketRing.Packet();
+
+        // Newest key frame at or before the requested start
+        assertTrue(ring.read(ring.findKeyFrameAtOrBefore(newest), out));
+        assertEquals(175 * FRAME_US, out.ptsUs);
+        assertTrue(ring.read(ring.findKeyFrameAtOrBefore(newest - 1_000_000), out));
+        assertEquals(150 * FRAME_US, out.ptsUs);
+        assertTrue(out.isKeyFrame());
+
+        // Further back than the ring reaches: the oldest packet
+        assertEquals(ring.getOldestSeq(), ring.findKeyFrameAtOrBefore(newest - 10_000_000));
+    }
+
+    @Test
+    public void clearStartsNewEpoch() {
+        EncodedPacketRing ring = new EncodedPacketRing(10000, 100, 60_000_000);
+        ring.append(EncodedPacketRing.TRACK_VIDEO, packet(10, 0), 0, EncodedPacketRing.FLAG_KEY_FRAME);
+        ring.clear();
+        assertEquals(1, ring.getEpoch());
+        assertEquals(ring.getNextSeq(), ring.getOldestSeq());
+        assertEquals(-1, ring.append(EncodedPacketRing.TRACK_VIDEO, packet(10, 0), FRAME_US, 0));
+        long seq = ring.append(EncodedPacketRing.TRACK_VIDEO, packet(10, 0), 2 * FRAME_US,
+                EncodedPacketRing.FLAG_KEY_FRAME);
+
+        EncodedPacketRing.Packet out = new EncodedPacketRing.Packet();
+        assertTrue(ring.read(seq, out));
+        assertEquals(1, out.epoch);
+    }
+
+    @Test
+    public void readerIsWokenByAppendAndClose() throws InterruptedException {
+        EncodedPacketRing ring = new EncodedPacketRing(10000, 100, 60_000_000);
+        ring.append(EncodedPacketRing.TRACK_VIDEO, packet(10, 0), 0, EncodedPacketRing.FLAG_KEY_FRAME);
+        long next = ring.getNextSeq();
+        Thread writer = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException ignored) {
+            }
+            ring.append(EncodedPacketRing.TRACK_VIDEO, packet(10, 0), FRAME_US, 0);
+        });
+        writer.start();
+        assertTrue(ring.awaitPacket(next, 2000));
+        writer.join();
+
+        assertFalse(ring.awaitPacket(ring.getNextSeq(), 20));
+        ring.close();
+        assertFalse(ring.awaitPacket(ring.getNextSeq(), 2000));
+        assertEquals(-1, ring.append(EncodedPacketRing.TRACK_VIDEO, packet(10, 0), 2 * FRAME_US,
+                EncodedPacketRing.FLAG_KEY_FRAME));
+    }
+}
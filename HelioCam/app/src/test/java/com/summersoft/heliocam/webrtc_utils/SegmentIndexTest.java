@@ -0,0 +1,183 @@
+package com.summersoft.heliocam.webrtc_utils;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Index files written for synthetic recordings of 2 s key frame intervals, 30 key frames per
+ * segment, then read back whole, cut short and torn.
+ */
+public class SegmentIndexTest {
+
+    private static final long START_MS = 1_000_000;
+    private static final long KEY_FRAME_MS = 2000;
+    private static final int KEY_FRAMES_PER_SEGMENT = 30;
+    private static final long SEGMENT_MS = KEY_FRAME_MS * KEY_FRAMES_PER_SEGMENT;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /** Write {@code keyFrames} key frames, finishing each full segment as the recorder does. */
+    private static void writeKeyFrames(SegmentIndex.Writer writer, int keyFrames) throws IOException {
+        for (int i = 0; i < keyFrames; i++) {
+            int segment = i / KEY_FRAMES_PER_SEGMENT;
+            int inSegment = i % KEY_FRAMES_PER_SEGMENT;
+            writer.append(START_MS + i * KEY_FRAME_MS, segment, inSegment * KEY_FRAME_MS * 1000);
+            if (inSegment == KEY_FRAMES_PER_SEGMENT - 1) {
+                writer.finishSegment(segment, START_MS + (segment + 1) * SEGMENT_MS, SEGMENT_MS * 1000);
+            }
+        }
+    }
+
+    @Test
+    public void completeRecordingIsSearchable() throws IOException {
+        File file = folder.newFile("complete.idx");
+        SegmentIndex.Writer writer = new SegmentIndex.Writer(file);
+        writeKeyFrames(writer, 3 * KEY_FRAMES_PER_SEGMENT);
+        writer.close(START_MS + 3 * SEGMENT_MS);
+
+        try (SegmentIndex.Reader reader = new SegmentIndex.Reader(file)) {
+            assertTrue(reader.isComplete());
+            assertEquals(3 * KEY_FRAMES_PER_SEGMENT + 3, reader.size());
+            assertEquals(START_MS, reader.getStartWallClockMs());
+            assertEquals(START_MS + 3 * SEGMENT_MS, reader.getEndWallClockMs());
+
+            SegmentIndex.Entry entry = reader.find(START_MS + SEGMENT_MS + 3 * KEY_FRAME_MS + 1);
+            assertEquals(1, entry.segment);
+            assertEquals(3 * KEY_FRAME_MS * 1000, entry.offsetUs);
+            assertFalse(entry.segmentFinished);
+
+            assertNull(reader.find(START_MS - 1));
+            assertNotNull(reader.find(START_MS + 3 * SEGMENT_MS));
+            assertNull(reader.find(START_MS + 3 * SEGMENT_MS + 1));
+        }
+    }
+
+    @Test
+    public void timeBetweenSegmentEndAndNextKeyFrameFindsLastKeyFrame() throws IOException {
+        File file = folder.newFile("gap.idx");
+        SegmentIndex.Writer writer = new SegmentIndex.Writer(file);
+        writer.append(START_MS, 0, 0);
+        writer.append(START_MS + KEY_FRAME_MS, 0, KEY_FRAME_MS * 1000);
+        writer.finishSegment(0, START_MS + 3000, 3_000_000);
+        // The next segment starts late, e.g. after a change of video source
+        writer.append(START_MS + 5000, 1, 0);
+        writer.finishSegment(1, START_MS + 6000, 1_000_000);
+        writer.close(START_MS + 6000);
+
+        try (SegmentIndex.Reader reader = new SegmentIndex.Reader(file)) {
+            SegmentIndex.Entry entry = reader.find(START_MS + 4000);
+            assertEquals(0, entry.segment);
+            assertEquals(KEY_FRAME_MS * 1000, entry.offsetUs);
+            assertEquals(1, reader.find(START_MS + 5500).segment);
+            assertTrue(reader.get(2).segmentFinished);
+        }
+    }
+
+    @Test
+    public void crashIgnoresKeyFramesOfUnfinishedSegment() throws IOException {
+        File file = folder.newFile("crash.idx");
+        SegmentIndex.Writer writer = new SegmentIndex.Writer(file);
+        // Two finished segments and ten key frames into the third
+        writeKeyFrames(writer, 2 * KEY_FRAMES_PER_SEGMENT + 10);
+        writer.close();
+
+        try (SegmentIndex.Reader reader = new SegmentIndex.Reader(file)) {
+            assertFalse(reader.isComplete());
+            assertEquals(2 * KEY_FRAMES_PER_SEGMENT + 2, reader.size());
+            assertEquals(START_MS + 2 * SEGMENT_MS, reader.getEndWallClockMs());
+
+            assertEquals(1, reader.find(START_MS + 2 * SEGMENT_MS).segment);
+            // Key frames were written for the open segment, but its file is unplayable
+            assertNull(reader.find(START_MS + 2 * SEGMENT_MS + 5 * KEY_FRAME_MS));
+        }
+    }
+
+    @Test
+    public void crashInFirstSegmentLeavesNothingToPlay() throws IOException {
+        File file = folder.newFile("first.idx");
+        SegmentIndex.Writer writer = new SegmentIndex.Writer(file);
+        writeKeyFrames(writer, 10);
+        writer.close();
+
+        try (SegmentIndex.Reader reader = new SegmentIndex.Reader(file)) {
+            assertEquals(0, reader.size());
+            assertEquals(Long.MIN_VALUE, reader.getEndWallClockMs());
+            assertNull(reader.find(START_MS + KEY_FRAME_MS));
+        }
+    }
+
+    @Test
+    public void tornRecordIsIgnored() throws IOException {
+        File file = folder.newFile("torn.idx");
+        SegmentIndex.Writer writer = new SegmentIndex.Writer(file);
+        writeKeyFrames(writer, KEY_FRAMES_PER_SEGMENT + 1);
+        writer.close();
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(new byte[SegmentIndex.RECORD_SIZE - 7]);
+        }
+
+        try (SegmentIndex.Reader reader = new SegmentIndex.Reader(file)) {
+            assertFalse(reader.isComplete());
+            assertEquals(KEY_FRAMES_PER_SEGMENT + 1, reader.size());
+            assertEquals(0, reader.find(START_MS + SEGMENT_MS).segment);
+        }
+    }
+
+    @Test
+    public void clockGoingBackIsClamped() throws IOException {
+        File file = folder.newFile("clock.idx");
+        SegmentIndex.Writer writer = new SegmentIndex.Writer(file);
+        writer.append(START_MS, 0, 0);
+        writer.append(START_MS - 60000, 0, KEY_FRAME_MS * 1000);
+        writer.finishSegment(0, START_MS + 100, 4_000_000);
+        writer.close(START_MS + 100);
+
+        try (SegmentIndex.Reader reader = new SegmentIndex.Reader(file)) {
+            assertEquals(START_MS, reader.get(1).wallClockMs);
+            // Equal times: the later key frame wins
+            assertEquals(KEY_FRAME_MS * 1000, reader.find(START_MS).offsetUs);
+        }
+    }
+
+    @Test
+    public void otherVersionIsRejected() throws IOException {
+        File file = folder.newFile("version.idx");
+        new SegmentIndex.Writer(file).close();
+        try (RandomAccessFile raw = new RandomAccessFile(file, "rw")) {
+            raw.seek(4);
+            raw.writeInt(2);
+        }
+        try {
+            new SegmentIndex.Reader(file).close();
+            fail("Read an index of another version");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void otherFilesAreRejected() throws IOException {
+        File file = folder.newFile("other.idx");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[SegmentIndex.HEADER_SIZE]);
+        }
+        try {
+            new SegmentIndex.Reader(file).close();
+            fail("Read a file without the magic number");
+        } catch (IOException expected) {
+        }
+    }
+}